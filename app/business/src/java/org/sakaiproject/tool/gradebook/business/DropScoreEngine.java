@@ -0,0 +1,328 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sakaiproject.tool.gradebook.Assignment;
+import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Category;
+
+/**
+ * Works out which scores a category's drop lowest, drop highest and keep
+ * highest rules remove from a student's grade.
+ *
+ * Grade records are grouped by student and category through int indexes
+ * rather than string keys, each group is sorted once, and the dropped scores
+ * are read off both ends of the sorted group. The work is linear in the number
+ * of grade records apart from the per group sort. Scratch arrays are kept
+ * between groups, so an engine must not be shared between threads; create one
+ * per calculation.
+ *
+ * The result is returned rather than written to the grade records, so callers
+ * can keep it; GradebookManager.applyDropScores copies it into the
+ * droppedFromGrade flags for the code which reads them from there.
+ */
+public class DropScoreEngine {
+	private int[] order = new int[16];
+	private int[] mergeBuffer = new int[16];
+	private double[] points = new double[16];
+	private boolean[] dropped = new boolean[16];
+
+	/**
+	 * @return true if the category drops or keeps any scores
+	 */
+	public static boolean isDropScoresCategory(Category category) {
+		if (category == null) {
+			return false;
+		}
+		return (category.getDrop_lowest() != null && category.getDrop_lowest() > 0)
+			|| (category.getDropHighest() != null && category.getDropHighest() > 0)
+			|| (category.getKeepHighest() != null && category.getKeepHighest() > 0);
+	}
+
+	/**
+	 * @return true if scores for the assignment take part in dropping: ungraded, not
+	 * counted, adjustment and removed items never do
+	 */
+	public static boolean isDropScoresAssignment(Assignment assignment) {
+		return !(assignment.getUngraded()
+			|| assignment.isNotCounted()
+			|| Assignment.item_type_adjustment.equals(assignment.getItemType())
+			|| assignment.isRemoved())
+			&& isDropScoresCategory(assignment.getCategory());
+	}
+
+	/**
+	 * Choose the dropped scores among count scores of one student in one category.
+	 * Lowest and highest are by points earned.
+	 *
+	 * @param scores the points earned, only the first count are read
+	 * @param droppedScores set to true at the positions of the dropped scores and
+	 * false elsewhere, for the first count positions
+	 * @return the number of scores dropped
+	 */
+	public int selectDroppedScores(double[] scores, int count, Category category, boolean[] droppedScores) {
+		int dropLowest = category.getDrop_lowest() == null ? 0 : category.getDrop_lowest();
+		int dropHighest = category.getDropHighest() == null ? 0 : category.getDropHighest();
+		int keepHighest = category.getKeepHighest() == null ? 0 : category.getKeepHighest();
+
+		for (int i = 0; i < count; i++) {
+			droppedScores[i] = false;
+		}
+		sortPositions(scores, count);
+
+		int numDropped = 0;
+		int remaining = count;
+		if (dropHighest > 0 && count > dropHighest + dropLowest) {
+			for (int i = 0; i < dropHighest; i++) {
+				droppedScores[order[--remaining]] = true;
+				numDropped++;
+			}
+		}
+
+		if (keepHighest > 0) {
+			dropLowest = remaining - keepHighest;
+		}
+
+		if (dropLowest > 0 && count > dropLowest + dropHighest) {
+			for (int i = 0; i < dropLowest; i++) {
+				droppedScores[order[i]] = true;
+				numDropped++;
+			}
+		}
+		return numDropped;
+	}
+
+	/**
+	 * Fill order[0..count) with the positions of the scores, ascending by score. The
+	 * sort is stable, so equal scores stay in the order they were given.
+	 */
+	private void sortPositions(double[] scores, int count) {
+		if (order.length < count) {
+			order = new int[count];
+			mergeBuffer = new int[count];
+		}
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		if (count < 12) {
+			insertionSort(scores, 0, count);
+		} else {
+			mergeSort(scores, 0, count);
+		}
+	}
+
+	private void insertionSort(double[] scores, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			int position = order[i];
+			int j = i;
+			while (j > from && scores[order[j - 1]] > scores[position]) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = position;
+		}
+	}
+
+	private void mergeSort(double[] scores, int from, int to) {
+		if (to - from < 12) {
+			insertionSort(scores, from, to);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(scores, from, middle);
+		mergeSort(scores, middle, to);
+		if (scores[order[middle - 1]] <= scores[order[middle]]) {
+			return;
+		}
+		System.arraycopy(order, from, mergeBuffer, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && scores[mergeBuffer[left]] <= scores[mergeBuffer[right]])) {
+				order[i] = mergeBuffer[left++];
+			} else {
+				order[i] = mergeBuffer[right++];
+			}
+		}
+	}
+
+	/**
+	 * Grow the scratch arrays used to pass a group to selectDroppedScores.
+	 */
+	private void ensureCapacity(int count) {
+		if (points.length < count) {
+			int capacity = Math.max(count, points.length * 2);
+			points = new double[capacity];
+			dropped = new boolean[capacity];
+		}
+	}
+
+	/**
+	 * @return the grade records whose scores are dropped, compared by identity. Records
+	 * without a score, for items which don't take part in dropping, or in categories
+	 * without drop rules are never in the result. The records are not modified.
+	 */
+	public Set<AssignmentGradeRecord> getDroppedGradeRecords(Collection<AssignmentGradeRecord> gradeRecords) {
+		Set<AssignmentGradeRecord> droppedRecords = Collections.newSetFromMap(new IdentityHashMap<AssignmentGradeRecord, Boolean>());
+		if (gradeRecords == null || gradeRecords.isEmpty()) {
+			return droppedRecords;
+		}
+
+		// index the students and categories, keeping only the records which can be dropped
+		Map<String, Integer> studentIndexMap = new HashMap<String, Integer>();
+		Map<Long, Integer> categoryIndexMap = new HashMap<Long, Integer>();
+		List<Category> categories = new ArrayList<Category>();
+		int numRecords = 0;
+		AssignmentGradeRecord[] records = new AssignmentGradeRecord[gradeRecords.size()];
+		int[] studentIndexes = new int[records.length];
+		int[] categoryIndexes = new int[records.length];
+		for (AssignmentGradeRecord gradeRecord : gradeRecords) {
+			if (gradeRecord == null || gradeRecord.getPointsEarned() == null
+					|| !isDropScoresAssignment(gradeRecord.getAssignment())) {
+				continue;
+			}
+			Category category = gradeRecord.getAssignment().getCategory();
+			Integer studentIndex = studentIndexMap.get(gradeRecord.getStudentId());
+			if (studentIndex == null) {
+				studentIndex = studentIndexMap.size();
+				studentIndexMap.put(gradeRecord.getStudentId(), studentIndex);
+			}
+			Integer categoryIndex = categoryIndexMap.get(category.getId());
+			if (categoryIndex == null) {
+				categoryIndex = categories.size();
+				categoryIndexMap.put(category.getId(), categoryIndex);
+				categories.add(category);
+			}
+			records[numRecords] = gradeRecord;
+			studentIndexes[numRecords] = studentIndex;
+			categoryIndexes[numRecords] = categoryIndex;
+			numRecords++;
+		}
+		if (numRecords == 0) {
+			return droppedRecords;
+		}
+
+		// counting sort of the records into (student, category) groups
+		int numCategories = categories.size();
+		int numGroups = studentIndexMap.size() * numCategories;
+		int[] groupStarts = new int[numGroups + 1];
+		for (int i = 0; i < numRecords; i++) {
+			groupStarts[studentIndexes[i] * numCategories + categoryIndexes[i] + 1]++;
+		}
+		for (int g = 0; g < numGroups; g++) {
+			groupStarts[g + 1] += groupStarts[g];
+		}
+		int[] grouped = new int[numRecords];
+		int[] next = new int[numGroups];
+		System.arraycopy(groupStarts, 0, next, 0, numGroups);
+		for (int i = 0; i < numRecords; i++) {
+			grouped[next[studentIndexes[i] * numCategories + categoryIndexes[i]]++] = i;
+		}
+
+		for (int g = 0; g < numGroups; g++) {
+			int start = groupStarts[g];
+			int count = groupStarts[g + 1] - start;
+			if (count == 0) {
+				continue;
+			}
+			ensureCapacity(count);
+			for (int i = 0; i < count; i++) {
+				points[i] = records[grouped[start + i]].getPointsEarned().doubleValue();
+			}
+			if (selectDroppedScores(points, count, categories.get(g % numCategories), dropped) > 0) {
+				for (int i = 0; i < count; i++) {
+					if (dropped[i]) {
+						droppedRecords.add(records[grouped[start + i]]);
+					}
+				}
+			}
+		}
+		return droppedRecords;
+	}
+
+	/**
+	 * Mark the dropped scores of every student in the matrix, replacing any marked before.
+	 */
+	public void applyDropScores(GradeMatrix gradeMatrix) {
+		gradeMatrix.clearDropped();
+
+		// group the assignment columns by category
+		Map<Long, Integer> categoryIndexMap = new HashMap<Long, Integer>();
+		List<Category> categories = new ArrayList<Category>();
+		List<List<Integer>> categoryColumns = new ArrayList<List<Integer>>();
+		for (int i = 0; i < gradeMatrix.getAssignmentCount(); i++) {
+			Assignment assignment = gradeMatrix.getAssignment(i);
+			if (!isDropScoresAssignment(assignment)) {
+				continue;
+			}
+			Category category = assignment.getCategory();
+			Integer categoryIndex = categoryIndexMap.get(category.getId());
+			if (categoryIndex == null) {
+				categoryIndex = categories.size();
+				categoryIndexMap.put(category.getId(), categoryIndex);
+				categories.add(category);
+				categoryColumns.add(new ArrayList<Integer>());
+			}
+			categoryColumns.get(categoryIndex).add(i);
+		}
+
+		for (int c = 0; c < categories.size(); c++) {
+			Category category = categories.get(c);
+			List<Integer> columnList = categoryColumns.get(c);
+			int[] columns = new int[columnList.size()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = columnList.get(i).intValue();
+			}
+			int[] scoredColumns = new int[columns.length];
+			ensureCapacity(columns.length);
+
+			for (int s = 0; s < gradeMatrix.getStudentCount(); s++) {
+				int count = 0;
+				for (int i = 0; i < columns.length; i++) {
+					if (gradeMatrix.isScored(s, columns[i])) {
+						scoredColumns[count] = columns[i];
+						points[count] = gradeMatrix.getPointsEarned(s, columns[i]);
+						count++;
+					}
+				}
+				if (count > 0 && selectDroppedScores(points, count, category, dropped) > 0) {
+					for (int i = 0; i < count; i++) {
+						if (dropped[i]) {
+							gradeMatrix.setDropped(s, scoredColumns[i], true);
+						}
+					}
+				}
+			}
+		}
+	}
+}
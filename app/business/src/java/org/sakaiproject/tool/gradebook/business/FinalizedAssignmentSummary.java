@@ -0,0 +1,82 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business;
+
+import java.io.Serializable;
+
+/**
+ * What finalizing the scores of a gradebook changed for one counted item:
+ * the zero scores given to students who had no grade record for it, and the
+ * empty scores which were set to zero.
+ */
+public class FinalizedAssignmentSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final Long assignmentId;
+	private final String assignmentName;
+	private int numRecordsCreated;
+	private int numScoresZeroed;
+
+	public FinalizedAssignmentSummary(Long assignmentId, String assignmentName) {
+		this.assignmentId = assignmentId;
+		this.assignmentName = assignmentName;
+	}
+
+	public Long getAssignmentId() {
+		return assignmentId;
+	}
+
+	public String getAssignmentName() {
+		return assignmentName;
+	}
+
+	/**
+	 * @return the number of students given a new grade record with a score of zero
+	 */
+	public int getNumRecordsCreated() {
+		return numRecordsCreated;
+	}
+
+	public void setNumRecordsCreated(int numRecordsCreated) {
+		this.numRecordsCreated = numRecordsCreated;
+	}
+
+	/**
+	 * @return the number of existing grade records whose empty score was set to zero
+	 */
+	public int getNumScoresZeroed() {
+		return numScoresZeroed;
+	}
+
+	public void setNumScoresZeroed(int numScoresZeroed) {
+		this.numScoresZeroed = numScoresZeroed;
+	}
+
+	public boolean isChanged() {
+		return numRecordsCreated > 0 || numScoresZeroed > 0;
+	}
+
+	public String toString() {
+		return assignmentName + " (" + assignmentId + "): " + numRecordsCreated + " created, " + numScoresZeroed + " zeroed";
+	}
+}
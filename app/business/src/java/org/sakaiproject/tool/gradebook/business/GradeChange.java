@@ -0,0 +1,143 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.sakaiproject.tool.gradebook.Comment;
+import org.sakaiproject.tool.gradebook.GradableObject;
+import org.sakaiproject.tool.gradebook.GradingEvent;
+
+/**
+ * One saved score, course grade or comment, as appended to the GB_GRADE_CHANGE_T
+ * outbox in the same transaction as the save. Integrations read the outbox in
+ * id order instead of comparing whole gradebooks.
+ */
+public class GradeChange implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final String TYPE_SCORE = "SCORE";
+	public static final String TYPE_COURSE_GRADE = "COURSE_GRADE";
+	public static final String TYPE_COMMENT = "COMMENT";
+
+	/** the longest grade kept, as for grading events */
+	private static final int MAX_GRADE_LENGTH = 255;
+
+	private Long id;
+	private Long gradebookId;
+	private Long gradableObjectId;
+	private String studentId;
+	private String changeType;
+	private String grade;
+	private String graderId;
+	private Date dateRecorded;
+	/** the id again, mapped read only to put it second in the gradebook index */
+	private Long indexedId;
+
+	public GradeChange() {
+	}
+
+	private GradeChange(GradableObject gradableObject, String studentId, String changeType, String grade, String graderId, Date dateRecorded) {
+		this.gradebookId = gradableObject.getGradebook().getId();
+		this.gradableObjectId = gradableObject.getId();
+		this.studentId = studentId;
+		this.changeType = changeType;
+		this.grade = (grade != null && grade.length() > MAX_GRADE_LENGTH) ? grade.substring(0, MAX_GRADE_LENGTH) : grade;
+		this.graderId = graderId;
+		this.dateRecorded = (dateRecorded != null) ? dateRecorded : new Date();
+	}
+
+	/**
+	 * @return the change recorded by a grading event, with the grade as the grader entered it
+	 */
+	public static GradeChange forGradingEvent(GradingEvent event) {
+		GradableObject gradableObject = event.getGradableObject();
+		return new GradeChange(gradableObject, event.getStudentId(),
+			gradableObject.isCourseGrade() ? TYPE_COURSE_GRADE : TYPE_SCORE,
+			event.getGrade(), event.getGraderId(), event.getDateGraded());
+	}
+
+	/**
+	 * @return the change of a comment; the text itself is left out to keep the
+	 * outbox small, consumers read it with the scores
+	 */
+	public static GradeChange forComment(Comment comment) {
+		return new GradeChange(comment.getGradableObject(), comment.getStudentId(), TYPE_COMMENT,
+			null, comment.getGraderId(), comment.getDateRecorded());
+	}
+
+	public Long getId() {
+		return id;
+	}
+	public void setId(Long id) {
+		this.id = id;
+	}
+	public Long getGradebookId() {
+		return gradebookId;
+	}
+	public void setGradebookId(Long gradebookId) {
+		this.gradebookId = gradebookId;
+	}
+	public Long getGradableObjectId() {
+		return gradableObjectId;
+	}
+	public void setGradableObjectId(Long gradableObjectId) {
+		this.gradableObjectId = gradableObjectId;
+	}
+	public String getStudentId() {
+		return studentId;
+	}
+	public void setStudentId(String studentId) {
+		this.studentId = studentId;
+	}
+	public String getChangeType() {
+		return changeType;
+	}
+	public void setChangeType(String changeType) {
+		this.changeType = changeType;
+	}
+	public String getGrade() {
+		return grade;
+	}
+	public void setGrade(String grade) {
+		this.grade = grade;
+	}
+	public String getGraderId() {
+		return graderId;
+	}
+	public void setGraderId(String graderId) {
+		this.graderId = graderId;
+	}
+	public Date getDateRecorded() {
+		return dateRecorded;
+	}
+	public void setDateRecorded(Date dateRecorded) {
+		this.dateRecorded = dateRecorded;
+	}
+
+	public String toString() {
+		return changeType + " " + gradableObjectId + ":" + studentId + "=" + grade;
+	}
+}
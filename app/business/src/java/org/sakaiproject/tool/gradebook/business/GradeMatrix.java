@@ -0,0 +1,329 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.tool.gradebook.AbstractGradeRecord;
+import org.sakaiproject.tool.gradebook.Assignment;
+import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Gradebook;
+import org.sakaiproject.tool.gradebook.LetterGradePercentMapping;
+
+/**
+ * Compact students x assignments table of the points earned in a gradebook.
+ *
+ * Scores are held in one dense double[] column per assignment, with bit sets
+ * recording which cells have a grade record, which have a score and which
+ * scores are dropped from the grade. Students and assignments are addressed
+ * through index tables, so a roster page or an export can walk the whole
+ * gradebook without holding a Hibernate entity per cell. Grade records are
+ * only built, as transient objects, for the rows actually displayed.
+ */
+public class GradeMatrix {
+	private final Gradebook gradebook;
+
+	private final String[] studentUids;
+	private final Map<String, Integer> studentIndexMap;
+
+	private final Assignment[] assignments;
+	private final Map<Long, Integer> assignmentIndexMap;
+
+	private final double[][] pointsEarned;
+	private final BitSet[] recorded;
+	private final BitSet[] scored;
+	private final BitSet[] dropped;
+
+	private LetterGradePercentMapping letterGradePercentMapping;
+
+	public GradeMatrix(Gradebook gradebook, Collection<String> studentUids, List<Assignment> assignments) {
+		this.gradebook = gradebook;
+
+		this.studentUids = new String[studentUids.size()];
+		this.studentIndexMap = new HashMap<String, Integer>(studentUids.size() * 2);
+		int studentIndex = 0;
+		for (String studentUid : studentUids) {
+			if (!studentIndexMap.containsKey(studentUid)) {
+				this.studentUids[studentIndex] = studentUid;
+				studentIndexMap.put(studentUid, studentIndex);
+				studentIndex++;
+			}
+		}
+
+		this.assignments = assignments.toArray(new Assignment[assignments.size()]);
+		this.assignmentIndexMap = new HashMap<Long, Integer>(assignments.size() * 2);
+		for (int i = 0; i < this.assignments.length; i++) {
+			assignmentIndexMap.put(this.assignments[i].getId(), i);
+		}
+
+		int numStudents = studentIndexMap.size();
+		this.pointsEarned = new double[this.assignments.length][numStudents];
+		this.recorded = new BitSet[this.assignments.length];
+		this.scored = new BitSet[this.assignments.length];
+		this.dropped = new BitSet[this.assignments.length];
+		for (int i = 0; i < this.assignments.length; i++) {
+			recorded[i] = new BitSet(numStudents);
+			scored[i] = new BitSet(numStudents);
+			dropped[i] = new BitSet(numStudents);
+		}
+	}
+
+	public Gradebook getGradebook() {
+		return gradebook;
+	}
+
+	public int getStudentCount() {
+		return studentIndexMap.size();
+	}
+
+	public int getAssignmentCount() {
+		return assignments.length;
+	}
+
+	/**
+	 * @return the index of the student, or -1 if the student is not in the matrix
+	 */
+	public int getStudentIndex(String studentUid) {
+		Integer index = studentIndexMap.get(studentUid);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * @return the index of the assignment, or -1 if the assignment is not in the matrix
+	 */
+	public int getAssignmentIndex(Long assignmentId) {
+		Integer index = assignmentIndexMap.get(assignmentId);
+		return index == null ? -1 : index.intValue();
+	}
+
+	public String getStudentUid(int studentIndex) {
+		return studentUids[studentIndex];
+	}
+
+	public Assignment getAssignment(int assignmentIndex) {
+		return assignments[assignmentIndex];
+	}
+
+	/**
+	 * Record a grade record for the cell; a null score means a grade record without points.
+	 */
+	public void setPointsEarned(int studentIndex, int assignmentIndex, Double points) {
+		recorded[assignmentIndex].set(studentIndex);
+		if (points == null) {
+			scored[assignmentIndex].clear(studentIndex);
+			pointsEarned[assignmentIndex][studentIndex] = 0;
+		} else {
+			scored[assignmentIndex].set(studentIndex);
+			pointsEarned[assignmentIndex][studentIndex] = points.doubleValue();
+		}
+	}
+
+	/**
+	 * Remove the cell's score, e.g. because the current user may not see it.
+	 * Whether the score is dropped is kept, as that was decided on the student's
+	 * full set of scores.
+	 */
+	public void clearPointsEarned(int studentIndex, int assignmentIndex) {
+		scored[assignmentIndex].clear(studentIndex);
+		pointsEarned[assignmentIndex][studentIndex] = 0;
+	}
+
+	public boolean isRecorded(int studentIndex, int assignmentIndex) {
+		return recorded[assignmentIndex].get(studentIndex);
+	}
+
+	/**
+	 * @return true if the student has a grade record for any assignment in the matrix
+	 */
+	public boolean hasGradeRecords(int studentIndex) {
+		for (int i = 0; i < recorded.length; i++) {
+			if (recorded[i].get(studentIndex)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isScored(int studentIndex, int assignmentIndex) {
+		return scored[assignmentIndex].get(studentIndex);
+	}
+
+	/**
+	 * @return the points earned, only meaningful if {@link #isScored(int, int)}
+	 */
+	public double getPointsEarned(int studentIndex, int assignmentIndex) {
+		return pointsEarned[assignmentIndex][studentIndex];
+	}
+
+	public Double getPointsEarnedOrNull(int studentIndex, int assignmentIndex) {
+		if (!scored[assignmentIndex].get(studentIndex)) {
+			return null;
+		}
+		return new Double(pointsEarned[assignmentIndex][studentIndex]);
+	}
+
+	public boolean isDropped(int studentIndex, int assignmentIndex) {
+		return dropped[assignmentIndex].get(studentIndex);
+	}
+
+	public void setDropped(int studentIndex, int assignmentIndex, boolean isDropped) {
+		dropped[assignmentIndex].set(studentIndex, isDropped);
+	}
+
+	public void clearDropped() {
+		for (int i = 0; i < dropped.length; i++) {
+			dropped[i].clear();
+		}
+	}
+
+	public void setLetterGradePercentMapping(LetterGradePercentMapping letterGradePercentMapping) {
+		this.letterGradePercentMapping = letterGradePercentMapping;
+	}
+
+	/**
+	 * @return the percentage equivalent of the cell's score, or null if there is no score
+	 */
+	public Double getPercentEarned(int studentIndex, int assignmentIndex) {
+		Double pointsPossible = assignments[assignmentIndex].getPointsPossible();
+		if (!scored[assignmentIndex].get(studentIndex) || pointsPossible == null || pointsPossible.doubleValue() <= 0) {
+			return null;
+		}
+		BigDecimal percent = new BigDecimal(pointsEarned[assignmentIndex][studentIndex])
+			.divide(new BigDecimal(pointsPossible.doubleValue()), GradebookService.MATH_CONTEXT)
+			.multiply(new BigDecimal("100"));
+		return new Double(percent.doubleValue());
+	}
+
+	/**
+	 * @return the letter grade equivalent of the cell's score, or null if there is no
+	 * score or no letter grade mapping was set
+	 */
+	public String getLetterEarned(int studentIndex, int assignmentIndex) {
+		Double percent = getPercentEarned(studentIndex, assignmentIndex);
+		if (percent == null || letterGradePercentMapping == null) {
+			return null;
+		}
+		return letterGradePercentMapping.getGrade(percent);
+	}
+
+	/**
+	 * @return the student indexes of the cells of the assignment which have a grade record,
+	 * records without a score first and then in ascending order of points earned
+	 */
+	public int[] getStudentIndexesSortedByScore(final int assignmentIndex) {
+		BitSet recordedStudents = recorded[assignmentIndex];
+		int[] unscored = new int[recordedStudents.cardinality()];
+		int numUnscored = 0;
+		Integer[] scoredIndexes = new Integer[scored[assignmentIndex].cardinality()];
+		int numScored = 0;
+		for (int i = recordedStudents.nextSetBit(0); i >= 0; i = recordedStudents.nextSetBit(i + 1)) {
+			if (scored[assignmentIndex].get(i)) {
+				scoredIndexes[numScored++] = i;
+			} else {
+				unscored[numUnscored++] = i;
+			}
+		}
+		final double[] column = pointsEarned[assignmentIndex];
+		Arrays.sort(scoredIndexes, 0, numScored, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(column[i1.intValue()], column[i2.intValue()]);
+			}
+		});
+		int[] sorted = new int[numUnscored + numScored];
+		System.arraycopy(unscored, 0, sorted, 0, numUnscored);
+		for (int i = 0; i < numScored; i++) {
+			sorted[numUnscored + i] = scoredIndexes[i].intValue();
+		}
+		return sorted;
+	}
+
+	/**
+	 * Build a transient grade record for the cell, with the percentage or letter grade
+	 * filled in as getAllAssignmentGradeRecordsConverted would.
+	 *
+	 * @return the grade record, or null if the cell has no grade record
+	 */
+	public AssignmentGradeRecord getGradeRecord(int studentIndex, int assignmentIndex) {
+		if (!recorded[assignmentIndex].get(studentIndex)) {
+			return null;
+		}
+		AssignmentGradeRecord gradeRecord = new AssignmentGradeRecord(assignments[assignmentIndex],
+				studentUids[studentIndex], getPointsEarnedOrNull(studentIndex, assignmentIndex));
+		gradeRecord.setDroppedFromGrade(Boolean.valueOf(dropped[assignmentIndex].get(studentIndex)));
+		gradeRecord.setUserAbleToView(true);
+		if (gradebook.getGrade_type() == GradebookService.GRADE_TYPE_PERCENTAGE) {
+			gradeRecord.setPercentEarned(getPercentEarned(studentIndex, assignmentIndex));
+		} else if (gradebook.getGrade_type() == GradebookService.GRADE_TYPE_LETTER) {
+			gradeRecord.setLetterEarned(getLetterEarned(studentIndex, assignmentIndex));
+		}
+		return gradeRecord;
+	}
+
+	/**
+	 * @return map of assignment id --> transient AssignmentGradeRecord for each of the
+	 * student's cells that have a grade record, in the same shape as one student's
+	 * entry in the map built by GradebookManager.addToGradeRecordMap
+	 */
+	public Map<Long, AbstractGradeRecord> getGradeRecordMap(String studentUid) {
+		Map<Long, AbstractGradeRecord> gradeRecordMap = new HashMap<Long, AbstractGradeRecord>();
+		int studentIndex = getStudentIndex(studentUid);
+		if (studentIndex >= 0) {
+			for (int i = 0; i < assignments.length; i++) {
+				AssignmentGradeRecord gradeRecord = getGradeRecord(studentIndex, i);
+				if (gradeRecord != null) {
+					gradeRecordMap.put(assignments[i].getId(), gradeRecord);
+				}
+			}
+		}
+		return gradeRecordMap;
+	}
+
+	/**
+	 * @return the assignment indexes of the given assignments which are in the matrix
+	 */
+	public int[] getAssignmentIndexes(Collection<Assignment> assignmentList) {
+		int[] indexes = new int[assignmentList.size()];
+		int numIndexes = 0;
+		for (Iterator<Assignment> iter = assignmentList.iterator(); iter.hasNext(); ) {
+			int index = getAssignmentIndex(iter.next().getId());
+			if (index >= 0) {
+				indexes[numIndexes++] = index;
+			}
+		}
+		if (numIndexes < indexes.length) {
+			int[] trimmed = new int[numIndexes];
+			System.arraycopy(indexes, 0, trimmed, 0, numIndexes);
+			indexes = trimmed;
+		}
+		return indexes;
+	}
+}
@@ -142,6 +142,11 @@ public interface GradebookManager {
      */
     public List<CourseGradeRecord> getPointsEarnedCourseGradeRecordsWithStats(CourseGrade courseGrade, Collection studentUids);
     
+    /**
+     * @param assignments the assignments counted in the course grade
+     * @param scoreMap map of student uid --> map of assignment id --> AssignmentGradeRecord,
+     * or null to read only the grade records of the students whose totals are not current
+     */
     public List<CourseGradeRecord> getPointsEarnedCourseGradeRecords(CourseGrade courseGrade, Collection studentUids, Collection assignments, Map scoreMap);
     public void addToGradeRecordMap(Map gradeRecordMap, List gradeRecords);
     
@@ -157,6 +162,29 @@ public interface GradebookManager {
     public void addToGradeRecordMap(Map gradeRecordMap, List gradeRecords, Map studentIdItemIdFunctionMap);
     
     public void addToCategoryResultMap(Map categoryResultMap, List categories, Map gradeRecordMap, Map enrollmentMap);
+
+    /**
+     * Load the points earned by the given students on every assignment of the gradebook
+     * into a compact matrix, without loading a grade record entity per score. Scores dropped
+     * from the grade are already marked.
+     *
+     * @param gradebookId
+     * @param studentUids
+     * @return GradeMatrix with one row per student and one column per assignment
+     */
+    public GradeMatrix getGradeMatrix(Long gradebookId, Collection studentUids);
+
+    /**
+     * Same as {@link #getGradeMatrix(Long, Collection)}, but only loads the scores of the
+     * given assignments, e.g. to read the sort key of a single roster column.
+     */
+    public GradeMatrix getGradeMatrix(Long gradebookId, Collection studentUids, List assignments);
+
+    /**
+     * Same as {@link #addToCategoryResultMap(Map, List, Map, Map)}, but reads the scores
+     * from a grade matrix.
+     */
+    public void addToCategoryResultMap(Map categoryResultMap, List categories, GradeMatrix gradeMatrix, Collection studentUids);
    
     /**
      * Gets all grade records that belong to a collection of enrollments in a
@@ -630,13 +658,75 @@ public interface GradebookManager {
     /**
      * Insert AssignmentGradeRecord with point of 0 for students that don't have a record
      * for counted assignments. Or set point of null to 0 for counted assignments.
+     * The empty scores are set with one bulk update, and the new records and their
+     * grading events are inserted in batches.
      *  
      * @param gradebook
+     * @return the number of records created and scores set to 0 for each counted assignment
+     */
+    public List<FinalizedAssignmentSummary> fillInZeroForNullGradeRecords(Gradebook gradebook);
+
+    /**
+     * Changes to a gradebook's settings, categories or items queue it for its
+     * course grades to be recalculated in the background.
+     *
+     * @param lastRequestedBefore only gradebooks left unchanged since then are returned,
+     * so that a series of quick edits is recalculated once
+     * @param firstRequestedBefore gradebooks waiting since before then are returned
+     * even if they are still being changed
+     * @return the ids of the gradebooks waiting to be recalculated
+     */
+    public List<Long> getGradebooksAwaitingRecalculation(Date lastRequestedBefore, Date firstRequestedBefore);
+
+    /**
+     * Recalculate and store the course grades of every student in a gradebook
+     * queued for recalculation, taking it off the queue.
+     *
+     * @return false if nothing was queued for the gradebook, e.g. because another
+     * server recalculated it first
      */
-    public void fillInZeroForNullGradeRecords(Gradebook gradebook);
+    public boolean recalculateCourseGrades(Long gradebookId);
+
+    /**
+     * @return true if no change to the gradebook is waiting for its course grades
+     * to be recalculated
+     */
+    public boolean isCourseGradeCurrent(Long gradebookId);
+
+    /**
+     * Read the grade change outbox, which gets an entry for every score, course
+     * grade and comment saved through this manager, in the same transaction.
+     * A save holds its gradebook's version row from its first entry until it
+     * commits, so the entries of a gradebook are committed in id order and a
+     * consumer never moves past one still being committed.
+     *
+     * @param gradebookId the gradebook to read the changes of
+     * @param afterId the id of the last change already read, or null to read from the start
+     * @param maxResults the size of the page
+     * @return the changes, in id order
+     */
+    public List<GradeChange> getGradeChanges(Long gradebookId, Long afterId, int maxResults);
+
+    /**
+     * Remove the grade changes recorded before the given date from the outbox.
+     *
+     * @return the number of changes removed
+     */
+    public int removeGradeChanges(Date recordedBefore);
+
+    /**
+     * @return the gradebook's change count, which goes up with every committed
+     * transaction that changes its scores, comments, items, categories or
+     * settings, whether through this manager or through the shared gradebook
+     * services, or 0 if nothing has been saved yet. Reading it does not touch
+     * the grades.
+     */
+    public long getGradebookVersion(Long gradebookId);
     
     /**
-     * Update grade points in DB for assignment when total point is changed by users for grade_type of GRADE_TYPE_PERCENTAGE. 
+     * Update grade points in DB for assignment when total point is changed by users for grade_type of GRADE_TYPE_PERCENTAGE
+     * or GRADE_TYPE_LETTER, so each student keeps the same percentage or letter. The scores are rescaled
+     * with bulk updates rather than one save per student.
      *  
      * @param gradebook
      * @param Assignment old assignment with old total point value
@@ -874,4 +964,19 @@ public interface GradebookManager {
     throws ConflictingAssignmentNameException, StaleObjectModificationException;    
     
     public void applyDropScores(Collection<AssignmentGradeRecord> gradeRecords);
+
+    /**
+     * Work out which of the given grade records are dropped from the grade by the
+     * drop lowest, drop highest and keep highest settings of their category,
+     * without changing the grade records themselves.
+     *
+     * @return the dropped grade records, compared by identity
+     */
+    public Set<AssignmentGradeRecord> getDroppedGradeRecords(Collection<AssignmentGradeRecord> gradeRecords);
+
+    /**
+     * Mark the scores of the matrix which are dropped from the grade by the
+     * drop lowest, drop highest and keep highest settings of their category.
+     */
+    public void applyDropScores(GradeMatrix gradeMatrix);
 }
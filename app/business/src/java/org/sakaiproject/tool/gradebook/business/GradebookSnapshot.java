@@ -0,0 +1,207 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.tool.gradebook.Assignment;
+import org.sakaiproject.tool.gradebook.CourseGrade;
+import org.sakaiproject.tool.gradebook.Gradebook;
+
+/**
+ * Holds the gradebook structure and enrollments read while one snapshot is open
+ * on the current thread, so that the GradebookManager reads made while rendering
+ * one page hit the database and the section service once rather than once per call.
+ *
+ * A snapshot is opened around a unit of read work (typically a backing bean's
+ * init) and must be closed in a finally block. Opening a snapshot while one is
+ * already open joins it. The GradebookManager drops everything held as soon as
+ * it changes a gradebook's items, categories or settings, so a snapshot never
+ * serves structure older than the last change made through it. Scores are not
+ * held here.
+ *
+ * Lists and sets are copied on the way in and out, since callers sort and
+ * filter them. The entities themselves are shared.
+ */
+public class GradebookSnapshot {
+	private static final Log log = LogFactory.getLog(GradebookSnapshot.class);
+
+	private static final ThreadLocal<GradebookSnapshot> currentSnapshot = new ThreadLocal<GradebookSnapshot>();
+
+	private int openCount;
+
+	private final Map<Long, Gradebook> gradebooks = new HashMap<Long, Gradebook>();
+	private final Map<Long, String> gradebookUids = new HashMap<Long, String>();
+	private final Map<String, Set<String>> studentUids = new HashMap<String, Set<String>>();
+	private final Map<Long, List> assignments = new HashMap<Long, List>();
+	private final Map<Long, List<Assignment>> countedAssignments = new HashMap<Long, List<Assignment>>();
+	private final Map<Long, List> categories = new HashMap<Long, List>();
+	private final Map<Long, CourseGrade> courseGrades = new HashMap<Long, CourseGrade>();
+
+	private long hits;
+	private long misses;
+
+	private GradebookSnapshot() {
+	}
+
+	/**
+	 * Open a snapshot on the current thread, or join the one already open.
+	 */
+	public static GradebookSnapshot open() {
+		GradebookSnapshot snapshot = currentSnapshot.get();
+		if (snapshot == null) {
+			snapshot = new GradebookSnapshot();
+			currentSnapshot.set(snapshot);
+		}
+		snapshot.openCount++;
+		return snapshot;
+	}
+
+	/**
+	 * Close the snapshot; it is discarded once every open has been closed.
+	 */
+	public void close() {
+		openCount--;
+		if (openCount <= 0) {
+			if (log.isDebugEnabled()) log.debug("Closing gradebook snapshot after " + hits + " hits and " + misses + " misses");
+			if (currentSnapshot.get() == this) {
+				currentSnapshot.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the snapshot open on the current thread, or null if there is none
+	 */
+	public static GradebookSnapshot getCurrent() {
+		return currentSnapshot.get();
+	}
+
+	/**
+	 * Drop everything held by the snapshot open on the current thread, if any,
+	 * because the gradebook was just changed.
+	 */
+	public static void invalidateCurrent() {
+		GradebookSnapshot snapshot = currentSnapshot.get();
+		if (snapshot != null) {
+			snapshot.clear();
+		}
+	}
+
+	public void clear() {
+		gradebooks.clear();
+		gradebookUids.clear();
+		studentUids.clear();
+		assignments.clear();
+		countedAssignments.clear();
+		categories.clear();
+		courseGrades.clear();
+	}
+
+	public Gradebook getGradebook(Long gradebookId) {
+		return count(gradebooks.get(gradebookId));
+	}
+
+	public void putGradebook(Gradebook gradebook) {
+		gradebooks.put(gradebook.getId(), gradebook);
+	}
+
+	public String getGradebookUid(Long gradebookId) {
+		return count(gradebookUids.get(gradebookId));
+	}
+
+	public void putGradebookUid(Long gradebookId, String gradebookUid) {
+		gradebookUids.put(gradebookId, gradebookUid);
+	}
+
+	public Set<String> getStudentUids(String gradebookUid) {
+		Set<String> uids = count(studentUids.get(gradebookUid));
+		return uids == null ? null : new HashSet<String>(uids);
+	}
+
+	public void putStudentUids(String gradebookUid, Set<String> uids) {
+		studentUids.put(gradebookUid, new HashSet<String>(uids));
+	}
+
+	/**
+	 * @return the gradebook's assignments which are not removed, in no particular order
+	 */
+	public List getAssignments(Long gradebookId) {
+		List list = count(assignments.get(gradebookId));
+		return list == null ? null : new ArrayList(list);
+	}
+
+	public void putAssignments(Long gradebookId, List list) {
+		assignments.put(gradebookId, new ArrayList(list));
+	}
+
+	public List<Assignment> getCountedAssignments(Long gradebookId) {
+		List<Assignment> list = count(countedAssignments.get(gradebookId));
+		return list == null ? null : new ArrayList<Assignment>(list);
+	}
+
+	public void putCountedAssignments(Long gradebookId, List<Assignment> list) {
+		countedAssignments.put(gradebookId, new ArrayList<Assignment>(list));
+	}
+
+	public List getCategories(Long gradebookId) {
+		List list = count(categories.get(gradebookId));
+		return list == null ? null : new ArrayList(list);
+	}
+
+	public void putCategories(Long gradebookId, List list) {
+		categories.put(gradebookId, new ArrayList(list));
+	}
+
+	public CourseGrade getCourseGrade(Long gradebookId) {
+		return count(courseGrades.get(gradebookId));
+	}
+
+	public void putCourseGrade(Long gradebookId, CourseGrade courseGrade) {
+		courseGrades.put(gradebookId, courseGrade);
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private <T> T count(T value) {
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+}
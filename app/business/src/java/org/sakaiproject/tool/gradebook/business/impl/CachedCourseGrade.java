@@ -0,0 +1,132 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A student's calculated course grade as stored in GB_COURSE_GRADE_CACHE_T.
+ *
+ * The row is only good while both stamps match: the structure version covers
+ * the gradebook settings, categories and counted items, and the score version
+ * covers the student's own grade records. Saving scores through the manager
+ * also marks the row stale straight away.
+ */
+public class CachedCourseGrade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long id;
+	private Long gradebookId;
+	private String studentId;
+	private String structureVersion;
+	private String scoreVersion;
+	private Double pointsPossible;
+	private Double pointsEarned;
+	private Double literalPointsEarned;
+	private Double percent;
+	private boolean stale;
+	private Date dateCalculated;
+
+	public CachedCourseGrade() {
+	}
+
+	public CachedCourseGrade(Long gradebookId, String studentId) {
+		this.gradebookId = gradebookId;
+		this.studentId = studentId;
+	}
+
+	/**
+	 * @return true if the stored totals can be used in place of a recalculation
+	 */
+	public boolean isCurrent(String structureVersion, String scoreVersion) {
+		return !stale && structureVersion.equals(this.structureVersion) && scoreVersion.equals(this.scoreVersion);
+	}
+
+	public Long getId() {
+		return id;
+	}
+	public void setId(Long id) {
+		this.id = id;
+	}
+	public Long getGradebookId() {
+		return gradebookId;
+	}
+	public void setGradebookId(Long gradebookId) {
+		this.gradebookId = gradebookId;
+	}
+	public String getStudentId() {
+		return studentId;
+	}
+	public void setStudentId(String studentId) {
+		this.studentId = studentId;
+	}
+	public String getStructureVersion() {
+		return structureVersion;
+	}
+	public void setStructureVersion(String structureVersion) {
+		this.structureVersion = structureVersion;
+	}
+	public String getScoreVersion() {
+		return scoreVersion;
+	}
+	public void setScoreVersion(String scoreVersion) {
+		this.scoreVersion = scoreVersion;
+	}
+	public Double getPointsPossible() {
+		return pointsPossible;
+	}
+	public void setPointsPossible(Double pointsPossible) {
+		this.pointsPossible = pointsPossible;
+	}
+	public Double getPointsEarned() {
+		return pointsEarned;
+	}
+	public void setPointsEarned(Double pointsEarned) {
+		this.pointsEarned = pointsEarned;
+	}
+	public Double getLiteralPointsEarned() {
+		return literalPointsEarned;
+	}
+	public void setLiteralPointsEarned(Double literalPointsEarned) {
+		this.literalPointsEarned = literalPointsEarned;
+	}
+	public Double getPercent() {
+		return percent;
+	}
+	public void setPercent(Double percent) {
+		this.percent = percent;
+	}
+	public boolean isStale() {
+		return stale;
+	}
+	public void setStale(boolean stale) {
+		this.stale = stale;
+	}
+	public Date getDateCalculated() {
+		return dateCalculated;
+	}
+	public void setDateCalculated(Date dateCalculated) {
+		this.dateCalculated = dateCalculated;
+	}
+}
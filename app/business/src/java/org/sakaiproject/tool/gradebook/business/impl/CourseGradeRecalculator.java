@@ -0,0 +1,224 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
+import org.sakaiproject.tool.gradebook.business.GradebookManager;
+
+/**
+ * Recalculates the course grades of gradebooks whose structure changed, in the
+ * background, so that the next page view does not pay for it.
+ *
+ * The GradebookManager queues a gradebook in GB_RECALC_QUEUE_T whenever one of
+ * its settings, categories or items changes. This bean polls the queue and hands
+ * each gradebook which has been left alone for the quiet period to a small pool
+ * of worker threads; a gradebook which keeps changing is still recalculated once
+ * it has waited for the maximum delay. As the queue is in the database it
+ * survives a restart, and every server in a cluster may run a recalculator.
+ */
+public class CourseGradeRecalculator {
+	private static final Log log = LogFactory.getLog(CourseGradeRecalculator.class);
+
+	public enum Status {
+		/** no change is waiting to be recalculated */
+		CURRENT,
+		/** a change is queued and waiting to be recalculated */
+		PENDING,
+		/** the gradebook is being recalculated on this server */
+		RUNNING
+	}
+
+	private GradebookManager gradebookManager;
+	private boolean enabled = true;
+	private int threads = 2;
+	private int maxQueued = 100;
+	private long pollInterval = 10000;
+	private long quietPeriod = 30000;
+	private long maxDelay = 300000;
+
+	private ScheduledExecutorService poller;
+	private ThreadPoolExecutor workers;
+	private final Set<Long> running = Collections.synchronizedSet(new HashSet<Long>());
+	private final AtomicInteger numRecalculated = new AtomicInteger();
+	private final AtomicInteger numFailed = new AtomicInteger();
+
+	public void init() {
+		if (!enabled) {
+			if (log.isInfoEnabled()) log.info("Background course grade recalculation is disabled");
+			return;
+		}
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(maxQueued), new WorkerThreadFactory("gradebook-recalc-"));
+		poller = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("gradebook-recalc-poller-"));
+		poller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				poll();
+			}
+		}, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+		if (log.isInfoEnabled()) log.info("Recalculating course grades in the background with " + threads + " threads every " + pollInterval + " millis");
+	}
+
+	public void destroy() {
+		if (poller != null) {
+			poller.shutdownNow();
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return whether the gradebook's course grades are current, waiting to be
+	 * recalculated, or being recalculated right now on this server
+	 */
+	public Status getStatus(Long gradebookId) {
+		if (running.contains(gradebookId)) {
+			return Status.RUNNING;
+		}
+		return gradebookManager.isCourseGradeCurrent(gradebookId) ? Status.CURRENT : Status.PENDING;
+	}
+
+	/**
+	 * Hand the gradebooks which are ready to the workers. Any which do not fit in
+	 * the workers' queue stay in the database for the next poll.
+	 */
+	void poll() {
+		long now = System.currentTimeMillis();
+		try {
+			List<Long> gradebookIds = gradebookManager.getGradebooksAwaitingRecalculation(
+				new Date(now - quietPeriod), new Date(now - maxDelay));
+			for (final Long gradebookId : gradebookIds) {
+				if (!running.add(gradebookId)) {
+					continue;
+				}
+				try {
+					workers.execute(new Runnable() {
+						public void run() {
+							recalculate(gradebookId);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					running.remove(gradebookId);
+					break;
+				}
+			}
+		} catch (Exception e) {
+			log.error("Could not read the course grade recalculation queue", e);
+		}
+	}
+
+	private void recalculate(Long gradebookId) {
+		try {
+			if (gradebookManager.recalculateCourseGrades(gradebookId)) {
+				numRecalculated.incrementAndGet();
+			}
+		} catch (Exception e) {
+			numFailed.incrementAndGet();
+			log.error("Could not recalculate the course grades of gradebook " + gradebookId + ", it will be tried again", e);
+		} finally {
+			running.remove(gradebookId);
+			ThreadLocalManager.clear();
+		}
+	}
+
+	public int getNumRecalculated() {
+		return numRecalculated.get();
+	}
+
+	public int getNumFailed() {
+		return numFailed.get();
+	}
+
+	public void setGradebookManager(GradebookManager gradebookManager) {
+		this.gradebookManager = gradebookManager;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param threads the number of gradebooks recalculated at the same time
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * @param maxQueued the number of gradebooks which may wait for a free worker
+	 */
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = Math.max(maxQueued, 1);
+	}
+
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * @param quietPeriod how long a gradebook must be left unchanged before it is
+	 * recalculated, so that several quick edits are recalculated once
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		this.quietPeriod = quietPeriod;
+	}
+
+	/**
+	 * @param maxDelay how long a gradebook which keeps changing may wait
+	 */
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final String namePrefix;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		WorkerThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
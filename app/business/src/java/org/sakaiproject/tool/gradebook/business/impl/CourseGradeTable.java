@@ -0,0 +1,207 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Reads and writes the calculated course grades stored in
+ * GB_COURSE_GRADE_CACHE_T (see CachedCourseGrade), so that a student viewing
+ * their own grade does not recalculate drop scores and totals on every visit.
+ *
+ * Checking a stored grade costs one aggregate query over the student's grade
+ * records, which is much cheaper than loading them and running the calculation.
+ *
+ * Rows are read detached and written with HQL updates, so the session never
+ * holds them and the bulk updates of markStale cannot leave it a stale copy.
+ */
+class CourseGradeTable {
+	private static final Log log = LogFactory.getLog(CourseGradeTable.class);
+
+	private final Session session;
+
+	CourseGradeTable(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * @return a short, fixed length version of a structure key built by
+	 * IncrementalCourseGradeEngine.getStructureKey
+	 */
+	static String getStructureVersion(String structureKey) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(structureKey.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the stamp of the student's grade records, counting the same records
+	 * as GradebookManagerHibernateImpl.getGradeRecordMapForStudents
+	 */
+	String getScoreVersion(Long gradebookId, String studentId) throws HibernateException {
+		Object[] row = (Object[])session.createQuery(
+			"select count(agr.id), sum(agr.pointsEarned), max(agr.dateRecorded) " +
+			"from AssignmentGradeRecord agr where agr.gradableObject.gradebook.id=:gbid and agr.studentId=:studentId " +
+			"and agr.gradableObject.removed=false and agr.gradableObject.pointsPossible > 0").
+			setLong("gbid", gradebookId.longValue()).
+			setString("studentId", studentId).
+			uniqueResult();
+		if (row == null) {
+			return IncrementalCourseGradeEngine.EMPTY_RECORD_STAMP;
+		}
+		return IncrementalCourseGradeEngine.getRecordStamp((Number)row[0], (Number)row[1], (Date)row[2]);
+	}
+
+	/**
+	 * @return the stored course grade of the student, current or not, or null if there is none
+	 */
+	CachedCourseGrade find(Long gradebookId, String studentId) throws HibernateException {
+		CachedCourseGrade cachedGrade = (CachedCourseGrade)session.createQuery(
+			"from CachedCourseGrade as ccg where ccg.gradebookId=:gbid and ccg.studentId=:studentId").
+			setLong("gbid", gradebookId.longValue()).
+			setString("studentId", studentId).
+			uniqueResult();
+		if (cachedGrade != null) {
+			session.evict(cachedGrade);
+		}
+		return cachedGrade;
+	}
+
+	/**
+	 * @return the stored course grades of every student in the gradebook, by student id
+	 */
+	Map<String, CachedCourseGrade> findAll(Long gradebookId) throws HibernateException {
+		List rows = session.createQuery(
+			"from CachedCourseGrade as ccg where ccg.gradebookId=:gbid").
+			setLong("gbid", gradebookId.longValue()).
+			list();
+		Map<String, CachedCourseGrade> cachedGrades = new HashMap<String, CachedCourseGrade>();
+		for (Iterator iter = rows.iterator(); iter.hasNext(); ) {
+			CachedCourseGrade cachedGrade = (CachedCourseGrade)iter.next();
+			session.evict(cachedGrade);
+			cachedGrades.put(cachedGrade.getStudentId(), cachedGrade);
+		}
+		return cachedGrades;
+	}
+
+	/**
+	 * Store freshly calculated totals in the student's row, creating the row
+	 * first if the student has none.
+	 *
+	 * @param cachedGrade the student's row as found, or null if none was
+	 */
+	void store(CachedCourseGrade cachedGrade, Long gradebookId, String studentId, String structureVersion, String scoreVersion,
+			double pointsPossible, double pointsEarned, double literalPointsEarned, Double percent) throws HibernateException {
+		if (cachedGrade == null) {
+			// Another read may store the same student's grade at the same time, so
+			// the row is created on its own and the totals written with an update
+			create(gradebookId, studentId);
+		}
+		int numUpdated = session.createQuery(
+			"update CachedCourseGrade set structureVersion=:structureVersion, scoreVersion=:scoreVersion, " +
+			"pointsPossible=:pointsPossible, pointsEarned=:pointsEarned, literalPointsEarned=:literalPointsEarned, " +
+			"percent=:percent, stale=false, dateCalculated=:now where gradebookId=:gbid and studentId=:studentId").
+			setString("structureVersion", structureVersion).
+			setString("scoreVersion", scoreVersion).
+			setDouble("pointsPossible", pointsPossible).
+			setDouble("pointsEarned", pointsEarned).
+			setDouble("literalPointsEarned", literalPointsEarned).
+			setParameter("percent", percent, Hibernate.DOUBLE).
+			setTimestamp("now", new Date()).
+			setLong("gbid", gradebookId.longValue()).
+			setString("studentId", studentId).
+			executeUpdate();
+		if (numUpdated == 0) {
+			log.warn("Could not store the course grade of student " + studentId + " in gradebook " + gradebookId);
+		}
+	}
+
+	/**
+	 * Create an empty, stale row for the student in a transaction of its own,
+	 * leaving it alone if another read created it first.
+	 */
+	private void create(Long gradebookId, String studentId) {
+		Session createSession = session.getSessionFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = createSession.beginTransaction();
+			CachedCourseGrade cachedGrade = new CachedCourseGrade(gradebookId, studentId);
+			cachedGrade.setStructureVersion("");
+			cachedGrade.setScoreVersion("");
+			cachedGrade.setStale(true);
+			createSession.save(cachedGrade);
+			tx.commit();
+		} catch (HibernateException e) {
+			// Most likely the unique key, as the row is there already
+			if (log.isDebugEnabled()) log.debug("Did not create the stored course grade of student " + studentId + " in gradebook " + gradebookId + ": " + e);
+			if (tx != null) {
+				try {
+					tx.rollback();
+				} catch (HibernateException e1) {
+					log.warn("Could not roll back the stored course grade of student " + studentId + " in gradebook " + gradebookId + ": " + e1);
+				}
+			}
+		} finally {
+			createSession.close();
+		}
+	}
+
+	/**
+	 * Mark the students' stored course grades as needing a recalculation.
+	 *
+	 * @return the number of rows marked
+	 */
+	int markStale(Long gradebookId, Collection<String> studentIds, int chunkSize) throws HibernateException {
+		session.flush();
+		Query q = session.createQuery("update CachedCourseGrade set stale=true where gradebookId=:gbid and stale=false and studentId in (:studentIds)");
+		q.setLong("gbid", gradebookId.longValue());
+		int numMarked = new InListQuery(q, "studentIds", chunkSize).executeUpdate(studentIds);
+		if (log.isDebugEnabled()) log.debug("Marked " + numMarked + " stored course grades stale in gradebook " + gradebookId);
+		return numMarked;
+	}
+}
@@ -0,0 +1,120 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
+import org.sakaiproject.tool.gradebook.business.GradebookManager;
+
+/**
+ * Trims the grade change outbox (GB_GRADE_CHANGE_T), removing the changes
+ * older than the retention period once every purge interval. It runs on its
+ * own timer, independently of the CourseGradeRecalculator, so the outbox is
+ * kept in bounds whether or not course grades are recalculated in the
+ * background. Every server in a cluster may run one; the removal is the same
+ * whichever server gets there first.
+ */
+public class GradeChangePurger {
+	private static final Log log = LogFactory.getLog(GradeChangePurger.class);
+
+	private GradebookManager gradebookManager;
+	private boolean enabled = true;
+	private int retentionDays = 30;
+	private long purgeInterval = 60 * 60 * 1000;
+
+	private ScheduledExecutorService timer;
+
+	public void init() {
+		if (!enabled || retentionDays <= 0) {
+			if (log.isInfoEnabled()) log.info("Grade changes are kept in the outbox until removed by hand");
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "gradebook-outbox-purger");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				purge();
+			}
+		}, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+		if (log.isInfoEnabled()) log.info("Removing grade changes older than " + retentionDays + " days from the outbox every " + purgeInterval + " millis");
+	}
+
+	public void destroy() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the number of changes removed
+	 */
+	int purge() {
+		try {
+			int numRemoved = gradebookManager.removeGradeChanges(new Date(System.currentTimeMillis() - retentionDays * 24L * 60 * 60 * 1000));
+			if (log.isDebugEnabled()) log.debug("Removed " + numRemoved + " grade changes from the outbox");
+			return numRemoved;
+		} catch (Exception e) {
+			log.error("Could not trim the grade change outbox", e);
+			return 0;
+		} finally {
+			ThreadLocalManager.clear();
+		}
+	}
+
+	public void setGradebookManager(GradebookManager gradebookManager) {
+		this.gradebookManager = gradebookManager;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param retentionDays how long the outbox keeps a change for its consumers,
+	 * or 0 to keep them all
+	 */
+	public void setRetentionDays(int retentionDays) {
+		this.retentionDays = retentionDays;
+	}
+
+	/**
+	 * @param purgeInterval the time between two purges, in millis
+	 */
+	public void setPurgeInterval(long purgeInterval) {
+		this.purgeInterval = purgeInterval;
+	}
+}
@@ -0,0 +1,219 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.tool.gradebook.Assignment;
+import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Gradebook;
+import org.sakaiproject.tool.gradebook.GradingEvent;
+import org.sakaiproject.tool.gradebook.business.FinalizedAssignmentSummary;
+
+/**
+ * Gives every enrolled student a score of zero for each counted item they
+ * were not scored on, as the end of term finalization does.
+ *
+ * Who is missing a score is worked out with one scalar query over the
+ * gradebook rather than by loading the grade records. Empty scores are then
+ * set to zero with one versioned UPDATE, and the missing grade records and
+ * every grading event are inserted in JDBC batches. Enrollments come from the
+ * section service rather than the gradebook tables, so the missing records
+ * cannot be written with a single INSERT ... SELECT.
+ *
+ * The caller runs all of this in one transaction. Records the update changed
+ * are detached from the session if it held them.
+ */
+class GradeFinalizationEngine {
+	private static final Log log = LogFactory.getLog(GradeFinalizationEngine.class);
+
+	private static final Double ZERO = new Double(0);
+
+	private final Session session;
+	private final int chunkSize;
+	private final int writeBatchSize;
+
+	/**
+	 * @param chunkSize the most students bound to one IN list
+	 * @param writeBatchSize the number of inserts per flush, see GradeWriteBatch
+	 */
+	GradeFinalizationEngine(Session session, int chunkSize, int writeBatchSize) {
+		this.session = session;
+		this.chunkSize = chunkSize;
+		this.writeBatchSize = writeBatchSize;
+	}
+
+	/**
+	 * @param inCategoryIfWeighted whether a weighted gradebook's items must also be in a
+	 * category, as only those count toward its course grade
+	 * @return the counted, graded items of the gradebook
+	 */
+	List<Assignment> getCountedAssignments(Gradebook gradebook, boolean inCategoryIfWeighted) throws HibernateException {
+		String hql = "from Assignment as asn where asn.gradebook.id=:gradebookId and asn.removed=false and " +
+			"asn.notCounted=false and asn.ungraded=false";
+		if (inCategoryIfWeighted && gradebook.getCategory_type() == GradebookService.CATEGORY_TYPE_WEIGHTED_CATEGORY) {
+			hql += " and asn.category.removed=false";
+		}
+		return session.createQuery(hql).setLong("gradebookId", gradebook.getId().longValue()).list();
+	}
+
+	/**
+	 * @return true if any of the students has no score for an item counted toward the course grade
+	 */
+	boolean hasMissingScores(Gradebook gradebook, Collection<String> studentUids) throws HibernateException {
+		List<Assignment> assignments = getCountedAssignments(gradebook, true);
+		Set<String> students = (studentUids == null) ? new HashSet<String>() : new HashSet<String>(studentUids);
+		if (assignments.isEmpty() || students.isEmpty()) {
+			return false;
+		}
+		Query q = session.createQuery("select count(agr.id) from AssignmentGradeRecord as agr " +
+			"where agr.gradableObject.id in (:assignmentIds) and agr.pointsEarned is not null and agr.studentId in (:studentUids)");
+		q.setParameterList("assignmentIds", getIds(assignments));
+		long numScored = 0;
+		for (Iterator iter = new InListQuery(q, "studentUids", chunkSize).list(students).iterator(); iter.hasNext(); ) {
+			numScored += ((Number)iter.next()).longValue();
+		}
+		return numScored < (long)assignments.size() * students.size();
+	}
+
+	/**
+	 * Fill in the missing and empty scores of the students with zero, for every counted item.
+	 *
+	 * @return what changed for each counted item
+	 */
+	List<FinalizedAssignmentSummary> finalizeScores(Gradebook gradebook, Collection<String> studentUids, String graderId) throws HibernateException {
+		List<Assignment> assignments = getCountedAssignments(gradebook, false);
+		List<FinalizedAssignmentSummary> summaries = new ArrayList<FinalizedAssignmentSummary>();
+		Set<String> students = (studentUids == null) ? new HashSet<String>() : new HashSet<String>(studentUids);
+		if (assignments.isEmpty() || students.isEmpty()) {
+			for (Assignment assignment : assignments) {
+				summaries.add(new FinalizedAssignmentSummary(assignment.getId(), assignment.getName()));
+			}
+			return summaries;
+		}
+		List<Long> assignmentIds = getIds(assignments);
+
+		// The updates bypass the session, so write out whatever it holds first
+		session.flush();
+
+		// Who already has a grade record for each item, and whose record has no score
+		Map<Long, Set<String>> recordedStudentsMap = new HashMap<Long, Set<String>>();
+		Map<Long, List<String>> unscoredStudentsMap = new HashMap<Long, List<String>>();
+		Set<String> unscoredStudents = new HashSet<String>();
+		List<Long> unscoredRecordIds = new ArrayList<Long>();
+		Query q = session.createQuery("select agr.gradableObject.id, agr.studentId, agr.pointsEarned, agr.id from AssignmentGradeRecord as agr " +
+			"where agr.gradableObject.id in (:assignmentIds) and agr.studentId in (:studentUids)");
+		q.setParameterList("assignmentIds", assignmentIds);
+		for (Iterator iter = new InListQuery(q, "studentUids", chunkSize).list(students).iterator(); iter.hasNext(); ) {
+			Object[] row = (Object[])iter.next();
+			Long assignmentId = (Long)row[0];
+			String studentUid = (String)row[1];
+			Set<String> recordedStudents = recordedStudentsMap.get(assignmentId);
+			if (recordedStudents == null) {
+				recordedStudents = new HashSet<String>();
+				recordedStudentsMap.put(assignmentId, recordedStudents);
+			}
+			recordedStudents.add(studentUid);
+			if (row[2] == null) {
+				List<String> unscored = unscoredStudentsMap.get(assignmentId);
+				if (unscored == null) {
+					unscored = new ArrayList<String>();
+					unscoredStudentsMap.put(assignmentId, unscored);
+				}
+				unscored.add(studentUid);
+				unscoredStudents.add(studentUid);
+				unscoredRecordIds.add((Long)row[3]);
+			}
+		}
+
+		Date now = new Date();
+		int numZeroed = 0;
+		if (!unscoredStudents.isEmpty()) {
+			Query update = session.createQuery("update versioned AssignmentGradeRecord " +
+				"set pointsEarned = :zero, graderId = :graderId, dateRecorded = :now " +
+				"where gradableObject.id in (:assignmentIds) and pointsEarned is null and studentId in (:studentUids)");
+			update.setDouble("zero", ZERO.doubleValue());
+			update.setString("graderId", graderId);
+			update.setTimestamp("now", now);
+			update.setParameterList("assignmentIds", assignmentIds);
+			numZeroed = new InListQuery(update, "studentUids", chunkSize).executeUpdate(unscoredStudents);
+			GradebookManagerHibernateImpl.evictGradeRecords(session, unscoredRecordIds);
+		}
+
+		GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
+		int numCreated = 0;
+		for (Assignment assignment : assignments) {
+			FinalizedAssignmentSummary summary = new FinalizedAssignmentSummary(assignment.getId(), assignment.getName());
+			List<String> unscored = unscoredStudentsMap.get(assignment.getId());
+			if (unscored != null) {
+				for (String studentUid : unscored) {
+					batch.logGradingEvent(new GradingEvent(assignment, graderId, studentUid, ZERO.toString()));
+				}
+				summary.setNumScoresZeroed(unscored.size());
+			}
+
+			Set<String> recordedStudents = recordedStudentsMap.get(assignment.getId());
+			int numAssignmentRecordsCreated = 0;
+			for (String studentUid : students) {
+				if (recordedStudents == null || !recordedStudents.contains(studentUid)) {
+					AssignmentGradeRecord gradeRecord = new AssignmentGradeRecord(assignment, studentUid, ZERO);
+					gradeRecord.setGraderId(graderId);
+					gradeRecord.setDateRecorded(now);
+					batch.saveOrUpdate(gradeRecord);
+					batch.logGradingEvent(new GradingEvent(assignment, graderId, studentUid, ZERO.toString()));
+					numAssignmentRecordsCreated++;
+				}
+			}
+			summary.setNumRecordsCreated(numAssignmentRecordsCreated);
+			numCreated += numAssignmentRecordsCreated;
+			summaries.add(summary);
+		}
+		batch.finish();
+
+		if (log.isDebugEnabled()) log.debug("Finalized gradebook " + gradebook.getUid() + ": " + numZeroed + " empty scores zeroed, " +
+			numCreated + " grade records created for " + assignments.size() + " counted items and " + students.size() + " students");
+		return summaries;
+	}
+
+	private List<Long> getIds(List<Assignment> assignments) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Assignment assignment : assignments) {
+			ids.add(assignment.getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,182 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.TransientObjectException;
+import org.sakaiproject.service.gradebook.shared.StaleObjectModificationException;
+import org.sakaiproject.tool.gradebook.GradingEvent;
+import org.sakaiproject.tool.gradebook.business.GradeChange;
+
+/**
+ * Groups the writes of a bulk grade save so that they reach the database as
+ * JDBC batches instead of one statement per score.
+ *
+ * Grade records are saved as they arrive, but their grading events are held
+ * back and saved together just before each flush, so every flush sends the
+ * record inserts, the event inserts and the record updates as runs of the
+ * same statement which Hibernate can batch (given hibernate.jdbc.batch_size).
+ * Once a full batch is flushed, its events and the records it attached are
+ * evicted, so the session does not keep every object of a thousand student
+ * save until the transaction ends.
+ *
+ * The grade change outbox entries are held until finish(). Once the records
+ * and events are flushed, each changed gradebook is counted in its
+ * GradebookVersion, and only then are the outbox entries written. The version
+ * row stays locked from there until the save commits, so the saves to one
+ * gradebook take their outbox ids in the order they commit and consumers can
+ * page on the id alone, while the lock is not held across the grade writes.
+ *
+ * Flushing within the callback means an optimistic locking failure shows up
+ * here rather than at commit; it is translated into a
+ * StaleObjectModificationException, as the single record saves do.
+ */
+class GradeWriteBatch {
+	private static final Log log = LogFactory.getLog(GradeWriteBatch.class);
+
+	private final Session session;
+	private final int batchSize;
+
+	private final List<Object> pendingRecords = new ArrayList<Object>();
+	private final List<Object> attachedRecords = new ArrayList<Object>();
+	private final List<GradingEvent> pendingEvents = new ArrayList<GradingEvent>();
+	private final List<GradeChange> pendingChanges = new ArrayList<GradeChange>();
+	private final Set<Long> changedGradebookIds = new LinkedHashSet<Long>();
+
+	GradeWriteBatch(Session session, int batchSize) {
+		this.session = session;
+		this.batchSize = (batchSize > 0) ? batchSize : 1;
+	}
+
+	/**
+	 * Save or update a grade record (or comment), flushing the batch when it is full.
+	 */
+	void saveOrUpdate(Object record) throws HibernateException {
+		boolean wasInSession = session.contains(record);
+		session.saveOrUpdate(record);
+		pendingRecords.add(record);
+		if (!wasInSession) {
+			// Only what this batch attached is evicted, the caller's own persistent objects stay
+			attachedRecords.add(record);
+		}
+		if (pendingRecords.size() >= batchSize) {
+			flush(true);
+		}
+	}
+
+	/**
+	 * Queue a grading event, to be inserted with the rest of the batch, and its
+	 * entry in the grade change outbox. Events logged without records (after a
+	 * bulk update) are flushed in batches too.
+	 */
+	void logGradingEvent(GradingEvent event) throws HibernateException {
+		pendingEvents.add(event);
+		logChange(GradeChange.forGradingEvent(event));
+		if (pendingEvents.size() >= batchSize) {
+			flush(true);
+		}
+	}
+
+	/**
+	 * Queue an entry in the grade change outbox for a save which has no grading
+	 * event, such as a comment.
+	 */
+	void logChange(GradeChange change) {
+		changedGradebookIds.add(change.getGradebookId());
+		pendingChanges.add(change);
+	}
+
+	/**
+	 * Write the last, partial batch, count the changed gradebooks and write the
+	 * outbox entries. The last objects are left in the session, so a save
+	 * smaller than the batch size behaves as it did before batching.
+	 */
+	void finish() throws HibernateException {
+		flush(false);
+		for (Iterator<Long> iter = changedGradebookIds.iterator(); iter.hasNext(); ) {
+			GradebookVersion.increment(session, iter.next());
+		}
+		changedGradebookIds.clear();
+
+		List<GradeChange> changes = new ArrayList<GradeChange>();
+		for (Iterator<GradeChange> iter = pendingChanges.iterator(); iter.hasNext(); ) {
+			GradeChange change = iter.next();
+			session.save(change);
+			changes.add(change);
+			if (changes.size() >= batchSize || !iter.hasNext()) {
+				flushSession();
+				if (iter.hasNext()) {
+					for (Iterator<GradeChange> saved = changes.iterator(); saved.hasNext(); ) {
+						session.evict(saved.next());
+					}
+				}
+				changes.clear();
+			}
+		}
+		pendingChanges.clear();
+	}
+
+	private void flush(boolean evict) throws HibernateException {
+		if (pendingRecords.isEmpty() && pendingEvents.isEmpty()) {
+			return;
+		}
+		for (Iterator<GradingEvent> iter = pendingEvents.iterator(); iter.hasNext(); ) {
+			session.save(iter.next());
+		}
+		flushSession();
+		if (evict) {
+			for (Iterator<Object> iter = attachedRecords.iterator(); iter.hasNext(); ) {
+				session.evict(iter.next());
+			}
+			for (Iterator<GradingEvent> iter = pendingEvents.iterator(); iter.hasNext(); ) {
+				session.evict(iter.next());
+			}
+		}
+		pendingRecords.clear();
+		attachedRecords.clear();
+		pendingEvents.clear();
+	}
+
+	private void flushSession() throws HibernateException {
+		try {
+			session.flush();
+		} catch (StaleObjectStateException e) {
+			if(log.isInfoEnabled()) log.info("An optimistic locking failure occurred while flushing a batch of grade records");
+			throw new StaleObjectModificationException(e);
+		} catch (TransientObjectException e) {
+			// A previously unscored student was scored behind the current user's back
+			if(log.isInfoEnabled()) log.info("An optimistic locking failure occurred while flushing a batch of new grade records");
+			throw new StaleObjectModificationException(e);
+		}
+	}
+}
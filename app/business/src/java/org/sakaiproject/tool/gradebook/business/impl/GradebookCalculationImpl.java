@@ -26,6 +26,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -66,15 +67,15 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
 
 				Long gradebookId = courseGrade.getGradebook().getId();
 				
-				// get all of the AssignmentGradeRecords here to avoid repeated db calls
-                Map<String, List<AssignmentGradeRecord>> studentIdGradeRecordsMap = 
-                    getGradeRecordMapForStudents(session, gradebookId, studentUids);
+				// the grade records are only loaded for the students whose totals
+				// have to be recalculated, so start with a stamp of everyone's records
+				Map<String, String> recordStamps = getGradeRecordStampsForGradebook(session, gradebookId);
                 
                 // get all of the counted assignments
                 List<Assignment> countedAssigns = getCountedAssignments(session, gradebookId);
 
 				return getPointsEarnedCourseGradeRecords(session, courseGrade, studentUids, 
-				        countedAssigns, studentIdGradeRecordsMap);
+				        countedAssigns, null, recordStamps);
 			}
 		};
 		return (List)getHibernateTemplate().execute(hc);
@@ -92,6 +93,12 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
 					if(log.isDebugEnabled()) log.debug("Returning no grade records for an empty collection of student UIDs in GradebookCalculationImpl.getPointsEarnedCourseGradeRecords");
 					return new ArrayList();
 				}
+
+				if (gradeRecordMap == null) {
+					// only load the grade records of the students whose totals have to be recalculated
+					Map<String, String> recordStamps = getGradeRecordStampsForGradebook(session, courseGrade.getGradebook().getId());
+					return getPointsEarnedCourseGradeRecords(session, courseGrade, studentUids, assignments, null, recordStamps);
+				}
 				
 				// let's make the grade map more manageable here.  it starts out as
 				// Map of studentId --> Map of assignment id --> corresponding AssignmentGradeRecord
@@ -108,7 +115,7 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
 				    }
 				}
 
-				return getPointsEarnedCourseGradeRecords(session, courseGrade, studentUids, assignments, studentIdGradeRecordsMap);
+				return getPointsEarnedCourseGradeRecords(session, courseGrade, studentUids, assignments, studentIdGradeRecordsMap, null);
 			}
 		};
 		return (List)getHibernateTemplate().execute(hc);
@@ -119,13 +126,16 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
 	 * @param session
 	 * @param courseGrade
 	 * @param studentUids
-	 * @param studentIdGradeRecordsMap map of studentId --> List of that student's AssignmentGradeRecords
+	 * @param studentIdGradeRecordsMap map of studentId --> List of that student's AssignmentGradeRecords,
+	 * or null if the records should be loaded here for the students that need to be recalculated
+	 * @param recordStamps map of studentId --> stamp of that student's grade records, or null if the
+	 * stamps should be taken from studentIdGradeRecordsMap
 	 * @return a list of the CourseGradeRecords with nonpersisted fields populated for the given students and
 	 * associated AssignmentGradeRecords
 	 */
 	private List<CourseGradeRecord> getPointsEarnedCourseGradeRecords(Session session, 
 	        CourseGrade courseGrade, Collection<String> studentUids, Collection<Assignment> assignments, 
-	        Map<String, List<AssignmentGradeRecord>> studentIdGradeRecordsMap) {
+	        Map<String, List<AssignmentGradeRecord>> studentIdGradeRecordsMap, Map<String, String> recordStamps) {
 
 	    List<CourseGradeRecord> courseGradeRecs = new ArrayList<CourseGradeRecord>();
 
@@ -157,6 +167,12 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
                 Map<String, Set<Assignment>> visibleExternals =
                     getVisibleExternalAssignments(courseGrade.getGradebook(), studentUids, countedAssigns);
 
+                String structureKey = IncrementalCourseGradeEngine.getStructureKey(gradebook, cates, countedAssigns);
+
+                // first pick up the students whose totals are still current
+                List<CourseGradeRecord> recalculateRecs = new ArrayList<CourseGradeRecord>();
+                Map<String, List<Assignment>> studentCountedAssignsMap = new HashMap<String, List<Assignment>>();
+                Map<String, String> studentRecordStamps = new HashMap<String, String>();
 	            for(CourseGradeRecord cgr : courseGradeRecs) 
 	            {
                     // Filter out external activities that are not visible to this student, considering them "uncounted"
@@ -170,28 +186,92 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
                         }
                     }
 
+                    String recordStamp;
+                    if (recordStamps != null) {
+                        recordStamp = recordStamps.get(studentId);
+                        if (recordStamp == null) {
+                            recordStamp = IncrementalCourseGradeEngine.EMPTY_RECORD_STAMP;
+                        }
+                    } else {
+                        recordStamp = IncrementalCourseGradeEngine.getRecordStamp(
+                                studentIdGradeRecordsMap == null ? null : studentIdGradeRecordsMap.get(studentId));
+                    }
+
+                    IncrementalCourseGradeEngine.StudentTotals totals = courseGradeEngine.getStudentTotals(gradebookId, structureKey, studentId,
+                            recordStamp, IncrementalCourseGradeEngine.getCountedKey(countedAssigns, studentCountedAssigns));
+                    if (totals != null) {
+                        if (studentIdGradeRecordsMap != null) {
+                            totals.applyDroppedState(studentIdGradeRecordsMap.get(studentId));
+                        }
+                        cgr.initNonpersistentFields(totals.getTotalPointsPossible(), totals.getTotalPointsEarned(), totals.getLiteralTotalPointsEarned());
+                    } else {
+                        recalculateRecs.add(cgr);
+                        studentCountedAssignsMap.put(studentId, studentCountedAssigns);
+                        studentRecordStamps.put(studentId, recordStamp);
+                    }
+	            }
+
+	            if (log.isDebugEnabled()) log.debug("Recalculating course grade totals for " + recalculateRecs.size() + " of " + courseGradeRecs.size() + " students in gradebook " + gradebookId);
+
+	            if (!recalculateRecs.isEmpty() && studentIdGradeRecordsMap == null && recordStamps != null) {
+	                // get all of the AssignmentGradeRecords here to avoid repeated db calls
+	                studentIdGradeRecordsMap = getGradeRecordMapForStudents(session, gradebookId, studentRecordStamps.keySet());
+	            }
+
+	            for(CourseGradeRecord cgr : recalculateRecs) 
+	            {
+	                String studentId = cgr.getStudentId();
+	                List<Assignment> studentCountedAssigns = studentCountedAssignsMap.get(studentId);
+
 	                //double totalPointsEarned = getTotalPointsEarnedInternal(gradebookId, cgr.getStudentId(), session);
 	                List<AssignmentGradeRecord> studentGradeRecs;
 	                if (studentIdGradeRecordsMap == null) {
 	                    studentGradeRecs = new ArrayList<AssignmentGradeRecord>();
 	                } else {
-	                    studentGradeRecs = studentIdGradeRecordsMap.get(cgr.getStudentId());
+	                    studentGradeRecs = studentIdGradeRecordsMap.get(studentId);
 	                }
 
 	                applyDropScores(studentGradeRecs);
 
-	                List totalEarned = getTotalPointsEarnedInternal(cgr.getStudentId(), gradebook, cates, studentGradeRecs, studentCountedAssigns);
+	                List totalEarned = getTotalPointsEarnedInternal(studentId, gradebook, cates, studentGradeRecs, studentCountedAssigns);
 	                double totalPointsEarned = ((Double)totalEarned.get(0)).doubleValue();
 	                double literalTotalPointsEarned = ((Double)totalEarned.get(1)).doubleValue();	                
-	                double totalPointsPossible = getTotalPointsInternal(gradebook, cates, cgr.getStudentId(), studentGradeRecs, studentCountedAssigns, false);
+	                double totalPointsPossible = getTotalPointsInternal(gradebook, cates, studentId, studentGradeRecs, studentCountedAssigns, false);
 	                cgr.initNonpersistentFields(totalPointsPossible, totalPointsEarned, literalTotalPointsEarned);
 	                if(log.isDebugEnabled()) log.debug("Points earned = " + cgr.getPointsEarned());
+
+	                courseGradeEngine.putStudentTotals(gradebookId, structureKey, studentId,
+	                        new IncrementalCourseGradeEngine.StudentTotals(studentRecordStamps.get(studentId),
+	                                IncrementalCourseGradeEngine.getCountedKey(countedAssigns, studentCountedAssigns),
+	                                totalPointsPossible, totalPointsEarned, literalTotalPointsEarned, studentGradeRecs));
 	            }
 	        }
 	    }
 	    return courseGradeRecs;
 	}
 	
+	/**
+	 * @return map of studentId --> stamp of the student's AssignmentGradeRecords in the gradebook,
+	 * counting the same records as getGradeRecordMapForStudents. The stamp changes whenever a score
+	 * is added or changed, so it can tell whether the cached course grade totals of a student are
+	 * still current without loading the records themselves.
+	 */
+	private Map<String, String> getGradeRecordStampsForGradebook(Session session, Long gradebookId) {
+	    Map<String, String> recordStamps = new HashMap<String, String>();
+	    List results = session.createQuery(
+	            "select agr.studentId, count(agr.id), sum(agr.pointsEarned), max(agr.dateRecorded) " +
+	            "from AssignmentGradeRecord agr where agr.gradableObject.gradebook.id=:gbid " +
+	            "and agr.gradableObject.removed=false and agr.gradableObject.pointsPossible > 0 " +
+	            "group by agr.studentId").
+	            setParameter("gbid", gradebookId).
+	            list();
+	    for (Iterator iter = results.iterator(); iter.hasNext(); ) {
+	        Object[] row = (Object[])iter.next();
+	        recordStamps.put((String)row[0], IncrementalCourseGradeEngine.getRecordStamp((Number)row[1], (Number)row[2], (Date)row[3]));
+	    }
+	    return recordStamps;
+	}
+	
 
 	List getTotalPointsEarnedInternal(final String studentId, final Gradebook gradebook, final List categories,
 	        final List<AssignmentGradeRecord> gradeRecs, List<Assignment> countedAssigns) 
@@ -434,8 +514,5 @@ public class GradebookCalculationImpl extends GradebookManagerHibernateImpl impl
 
 		return totalPointsPossible;
 	}
-	
-    public void applyDropScores(Collection<AssignmentGradeRecord> gradeRecords) {
-        super.applyDropScores(gradeRecords);
-    }
+
 }
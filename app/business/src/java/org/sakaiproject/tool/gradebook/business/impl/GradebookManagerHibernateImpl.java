@@ -38,12 +38,16 @@ import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.EntityMode;
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.StaleObjectStateException;
 import org.hibernate.TransientObjectException;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.sakaiproject.component.gradebook.BaseHibernateManager;
 import org.sakaiproject.service.gradebook.shared.ConflictingAssignmentNameException;
 import org.sakaiproject.service.gradebook.shared.ConflictingCategoryNameException;
@@ -64,7 +68,12 @@ import org.sakaiproject.tool.gradebook.GradingEvent;
 import org.sakaiproject.tool.gradebook.GradingEvents;
 import org.sakaiproject.tool.gradebook.LetterGradePercentMapping;
 import org.sakaiproject.tool.gradebook.Spreadsheet;
+import org.sakaiproject.tool.gradebook.business.DropScoreEngine;
+import org.sakaiproject.tool.gradebook.business.FinalizedAssignmentSummary;
+import org.sakaiproject.tool.gradebook.business.GradeChange;
+import org.sakaiproject.tool.gradebook.business.GradeMatrix;
 import org.sakaiproject.tool.gradebook.business.GradebookManager;
+import org.sakaiproject.tool.gradebook.business.GradebookSnapshot;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.HibernateOptimisticLockingFailureException;
@@ -88,6 +97,32 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     /** synchronize from external application*/
     GbSynchronizer synchronizer = null;
 
+    /** running course grade totals, recalculated only for the students whose scores change */
+    IncrementalCourseGradeEngine courseGradeEngine = new IncrementalCourseGradeEngine();
+
+    /** default number of grade records written per flush of a bulk save */
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 50;
+
+    /** grade records written per flush of a bulk save, see GradeWriteBatch */
+    int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+
+    /**
+     * The order of "order by agr.pointsEarned", used to merge the results of grade record
+     * queries split by student. Records without a score come first.
+     */
+    private static final Comparator<AssignmentGradeRecord> POINTS_EARNED_COMPARATOR = new Comparator<AssignmentGradeRecord>() {
+        public int compare(AssignmentGradeRecord agr1, AssignmentGradeRecord agr2) {
+            Double points1 = agr1.getPointsEarned();
+            Double points2 = agr2.getPointsEarned();
+            if (points1 == null) {
+                return (points2 == null) ? 0 : -1;
+            } else if (points2 == null) {
+                return 1;
+            }
+            return points1.compareTo(points2);
+        }
+    };
+
     public void removeAssignment(final Long assignmentId) throws StaleObjectModificationException {
         HibernateCallback hc = new HibernateCallback() {
             public Object doInHibernate(Session session) throws HibernateException {
@@ -101,6 +136,8 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 	synchronizer.deleteLegacyAssignment(asn.getName());
                 }
                 if(log.isInfoEnabled()) log.info("Assignment " + asn.getName() + " has been removed from " + gradebook);
+                invalidateCourseGrades(gradebook.getId());
+                GradebookSnapshot.invalidateCurrent();
                 return null;
             }
         };
@@ -108,7 +145,76 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     }
 
     public Gradebook getGradebook(Long id) {
-        return (Gradebook)getHibernateTemplate().load(Gradebook.class, id);
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        Gradebook gradebook = (snapshot != null) ? snapshot.getGradebook(id) : null;
+        if (gradebook == null) {
+            gradebook = (Gradebook)getHibernateTemplate().load(Gradebook.class, id);
+            if (snapshot != null) {
+                snapshot.putGradebook(gradebook);
+            }
+        }
+        return gradebook;
+    }
+
+    public String getGradebookUid(Long id) {
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        String gradebookUid = (snapshot != null) ? snapshot.getGradebookUid(id) : null;
+        if (gradebookUid == null) {
+            gradebookUid = super.getGradebookUid(id);
+            if (snapshot != null) {
+                snapshot.putGradebookUid(id, gradebookUid);
+            }
+        }
+        return gradebookUid;
+    }
+
+    /**
+     * @return the uids of the students enrolled in the gradebook, only asking
+     * the section service once while a snapshot is open
+     */
+    private Set<String> getEnrolledStudentUids(Long gradebookId) {
+        String gradebookUid = getGradebookUid(gradebookId);
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        Set<String> studentUids = (snapshot != null) ? snapshot.getStudentUids(gradebookUid) : null;
+        if (studentUids == null) {
+            studentUids = getAllStudentUids(gradebookUid);
+            if (snapshot != null) {
+                snapshot.putStudentUids(gradebookUid, studentUids);
+            }
+        }
+        return studentUids;
+    }
+
+    public List getCategories(final Long gradebookId) throws HibernateException {
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        List categories = (snapshot != null) ? snapshot.getCategories(gradebookId) : null;
+        if (categories == null) {
+            categories = super.getCategories(gradebookId);
+            if (snapshot != null) {
+                snapshot.putCategories(gradebookId, categories);
+            }
+        }
+        return categories;
+    }
+
+    public CourseGrade getCourseGrade(Long gradebookId) {
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        CourseGrade courseGrade = (snapshot != null) ? snapshot.getCourseGrade(gradebookId) : null;
+        if (courseGrade == null) {
+            courseGrade = super.getCourseGrade(gradebookId);
+            if (snapshot != null && courseGrade != null) {
+                snapshot.putCourseGrade(gradebookId, courseGrade);
+            }
+        }
+        return courseGrade;
+    }
+
+    public Long createCategory(final Long gradebookId, final String name, final Double weight, final Integer drop_lowest, final Integer dropHighest, final Integer keepHighest, final Boolean is_extra_credit)
+    throws ConflictingCategoryNameException, StaleObjectModificationException {
+        Long id = super.createCategory(gradebookId, name, weight, drop_lowest, dropHighest, keepHighest, is_extra_credit);
+        incrementGradebookVersion(gradebookId);
+        GradebookSnapshot.invalidateCurrent();
+        return id;
     }
 
     public List getAssignmentGradeRecords(final Assignment assignment, final Collection studentUids) {
@@ -121,10 +227,12 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                     return new ArrayList();                	
                 }
 
-                Query q = session.createQuery("from AssignmentGradeRecord as agr where agr.gradableObject.id=:gradableObjectId order by agr.pointsEarned");
+                Query q = session.createQuery("from AssignmentGradeRecord as agr where agr.gradableObject.id=:gradableObjectId " +
+                        "and agr.studentId in (:studentUids) order by agr.pointsEarned");
                 q.setLong("gradableObjectId", assignment.getId().longValue());
-                List records = filterGradeRecordsByStudents(q.list(), studentUids);
-                return records;
+                return new InListQuery(q, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).
+                        setComparator(POINTS_EARNED_COMPARATOR).
+                        list(studentUids);
             }
         };
         return (List)getHibernateTemplate().execute(hc);
@@ -180,7 +288,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     	// Get good class-wide statistics by including all students, whether
     	// the caller is specifically interested in their grade records or not.
     	Long gradebookId = courseGrade.getGradebook().getId();
-    	Set allStudentUids = getAllStudentUids(getGradebookUid(gradebookId));
+    	Set allStudentUids = getEnrolledStudentUids(gradebookId);
     	List courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, allStudentUids);
     	courseGrade.calculateStatistics(courseGradeRecords, allStudentUids.size());
 
@@ -239,6 +347,21 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     	if (gradeRecordMap == null || gradeRecordMap.isEmpty())
     		return;
     	
+    	// work out the dropped scores of every student in one pass, rather than once per student and category
+    	List<AssignmentGradeRecord> allGradeRecords = new ArrayList<AssignmentGradeRecord>();
+    	for (Iterator stuIter = enrollmentMap.keySet().iterator(); stuIter.hasNext(); ){
+    		Map studentMap = (Map) gradeRecordMap.get(stuIter.next());
+    		if (studentMap != null) {
+    			for (Iterator recIter = studentMap.values().iterator(); recIter.hasNext(); ) {
+    				Object gradeRecord = recIter.next();
+    				if (gradeRecord instanceof AssignmentGradeRecord) {
+    					allGradeRecords.add((AssignmentGradeRecord) gradeRecord);
+    				}
+    			}
+    		}
+    	}
+    	applyDropScores(allGradeRecords);
+    	
     	for (Iterator stuIter = enrollmentMap.keySet().iterator(); stuIter.hasNext(); ){
     		String studentUid = (String) stuIter.next();
     		Map studentMap = (Map) gradeRecordMap.get(studentUid);
@@ -264,7 +387,6 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 		    			gradeRecords.add(gradeRecord);
 				
 		    		}
-		    		applyDropScores(gradeRecords);
 		    		category.calculateStatisticsPerStudent(gradeRecords, studentUid);
 	
 		    		Map studentCategoryMap = (Map) categoryResultMap.get(studentUid);
@@ -338,6 +460,11 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 //    	return (List)getHibernateTemplate().execute(hc);
 //    }
     public List getPointsEarnedCourseGradeRecords(final CourseGrade courseGrade, final Collection studentUids, final Collection assignments, final Map gradeRecordMap) {
+    	if (gradeRecordMap == null) {
+    		Map loadedGradeRecordMap = new HashMap();
+    		addToGradeRecordMap(loadedGradeRecordMap, getAllAssignmentGradeRecords(courseGrade.getGradebook().getId(), studentUids));
+    		return getPointsEarnedCourseGradeRecords(courseGrade, studentUids, assignments, loadedGradeRecordMap);
+    	}
     	HibernateCallback hc = new HibernateCallback() {
     		public Object doInHibernate(Session session) throws HibernateException {
     			if(studentUids == null || studentUids.size() == 0) {
@@ -553,9 +680,11 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                     return new ArrayList();
                 } else {
                     Query q = session.createQuery("from AssignmentGradeRecord as agr left join fetch agr.gradableObject where agr.gradableObject.removed=false and " +
-                            "agr.gradableObject.gradebook.id=:gradebookId order by agr.pointsEarned");
+                            "agr.gradableObject.gradebook.id=:gradebookId and agr.studentId in (:studentUids) order by agr.pointsEarned");
                     q.setLong("gradebookId", gradebookId.longValue());
-                    return filterGradeRecordsByStudents(q.list(), studentUids);
+                    return new InListQuery(q, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).
+                            setComparator(POINTS_EARNED_COMPARATOR).
+                            list(studentUids);
                 }
             }
         };
@@ -596,6 +725,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
             public Object doInHibernate(Session session) throws HibernateException {
                 Date now = new Date();
                 String graderId = authn.getUserUid();
+                GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
 
                 Set studentsWithUpdatedAssignmentGradeRecords = new HashSet();
                 Set studentsWithExcessiveScores = new HashSet();
@@ -649,19 +779,19 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 						returnedPersistentItem.setGraderId(gradeRecordFromCall.getGraderId());
                 						returnedPersistentItem.setPointsEarned(gradeRecordFromCall.getPointsEarned());
                 						returnedPersistentItem.setDateRecorded(gradeRecordFromCall.getDateRecorded());
-                						session.saveOrUpdate(returnedPersistentItem);
+                						batch.saveOrUpdate(returnedPersistentItem);
                 					}
                 					else if(returnedPersistentItem == null)
                 					{
                 						graderId = gradeRecordFromCall.getGraderId();
                 						updated = true;
-                						session.saveOrUpdate(gradeRecordFromCall);
+                						batch.saveOrUpdate(gradeRecordFromCall);
                 					}
                 				}
                 				else
                 				{
                 					updated = true;
-                					session.saveOrUpdate(gradeRecordFromCall);
+                					batch.saveOrUpdate(gradeRecordFromCall);
                 				}
                 			}
                 			if (!isUpdateAll && !isStudentView && synchronizer != null && !synchronizer.isProjectSite())
@@ -689,7 +819,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 				studentsWithExcessiveScores.add(gradeRecordFromCall.getStudentId());
                 			}
 
-                			logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, session);
+                			logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, batch);
                 			studentsWithUpdatedAssignmentGradeRecords.add(gradeRecordFromCall.getStudentId());
                 		}
 
@@ -708,7 +838,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 		gradeRecordFromCall.setGraderId(graderId);
                 		gradeRecordFromCall.setDateRecorded(now);
                 		try {
-                			session.saveOrUpdate(gradeRecordFromCall);
+                			batch.saveOrUpdate(gradeRecordFromCall);
                 		} catch (TransientObjectException e) {
                 			// It's possible that a previously unscored student
                 			// was scored behind the current user's back before
@@ -726,11 +856,12 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 		}
 
                 		// Log the grading event, and keep track of the students with saved/updated grades
-                		logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, session);
+                		logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, batch);
                 		
                 		studentsWithUpdatedAssignmentGradeRecords.add(gradeRecordFromCall.getStudentId());
                 	}
                 }
+                batch.finish();
                 if (logData.isDebugEnabled()) logData.debug("Updated " + studentsWithUpdatedAssignmentGradeRecords.size() + " assignment score records");
 
                 return studentsWithExcessiveScores;
@@ -738,6 +869,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
         };
 
         Set studentsWithExcessiveScores = (Set)getHibernateTemplate().execute(hc);
+        invalidateCourseGradeTotals(gradeRecordsFromCall);
         if (logData.isDebugEnabled()) logData.debug("END: Update " + gradeRecordsFromCall.size() + " scores for gradebook=" + assignment.getGradebook().getUid() + ", assignment=" + assignment.getName());
         return studentsWithExcessiveScores;
     }
@@ -763,6 +895,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
             public Object doInHibernate(Session session) throws HibernateException {
                 Date now = new Date();
                 String graderId = authn.getUserUid();
+                GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
 
                 Set studentsWithUpdatedAssignmentGradeRecords = new HashSet();
                 Set assignmentsWithExcessiveScores = new HashSet();
@@ -815,19 +948,19 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 						returnedPersistentItem.setGraderId(gradeRecordFromCall.getGraderId());
                 						returnedPersistentItem.setPointsEarned(gradeRecordFromCall.getPointsEarned());
                 						returnedPersistentItem.setDateRecorded(gradeRecordFromCall.getDateRecorded());
-                						session.saveOrUpdate(returnedPersistentItem);
+                						batch.saveOrUpdate(returnedPersistentItem);
                 					}
                 					else if(returnedPersistentItem == null)
                 					{
                 						graderId = gradeRecordFromCall.getGraderId();
                 						updated = true;
-                						session.saveOrUpdate(gradeRecordFromCall);
+                						batch.saveOrUpdate(gradeRecordFromCall);
                 					}
                 				}
                 				else
                 				{
                 					updated = true;
-                					session.saveOrUpdate(gradeRecordFromCall);
+                					batch.saveOrUpdate(gradeRecordFromCall);
                 				}
                 			}
                 			if (assignment != null && !isUpdateAll && !isStudentView && synchronizer != null && !synchronizer.isProjectSite())
@@ -856,7 +989,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 			}
 
                 			// Log the grading event, and keep track of the students with saved/updated grades
-                			logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, session);
+                			logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, batch);
                 			
                 			studentsWithUpdatedAssignmentGradeRecords.add(gradeRecordFromCall.getStudentId());
                 		}
@@ -880,7 +1013,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 	                	gradeRecordFromCall.setGraderId(graderId);
 	                	gradeRecordFromCall.setDateRecorded(now);
 	                	try {
-	                		session.saveOrUpdate(gradeRecordFromCall);
+	                		batch.saveOrUpdate(gradeRecordFromCall);
 	                	} catch (TransientObjectException e) {
 	                		// It's possible that a previously unscored student
 	                		// was scored behind the current user's back before
@@ -898,11 +1031,12 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 	                	}
 	
 	                	// Log the grading event, and keep track of the students with saved/updated grades
-	                	logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, session);
+	                	logAssignmentGradingEvent(gradeRecordFromCall, graderId, assignment, batch);
 	                	
 	                	studentsWithUpdatedAssignmentGradeRecords.add(gradeRecordFromCall.getStudentId());
 	                }
                 }
+				batch.finish();
 				if (logData.isDebugEnabled()) logData.debug("Updated " + studentsWithUpdatedAssignmentGradeRecords.size() + " assignment score records");
 
                 return assignmentsWithExcessiveScores;
@@ -910,6 +1044,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
         };
 
         Set assignmentsWithExcessiveScores = (Set)getHibernateTemplate().execute(hc);
+        invalidateCourseGradeTotals(gradeRecordsFromCall);
         if (logData.isDebugEnabled()) logData.debug("END: Update " + gradeRecordsFromCall.size());
         return assignmentsWithExcessiveScores;
     }
@@ -934,12 +1069,15 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 		// which were changed by other sessions.
 		HibernateCallback hc = new HibernateCallback() {
 			public Object doInHibernate(Session session) throws HibernateException {
+				GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
 				for (Iterator iter = comments.iterator(); iter.hasNext();) {
 					Comment comment = (Comment)iter.next();
 					comment.setGraderId(graderId);
 					comment.setDateRecorded(now);
-					session.saveOrUpdate(comment);
+					batch.saveOrUpdate(comment);
+					batch.logChange(GradeChange.forComment(comment));
 				}
+				batch.finish();
 				return null;
 			}
 		};
@@ -979,6 +1117,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 Date now = new Date();
                 String graderId = authn.getUserUid();
                 int numberOfUpdatedGrades = 0;
+                GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
 
                 for(Iterator iter = gradeRecordsFromCall.iterator(); iter.hasNext();) {
                     // The modified course grade record
@@ -986,18 +1125,18 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                     gradeRecordFromCall.setGraderId(graderId);
                     gradeRecordFromCall.setDateRecorded(now);
                     try {
-                        session.saveOrUpdate(gradeRecordFromCall);
-                        session.flush();
+                        batch.saveOrUpdate(gradeRecordFromCall);
                     } catch (StaleObjectStateException sose) {
                         if(log.isInfoEnabled()) log.info("An optimistic locking failure occurred while attempting to update course grade records");
                         throw new StaleObjectModificationException(sose);
                     }
 
                     // Log the grading event
-                    session.save(new GradingEvent(courseGrade, graderId, gradeRecordFromCall.getStudentId(), gradeRecordFromCall.getEnteredGrade()));
+                    batch.logGradingEvent(new GradingEvent(courseGrade, graderId, gradeRecordFromCall.getStudentId(), gradeRecordFromCall.getEnteredGrade()));
                     
                     numberOfUpdatedGrades++;
                 }
+                batch.finish();
                 if (logData.isDebugEnabled()) logData.debug("Changed " + numberOfUpdatedGrades + " course grades for gradebook=" + courseGrade.getGradebook().getUid());
                 return null;
             }
@@ -1310,6 +1449,11 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     	return (Double)getHibernateTemplate().execute(hc);
     }
 
+    /**
+     * The calculated course grade is kept in GB_COURSE_GRADE_CACHE_T and only recalculated
+     * when the gradebook structure or the student's scores changed since it was stored, since
+     * students view their grades far more often than their scores change.
+     */
     public CourseGradeRecord getStudentCourseGradeRecord(final Gradebook gradebook, final String studentId) {
     	if (logData.isDebugEnabled()) logData.debug("About to read student course grade for gradebook=" + gradebook.getUid());
     	return (CourseGradeRecord)getHibernateTemplate().execute(new HibernateCallback() {
@@ -1330,29 +1474,56 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 	//double totalPointsPossible = getTotalPointsInternal(gradebook.getId(), session);
                 	//double totalPointsEarned = getTotalPointsEarnedInternal(gradebook.getId(), studentId, session);
                     
+                    // get the counted assignments for this gradebook
+                    List<Assignment> countedAssigns = getCountedAssignments(session, gradebook.getId());
+
+                    CourseGradeTable courseGradeTable = new CourseGradeTable(session);
+                    String structureVersion = CourseGradeTable.getStructureVersion(
+                    		IncrementalCourseGradeEngine.getStructureKey(gradebook, cates, countedAssigns));
+                    String scoreVersion = courseGradeTable.getScoreVersion(gradebook.getId(), studentId);
+                    CachedCourseGrade cachedGrade = courseGradeTable.find(gradebook.getId(), studentId);
+                    if (cachedGrade != null && cachedGrade.isCurrent(structureVersion, scoreVersion)) {
+                    	courseGradeRecord.initNonpersistentFields(cachedGrade.getPointsPossible().doubleValue(),
+                    			cachedGrade.getPointsEarned().doubleValue(), cachedGrade.getLiteralPointsEarned().doubleValue());
+                    	return courseGradeRecord;
+                    }
+
                 	// get the grade recs for this student
                     List<String> studentUids = new ArrayList<String>();
                     studentUids.add(studentId);
                     Map<String, List<AssignmentGradeRecord>> gradeRecMap = getGradeRecordMapForStudents(session, gradebook.getId(), studentUids);
                     List<AssignmentGradeRecord> gradeRecs = gradeRecMap.get(studentId);
-                    
-                    // get the counted assignments for this gradebook
-                    List<Assignment> countedAssigns = getCountedAssignments(session, gradebook.getId());
-                    
-                    applyDropScores(gradeRecs);                    
-
-                	double totalPointsPossible = getTotalPointsInternal(gradebook, cates, studentId, gradeRecs, countedAssigns, false);
-                	
-                	List totalEarned = getTotalPointsEarnedInternal(studentId, gradebook, cates, gradeRecs, countedAssigns);
-                	double totalPointsEarned = ((Double)totalEarned.get(0)).doubleValue();
-                	double literalTotalPointsEarned = ((Double)totalEarned.get(1)).doubleValue();
-                	courseGradeRecord.initNonpersistentFields(totalPointsPossible, totalPointsEarned, literalTotalPointsEarned);
+
+                    Gradebook persistentGradebook = (Gradebook)session.get(Gradebook.class, gradebook.getId());
+                    calculateAndStoreCourseGrade(courseGradeTable, persistentGradebook, courseGradeRecord, cates, countedAssigns,
+                    		gradeRecs, cachedGrade, structureVersion, scoreVersion);
                 }             
                 return courseGradeRecord;
             }
         });
     }
 
+    /**
+     * Calculate the student's course grade totals into the course grade record and
+     * store them in GB_COURSE_GRADE_CACHE_T with the given versions.
+     */
+    private void calculateAndStoreCourseGrade(CourseGradeTable courseGradeTable, Gradebook gradebook, CourseGradeRecord courseGradeRecord,
+    		List cates, List<Assignment> countedAssigns, List<AssignmentGradeRecord> gradeRecs, CachedCourseGrade cachedGrade,
+    		String structureVersion, String scoreVersion) throws HibernateException {
+    	String studentId = courseGradeRecord.getStudentId();
+    	applyDropScores(gradeRecs);
+
+    	double totalPointsPossible = getTotalPointsInternal(gradebook, cates, studentId, gradeRecs, countedAssigns, false);
+
+    	List totalEarned = getTotalPointsEarnedInternal(studentId, gradebook, cates, gradeRecs, countedAssigns);
+    	double totalPointsEarned = ((Double)totalEarned.get(0)).doubleValue();
+    	double literalTotalPointsEarned = ((Double)totalEarned.get(1)).doubleValue();
+    	courseGradeRecord.initNonpersistentFields(totalPointsPossible, totalPointsEarned, literalTotalPointsEarned);
+
+    	courseGradeTable.store(cachedGrade, gradebook.getId(), studentId, structureVersion, scoreVersion,
+    			totalPointsPossible, totalPointsEarned, literalTotalPointsEarned, courseGradeRecord.getNonNullAutoCalculatedGrade());
+    }
+
     public GradingEvents getGradingEvents(final GradableObject gradableObject, final Collection studentIds) {
 
         // Don't attempt to run the query if there are no enrollments
@@ -1363,24 +1534,9 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 
         HibernateCallback hc = new HibernateCallback() {
             public Object doInHibernate(Session session) throws HibernateException, SQLException {
-                List eventsList;
-                if (studentIds.size() <= MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
-                    Query q = session.createQuery("from GradingEvent as ge where ge.gradableObject=:go and ge.studentId in (:students)");
-                    q.setParameter("go", gradableObject, Hibernate.entity(GradableObject.class));
-                    q.setParameterList("students", studentIds);
-                    eventsList = q.list();
-                } else {
-                    Query q = session.createQuery("from GradingEvent as ge where ge.gradableObject=:go");
-                    q.setParameter("go", gradableObject, Hibernate.entity(GradableObject.class));
-                    eventsList = new ArrayList();
-                    for (Iterator iter = q.list().iterator(); iter.hasNext(); ) {
-                        GradingEvent event = (GradingEvent)iter.next();
-                        if (studentIds.contains(event.getStudentId())) {
-                            eventsList.add(event);
-                        }
-                    }
-                }
-                return eventsList;
+                Query q = session.createQuery("from GradingEvent as ge where ge.gradableObject=:go and ge.studentId in (:students)");
+                q.setParameter("go", gradableObject, Hibernate.entity(GradableObject.class));
+                return new InListQuery(q, "students", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).list(studentIds);
             }
         };
 
@@ -1417,24 +1573,11 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 
         HibernateCallback hc = new HibernateCallback() {
             public Object doInHibernate(Session session) throws HibernateException, SQLException {
-                List eventsList;
-                if (gradableObjects.size() <= MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
-                    Query q = session.createQuery("from GradingEvent as ge where ge.studentId=:studentId and ge.gradableObject in (:gradableObjects)");
-                    q.setParameterList("gradableObjects", gradableObjects, Hibernate.entity(GradableObject.class));
-                    q.setParameter("studentId", studentId);
-                    eventsList = q.list();
-                } else {
-                    Query q = session.createQuery("from GradingEvent as ge where ge.studentId=:studentId");
-                    q.setParameter("studentId", studentId);
-                    eventsList = new ArrayList();
-                    for (Iterator iter = q.list().iterator(); iter.hasNext(); ) {
-                        GradingEvent event = (GradingEvent)iter.next();
-                        if (gradableObjects.contains(event.getGradableObject())) {
-                            eventsList.add(event);
-                        }
-                    }
-                }
-                return eventsList;
+                Query q = session.createQuery("from GradingEvent as ge where ge.studentId=:studentId and ge.gradableObject in (:gradableObjects)");
+                q.setParameter("studentId", studentId);
+                return new InListQuery(q, "gradableObjects", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).
+                        setType(Hibernate.entity(GradableObject.class)).
+                        list(gradableObjects);
             }
         };
 
@@ -1460,7 +1603,13 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     /**
      */
     public List getAssignments(final Long gradebookId, final String sortBy, final boolean ascending) {
-        return (List)getHibernateTemplate().execute(new HibernateCallback() {
+        GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+        List assignments = (snapshot != null) ? snapshot.getAssignments(gradebookId) : null;
+        if (assignments != null) {
+            sortAssignments(assignments, sortBy, ascending);
+            return assignments;
+        }
+        assignments = (List)getHibernateTemplate().execute(new HibernateCallback() {
             public Object doInHibernate(Session session) throws HibernateException {
                 List assignments = getAssignments(gradebookId, session);
                 
@@ -1477,6 +1626,10 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 return assignments;
             }
         });
+        if (snapshot != null) {
+            snapshot.putAssignments(gradebookId, assignments);
+        }
+        return assignments;
     }
 
 
@@ -1489,53 +1642,135 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     /**
      */
     public List getAssignmentsWithStats(final Long gradebookId, final String sortBy, final boolean ascending, final boolean includeDroppedScores) {
-        Set studentUids = getAllStudentUids(getGradebookUid(gradebookId));
-        List<AssignmentGradeRecord> gradeRecords = getAllAssignmentGradeRecords(gradebookId, studentUids);
-        if(!includeDroppedScores) {
-            applyDropScores(gradeRecords);
-        }
-        List assignments = getAssignmentsWithStats(gradebookId, sortBy, ascending, gradeRecords);
+        Set studentUids = getEnrolledStudentUids(gradebookId);
+        List assignments = getAssignments(gradebookId);
+        calculateAssignmentStatistics(gradebookId, assignments, studentUids, includeDroppedScores);
+        sortAssignments(assignments, sortBy, ascending);
         return assignments;
     }
     
     /**
+     * Populate the statistics of the given assignments from a single grouped query
+     * returning the number of scores and the sum of points earned per assignment,
+     * rather than loading every grade record in the gradebook. Only assignments in
+     * categories which drop scores need the individual records, since which scores
+     * are dropped depends on each student's other scores in the category.
      * 
      * @param gradebookId
-     * @param sortBy
-     * @param ascending
-     * @param gradeRecords - use {@link #getAllAssignmentGradeRecords(Long, Collection)}
-     * @return a list of all assignments with stats populated. this method is
-     * helpful to eliminate repeated calls to {@link #getAllAssignmentGradeRecords(Long, Collection)}
-     * if you have already retrieved them
+     * @param assignments the assignments to calculate statistics for
+     * @param studentUids the students whose scores are included
+     * @param includeDroppedScores if false, scores dropped from the grade are left out
      */
-    
-    private List getAssignmentsWithStats(final Long gradebookId, final String sortBy, 
-            final boolean ascending, List<AssignmentGradeRecord> gradeRecords) {
+    protected void calculateAssignmentStatistics(final Long gradebookId, List assignments, final Collection studentUids, boolean includeDroppedScores) {
+        if (assignments == null || assignments.isEmpty()) {
+            return;
+        }
+
+        final Set<Long> dropCategoryIds = new HashSet<Long>();
+        if (!includeDroppedScores) {
+            for (Iterator iter = assignments.iterator(); iter.hasNext(); ) {
+                Assignment assignment = (Assignment)iter.next();
+                if (DropScoreEngine.isDropScoresCategory(assignment.getCategory())) {
+                    dropCategoryIds.add(assignment.getCategory().getId());
+                }
+            }
+        }
+
+        Map<Long, Object[]> aggregateMap = new HashMap<Long, Object[]>();
+        List<AssignmentGradeRecord> dropCategoryRecords = new ArrayList<AssignmentGradeRecord>();
+        if (studentUids != null && !studentUids.isEmpty()) {
+            aggregateMap = getAssignmentScoreAggregates(gradebookId, studentUids);
+
+            if (!dropCategoryIds.isEmpty()) {
+                HibernateCallback hc = new HibernateCallback() {
+                    public Object doInHibernate(Session session) throws HibernateException {
+                        Query q = session.createQuery("from AssignmentGradeRecord as agr left join fetch agr.gradableObject where agr.gradableObject.removed=false and " +
+                                "agr.gradableObject.gradebook.id=:gradebookId and agr.gradableObject.category.id in (:categoryIds) and " +
+                                "agr.studentId in (:studentUids)");
+                        q.setLong("gradebookId", gradebookId.longValue());
+                        q.setParameterList("categoryIds", dropCategoryIds);
+                        return new InListQuery(q, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).list(studentUids);
+                    }
+                };
+                dropCategoryRecords = (List<AssignmentGradeRecord>)getHibernateTemplate().execute(hc);
+                applyDropScores(dropCategoryRecords);
+            }
+        }
 
-        List assignments = getAssignments(gradebookId);
         for (Iterator iter = assignments.iterator(); iter.hasNext(); ) {
             Assignment assignment = (Assignment)iter.next();
-            assignment.calculateStatistics(gradeRecords);
+            if (assignment.getCategory() != null && dropCategoryIds.contains(assignment.getCategory().getId())) {
+                assignment.calculateStatistics(dropCategoryRecords);
+            } else {
+                Object[] aggregate = aggregateMap.get(assignment.getId());
+                if (aggregate == null) {
+                    setStatistics(assignment, 0, null);
+                } else {
+                    setStatistics(assignment, ((Number)aggregate[0]).longValue(), (Number)aggregate[1]);
+                }
+            }
         }
-        sortAssignments(assignments, sortBy, ascending);
-        return assignments;
+        if (log.isDebugEnabled()) log.debug("Calculated statistics for " + assignments.size() + " assignments from aggregates, " + dropCategoryRecords.size() + " grade records loaded for drop score categories");
+    }
+
+    /**
+     * @return map of assignment id --> {number of scores, sum of points earned} for the given students,
+     * split into several queries if there are too many students for one IN list
+     */
+    private Map<Long, Object[]> getAssignmentScoreAggregates(final Long gradebookId, Collection studentUids) {
+        final List studentUidList = new ArrayList(studentUids);
+        HibernateCallback hc = new HibernateCallback() {
+            public Object doInHibernate(Session session) throws HibernateException {
+                Map<Long, Object[]> aggregateMap = new HashMap<Long, Object[]>();
+                for (int i = 0; i < studentUidList.size(); i += MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
+                    List studentUidChunk = studentUidList.subList(i, Math.min(i + MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST, studentUidList.size()));
+                    Query q = session.createQuery("select agr.gradableObject.id, count(agr.pointsEarned), sum(agr.pointsEarned) " +
+                            "from AssignmentGradeRecord as agr where agr.gradableObject.removed=false and " +
+                            "agr.gradableObject.gradebook.id=:gradebookId and agr.studentId in (:studentUids) " +
+                            "group by agr.gradableObject.id");
+                    q.setLong("gradebookId", gradebookId.longValue());
+                    q.setParameterList("studentUids", studentUidChunk);
+                    for (Iterator iter = q.list().iterator(); iter.hasNext(); ) {
+                        Object[] row = (Object[])iter.next();
+                        Long assignmentId = (Long)row[0];
+                        long count = row[1] == null ? 0 : ((Number)row[1]).longValue();
+                        double sum = row[2] == null ? 0 : ((Number)row[2]).doubleValue();
+                        Object[] aggregate = aggregateMap.get(assignmentId);
+                        if (aggregate != null) {
+                            count += ((Long)aggregate[0]).longValue();
+                            sum += ((Double)aggregate[1]).doubleValue();
+                        }
+                        aggregateMap.put(assignmentId, new Object[] {new Long(count), new Double(sum)});
+                    }
+                }
+                return aggregateMap;
+            }
+        };
+        return (Map<Long, Object[]>)getHibernateTemplate().execute(hc);
+    }
+
+    /**
+     * Let Assignment.calculateStatistics work out the mean and average from a single
+     * record holding the average points earned, which comes to the same as all the scores.
+     */
+    private void setStatistics(Assignment assignment, long numScored, Number sumPointsEarned) {
+        List<AssignmentGradeRecord> averageRecords = new ArrayList<AssignmentGradeRecord>();
+        if (numScored > 0 && sumPointsEarned != null) {
+            BigDecimal averageTotal = new BigDecimal(sumPointsEarned.toString()).divide(new BigDecimal(numScored), GradebookService.MATH_CONTEXT);
+            AssignmentGradeRecord averageRecord = new AssignmentGradeRecord(assignment, null, new Double(averageTotal.doubleValue()));
+            averageRecord.setDroppedFromGrade(Boolean.FALSE);
+            averageRecords.add(averageRecord);
+        }
+        assignment.calculateStatistics(averageRecords);
     }
 
     public List getAssignmentsAndCourseGradeWithStats(final Long gradebookId, final String sortBy, final boolean ascending) {
-        Set studentUids = getAllStudentUids(getGradebookUid(gradebookId));
+        Set studentUids = getEnrolledStudentUids(gradebookId);
         List assignments = getAssignments(gradebookId);
         CourseGrade courseGrade = getCourseGrade(gradebookId);
-        Map gradeRecordMap = new HashMap();
-        List<AssignmentGradeRecord> gradeRecords = getAllAssignmentGradeRecords(gradebookId, studentUids);
-        applyDropScores(gradeRecords);
-        addToGradeRecordMap(gradeRecordMap, gradeRecords);
+        calculateAssignmentStatistics(gradebookId, assignments, studentUids, false);
         
-        for (Iterator iter = assignments.iterator(); iter.hasNext(); ) {
-        	Assignment assignment = (Assignment)iter.next();
-        	assignment.calculateStatistics(gradeRecords);
-        }
-        
-        List<CourseGradeRecord> courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, studentUids, assignments, gradeRecordMap);
+        List<CourseGradeRecord> courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
         courseGrade.calculateStatistics(courseGradeRecords, studentUids.size());
         
         sortAssignments(assignments, sortBy, ascending);
@@ -1626,12 +1861,16 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 
     	Assignment assignment = getAssignment(assignmentId);
     	Long gradebookId = assignment.getGradebook().getId();
-        Set studentUids = getAllStudentUids(getGradebookUid(gradebookId));
-        List<AssignmentGradeRecord> gradeRecords = getAssignmentGradeRecords(assignment, studentUids);
-        if(!includeDroppedScores) {
+        Set studentUids = getEnrolledStudentUids(gradebookId);
+        if(!includeDroppedScores && DropScoreEngine.isDropScoresCategory(assignment.getCategory())) {
+            List<AssignmentGradeRecord> gradeRecords = getAssignmentGradeRecords(assignment, studentUids);
             applyDropScores(gradeRecords);
+            assignment.calculateStatistics(gradeRecords);
+        } else {
+            List assignments = new ArrayList();
+            assignments.add(assignment);
+            calculateAssignmentStatistics(gradebookId, assignments, studentUids, true);
         }
-        assignment.calculateStatistics(gradeRecords);
         return assignment;
     }
 
@@ -1654,6 +1893,8 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
         		oldTitle = assign.getName();
         	}
             getHibernateTemplate().execute(hc);
+            invalidateCourseGrades(assignment.getGradebook().getId());
+            GradebookSnapshot.invalidateCurrent();
         	/** synchronize from external application*/
         	if(synchronizer != null && oldTitle != null  && !synchronizer.isProjectSite())
         	{
@@ -1710,6 +1951,8 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
                 }
             }
             getHibernateTemplate().execute(hc);
+            invalidateCourseGrades(gradebookId);
+            GradebookSnapshot.invalidateCurrent();
             
             /** synchronize from external application*/
             for(Iterator iter = assignments.iterator(); iter.hasNext();) {
@@ -2547,31 +2790,38 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     
     public List getAssignmentsCategoriesAndCourseGradeWithStats(Long gradebookId, 
             String assignmentSort, boolean assignAscending, String categorySort, boolean categoryAscending) {
-        List catAssignCGList = new ArrayList();
-        
-        Set<String> allStudentUids = getAllStudentUids(getGradebookUid(gradebookId));
-        List<AssignmentGradeRecord> gradeRecords = getAllAssignmentGradeRecords(gradebookId, allStudentUids);
-        
-        if (assignmentSort == null) {
-            assignmentSort = Assignment.DEFAULT_SORT;
-        }
-        
-        List<Assignment> allAssignments = getAssignmentsWithStats(gradebookId, assignmentSort, assignAscending, gradeRecords);
+        // read the enrollments, assignments and categories only once for all of the steps below
+        GradebookSnapshot snapshot = GradebookSnapshot.open();
+        try {
+            List catAssignCGList = new ArrayList();
 
-        // this method also returns the course grade
-        List categoriesPlusCG = getCategoriesWithStats(gradebookId, assignmentSort, 
-                assignAscending, categorySort, categoryAscending, gradeRecords, allAssignments);
-        
-        // we will add assignments, then categories, then course grade (which is included in cate list)
-        if (allAssignments != null) {
-            catAssignCGList.addAll(allAssignments);
-        }
-        
-        if (categoriesPlusCG != null) {
-            catAssignCGList.addAll(categoriesPlusCG);
+            Set<String> allStudentUids = getEnrolledStudentUids(gradebookId);
+
+            if (assignmentSort == null) {
+                assignmentSort = Assignment.DEFAULT_SORT;
+            }
+
+            List<Assignment> allAssignments = getAssignments(gradebookId);
+            calculateAssignmentStatistics(gradebookId, allAssignments, allStudentUids, true);
+            sortAssignments(allAssignments, assignmentSort, assignAscending);
+
+            // this method also returns the course grade
+            List categoriesPlusCG = getCategoriesWithStats(gradebookId, assignmentSort, 
+                    assignAscending, categorySort, categoryAscending, allStudentUids, allAssignments);
+
+            // we will add assignments, then categories, then course grade (which is included in cate list)
+            if (allAssignments != null) {
+                catAssignCGList.addAll(allAssignments);
+            }
+
+            if (categoriesPlusCG != null) {
+                catAssignCGList.addAll(categoriesPlusCG);
+            }
+
+            return catAssignCGList;
+        } finally {
+            snapshot.close();
         }
-        
-        return catAssignCGList;
     }
     
     /**
@@ -2581,14 +2831,14 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
      * @param assignAscending
      * @param categorySort
      * @param categoryAscending
-     * @param gradeRecs
+     * @param studentUids
      * @param assignmentsWithStats
      * @return a list of the Categories with stats populated plus the Course Grade.
-     * this method is useful if you have already retrieved all grade recs and
+     * this method is useful if you have already retrieved the students and
      * all assignments with stats to avoid repeated calls
      */
     private List getCategoriesWithStats(Long gradebookId, String assignmentSort, boolean assignAscending, 
-            String categorySort, boolean categoryAscending, List<AssignmentGradeRecord> gradeRecs,
+            String categorySort, boolean categoryAscending, Set<String> studentUids,
             List<Assignment> assignmentsWithStats) {
         List categories = getCategories(gradebookId);
 
@@ -2634,12 +2884,8 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
         else
             sortCategories(categories, Category.SORT_BY_NAME, categoryAscending);
 
-        Set studentUids = getAllStudentUids(getGradebookUid(gradebookId));
         CourseGrade courseGrade = getCourseGrade(gradebookId);
-        Map gradeRecordMap = new HashMap();
-        addToGradeRecordMap(gradeRecordMap, gradeRecs);
-        //      List<CourseGradeRecord> courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, studentUids, releasedAssignments, gradeRecordMap);
-        List<CourseGradeRecord> courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, studentUids, assignmentsWithStats, gradeRecordMap);
+        List<CourseGradeRecord> courseGradeRecords = getPointsEarnedCourseGradeRecords(courseGrade, studentUids, assignmentsWithStats, null);
         courseGrade.calculateStatistics(courseGradeRecords, studentUids.size());
 
         categories.add(courseGrade);
@@ -2654,21 +2900,24 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     public List getCategoriesWithStats(Long gradebookId, String assignmentSort,
 			boolean assignAscending, String categorySort,
 			boolean categoryAscending, boolean includeDroppedScores){
-    	Set allStudentUids = getAllStudentUids(getGradebookUid(gradebookId));
-    	List allAssignments;
-    	
-    	if (assignmentSort == null) {
-    	    assignmentSort = Assignment.DEFAULT_SORT;
-    	}
-    	
-        List gradeRecords = getAllAssignmentGradeRecords(gradebookId, allStudentUids);
-        if(!includeDroppedScores) {
-            applyDropScores(gradeRecords);
+        // read the enrollments, assignments and categories only once for all of the steps below
+        GradebookSnapshot snapshot = GradebookSnapshot.open();
+        try {
+            Set allStudentUids = getEnrolledStudentUids(gradebookId);
+
+            if (assignmentSort == null) {
+                assignmentSort = Assignment.DEFAULT_SORT;
+            }
+
+            List allAssignments = getAssignments(gradebookId);
+            calculateAssignmentStatistics(gradebookId, allAssignments, allStudentUids, includeDroppedScores);
+            sortAssignments(allAssignments, assignmentSort, assignAscending);
+
+            return getCategoriesWithStats(gradebookId, assignmentSort, assignAscending, 
+                    categorySort, categoryAscending, allStudentUids, allAssignments);
+        } finally {
+            snapshot.close();
         }
-    	allAssignments = getAssignmentsWithStats(gradebookId, assignmentSort, assignAscending, gradeRecords);
-    	
-    	return getCategoriesWithStats(gradebookId, assignmentSort, assignAscending, 
-    	        categorySort, categoryAscending, gradeRecords, allAssignments);
     }
 
     private void sortCategories(List categories, String sortBy, boolean ascending) 
@@ -2720,14 +2969,10 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 
     public List getAssignmentsWithNoCategoryWithStats(Long gradebookId, String assignmentSort, boolean assignAscending)
     {
-    	Set studentUids = getAllStudentUids(getGradebookUid(gradebookId));
+    	Set studentUids = getEnrolledStudentUids(gradebookId);
     	List assignments = getAssignmentsWithNoCategory(gradebookId, assignmentSort, assignAscending);
-    	List<AssignmentGradeRecord> gradeRecords = getAllAssignmentGradeRecords(gradebookId, studentUids);
-        applyDropScores(gradeRecords);
-    	for (Iterator iter = assignments.iterator(); iter.hasNext(); ) {
-    		Assignment assignment = (Assignment)iter.next();
-    		assignment.calculateStatistics(gradeRecords);
-    	}
+    	// drop scores only apply within a category, so the aggregates are all we need here
+    	calculateAssignmentStatistics(gradebookId, assignments, studentUids, true);
     	// AZ - fixing bug, sorts based on stats need to be resorted
         if (assignmentSort != null) {
             sortAssignments(assignments, assignmentSort, assignAscending);
@@ -2807,115 +3052,162 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     	}
     }
     
-    public boolean checkStuendsNotSubmitted(Gradebook gradebook)
+    public boolean checkStuendsNotSubmitted(final Gradebook gradebook)
     {
-    	Set studentUids = getAllStudentUids(getGradebookUid(gradebook.getId()));
-    	if(gradebook.getCategory_type() == GradebookService.CATEGORY_TYPE_NO_CATEGORY || gradebook.getCategory_type() == GradebookService.CATEGORY_TYPE_ONLY_CATEGORY)
-    	{
-    		List records = getAllAssignmentGradeRecords(gradebook.getId(), studentUids);
-    		List assigns = getAssignments(gradebook.getId(), Assignment.DEFAULT_SORT, true);
-    		List filteredAssigns = new ArrayList();
-    		for(Iterator iter = assigns.iterator(); iter.hasNext();)
-    		{
-    			Assignment assignment = (Assignment)iter.next();
-    			if(assignment.isCounted() && !assignment.getUngraded())
-    				filteredAssigns.add(assignment);
+    	final Set<String> studentUids = getEnrolledStudentUids(gradebook.getId());
+    	HibernateCallback hc = new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			GradeFinalizationEngine engine = new GradeFinalizationEngine(session, MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST, writeBatchSize);
+    			return Boolean.valueOf(engine.hasMissingScores(gradebook, studentUids));
     		}
-    		List filteredRecords = new ArrayList();
-    		for(Iterator iter = records.iterator(); iter.hasNext();)
-    		{
-    			AssignmentGradeRecord agr = (AssignmentGradeRecord)iter.next();
-    			if(!agr.isCourseGradeRecord() && agr.getAssignment().isCounted() && !agr.getAssignment().getUngraded())
-    			{
-    				if(agr.getPointsEarned() == null)
-    					return true;
-    				filteredRecords.add(agr);
-    			}
+    	};
+    	return ((Boolean)getHibernateTemplate().execute(hc)).booleanValue();
+    }
+    
+    /**
+     * Give every enrolled student a zero for each counted item they have no score for, with
+     * one UPDATE for the empty scores and batched inserts for the missing grade records and
+     * the grading events, rather than loading and saving the records one at a time.
+     */
+    public List<FinalizedAssignmentSummary> fillInZeroForNullGradeRecords(final Gradebook gradebook)
+    {
+    	final Set<String> studentUids = getEnrolledStudentUids(gradebook.getId());
+    	final String graderId = authn.getUserUid();
+    	HibernateCallback hc = new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			GradeFinalizationEngine engine = new GradeFinalizationEngine(session, MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST, writeBatchSize);
+    			return engine.finalizeScores(gradebook, studentUids, graderId);
     		}
+    	};
+    	List<FinalizedAssignmentSummary> summaries = (List<FinalizedAssignmentSummary>)getHibernateTemplate().execute(hc);
+    	invalidateCourseGrades(gradebook.getId());
 
-    		if(filteredRecords.size() < (filteredAssigns.size() * studentUids.size()))
-    			return true;
-    		
-    		return false;
-    	}
-    	else
-    	{
-      	List assigns = getAssignments(gradebook.getId(), Assignment.DEFAULT_SORT, true);
-      	List records = getAllAssignmentGradeRecords(gradebook.getId(), studentUids);
-      	Set filteredAssigns = new HashSet();
-      	for (Iterator iter = assigns.iterator(); iter.hasNext(); )
-      	{
-      		Assignment assign = (Assignment) iter.next();
-      		if(assign != null && assign.isCounted() && !assign.getUngraded())
-      		{
-      			if(assign.getCategory() != null && !assign.getCategory().isRemoved())
-      			{
-      				filteredAssigns.add(assign.getId());
-      			}
-      		}
-      	}
-      	
-    		List filteredRecords = new ArrayList();
-    		for(Iterator iter = records.iterator(); iter.hasNext();)
-    		{
-    			AssignmentGradeRecord agr = (AssignmentGradeRecord)iter.next();
-    			if(filteredAssigns.contains(agr.getAssignment().getId()) && !agr.isCourseGradeRecord())
-    			{
-    				if(agr.getPointsEarned() == null)
-    					return true;
-    				filteredRecords.add(agr);
+    	if (log.isInfoEnabled()) {
+    		for (FinalizedAssignmentSummary summary : summaries) {
+    			if (summary.isChanged()) {
+    				log.info("Finalized scores in gradebook " + gradebook.getUid() + " for " + summary);
     			}
     		}
-    		
-    		if(filteredRecords.size() < filteredAssigns.size() * studentUids.size())
-    			return true;
-    		
-    		return false;
     	}
-    }
-    
-    public void fillInZeroForNullGradeRecords(Gradebook gradebook)
-    {
-    	finalizeNullGradeRecords(gradebook);
+    	return summaries;
     }
 
-    public void convertGradePointsForUpdatedTotalPoints(Gradebook gradebook, Assignment assignment, Double newTotal, List studentUids)
+    /**
+     * Rescale the stored points of an assignment's scores with set-based updates, so that each
+     * student keeps the same percentage or letter grade under the new points possible. Percentage
+     * scores are scaled in one UPDATE; letter scores take one UPDATE per letter, since every
+     * student with the same letter gets the same points. The UPDATEs increment the records'
+     * versions, and one grading event per rescaled score is written in JDBC batches.
+     */
+    public void convertGradePointsForUpdatedTotalPoints(Gradebook gradebook, final Assignment assignment, final Double newTotal, final List studentUids)
     {
   		if(newTotal == null || assignment == null || gradebook == null)
   		{
   			throw new IllegalArgumentException("null values found in convertGradePointsForUpdatedTotalPoints.");
   		}
-    	if(gradebook.getGrade_type() == GradebookService.GRADE_TYPE_PERCENTAGE && assignment.getPointsPossible() != null)
-    	{
-    		List records = getAssignmentGradeRecordsConverted(assignment, studentUids);
-    		for(Iterator iter = records.iterator(); iter.hasNext(); )
-    		{
-    			AssignmentGradeRecord agr = (AssignmentGradeRecord) iter.next();
-    			if(agr != null && agr.getPercentEarned() != null)
-    			{
-    				agr.setPointsEarned(calculateEquivalentPointValueForPercent(newTotal, agr.getPercentEarned()));
-    			}
-    		}
-    		updateAssignmentGradeRecords(assignment, records);
+  		final Double oldTotal = assignment.getPointsPossible();
+  		final int gradeType = gradebook.getGrade_type();
+  		if (oldTotal == null || oldTotal.doubleValue() <= 0 || studentUids == null || studentUids.isEmpty() ||
+  				(gradeType != GradebookService.GRADE_TYPE_PERCENTAGE && gradeType != GradebookService.GRADE_TYPE_LETTER))
+  		{
+  			return;
+  		}
+  		final LetterGradePercentMapping lgpm = (gradeType == GradebookService.GRADE_TYPE_LETTER) ? getLetterGradePercentMapping(gradebook) : null;
+
+  		HibernateCallback hc = new HibernateCallback() {
+  			public Object doInHibernate(Session session) throws HibernateException {
+  				// The updates bypass the session, so write out whatever it holds first
+  				session.flush();
+
+  				Query q = session.createQuery("select agr.id, agr.studentId, agr.pointsEarned from AssignmentGradeRecord as agr " +
+  						"where agr.gradableObject.id=:assignmentId and agr.pointsEarned is not null and agr.studentId in (:studentUids)");
+  				q.setLong("assignmentId", assignment.getId().longValue());
+  				List scores = new InListQuery(q, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).list(studentUids);
+
+  				String graderId = authn.getUserUid();
+  				Date now = new Date();
+  				GradeWriteBatch batch = new GradeWriteBatch(session, writeBatchSize);
+  				List<String> rescaledStudents = new ArrayList<String>();
+  				List<Long> rescaledRecordIds = new ArrayList<Long>();
+  				Map<Double, List<String>> letterStudentsMap = new HashMap<Double, List<String>>();
+  				for (Iterator iter = scores.iterator(); iter.hasNext(); ) {
+  					Object[] row = (Object[])iter.next();
+  					String studentId = (String)row[1];
+  					Double percent = calculateEquivalentPercent(oldTotal, (Double)row[2]);
+  					String gradeEntry;
+  					if (gradeType == GradebookService.GRADE_TYPE_PERCENTAGE) {
+  						gradeEntry = percent.toString();
+  					} else {
+  						gradeEntry = lgpm.getGrade(percent);
+  						Double letterPercent = (gradeEntry != null) ? lgpm.getValue(gradeEntry) : null;
+  						if (letterPercent == null) {
+  							log.error("No equivalent % mapping for letter grade: " + gradeEntry + " in method convertGradePointsForTotalUpdatedPoints");
+  							continue;
+  						}
+  						Double newPoints = calculateEquivalentPointValueForPercent(newTotal, letterPercent);
+  						List<String> letterStudents = letterStudentsMap.get(newPoints);
+  						if (letterStudents == null) {
+  							letterStudents = new ArrayList<String>();
+  							letterStudentsMap.put(newPoints, letterStudents);
+  						}
+  						letterStudents.add(studentId);
+  					}
+  					rescaledStudents.add(studentId);
+  					rescaledRecordIds.add((Long)row[0]);
+  					batch.logGradingEvent(new GradingEvent(assignment, graderId, studentId, gradeEntry));
+  				}
+
+  				int numUpdated = 0;
+  				if (gradeType == GradebookService.GRADE_TYPE_PERCENTAGE) {
+  					Query update = session.createQuery("update versioned AssignmentGradeRecord " +
+  							"set pointsEarned = pointsEarned * :newTotal / :oldTotal, graderId = :graderId, dateRecorded = :now " +
+  							"where gradableObject.id = :assignmentId and pointsEarned is not null and studentId in (:studentUids)");
+  					update.setDouble("newTotal", newTotal.doubleValue());
+  					update.setDouble("oldTotal", oldTotal.doubleValue());
+  					update.setString("graderId", graderId);
+  					update.setTimestamp("now", now);
+  					update.setLong("assignmentId", assignment.getId().longValue());
+  					numUpdated = new InListQuery(update, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).executeUpdate(rescaledStudents);
+  				} else {
+  					Query update = session.createQuery("update versioned AssignmentGradeRecord " +
+  							"set pointsEarned = :newPoints, graderId = :graderId, dateRecorded = :now " +
+  							"where gradableObject.id = :assignmentId and studentId in (:studentUids)");
+  					update.setString("graderId", graderId);
+  					update.setTimestamp("now", now);
+  					update.setLong("assignmentId", assignment.getId().longValue());
+  					for (Iterator iter = letterStudentsMap.entrySet().iterator(); iter.hasNext(); ) {
+  						Map.Entry<Double, List<String>> entry = (Map.Entry<Double, List<String>>)iter.next();
+  						update.setDouble("newPoints", entry.getKey().doubleValue());
+  						numUpdated += new InListQuery(update, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).executeUpdate(entry.getValue());
+  					}
+  				}
+  				batch.finish();
+  				evictGradeRecords(session, rescaledRecordIds);
+
+  				if (logData.isDebugEnabled()) logData.debug("Rescaled " + numUpdated + " scores of assignment=" + assignment.getName() + " from " + oldTotal + " to " + newTotal + " points");
+  				return null;
+  			}
+  		};
+  		getHibernateTemplate().execute(hc);
+  		invalidateCourseGrades(gradebook.getId());
+    }
+
+    /**
+     * Detach the grade records a bulk update changed from the session, if it holds them,
+     * so that they are read again instead of being served stale from the session.
+     * Records the session does not hold are not loaded.
+     */
+    static void evictGradeRecords(Session session, Collection<Long> gradeRecordIds) {
+    	if (gradeRecordIds.isEmpty()) {
+    		return;
     	}
-    	else if(gradebook.getGrade_type() == GradebookService.GRADE_TYPE_LETTER && assignment.getPointsPossible() != null)
-    	{
-    		List records = getAssignmentGradeRecordsConverted(assignment, studentUids);
-    		LetterGradePercentMapping lgpm = getLetterGradePercentMapping(gradebook);
-    		for(Iterator iter = records.iterator(); iter.hasNext(); )
-    		{
-    			AssignmentGradeRecord agr = (AssignmentGradeRecord) iter.next();
-    			if(agr != null && agr.getLetterEarned() != null)
-	    		{	
-    				Double doublePercentage = lgpm.getValue(agr.getLetterEarned());
-    				if (doublePercentage != null) {
-	    				agr.setPointsEarned(calculateEquivalentPointValueForPercent(newTotal, doublePercentage));
-    				} else {
-    					log.error("No equivalent % mapping for letter grade: " + agr.getLetterEarned() + " in method convertGradePointsForTotalUpdatedPoints");
-    				}
-    			}
+    	SessionImplementor sessionImpl = (SessionImplementor)session;
+    	EntityPersister persister = sessionImpl.getFactory().getEntityPersister(AssignmentGradeRecord.class.getName());
+    	for (Long gradeRecordId : gradeRecordIds) {
+    		Object gradeRecord = sessionImpl.getPersistenceContext().getEntity(new EntityKey(gradeRecordId, persister, EntityMode.POJO));
+    		if (gradeRecord != null) {
+    			session.evict(gradeRecord);
     		}
-    		updateAssignmentGradeRecords(assignment, records);
     	}
     }
     
@@ -2969,7 +3261,10 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     			return id;
     		}
     	};
-    	return (Long)getHibernateTemplate().execute(hc);
+    	Long id = (Long)getHibernateTemplate().execute(hc);
+    	incrementGradebookVersion(gradebookId);
+    	GradebookSnapshot.invalidateCurrent();
+    	return id;
     }
 
     /** synchronize from external application - override createAssignmentForCategory method in BaseHibernateManager.*/
@@ -3032,7 +3327,10 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     		}
     	};
 
-    	return (Long)getHibernateTemplate().execute(hc);
+    	Long id = (Long)getHibernateTemplate().execute(hc);
+    	incrementGradebookVersion(gradebookId);
+    	GradebookSnapshot.invalidateCurrent();
+    	return id;
     }
 
     /** synchronize from external application */
@@ -3040,6 +3338,231 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     {
     	this.synchronizer = synchronizer;
     }
+
+    public void setCourseGradeEngine(IncrementalCourseGradeEngine courseGradeEngine)
+    {
+    	this.courseGradeEngine = courseGradeEngine;
+    }
+
+    /**
+     * Set the number of grade records written per flush when saving many scores
+     * at once. It should match hibernate.jdbc.batch_size so that each flush goes
+     * out as whole JDBC batches.
+     */
+    public void setWriteBatchSize(int writeBatchSize)
+    {
+    	this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Changing the gradebook settings (category type, grade mapping...) invalidates
+     * every calculated course grade total in it.
+     */
+    public void updateGradebook(final Gradebook gradebook) throws StaleObjectModificationException {
+    	super.updateGradebook(gradebook);
+    	invalidateCourseGrades(gradebook.getId());
+    	GradebookSnapshot.invalidateCurrent();
+    }
+
+    public void updateCategory(final Category category) throws ConflictingCategoryNameException, StaleObjectModificationException {
+    	super.updateCategory(category);
+    	invalidateCourseGrades(category.getGradebook().getId());
+    	GradebookSnapshot.invalidateCurrent();
+    }
+
+    public void removeCategory(final Long categoryId) throws StaleObjectModificationException {
+    	Category category = getCategory(categoryId);
+    	super.removeCategory(categoryId);
+    	if (category != null) {
+    		invalidateCourseGrades(category.getGradebook().getId());
+    		GradebookSnapshot.invalidateCurrent();
+    	}
+    }
+
+    /**
+     * Forget the gradebook's calculated course grade totals after a change that
+     * affects every student in it, and queue the gradebook so that a
+     * CourseGradeRecalculator recalculates them before they are next asked for.
+     * The change is counted in the gradebook's version as well.
+     */
+    private void invalidateCourseGrades(final Long gradebookId) {
+    	courseGradeEngine.invalidateGradebook(gradebookId);
+    	getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			session.save(new RecalculationRequest(gradebookId, new Date()));
+    			GradebookVersion.increment(session, gradebookId);
+    			return null;
+    		}
+    	});
+    }
+
+    /**
+     * Count a change to the gradebook which leaves its course grades alone.
+     */
+    private void incrementGradebookVersion(final Long gradebookId) {
+    	getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			GradebookVersion.increment(session, gradebookId);
+    			return null;
+    		}
+    	});
+    }
+
+    public long getGradebookVersion(final Long gradebookId) {
+    	Long version = (Long)getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			return session.createQuery("select gv.version from GradebookVersion as gv where gv.gradebookId=:gbid").
+    				setLong("gbid", gradebookId.longValue()).
+    				uniqueResult();
+    		}
+    	});
+    	return (version != null) ? version.longValue() : 0;
+    }
+
+    public List<Long> getGradebooksAwaitingRecalculation(final Date lastRequestedBefore, final Date firstRequestedBefore) {
+    	return (List<Long>)getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			return session.createQuery(
+    				"select r.gradebookId from RecalculationRequest as r group by r.gradebookId " +
+    				"having max(r.dateRequested) < :lastRequestedBefore or min(r.dateRequested) < :firstRequestedBefore").
+    				setTimestamp("lastRequestedBefore", lastRequestedBefore).
+    				setTimestamp("firstRequestedBefore", firstRequestedBefore).
+    				list();
+    		}
+    	});
+    }
+
+    public boolean isCourseGradeCurrent(final Long gradebookId) {
+    	Number numRequests = (Number)getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			return session.createQuery("select count(r.id) from RecalculationRequest as r where r.gradebookId=:gbid").
+    				setLong("gbid", gradebookId.longValue()).
+    				uniqueResult();
+    		}
+    	});
+    	return numRequests == null || numRequests.intValue() == 0;
+    }
+
+    /**
+     * The gradebook's requests are claimed by deleting them in this transaction,
+     * so a node that claims the same requests concurrently waits on the rows and
+     * then finds nothing left to do, and a failed recalculation rolls the claim
+     * back for the next round. Requests made after the claim stay queued.
+     */
+    public boolean recalculateCourseGrades(final Long gradebookId) {
+    	HibernateCallback hc = new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			Date lastRequested = (Date)session.createQuery(
+    				"select max(r.dateRequested) from RecalculationRequest as r where r.gradebookId=:gbid").
+    				setLong("gbid", gradebookId.longValue()).
+    				uniqueResult();
+    			if (lastRequested == null) {
+    				return Boolean.FALSE;
+    			}
+    			int numClaimed = session.createQuery(
+    				"delete RecalculationRequest where gradebookId=:gbid and dateRequested <= :lastRequested").
+    				setLong("gbid", gradebookId.longValue()).
+    				setTimestamp("lastRequested", lastRequested).
+    				executeUpdate();
+    			if (numClaimed == 0) {
+    				return Boolean.FALSE;
+    			}
+    			Gradebook gradebook = (Gradebook)session.get(Gradebook.class, gradebookId);
+    			if (gradebook == null) {
+    				return Boolean.TRUE;
+    			}
+
+    			long start = System.currentTimeMillis();
+    			CourseGrade courseGrade = getCourseGrade(gradebookId);
+    			Set<String> studentUids = getEnrolledStudentUids(gradebookId);
+    			List cates = getCategories(gradebookId);
+    			List<Assignment> countedAssigns = getCountedAssignments(session, gradebookId);
+    			String structureVersion = CourseGradeTable.getStructureVersion(
+    					IncrementalCourseGradeEngine.getStructureKey(gradebook, cates, countedAssigns));
+    			Map<String, List<AssignmentGradeRecord>> gradeRecMap = getGradeRecordMapForStudents(session, gradebookId, studentUids);
+
+    			// The same calculation as a student viewing their own course grade
+    			CourseGradeTable courseGradeTable = new CourseGradeTable(session);
+    			Map<String, CachedCourseGrade> cachedGrades = courseGradeTable.findAll(gradebookId);
+    			int numStored = 0;
+    			for (String studentId : studentUids) {
+    				List<AssignmentGradeRecord> gradeRecs = gradeRecMap.get(studentId);
+    				String scoreVersion = IncrementalCourseGradeEngine.getRecordStamp(gradeRecs);
+    				CachedCourseGrade cachedGrade = cachedGrades.get(studentId);
+    				if (cachedGrade != null && cachedGrade.isCurrent(structureVersion, scoreVersion)) {
+    					continue;
+    				}
+    				calculateAndStoreCourseGrade(courseGradeTable, gradebook, new CourseGradeRecord(courseGrade, studentId),
+    						cates, countedAssigns, gradeRecs, cachedGrade, structureVersion, scoreVersion);
+    				numStored++;
+    			}
+
+    			// Rebuild the roster totals held in memory on this node as well
+    			getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
+
+    			if (log.isInfoEnabled()) log.info("Recalculated the course grades of " + numStored + " of " + studentUids.size() +
+    					" students in gradebook " + gradebook.getUid() + " for " + numClaimed + " queued changes in " +
+    					(System.currentTimeMillis() - start) + " millis");
+    			return Boolean.TRUE;
+    		}
+    	};
+    	return ((Boolean)getHibernateTemplate().execute(hc)).booleanValue();
+    }
+
+    public List<GradeChange> getGradeChanges(final Long gradebookId, final Long afterId, final int maxResults) {
+    	return (List<GradeChange>)getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			Query q = session.createQuery("from GradeChange as gc where gc.gradebookId=:gbid and gc.id > :afterId order by gc.id");
+    			q.setLong("gbid", gradebookId.longValue());
+    			q.setLong("afterId", (afterId != null) ? afterId.longValue() : 0);
+    			q.setMaxResults(maxResults);
+    			return q.list();
+    		}
+    	});
+    }
+
+    public int removeGradeChanges(final Date recordedBefore) {
+    	Integer numRemoved = (Integer)getHibernateTemplate().execute(new HibernateCallback() {
+    		public Object doInHibernate(Session session) throws HibernateException {
+    			return new Integer(session.createQuery("delete GradeChange where dateRecorded < :recordedBefore").
+    				setTimestamp("recordedBefore", recordedBefore).
+    				executeUpdate());
+    		}
+    	});
+    	if (log.isInfoEnabled() && numRemoved.intValue() > 0) log.info("Removed " + numRemoved + " grade changes recorded before " + recordedBefore);
+    	return numRemoved.intValue();
+    }
+
+    /**
+     * Mark the students whose scores were just saved so that their course grade
+     * totals, in memory and in GB_COURSE_GRADE_CACHE_T, are recalculated the next
+     * time they are needed.
+     */
+    private void invalidateCourseGradeTotals(Collection gradeRecords) {
+    	Map<Long, Set<String>> gradebookStudentsMap = new HashMap<Long, Set<String>>();
+    	for (Iterator iter = gradeRecords.iterator(); iter.hasNext(); ) {
+    		AssignmentGradeRecord gradeRecord = (AssignmentGradeRecord)iter.next();
+    		if (gradeRecord == null || gradeRecord.getAssignment() == null) {
+    			continue;
+    		}
+    		Long gradebookId = gradeRecord.getAssignment().getGradebook().getId();
+    		Set<String> studentIds = gradebookStudentsMap.get(gradebookId);
+    		if (studentIds == null) {
+    			studentIds = new HashSet<String>();
+    			gradebookStudentsMap.put(gradebookId, studentIds);
+    		}
+    		studentIds.add(gradeRecord.getStudentId());
+    	}
+    	for (final Map.Entry<Long, Set<String>> entry : gradebookStudentsMap.entrySet()) {
+    		courseGradeEngine.invalidateStudents(entry.getKey(), entry.getValue());
+    		getHibernateTemplate().execute(new HibernateCallback() {
+    			public Object doInHibernate(Session session) throws HibernateException {
+    				new CourseGradeTable(session).markStale(entry.getKey(), entry.getValue(), MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST);
+    				return null;
+    			}
+    		});
+    	}
+    }
     
     public void createAssignments(Long gradebookId, List assignList) throws MultipleAssignmentSavingException
     {
@@ -3091,7 +3614,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
     		return true;
     }
 	
-	private void logAssignmentGradingEvent(AssignmentGradeRecord gradeRecord, String graderId, Assignment assignment, Session session) {
+	private void logAssignmentGradingEvent(AssignmentGradeRecord gradeRecord, String graderId, Assignment assignment, GradeWriteBatch batch) {
 		if (gradeRecord == null || assignment == null) {
 			throw new IllegalArgumentException("null gradeRecord or assignment passed to logAssignmentGradingEvent");
 		}
@@ -3110,7 +3633,7 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 				gradeEntry = gradeRecord.getPointsEarned().toString();
 		}
 		
-		session.save(new GradingEvent(assignment, graderId, gradeRecord.getStudentId(), gradeEntry));
+		batch.logGradingEvent(new GradingEvent(assignment, graderId, gradeRecord.getStudentId(), gradeEntry));
 	}
 	
 
@@ -3126,97 +3649,156 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
             return;
         }
         long start = System.currentTimeMillis();
-        
-        List<String> studentIds = new ArrayList<String>();
-        List<Category> categories = new ArrayList<Category>();
-        Map<String, List<AssignmentGradeRecord>> gradeRecordMap = new HashMap<String, List<AssignmentGradeRecord>>();
+
+        Set<AssignmentGradeRecord> droppedRecords = getDroppedGradeRecords(gradeRecords);
         for(AssignmentGradeRecord gradeRecord : gradeRecords) {
-            
-            if(gradeRecord == null 
-                    || gradeRecord.getPointsEarned() == null) { // don't consider grades that have null pointsEarned (this occurs when a previously entered score for an assignment is removed; record stays in database) 
-                continue;
+            // don't consider grades that have null pointsEarned (this occurs when a previously entered score for an assignment is removed; record stays in database) 
+            if(gradeRecord != null && gradeRecord.getPointsEarned() != null) {
+                gradeRecord.setDroppedFromGrade(droppedRecords.contains(gradeRecord));
             }
-            
-            // reset
-            gradeRecord.setDroppedFromGrade(false);
-            
-            Assignment assignment = gradeRecord.getAssignment();
-            if(assignment.getUngraded()  // GradebookService.GRADE_TYPE_LETTER
-                    || assignment.isNotCounted() // don't consider grades that are not counted toward course grade
-                    || assignment.getItemType().equals(Assignment.item_type_adjustment)
-                    || assignment.isRemoved()) {
-                continue;
-            }
-            // get all the students represented
-            String studentId = gradeRecord.getStudentId();
-            if(!studentIds.contains(studentId)) {
-                studentIds.add(studentId);
-            }
-            // get all the categories represented
-            Category cat = gradeRecord.getAssignment().getCategory();
-            if(cat != null) {
-                if(!categories.contains(cat)) {
-                    categories.add(cat);
-                }
-                List<AssignmentGradeRecord> gradeRecordsByCatAndStudent = gradeRecordMap.get(studentId + cat.getId());
-                if(gradeRecordsByCatAndStudent == null) {
-                    gradeRecordsByCatAndStudent = new ArrayList<AssignmentGradeRecord>();
-                    gradeRecordsByCatAndStudent.add(gradeRecord);
-                    gradeRecordMap.put(studentId + cat.getId(), gradeRecordsByCatAndStudent);
-                } else {
-                    gradeRecordsByCatAndStudent.add(gradeRecord);
-                }
-            }            
         }
-        
-        if(categories == null || categories.size() < 1) {
+
+        if(log.isDebugEnabled()) log.debug("GradebookManager.applyDropScores took " + (System.currentTimeMillis() - start) + " millis to execute");
+    }
+
+    public Set<AssignmentGradeRecord> getDroppedGradeRecords(Collection<AssignmentGradeRecord> gradeRecords) {
+        return new DropScoreEngine().getDroppedGradeRecords(gradeRecords);
+    }
+
+    public void applyDropScores(GradeMatrix gradeMatrix) {
+        if(gradeMatrix == null) {
             return;
         }
-        for(Category cat : categories) {
-            Integer dropHighest = cat.getDropHighest();
-            Integer dropLowest = cat.getDrop_lowest();
-            Integer keepHighest = cat.getKeepHighest();
-            Long catId = cat.getId();
-            
-            if((dropHighest != null && dropHighest > 0) || (dropLowest != null && dropLowest > 0) || (keepHighest != null && keepHighest > 0)) {
-                
-                for(String studentId : studentIds) {
-                    // get the student's gradeRecords for this category
-                    List<AssignmentGradeRecord> gradesByCategory = new ArrayList<AssignmentGradeRecord>();
-                    List<AssignmentGradeRecord> gradeRecordsByCatAndStudent = gradeRecordMap.get(studentId + cat.getId());
-                    if(gradeRecordsByCatAndStudent != null) {
-                        gradesByCategory.addAll(gradeRecordsByCatAndStudent);
-                    
-                        int numGrades = gradesByCategory.size();
-                        
-                        if(dropHighest > 0 && numGrades > dropHighest + dropLowest) {
-                            for(int i=0; i<dropHighest; i++) {
-                                AssignmentGradeRecord highest = Collections.max(gradesByCategory, AssignmentGradeRecord.numericComparator);
-                                highest.setDroppedFromGrade(true);
-                                gradesByCategory.remove(highest);
-                                if(log.isDebugEnabled()) log.debug("dropHighest applied to " + highest);
-                            }
-                        }
-                        
-                        if(keepHighest > 0 && numGrades > (gradesByCategory.size() - keepHighest)) {
-                            dropLowest = gradesByCategory.size() - keepHighest;
+        long start = System.currentTimeMillis();
+        new DropScoreEngine().applyDropScores(gradeMatrix);
+        if(log.isDebugEnabled()) log.debug("GradebookManager.applyDropScores for " + gradeMatrix.getStudentCount() + " students took " + (System.currentTimeMillis() - start) + " millis to execute");
+    }
+
+    public GradeMatrix getGradeMatrix(final Long gradebookId, final Collection studentUids) {
+        return getGradeMatrix(gradebookId, studentUids, getAssignments(gradebookId), false);
+    }
+
+    public GradeMatrix getGradeMatrix(final Long gradebookId, final Collection studentUids, final List assignments) {
+        return getGradeMatrix(gradebookId, studentUids, assignments, true);
+    }
+
+    private GradeMatrix getGradeMatrix(final Long gradebookId, final Collection studentUids, final List assignments, final boolean restrictToAssignments) {
+        Gradebook gradebook = getGradebook(gradebookId);
+        final GradeMatrix gradeMatrix = new GradeMatrix(gradebook, studentUids, assignments);
+        final List assignmentIds = new ArrayList();
+        for (Iterator iter = assignments.iterator(); iter.hasNext(); ) {
+            assignmentIds.add(((Assignment)iter.next()).getId());
+        }
+        // a short list of columns is cheaper to restrict in the query than to filter afterwards
+        final boolean isAssignmentQuery = restrictToAssignments && assignmentIds.size() <= MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST;
+        if(gradebook.getGrade_type() == GradebookService.GRADE_TYPE_LETTER) {
+            gradeMatrix.setLetterGradePercentMapping(getLetterGradePercentMapping(gradebook));
+        }
+
+        if(studentUids.size() > 0 && assignments.size() > 0) {
+            final List studentUidList = new ArrayList(studentUids);
+            HibernateCallback hc = new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException {
+                    for (int i = 0; i < studentUidList.size(); i += MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
+                        List studentUidChunk = studentUidList.subList(i, Math.min(i + MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST, studentUidList.size()));
+                        Query q = session.createQuery("select agr.studentId, agr.gradableObject.id, agr.pointsEarned " +
+                                "from AssignmentGradeRecord as agr where agr.gradableObject.removed=false and " +
+                                "agr.gradableObject.gradebook.id=:gradebookId and agr.studentId in (:studentUids)" +
+                                (isAssignmentQuery ? " and agr.gradableObject.id in (:assignmentIds)" : ""));
+                        q.setLong("gradebookId", gradebookId.longValue());
+                        q.setParameterList("studentUids", studentUidChunk);
+                        if (isAssignmentQuery) {
+                            q.setParameterList("assignmentIds", assignmentIds);
                         }
-                        
-                        if(dropLowest > 0 &&  numGrades > dropLowest + dropHighest) {
-                            for(int i=0; i<dropLowest; i++) {
-                                AssignmentGradeRecord lowest = Collections.min(gradesByCategory, AssignmentGradeRecord.numericComparator);
-                                lowest.setDroppedFromGrade(true);
-                                gradesByCategory.remove(lowest);
-                                if(log.isDebugEnabled()) log.debug("dropLowest applied to " + lowest);
+                        for (Iterator iter = q.list().iterator(); iter.hasNext(); ) {
+                            Object[] row = (Object[])iter.next();
+                            int studentIndex = gradeMatrix.getStudentIndex((String)row[0]);
+                            int assignmentIndex = gradeMatrix.getAssignmentIndex((Long)row[1]);
+                            if (studentIndex >= 0 && assignmentIndex >= 0) {
+                                gradeMatrix.setPointsEarned(studentIndex, assignmentIndex, (Double)row[2]);
                             }
                         }
                     }
+                    return null;
+                }
+            };
+            getHibernateTemplate().execute(hc);
+        }
+
+        applyDropScores(gradeMatrix);
+        return gradeMatrix;
+    }
+
+    public void addToCategoryResultMap(Map categoryResultMap, List categories, GradeMatrix gradeMatrix, Collection studentUids) {
+        if (gradeMatrix == null || categories == null) {
+            return;
+        }
+
+        // one reusable grade record per category assignment, refilled for each student
+        List<Category> categoryList = new ArrayList<Category>();
+        List<int[]> categoryColumns = new ArrayList<int[]>();
+        List<AssignmentGradeRecord[]> categoryRecords = new ArrayList<AssignmentGradeRecord[]>();
+        for (Iterator iter = categories.iterator(); iter.hasNext(); ) {
+            Object obj = iter.next();
+            if (!(obj instanceof Category) || ((Category)obj).getAssignmentList() == null) {
+                continue;
+            }
+            Category category = (Category)obj;
+            List categoryAssignments = category.getAssignmentList();
+            int[] columns = new int[categoryAssignments.size()];
+            AssignmentGradeRecord[] records = new AssignmentGradeRecord[categoryAssignments.size()];
+            for (int i = 0; i < categoryAssignments.size(); i++) {
+                Assignment assignment = (Assignment)categoryAssignments.get(i);
+                columns[i] = gradeMatrix.getAssignmentIndex(assignment.getId());
+                records[i] = new AssignmentGradeRecord(assignment, null, null);
+            }
+            categoryList.add(category);
+            categoryColumns.add(columns);
+            categoryRecords.add(records);
+        }
+
+        for (Iterator stuIter = studentUids.iterator(); stuIter.hasNext(); ) {
+            String studentUid = (String)stuIter.next();
+            int studentIndex = gradeMatrix.getStudentIndex(studentUid);
+            if (studentIndex < 0 || !gradeMatrix.hasGradeRecords(studentIndex)) {
+                continue;
+            }
+            for (int c = 0; c < categoryList.size(); c++) {
+                Category category = categoryList.get(c);
+                int[] columns = categoryColumns.get(c);
+                AssignmentGradeRecord[] records = categoryRecords.get(c);
+
+                List gradeRecords = new ArrayList(columns.length);
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] < 0 || !gradeMatrix.isRecorded(studentIndex, columns[i])) {
+                        gradeRecords.add(null);
+                        continue;
+                    }
+                    AssignmentGradeRecord gradeRecord = records[i];
+                    gradeRecord.setStudentId(studentUid);
+                    gradeRecord.setPointsEarned(gradeMatrix.getPointsEarnedOrNull(studentIndex, columns[i]));
+                    gradeRecord.setDroppedFromGrade(Boolean.valueOf(gradeMatrix.isDropped(studentIndex, columns[i])));
+                    gradeRecords.add(gradeRecord);
                 }
-                if(log.isDebugEnabled()) log.debug("processed " + studentIds.size() + "students in category " + cat.getId());
+                category.calculateStatisticsPerStudent(gradeRecords, studentUid);
+
+                Map studentCategoryMap = (Map) categoryResultMap.get(studentUid);
+                if (studentCategoryMap == null) {
+                    studentCategoryMap = new HashMap();
+                    categoryResultMap.put(studentUid, studentCategoryMap);
+                }
+                Map stats = new HashMap();
+                stats.put("studentAverageScore", category.getAverageScore());
+                stats.put("studentAverageTotalPoints", category.getAverageTotalPoints());
+                stats.put("studentMean", category.getMean());
+                stats.put("studentTotalPointsEarned", category.getTotalPointsEarned());
+                stats.put("studentTotalPointsPossible", category.getTotalPointsPossible());
+
+                stats.put("category", category);
+
+                studentCategoryMap.put(category.getId(), stats);
             }
         }
-        
-        if(log.isDebugEnabled()) log.debug("GradebookManager.applyDropScores took " + (System.currentTimeMillis() - start) + " millis to execute");
     }
 
 
@@ -3232,41 +3814,21 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 	protected Map<String,List<AssignmentGradeRecord>> getGradeRecordMapForStudents(Session session, Long gradebookId, Collection<String> studentUids) {
 	    Map<String,List<AssignmentGradeRecord>> filteredGradeRecs = new HashMap<String,List<AssignmentGradeRecord>>();
 	    if (studentUids != null) {
-	        List<AssignmentGradeRecord> allGradeRecs = null;
-
-	        if (studentUids.size() >= MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
-	            allGradeRecs = session.createQuery(
-	                    "from AssignmentGradeRecord agr where agr.gradableObject.gradebook.id=:gbid " +
-	                    "and agr.gradableObject.removed=false and agr.gradableObject.pointsPossible > 0").
-	                    setParameter("gbid", gradebookId).
-	                    list();
-	        } else {
-	            String query = "from AssignmentGradeRecord agr where agr.gradableObject.gradebook.id=:gbid and " +
-	            "agr.gradableObject.removed=false and agr.gradableObject.pointsPossible > 0 and " +
-	            "agr.studentId in (:studentUids)";
-	            
-	            allGradeRecs = session.createQuery(
-	                    query).
-	                    setParameter("gbid", gradebookId).
-	                    setParameterList("studentUids", studentUids).
-	                    list();
-	        }
-
-	        if (allGradeRecs != null) {
-	            for (AssignmentGradeRecord gradeRec : allGradeRecs) {
-	                if (studentUids.contains(gradeRec.getStudentId())) {
-	                    String studentId = gradeRec.getStudentId();
-	                    List<AssignmentGradeRecord> gradeRecList = filteredGradeRecs.get(studentId);
-	                    if (gradeRecList == null) {
-	                        gradeRecList = new ArrayList<AssignmentGradeRecord>();
-	                        gradeRecList.add(gradeRec);
-	                        filteredGradeRecs.put(studentId, gradeRecList);
-	                    } else {
-	                        gradeRecList.add(gradeRec);
-	                        filteredGradeRecs.put(studentId, gradeRecList);
-	                    }
-	                }
+	        Query q = session.createQuery(
+	                "from AssignmentGradeRecord agr where agr.gradableObject.gradebook.id=:gbid and " +
+	                "agr.gradableObject.removed=false and agr.gradableObject.pointsPossible > 0 and " +
+	                "agr.studentId in (:studentUids)").
+	                setParameter("gbid", gradebookId);
+	        List<AssignmentGradeRecord> allGradeRecs = new InListQuery(q, "studentUids", MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST).list(studentUids);
+
+	        for (AssignmentGradeRecord gradeRec : allGradeRecs) {
+	            String studentId = gradeRec.getStudentId();
+	            List<AssignmentGradeRecord> gradeRecList = filteredGradeRecs.get(studentId);
+	            if (gradeRecList == null) {
+	                gradeRecList = new ArrayList<AssignmentGradeRecord>();
+	                filteredGradeRecs.put(studentId, gradeRecList);
 	            }
+	            gradeRecList.add(gradeRec);
 	        }
 	    }
 
@@ -3281,7 +3843,12 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 	 * and have a points possible > 0
 	 */
 	protected List<Assignment> getCountedAssignments(Session session, Long gradebookId) {
-	    List<Assignment> assignList = new ArrayList<Assignment>();
+	    GradebookSnapshot snapshot = GradebookSnapshot.getCurrent();
+	    List<Assignment> assignList = (snapshot != null) ? snapshot.getCountedAssignments(gradebookId) : null;
+	    if (assignList != null) {
+	        return assignList;
+	    }
+	    assignList = new ArrayList<Assignment>();
 	    
 	    List results = session.createQuery(
         "from Assignment as asn where asn.gradebook.id=:gbid and asn.removed=false and " +
@@ -3292,6 +3859,9 @@ public abstract class GradebookManagerHibernateImpl extends BaseHibernateManager
 	    if (results != null) {
 	        assignList = results;
 	    }
+	    if (snapshot != null) {
+	        snapshot.putCountedAssignments(gradebookId, assignList);
+	    }
 	    
 	    return assignList;
 	}
@@ -0,0 +1,122 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A counter in GB_GRADEBOOK_VERSION_T which goes up by one for every
+ * transaction that changes a score, comment, item, category or the settings
+ * of a gradebook, so that a client can tell whether a gradebook changed
+ * without reading its grades. The GradebookVersionListener counts the writes
+ * of every service on the gradebook session factory; the GradebookManager
+ * counts its bulk updates itself, which Hibernate does not report.
+ *
+ * The increment is a single row update, so concurrent saves to the same
+ * gradebook take turns at that row until they commit and the count never
+ * goes backwards. Callers count a change once their own writes are flushed,
+ * which keeps that row lock as short as it can be. The rows of existing
+ * gradebooks are seeded by the SQL scripts; the row of a gradebook created
+ * later is inserted in the session of its first change. If two transactions
+ * make the first change to such a gradebook at the same time, the later one
+ * fails on the primary key and its save is rolled back like any other
+ * concurrent modification.
+ */
+public class GradebookVersion implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** Transaction resource key of the gradebooks already counted in the current transaction */
+	private static final String COUNTED_KEY = GradebookVersion.class.getName() + ".counted";
+
+	private Long gradebookId;
+	private long version;
+
+	public GradebookVersion() {
+	}
+
+	public GradebookVersion(Long gradebookId, long version) {
+		this.gradebookId = gradebookId;
+		this.version = version;
+	}
+
+	/**
+	 * Count a change to the gradebook, once per transaction, starting the
+	 * count if it has none yet.
+	 */
+	static void increment(Session session, Long gradebookId) throws HibernateException {
+		if (!countedGradebookIds().add(gradebookId)) {
+			return;
+		}
+		int numUpdated = session.createQuery("update GradebookVersion set version = version + 1 where gradebookId = :gbid").
+			setLong("gbid", gradebookId.longValue()).
+			executeUpdate();
+		if (numUpdated == 0) {
+			session.save(new GradebookVersion(gradebookId, 1));
+		}
+	}
+
+	/**
+	 * The gradebooks counted so far in the current transaction. Without
+	 * transaction synchronization every call counts.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<Long> countedGradebookIds() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return new HashSet<Long>();
+		}
+		Set<Long> counted = (Set<Long>)TransactionSynchronizationManager.getResource(COUNTED_KEY);
+		if (counted == null) {
+			counted = new HashSet<Long>();
+			TransactionSynchronizationManager.bindResource(COUNTED_KEY, counted);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				public void afterCompletion(int status) {
+					if (TransactionSynchronizationManager.hasResource(COUNTED_KEY)) {
+						TransactionSynchronizationManager.unbindResource(COUNTED_KEY);
+					}
+				}
+			});
+		}
+		return counted;
+	}
+
+	public Long getGradebookId() {
+		return gradebookId;
+	}
+	public void setGradebookId(Long gradebookId) {
+		this.gradebookId = gradebookId;
+	}
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
+}
@@ -0,0 +1,147 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.sakaiproject.tool.gradebook.AbstractGradeRecord;
+import org.sakaiproject.tool.gradebook.Category;
+import org.sakaiproject.tool.gradebook.Comment;
+import org.sakaiproject.tool.gradebook.GradableObject;
+import org.sakaiproject.tool.gradebook.Gradebook;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Counts in the GradebookVersion every transaction which writes a gradebook,
+ * its items, categories, scores or comments, whichever service wrote them:
+ * the gradebook tool, or another tool through the gradebook service or the
+ * external assessment service, as long as it used a session factory this
+ * listener is registered with. Any other writer has to count its changes
+ * itself.
+ *
+ * The changed gradebooks are collected as they are flushed and counted just
+ * before the transaction commits, so the version row is only locked for the
+ * commit itself.
+ */
+public class GradebookVersionListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+	private static final long serialVersionUID = 1L;
+	private static final Log log = LogFactory.getLog(GradebookVersionListener.class);
+
+	/** Transaction resource key of the gradebooks changed in the current transaction */
+	private static final String CHANGED_KEY = GradebookVersionListener.class.getName() + ".changed";
+
+	public void onPostInsert(PostInsertEvent event) {
+		changed(event.getSession(), event.getEntity());
+	}
+
+	public void onPostUpdate(PostUpdateEvent event) {
+		changed(event.getSession(), event.getEntity());
+	}
+
+	public void onPostDelete(PostDeleteEvent event) {
+		changed(event.getSession(), event.getEntity());
+	}
+
+	private void changed(Session session, Object entity) {
+		Long gradebookId = getGradebookId(entity);
+		if (gradebookId == null) {
+			return;
+		}
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			if (log.isDebugEnabled()) log.debug("Not counting a change to gradebook " + gradebookId + " made outside a transaction");
+			return;
+		}
+		ChangedGradebooks changed = (ChangedGradebooks)TransactionSynchronizationManager.getResource(CHANGED_KEY);
+		if (changed == null) {
+			changed = new ChangedGradebooks(session);
+			TransactionSynchronizationManager.bindResource(CHANGED_KEY, changed);
+			TransactionSynchronizationManager.registerSynchronization(changed);
+		}
+		changed.gradebookIds.add(gradebookId);
+	}
+
+	private static Long getGradebookId(Object entity) {
+		GradableObject gradableObject = null;
+		Gradebook gradebook = null;
+		if (entity instanceof Gradebook) {
+			gradebook = (Gradebook)entity;
+		} else if (entity instanceof GradableObject) {
+			gradableObject = (GradableObject)entity;
+		} else if (entity instanceof AbstractGradeRecord) {
+			gradableObject = ((AbstractGradeRecord)entity).getGradableObject();
+		} else if (entity instanceof Comment) {
+			gradableObject = ((Comment)entity).getGradableObject();
+		} else if (entity instanceof Category) {
+			gradebook = ((Category)entity).getGradebook();
+		}
+		if (gradableObject != null) {
+			gradebook = gradableObject.getGradebook();
+		}
+		return (gradebook != null) ? gradebook.getId() : null;
+	}
+
+	/**
+	 * The gradebooks changed by a transaction, counted before it commits.
+	 */
+	private static class ChangedGradebooks extends TransactionSynchronizationAdapter {
+		private final Session session;
+		private final Set<Long> gradebookIds = new LinkedHashSet<Long>();
+
+		ChangedGradebooks(Session session) {
+			this.session = session;
+		}
+
+		public void beforeCommit(boolean readOnly) {
+			if (!session.isOpen()) {
+				return;
+			}
+			// Writes still pending in the session are counted too
+			session.flush();
+			List<Long> ids = new ArrayList<Long>(gradebookIds);
+			for (Iterator<Long> iter = ids.iterator(); iter.hasNext(); ) {
+				GradebookVersion.increment(session, iter.next());
+			}
+		}
+
+		public void afterCompletion(int status) {
+			if (TransactionSynchronizationManager.hasResource(CHANGED_KEY)) {
+				TransactionSynchronizationManager.unbindResource(CHANGED_KEY);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.type.Type;
+
+/**
+ * Runs a query restricted by an IN list of ids, splitting the ids into
+ * chunks small enough for the database's limit on the number of parameters
+ * in a list and merging the results. This replaces dropping the restriction
+ * for long lists and filtering every row of the gradebook in Java, so that
+ * asking for a section of a large class reads only that section's rows.
+ *
+ * Duplicate ids are dropped before the query is run. Each chunk is returned
+ * in the query's own order; pass a comparator to put the merged results back
+ * into that order when more than one chunk was needed.
+ */
+class InListQuery {
+	private static final Log log = LogFactory.getLog(InListQuery.class);
+
+	private final Query query;
+	private final String parameterName;
+	private final int chunkSize;
+	private Type type;
+	private Comparator comparator;
+
+	/**
+	 * @param query the query, with every parameter but the list already set
+	 * @param parameterName the name of the IN list parameter
+	 * @param chunkSize the most ids bound to the list in one query
+	 */
+	InListQuery(Query query, String parameterName, int chunkSize) {
+		this.query = query;
+		this.parameterName = parameterName;
+		this.chunkSize = (chunkSize > 0) ? chunkSize : 1;
+	}
+
+	/**
+	 * Bind the ids with an explicit Hibernate type, e.g. for a list of entities.
+	 */
+	InListQuery setType(Type type) {
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Sort the merged results with the comparator if more than one query was run.
+	 */
+	InListQuery setComparator(Comparator comparator) {
+		this.comparator = comparator;
+		return this;
+	}
+
+	/**
+	 * Run the query once per chunk of values and merge the results.
+	 */
+	List list(Collection values) throws HibernateException {
+		List results = new ArrayList();
+		if (values == null || values.isEmpty()) {
+			return results;
+		}
+		List valueList = new ArrayList(new LinkedHashSet(values));
+		int numChunks = 0;
+		for (int i = 0; i < valueList.size(); i += chunkSize) {
+			bind(valueList.subList(i, Math.min(i + chunkSize, valueList.size())));
+			results.addAll(query.list());
+			numChunks++;
+		}
+		if (numChunks > 1) {
+			if (comparator != null) {
+				Collections.sort(results, comparator);
+			}
+			if (log.isDebugEnabled()) log.debug("Ran " + numChunks + " queries for " + valueList.size() + " " + parameterName + " returning " + results.size() + " rows");
+		}
+		return results;
+	}
+
+	/**
+	 * Run a bulk update or delete once per chunk of values.
+	 *
+	 * @return the total number of rows changed
+	 */
+	int executeUpdate(Collection values) throws HibernateException {
+		int numChanged = 0;
+		if (values == null || values.isEmpty()) {
+			return numChanged;
+		}
+		List valueList = new ArrayList(new LinkedHashSet(values));
+		for (int i = 0; i < valueList.size(); i += chunkSize) {
+			bind(valueList.subList(i, Math.min(i + chunkSize, valueList.size())));
+			numChanged += query.executeUpdate();
+		}
+		return numChanged;
+	}
+
+	private void bind(List chunk) {
+		if (type != null) {
+			query.setParameterList(parameterName, chunk, type);
+		} else {
+			query.setParameterList(parameterName, chunk);
+		}
+	}
+}
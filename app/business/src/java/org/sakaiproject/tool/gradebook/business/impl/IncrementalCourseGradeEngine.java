@@ -0,0 +1,341 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.tool.gradebook.Assignment;
+import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Category;
+import org.sakaiproject.tool.gradebook.Gradebook;
+
+/**
+ * Keeps the per-student running totals behind the calculated course grade
+ * so that a roster render only has to recalculate the students whose scores
+ * actually changed.
+ *
+ * Totals are held per gradebook and are keyed by a "structure key" built from
+ * the gradebook settings, the categories (weights and drop rules) and the
+ * counted assignments. Any change to those produces a different key and the
+ * whole gradebook is rebuilt on the next calculation. Individual students are
+ * invalidated explicitly when their scores are saved through the manager, and
+ * every cached entry also carries a stamp of the student's grade records so
+ * that scores written by other nodes or by the external service are noticed.
+ */
+public class IncrementalCourseGradeEngine {
+	private static final Log log = LogFactory.getLog(IncrementalCourseGradeEngine.class);
+
+	public static final int DEFAULT_MAX_GRADEBOOKS = 200;
+
+	/** Stamp used for a student without any counted grade records. */
+	public static final String EMPTY_RECORD_STAMP = "0:0:0";
+
+	private int maxGradebooks = DEFAULT_MAX_GRADEBOOKS;
+
+	private final Map<Long, GradebookTotals> gradebookTotalsMap = new LinkedHashMap<Long, GradebookTotals>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Long, GradebookTotals> eldest) {
+			return size() > maxGradebooks;
+		}
+	};
+
+	private long hits;
+	private long misses;
+	private long rebuilds;
+
+	/**
+	 * @return the cached totals for the student, or null if the student has to be
+	 * recalculated because the structure, the grade records or the set of counted
+	 * assignments visible to the student changed since they were cached
+	 */
+	public StudentTotals getStudentTotals(Long gradebookId, String structureKey, String studentId, String recordStamp, String countedKey) {
+		GradebookTotals gradebookTotals = getGradebookTotals(gradebookId, structureKey);
+		StudentTotals studentTotals = gradebookTotals.students.get(studentId);
+		synchronized (this) {
+			if (studentTotals != null && studentTotals.matches(recordStamp, countedKey)) {
+				hits++;
+				return studentTotals;
+			}
+			misses++;
+		}
+		return null;
+	}
+
+	public void putStudentTotals(Long gradebookId, String structureKey, String studentId, StudentTotals studentTotals) {
+		getGradebookTotals(gradebookId, structureKey).students.put(studentId, studentTotals);
+	}
+
+	/**
+	 * Forget the totals of the given students so they are recalculated the next
+	 * time the course grade is requested.
+	 */
+	public void invalidateStudents(Long gradebookId, Collection<String> studentIds) {
+		if (gradebookId == null || studentIds == null) {
+			return;
+		}
+		GradebookTotals gradebookTotals;
+		synchronized (this) {
+			gradebookTotals = gradebookTotalsMap.get(gradebookId);
+		}
+		if (gradebookTotals != null) {
+			for (String studentId : studentIds) {
+				if (studentId != null) {
+					gradebookTotals.students.remove(studentId);
+				}
+			}
+			if (log.isDebugEnabled()) log.debug("Invalidated course grade totals of " + studentIds.size() + " students in gradebook " + gradebookId);
+		}
+	}
+
+	/**
+	 * Forget every total held for the gradebook, forcing a full rebuild.
+	 */
+	public synchronized void invalidateGradebook(Long gradebookId) {
+		if (gradebookId != null && gradebookTotalsMap.remove(gradebookId) != null) {
+			if (log.isDebugEnabled()) log.debug("Invalidated all course grade totals in gradebook " + gradebookId);
+		}
+	}
+
+	public synchronized void clear() {
+		gradebookTotalsMap.clear();
+	}
+
+	private synchronized GradebookTotals getGradebookTotals(Long gradebookId, String structureKey) {
+		GradebookTotals gradebookTotals = gradebookTotalsMap.get(gradebookId);
+		if (gradebookTotals == null || !gradebookTotals.structureKey.equals(structureKey)) {
+			if (gradebookTotals != null) {
+				rebuilds++;
+				if (log.isDebugEnabled()) log.debug("Structure of gradebook " + gradebookId + " changed; rebuilding course grade totals");
+			}
+			gradebookTotals = new GradebookTotals(structureKey);
+			gradebookTotalsMap.put(gradebookId, gradebookTotals);
+		}
+		return gradebookTotals;
+	}
+
+	/**
+	 * Build the key which identifies everything other than a student's own scores
+	 * that the calculated course grade depends on.
+	 */
+	public static String getStructureKey(Gradebook gradebook, List categories, Collection<Assignment> countedAssigns) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(gradebook.getId()).append('|').append(gradebook.getGrade_type()).append('|').append(gradebook.getCategory_type());
+		if (gradebook.getSelectedGradeMapping() != null) {
+			sb.append('|').append(gradebook.getSelectedGradeMapping().getId());
+		}
+		if (categories != null) {
+			for (Iterator iter = categories.iterator(); iter.hasNext(); ) {
+				Category cate = (Category)iter.next();
+				if (cate == null) {
+					continue;
+				}
+				sb.append("|c").append(cate.getId()).append(',').append(cate.getWeight())
+					.append(',').append(cate.getDrop_lowest()).append(',').append(cate.getDropHighest())
+					.append(',').append(cate.getKeepHighest()).append(',').append(cate.isRemoved())
+					.append(',').append(cate.isExtraCredit());
+			}
+		}
+		if (countedAssigns != null) {
+			for (Assignment assign : countedAssigns) {
+				sb.append("|a").append(assign.getId()).append(',').append(assign.getPointsPossible())
+					.append(',').append(assign.getCategory() == null ? null : assign.getCategory().getId())
+					.append(',').append(assign.isExtraCredit()).append(',').append(assign.isCounted())
+					.append(',').append(assign.getUngraded()).append(',').append(assign.isRemoved())
+					.append(',').append(assign.getItemType());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Build the stamp of a student's grade records from the values returned by an
+	 * aggregate query.
+	 */
+	public static String getRecordStamp(Number count, Number sumPointsEarned, Date maxDateRecorded) {
+		long numRecords = count == null ? 0 : count.longValue();
+		if (numRecords == 0) {
+			return EMPTY_RECORD_STAMP;
+		}
+		double sum = sumPointsEarned == null ? 0 : sumPointsEarned.doubleValue();
+		return numRecords + ":" + Math.round(sum * 10000) + ":" + (maxDateRecorded == null ? 0 : maxDateRecorded.getTime());
+	}
+
+	/**
+	 * Build the stamp of a student's grade records from the records themselves,
+	 * considering the same records as GradebookManagerHibernateImpl.getGradeRecordMapForStudents.
+	 */
+	public static String getRecordStamp(Collection<AssignmentGradeRecord> gradeRecs) {
+		if (gradeRecs == null || gradeRecs.isEmpty()) {
+			return EMPTY_RECORD_STAMP;
+		}
+		long count = 0;
+		double sum = 0;
+		Date maxDate = null;
+		for (AssignmentGradeRecord gradeRec : gradeRecs) {
+			Assignment assign = gradeRec.getAssignment();
+			if (assign == null || assign.isRemoved() || assign.getPointsPossible() == null || assign.getPointsPossible() <= 0) {
+				continue;
+			}
+			count++;
+			if (gradeRec.getPointsEarned() != null) {
+				sum += gradeRec.getPointsEarned();
+			}
+			if (gradeRec.getDateRecorded() != null && (maxDate == null || gradeRec.getDateRecorded().getTime() > maxDate.getTime())) {
+				maxDate = gradeRec.getDateRecorded();
+			}
+		}
+		return getRecordStamp(new Long(count), new Double(sum), maxDate);
+	}
+
+	/**
+	 * @return a key for the assignments counted for one student, which only differs
+	 * between students when some externally maintained items are hidden from them
+	 */
+	public static String getCountedKey(Collection<Assignment> countedAssigns, Collection<Assignment> studentCountedAssigns) {
+		if (countedAssigns.size() == studentCountedAssigns.size()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Assignment assign : studentCountedAssigns) {
+			sb.append(assign.getId()).append(',');
+		}
+		return sb.toString();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getRebuilds() {
+		return rebuilds;
+	}
+
+	public int getMaxGradebooks() {
+		return maxGradebooks;
+	}
+
+	public void setMaxGradebooks(int maxGradebooks) {
+		this.maxGradebooks = maxGradebooks;
+	}
+
+	private static class GradebookTotals {
+		private final String structureKey;
+		private final Map<String, StudentTotals> students = new ConcurrentHashMap<String, StudentTotals>();
+
+		private GradebookTotals(String structureKey) {
+			this.structureKey = structureKey;
+		}
+	}
+
+	/**
+	 * The calculated totals of one student, along with the per-category points
+	 * earned and the assignments whose scores were dropped.
+	 */
+	public static class StudentTotals {
+		private final String recordStamp;
+		private final String countedKey;
+		private final double totalPointsPossible;
+		private final double totalPointsEarned;
+		private final double literalTotalPointsEarned;
+		private final Set<Long> droppedAssignmentIds;
+		private final Map<Long, Double> categoryPointsEarned;
+
+		public StudentTotals(String recordStamp, String countedKey, double totalPointsPossible, double totalPointsEarned,
+				double literalTotalPointsEarned, Collection<AssignmentGradeRecord> gradeRecs) {
+			this.recordStamp = recordStamp;
+			this.countedKey = countedKey;
+			this.totalPointsPossible = totalPointsPossible;
+			this.totalPointsEarned = totalPointsEarned;
+			this.literalTotalPointsEarned = literalTotalPointsEarned;
+
+			Set<Long> dropped = new HashSet<Long>();
+			Map<Long, Double> categoryPoints = new HashMap<Long, Double>();
+			if (gradeRecs != null) {
+				for (AssignmentGradeRecord gradeRec : gradeRecs) {
+					Assignment assign = gradeRec.getAssignment();
+					if (Boolean.TRUE.equals(gradeRec.getDroppedFromGrade())) {
+						dropped.add(assign.getId());
+					} else if (gradeRec.getPointsEarned() != null && assign.getCategory() != null && assign.isIncludedInCalculations()) {
+						Long categoryId = assign.getCategory().getId();
+						Double points = categoryPoints.get(categoryId);
+						categoryPoints.put(categoryId, (points == null ? 0 : points) + gradeRec.getPointsEarned());
+					}
+				}
+			}
+			this.droppedAssignmentIds = Collections.unmodifiableSet(dropped);
+			this.categoryPointsEarned = Collections.unmodifiableMap(categoryPoints);
+		}
+
+		boolean matches(String recordStamp, String countedKey) {
+			return this.recordStamp.equals(recordStamp) && this.countedKey.equals(countedKey);
+		}
+
+		/**
+		 * Set the droppedFromGrade flag of the given records to the state it had when
+		 * these totals were calculated, without running the drop rules again.
+		 */
+		public void applyDroppedState(Collection<AssignmentGradeRecord> gradeRecs) {
+			if (gradeRecs == null) {
+				return;
+			}
+			for (AssignmentGradeRecord gradeRec : gradeRecs) {
+				gradeRec.setDroppedFromGrade(droppedAssignmentIds.contains(gradeRec.getAssignment().getId()));
+			}
+		}
+
+		public double getTotalPointsPossible() {
+			return totalPointsPossible;
+		}
+
+		public double getTotalPointsEarned() {
+			return totalPointsEarned;
+		}
+
+		public double getLiteralTotalPointsEarned() {
+			return literalTotalPointsEarned;
+		}
+
+		public Set<Long> getDroppedAssignmentIds() {
+			return droppedAssignmentIds;
+		}
+
+		public Map<Long, Double> getCategoryPointsEarned() {
+			return categoryPointsEarned;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A change to a gradebook's structure (settings, categories, points possible...)
+ * whose course grades have not been recalculated yet, as queued in GB_RECALC_QUEUE_T.
+ *
+ * Every change adds a row; the recalculation takes all of a gradebook's rows
+ * together, so that several quick edits cost one recalculation.
+ */
+public class RecalculationRequest implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long id;
+	private Long gradebookId;
+	private Date dateRequested;
+
+	public RecalculationRequest() {
+	}
+
+	public RecalculationRequest(Long gradebookId, Date dateRequested) {
+		this.gradebookId = gradebookId;
+		this.dateRequested = dateRequested;
+	}
+
+	public Long getId() {
+		return id;
+	}
+	public void setId(Long id) {
+		this.id = id;
+	}
+	public Long getGradebookId() {
+		return gradebookId;
+	}
+	public void setGradebookId(Long gradebookId) {
+		this.gradebookId = gradebookId;
+	}
+	public Date getDateRequested() {
+		return dateRequested;
+	}
+	public void setDateRequested(Date dateRequested) {
+		this.dateRequested = dateRequested;
+	}
+}
@@ -0,0 +1,92 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.sakaiproject.tool.gradebook.Assignment;
+
+/**
+ * When a gradebook item was removed, kept in GB_REMOVED_ITEM_T so that the
+ * REST listings of what changed since a given time only report the items
+ * removed after it. The item's name is kept, since removing an external
+ * assessment deletes its item. The row is saved with the removal by the
+ * RemovedItemListener; a service whose session factory does not have that
+ * listener has to record its removals itself.
+ */
+public class RemovedItem implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long gradableObjectId;
+	private Long gradebookId;
+	private String itemName;
+	private Date dateRemoved;
+
+	public RemovedItem() {
+	}
+
+	public RemovedItem(Long gradableObjectId, Long gradebookId, String itemName, Date dateRemoved) {
+		this.gradableObjectId = gradableObjectId;
+		this.gradebookId = gradebookId;
+		this.itemName = itemName;
+		this.dateRemoved = dateRemoved;
+	}
+
+	/**
+	 * Record the removal of the item, unless it is already recorded.
+	 */
+	static void record(Session session, Assignment assignment) throws HibernateException {
+		if (session.get(RemovedItem.class, assignment.getId()) == null) {
+			session.save(new RemovedItem(assignment.getId(), assignment.getGradebook().getId(), assignment.getName(), new Date()));
+		}
+	}
+
+	public Long getGradableObjectId() {
+		return gradableObjectId;
+	}
+	public void setGradableObjectId(Long gradableObjectId) {
+		this.gradableObjectId = gradableObjectId;
+	}
+	public Long getGradebookId() {
+		return gradebookId;
+	}
+	public void setGradebookId(Long gradebookId) {
+		this.gradebookId = gradebookId;
+	}
+	public String getItemName() {
+		return itemName;
+	}
+	public void setItemName(String itemName) {
+		this.itemName = itemName;
+	}
+	public Date getDateRemoved() {
+		return dateRemoved;
+	}
+	public void setDateRemoved(Date dateRemoved) {
+		this.dateRemoved = dateRemoved;
+	}
+}
@@ -0,0 +1,86 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import org.hibernate.Session;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.sakaiproject.tool.gradebook.Assignment;
+
+/**
+ * Records in GB_REMOVED_ITEM_T the removal of every gradebook item as it is
+ * flushed, whichever service removed it: the gradebook tool and the gradebook
+ * service mark the item removed, the external assessment service deletes it.
+ * Only removals through a session factory this listener is registered with
+ * are seen, any other writer has to record its removals itself.
+ *
+ * The row is saved through a temporary session on the flushing session's
+ * connection, so it is written in the same transaction as the removal.
+ */
+public class RemovedItemListener implements PostUpdateEventListener, PostDeleteEventListener {
+	private static final long serialVersionUID = 1L;
+
+	public void onPostUpdate(PostUpdateEvent event) {
+		if ((event.getEntity() instanceof Assignment) && ((Assignment)event.getEntity()).isRemoved() && !wasRemoved(event)) {
+			record(event.getSession(), (Assignment)event.getEntity());
+		}
+	}
+
+	public void onPostDelete(PostDeleteEvent event) {
+		if (event.getEntity() instanceof Assignment) {
+			record(event.getSession(), (Assignment)event.getEntity());
+		}
+	}
+
+	private void record(EventSource eventSource, Assignment assignment) {
+		Session session = eventSource.getFactory().openSession(eventSource.connection());
+		try {
+			RemovedItem.record(session, assignment);
+			session.flush();
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * @return true if the item was already removed before this update, false if
+	 * it was not or its earlier state is not known
+	 */
+	private boolean wasRemoved(PostUpdateEvent event) {
+		Object[] oldState = event.getOldState();
+		if (oldState == null) {
+			return false;
+		}
+		String[] propertyNames = event.getPersister().getPropertyNames();
+		for (int i = 0; i < propertyNames.length; i++) {
+			if ("removed".equals(propertyNames[i])) {
+				return Boolean.TRUE.equals(oldState[i]);
+			}
+		}
+		return false;
+	}
+}
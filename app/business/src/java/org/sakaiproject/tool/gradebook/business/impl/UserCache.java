@@ -0,0 +1,277 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.business.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.service.gradebook.shared.UnknownUserException;
+import org.sakaiproject.tool.gradebook.facades.UserDirectoryService;
+import org.sakaiproject.user.api.User;
+
+/**
+ * Holds the display names of users for a while, so that pages listing grading
+ * events or students do not go to the user directory once per row.
+ *
+ * Names expire after the time to live, and at most maxEntries are held: when
+ * full the expired names are dropped, and if that is not enough the oldest
+ * ones, down to nine tenths of the limit. Users the directory does not know
+ * are remembered as well, so a departed grader is not looked up again on every
+ * visit. Given the Sakai user directory, the names missing from a bulk lookup
+ * are read with one call. The hit rate is logged every STATS_LOG_INTERVAL
+ * lookups.
+ */
+public class UserCache {
+	private static final Log log = LogFactory.getLog(UserCache.class);
+
+	public static final int STATS_LOG_INTERVAL = 10000;
+
+	private UserDirectoryService userDirectoryService;
+	private org.sakaiproject.user.api.UserDirectoryService sakaiUserDirectoryService;
+	private int ttlSeconds = 600;
+	private int maxEntries = 10000;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+
+	/**
+	 * @return the user's display name, or null if the directory does not know the user
+	 */
+	public String getUserDisplayName(String userUid) {
+		Entry entry = getEntry(userUid);
+		if (entry == null) {
+			entry = load(userUid);
+		}
+		return entry.displayName;
+	}
+
+	/**
+	 * Looks up the users not already held, and returns the names of all of them.
+	 *
+	 * @return map of user uid --> display name, in the order given, without the
+	 * users the directory does not know
+	 */
+	public Map<String, String> getUserDisplayNames(Collection<String> userUids) {
+		Map<String, Entry> found = new LinkedHashMap<String, Entry>();
+		List<String> missing = new ArrayList<String>();
+		for (String userUid : userUids) {
+			if (userUid == null || found.containsKey(userUid)) {
+				continue;
+			}
+			Entry entry = getEntry(userUid);
+			found.put(userUid, entry);
+			if (entry == null) {
+				missing.add(userUid);
+			}
+		}
+		if (!missing.isEmpty()) {
+			found.putAll(load(missing));
+		}
+
+		Map<String, String> displayNames = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Entry> entry : found.entrySet()) {
+			if (entry.getValue().displayName != null) {
+				displayNames.put(entry.getKey(), entry.getValue().displayName);
+			}
+		}
+		return displayNames;
+	}
+
+	/**
+	 * Holds a name the caller already read from the directory, e.g. in a bulk lookup.
+	 */
+	public void putUserDisplayName(String userUid, String displayName) {
+		if (userUid != null) {
+			put(userUid, new Entry(displayName, System.currentTimeMillis() + ttlSeconds * 1000L));
+		}
+	}
+
+	public void evict(String userUid) {
+		entries.remove(userUid);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	/**
+	 * @return the share of lookups answered without the directory, between 0 and 1
+	 */
+	public double getHitRate() {
+		long numHits = hits.get();
+		long numLookups = numHits + misses.get();
+		return (numLookups == 0) ? 0 : (double)numHits / numLookups;
+	}
+
+	private Entry getEntry(String userUid) {
+		Entry entry = entries.get(userUid);
+		if (entry != null && entry.isExpired()) {
+			entries.remove(userUid, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		if (lookups.incrementAndGet() % STATS_LOG_INTERVAL == 0 && log.isInfoEnabled()) {
+			log.info("User cache holds " + entries.size() + " names; hit rate " + getHitRate() + " over " + lookups.get() + " lookups");
+		}
+		return entry;
+	}
+
+	private Entry load(String userUid) {
+		String displayName;
+		try {
+			displayName = userDirectoryService.getUserDisplayName(userUid);
+		} catch (UnknownUserException e) {
+			log.warn("Unable to find user with uid=" + userUid);
+			displayName = null;
+		}
+		Entry entry = new Entry(displayName, System.currentTimeMillis() + ttlSeconds * 1000L);
+		put(userUid, entry);
+		return entry;
+	}
+
+	/**
+	 * Look up several users at once, with a single call when the Sakai user
+	 * directory is available.
+	 *
+	 * @return map of user uid --> entry, for every user given
+	 */
+	private Map<String, Entry> load(List<String> userUids) {
+		Map<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+		if (sakaiUserDirectoryService == null) {
+			for (String userUid : userUids) {
+				loaded.put(userUid, load(userUid));
+			}
+			return loaded;
+		}
+		long expires = System.currentTimeMillis() + ttlSeconds * 1000L;
+		Map<String, String> displayNames = new LinkedHashMap<String, String>();
+		for (Iterator<User> iter = sakaiUserDirectoryService.getUsers(userUids).iterator(); iter.hasNext(); ) {
+			User user = iter.next();
+			displayNames.put(user.getId(), user.getDisplayName());
+		}
+		for (String userUid : userUids) {
+			String displayName = displayNames.get(userUid);
+			if (displayName == null) {
+				log.warn("Unable to find user with uid=" + userUid);
+			}
+			Entry entry = new Entry(displayName, expires);
+			put(userUid, entry);
+			loaded.put(userUid, entry);
+		}
+		return loaded;
+	}
+
+	private void put(String userUid, Entry entry) {
+		if (entries.size() >= maxEntries) {
+			evict();
+		}
+		entries.put(userUid, entry);
+	}
+
+	/**
+	 * Drop the expired names, and if that is not enough the oldest ones, down
+	 * to nine tenths of the limit so the next names fit without doing it again.
+	 */
+	private synchronized void evict() {
+		if (entries.size() < maxEntries) {
+			// Another thread made room already
+			return;
+		}
+		for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); ) {
+			if (iter.next().isExpired()) {
+				iter.remove();
+			}
+		}
+		int excess = entries.size() - (maxEntries - Math.max(maxEntries / 10, 1));
+		if (excess <= 0) {
+			return;
+		}
+		List<Long> expiries = new ArrayList<Long>(entries.size());
+		for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); ) {
+			expiries.add(Long.valueOf(iter.next().expires));
+		}
+		Collections.sort(expiries);
+		long cutoff = expiries.get(Math.min(excess, expiries.size()) - 1).longValue();
+		for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext(); ) {
+			if (iter.next().expires <= cutoff) {
+				iter.remove();
+			}
+		}
+		if (log.isInfoEnabled()) log.info("User cache full, dropped its oldest names down to " + entries.size() + "; hit rate " + getHitRate());
+	}
+
+	private static class Entry {
+		final String displayName;
+		final long expires;
+
+		Entry(String displayName, long expires) {
+			this.displayName = displayName;
+			this.expires = expires;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+	}
+
+	public void setUserDirectoryService(UserDirectoryService userDirectoryService) {
+		this.userDirectoryService = userDirectoryService;
+	}
+	/**
+	 * Optional: the Sakai user directory, used to look up the names missing
+	 * from a bulk lookup with one call.
+	 */
+	public void setSakaiUserDirectoryService(org.sakaiproject.user.api.UserDirectoryService sakaiUserDirectoryService) {
+		this.sakaiUserDirectoryService = sakaiUserDirectoryService;
+	}
+	public void setTtlSeconds(int ttlSeconds) {
+		this.ttlSeconds = ttlSeconds;
+	}
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+}
@@ -0,0 +1,16 @@
+-- Calculated course grades stored for student views. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_COURSE_GRADE_CACHE_T (
+	ID bigint NOT NULL AUTO_INCREMENT,
+	GRADEBOOK_ID bigint NOT NULL,
+	STUDENT_ID varchar(99) NOT NULL,
+	STRUCTURE_VERSION varchar(32) NOT NULL,
+	SCORE_VERSION varchar(64) NOT NULL,
+	POINTS_POSSIBLE double precision,
+	POINTS_EARNED double precision,
+	LITERAL_POINTS_EARNED double precision,
+	PERCENT_GRADE double precision,
+	STALE bit NOT NULL,
+	DATE_CALCULATED datetime,
+	PRIMARY KEY (ID),
+	CONSTRAINT GB_COURSE_GRADE_CACHE_UK UNIQUE (GRADEBOOK_ID, STUDENT_ID)
+);
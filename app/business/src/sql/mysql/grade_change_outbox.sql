@@ -0,0 +1,14 @@
+-- Outbox of saved scores, course grades and comments read by integrations. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_GRADE_CHANGE_T (
+	ID bigint NOT NULL AUTO_INCREMENT,
+	GRADEBOOK_ID bigint NOT NULL,
+	GRADABLE_OBJECT_ID bigint NOT NULL,
+	STUDENT_ID varchar(99) NOT NULL,
+	CHANGE_TYPE varchar(16) NOT NULL,
+	GRADE varchar(255),
+	GRADER_ID varchar(99),
+	DATE_RECORDED datetime NOT NULL,
+	PRIMARY KEY (ID)
+);
+CREATE INDEX GB_GRADE_CHANGE_GB_IDX ON GB_GRADE_CHANGE_T (GRADEBOOK_ID, ID);
+CREATE INDEX GB_GRADE_CHANGE_DATE_IDX ON GB_GRADE_CHANGE_T (DATE_RECORDED);
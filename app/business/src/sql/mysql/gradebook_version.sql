@@ -0,0 +1,11 @@
+-- Change counter of each gradebook, used for REST ETags. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_GRADEBOOK_VERSION_T (
+	GRADEBOOK_ID bigint NOT NULL,
+	VERSION_NUMBER bigint NOT NULL,
+	PRIMARY KEY (GRADEBOOK_ID)
+);
+
+-- Start the count of every existing gradebook, so their first changes only need to update a row
+INSERT INTO GB_GRADEBOOK_VERSION_T (GRADEBOOK_ID, VERSION_NUMBER)
+	SELECT gb.ID, 0 FROM GB_GRADEBOOK_T gb
+	WHERE NOT EXISTS (SELECT v.GRADEBOOK_ID FROM GB_GRADEBOOK_VERSION_T v WHERE v.GRADEBOOK_ID = gb.ID);
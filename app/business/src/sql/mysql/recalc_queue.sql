@@ -0,0 +1,8 @@
+-- Gradebooks waiting for a background course grade recalculation. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_RECALC_QUEUE_T (
+	ID bigint NOT NULL AUTO_INCREMENT,
+	GRADEBOOK_ID bigint NOT NULL,
+	DATE_REQUESTED datetime NOT NULL,
+	PRIMARY KEY (ID)
+);
+CREATE INDEX GB_RECALC_QUEUE_IDX ON GB_RECALC_QUEUE_T (GRADEBOOK_ID);
@@ -0,0 +1,15 @@
+-- When each gradebook item was removed, for REST listings of changes. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_REMOVED_ITEM_T (
+	GRADABLE_OBJECT_ID bigint NOT NULL,
+	GRADEBOOK_ID bigint NOT NULL,
+	ITEM_NAME varchar(255) NOT NULL,
+	DATE_REMOVED datetime NOT NULL,
+	PRIMARY KEY (GRADABLE_OBJECT_ID)
+);
+CREATE INDEX GB_REMOVED_ITEM_IDX ON GB_REMOVED_ITEM_T (GRADEBOOK_ID, DATE_REMOVED);
+
+-- Items removed before now are taken to have been removed now
+INSERT INTO GB_REMOVED_ITEM_T (GRADABLE_OBJECT_ID, GRADEBOOK_ID, ITEM_NAME, DATE_REMOVED)
+	SELECT go.ID, go.GRADEBOOK_ID, go.NAME, CURRENT_TIMESTAMP FROM GB_GRADABLE_OBJECT_T go
+	WHERE go.OBJECT_TYPE_ID = 1 AND go.REMOVED = 1
+	AND NOT EXISTS (SELECT r.GRADABLE_OBJECT_ID FROM GB_REMOVED_ITEM_T r WHERE r.GRADABLE_OBJECT_ID = go.ID);
@@ -0,0 +1,17 @@
+-- Calculated course grades stored for student views. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_COURSE_GRADE_CACHE_T (
+	ID number(19,0) NOT NULL,
+	GRADEBOOK_ID number(19,0) NOT NULL,
+	STUDENT_ID varchar2(99) NOT NULL,
+	STRUCTURE_VERSION varchar2(32) NOT NULL,
+	SCORE_VERSION varchar2(64) NOT NULL,
+	POINTS_POSSIBLE double precision,
+	POINTS_EARNED double precision,
+	LITERAL_POINTS_EARNED double precision,
+	PERCENT_GRADE double precision,
+	STALE number(1,0) NOT NULL,
+	DATE_CALCULATED timestamp,
+	PRIMARY KEY (ID),
+	CONSTRAINT GB_COURSE_GRADE_CACHE_UK UNIQUE (GRADEBOOK_ID, STUDENT_ID)
+);
+CREATE SEQUENCE GB_COURSE_GRADE_CACHE_S;
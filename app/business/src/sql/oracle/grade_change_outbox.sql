@@ -0,0 +1,16 @@
+-- Outbox of saved scores, course grades and comments read by integrations. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_GRADE_CHANGE_T (
+	ID number(19,0) NOT NULL,
+	GRADEBOOK_ID number(19,0) NOT NULL,
+	GRADABLE_OBJECT_ID number(19,0) NOT NULL,
+	STUDENT_ID varchar2(99) NOT NULL,
+	CHANGE_TYPE varchar2(16) NOT NULL,
+	GRADE varchar2(255),
+	GRADER_ID varchar2(99),
+	DATE_RECORDED timestamp NOT NULL,
+	PRIMARY KEY (ID)
+);
+-- ORDER, so that on RAC a save which commits later still takes the higher ids
+CREATE SEQUENCE GB_GRADE_CHANGE_S ORDER;
+CREATE INDEX GB_GRADE_CHANGE_GB_IDX ON GB_GRADE_CHANGE_T (GRADEBOOK_ID, ID);
+CREATE INDEX GB_GRADE_CHANGE_DATE_IDX ON GB_GRADE_CHANGE_T (DATE_RECORDED);
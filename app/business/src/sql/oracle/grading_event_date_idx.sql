@@ -0,0 +1,3 @@
+-- Lets grades-rest find the scores and comments changed in a gradebook since a given time
+CREATE INDEX GB_GRADING_EVENT_DATE_IDX ON GB_GRADING_EVENT_T (GRADABLE_OBJECT_ID, DATE_GRADED);
+CREATE INDEX GB_COMMENT_DATE_IDX ON GB_COMMENT_T (GRADABLE_OBJECT_ID, DATE_RECORDED);
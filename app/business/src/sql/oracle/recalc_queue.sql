@@ -0,0 +1,9 @@
+-- Gradebooks waiting for a background course grade recalculation. Created by Hibernate when auto.ddl is on.
+CREATE TABLE GB_RECALC_QUEUE_T (
+	ID number(19,0) NOT NULL,
+	GRADEBOOK_ID number(19,0) NOT NULL,
+	DATE_REQUESTED timestamp NOT NULL,
+	PRIMARY KEY (ID)
+);
+CREATE SEQUENCE GB_RECALC_QUEUE_S;
+CREATE INDEX GB_RECALC_QUEUE_IDX ON GB_RECALC_QUEUE_T (GRADEBOOK_ID);
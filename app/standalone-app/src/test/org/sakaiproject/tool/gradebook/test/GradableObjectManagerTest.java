@@ -36,6 +36,7 @@ import org.sakaiproject.service.gradebook.shared.ConflictingAssignmentNameExcept
 import org.sakaiproject.tool.gradebook.AbstractGradeRecord;
 import org.sakaiproject.tool.gradebook.Assignment;
 import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Category;
 import org.sakaiproject.tool.gradebook.CourseGrade;
 import org.sakaiproject.tool.gradebook.Gradebook;
 
@@ -143,6 +144,46 @@ public class GradableObjectManagerTest extends GradebookTestBase {
         Assert.assertTrue(descPointsOrderedAssignments.indexOf(asn2) > descPointsOrderedAssignments.indexOf(asn3));
     }
 
+    public void testAssignmentStatistics() throws Exception {
+		List studentUidsList = Arrays.asList(new String[] {
+			"testStudentUserUid1",
+			"testStudentUserUid2",
+			"testStudentUserUid3",
+		});
+		addUsersEnrollments(gradebook, studentUidsList);
+
+        Long id1 = gradebookManager.createAssignment(gradebook.getId(), ASN1_NAME, new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Long id2 = gradebookManager.createAssignment(gradebook.getId(), ASN2_NAME, new Double(20), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+
+		// Score two of the three students on the first assignment, nobody on the second.
+        Assignment asn1 = gradebookManager.getAssignment(id1);
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn1, (String)studentUidsList.get(0), new Double(8)));
+        gradeRecords.add(new AssignmentGradeRecord(asn1, (String)studentUidsList.get(1), new Double(9)));
+		gradebookManager.updateAssignmentGradeRecords(asn1, gradeRecords);
+
+		// Only the scored students count towards the averages
+        List assignments = gradebookManager.getAssignmentsWithStats(gradebook.getId(), Assignment.SORT_BY_NAME, true);
+        Assert.assertEquals(2, assignments.size());
+        Assignment asn = (Assignment)assignments.get(0);
+        Assert.assertEquals(id1, asn.getId());
+        Assert.assertEquals(8.5, asn.getAverageTotal().doubleValue(), 0.0001);
+        Assert.assertEquals(85.0, asn.getMean().doubleValue(), 0.0001);
+        asn = (Assignment)assignments.get(1);
+        Assert.assertEquals(id2, asn.getId());
+        Assert.assertNull(asn.getAverageTotal());
+        Assert.assertNull(asn.getMean());
+
+        asn = gradebookManager.getAssignmentWithStats(id1);
+        Assert.assertEquals(8.5, asn.getAverageTotal().doubleValue(), 0.0001);
+        Assert.assertEquals(85.0, asn.getMean().doubleValue(), 0.0001);
+
+        // The course grade figured with the assignments already read comes out the same
+        List categories = gradebookManager.getCategoriesWithStats(gradebook.getId(), Assignment.DEFAULT_SORT, true, Category.SORT_BY_NAME, true);
+        CourseGrade courseGrade = (CourseGrade)categories.get(categories.size() - 1);
+        Assert.assertEquals(getCourseGradeWithStats(gradebook.getId()).getMean(), courseGrade.getMean());
+    }
+
     public void testDeletedAssignments() throws Exception {
     	// Make sure nothing awful happens when we ask for CourseGrade
     	// total points for an empty Gradebook
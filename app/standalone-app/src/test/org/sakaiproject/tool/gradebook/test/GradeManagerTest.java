@@ -33,13 +33,27 @@ import java.util.Set;
 
 import junit.framework.Assert;
 
+import org.hibernate.SessionFactory;
+
+import org.sakaiproject.service.gradebook.shared.GradebookService;
 import org.sakaiproject.tool.gradebook.Assignment;
 import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
+import org.sakaiproject.tool.gradebook.Comment;
 import org.sakaiproject.tool.gradebook.CourseGrade;
 import org.sakaiproject.tool.gradebook.CourseGradeRecord;
 import org.sakaiproject.tool.gradebook.GradeMapping;
 import org.sakaiproject.tool.gradebook.Gradebook;
 import org.sakaiproject.tool.gradebook.GradingEvents;
+import org.sakaiproject.tool.gradebook.business.FinalizedAssignmentSummary;
+import org.sakaiproject.tool.gradebook.business.GradeChange;
+import org.sakaiproject.tool.gradebook.business.GradeMatrix;
+import org.sakaiproject.tool.gradebook.business.GradebookSnapshot;
+import org.sakaiproject.tool.gradebook.business.impl.CachedCourseGrade;
+import org.sakaiproject.tool.gradebook.business.impl.GradebookManagerHibernateImpl;
+import org.sakaiproject.tool.gradebook.business.impl.RemovedItem;
+import org.sakaiproject.tool.gradebook.business.impl.UserCache;
+import org.springframework.orm.hibernate3.HibernateTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
 
 /**
  * Tests the grade manager.
@@ -153,6 +167,369 @@ public class GradeManagerTest extends GradebookTestBase {
         }
     }
 
+    public void testCourseGradeTotalsFollowScoreChanges() throws Exception {
+		List studentUidsList = Arrays.asList(new String[] {
+			"incrementalStudent1",
+			"incrementalStudent2",
+		});
+		addUsersEnrollments(gradebook, studentUidsList);
+
+        Long asgId = gradebookManager.createAssignment(gradebook.getId(), "Incremental Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        Assignment asn = gradebookManager.getAssignment(asgId);
+
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "incrementalStudent1", new Double(5)));
+        gradeRecords.add(new AssignmentGradeRecord(asn, "incrementalStudent2", new Double(8)));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+
+        CourseGrade courseGrade = gradebookManager.getCourseGrade(gradebook.getId());
+        Map courseGradeRecordMap = getCourseGradeRecordMap(courseGrade, studentUidsList);
+        Assert.assertEquals(5.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent1")).getPointsEarned().doubleValue(), .001);
+        Assert.assertEquals(8.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent2")).getPointsEarned().doubleValue(), .001);
+
+        // Only the first student's score changes
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(asn, Arrays.asList(new String[] {"incrementalStudent1"}));
+        AssignmentGradeRecord gradeRecord = (AssignmentGradeRecord)persistentGradeRecords.get(0);
+        gradeRecord.setPointsEarned(new Double(9));
+        gradebookManager.updateAssignmentGradeRecords(asn, persistentGradeRecords);
+
+        courseGradeRecordMap = getCourseGradeRecordMap(courseGrade, studentUidsList);
+        Assert.assertEquals(9.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent1")).getPointsEarned().doubleValue(), .001);
+        Assert.assertEquals(8.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent2")).getPointsEarned().doubleValue(), .001);
+
+        // Changing the points possible rebuilds everyone's totals
+        asn = gradebookManager.getAssignment(asgId);
+        asn.setPointsPossible(new Double(20));
+        gradebookManager.updateAssignment(asn);
+
+        courseGradeRecordMap = getCourseGradeRecordMap(courseGrade, studentUidsList);
+        Assert.assertEquals(45.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent1")).getGradeAsPercentage().doubleValue(), .001);
+        Assert.assertEquals(40.0, ((CourseGradeRecord)courseGradeRecordMap.get("incrementalStudent2")).getGradeAsPercentage().doubleValue(), .001);
+    }
+
+    public void testGradeMatrix() throws Exception {
+		List studentUidsList = Arrays.asList(new String[] {
+			"matrixStudent1",
+			"matrixStudent2",
+			"matrixStudent3",
+		});
+		addUsersEnrollments(gradebook, studentUidsList);
+
+        Long asgId = gradebookManager.createAssignment(gradebook.getId(), "Matrix Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        Assignment asn = gradebookManager.getAssignment(asgId);
+
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "matrixStudent1", new Double(7)));
+        gradeRecords.add(new AssignmentGradeRecord(asn, "matrixStudent2", new Double(4)));
+        gradeRecords.add(new AssignmentGradeRecord(asn, "matrixStudent3", null));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+
+        GradeMatrix gradeMatrix = gradebookManager.getGradeMatrix(gradebook.getId(), studentUidsList);
+        Assert.assertEquals(3, gradeMatrix.getStudentCount());
+        int assignmentIndex = gradeMatrix.getAssignmentIndex(asgId);
+        Assert.assertTrue(assignmentIndex >= 0);
+
+        int student1 = gradeMatrix.getStudentIndex("matrixStudent1");
+        Assert.assertTrue(gradeMatrix.isScored(student1, assignmentIndex));
+        Assert.assertEquals(7.0, gradeMatrix.getPointsEarned(student1, assignmentIndex), .001);
+        Assert.assertEquals(70.0, gradeMatrix.getPercentEarned(student1, assignmentIndex).doubleValue(), .001);
+        Assert.assertFalse(gradeMatrix.isDropped(student1, assignmentIndex));
+
+        int student3 = gradeMatrix.getStudentIndex("matrixStudent3");
+        Assert.assertTrue(gradeMatrix.isRecorded(student3, assignmentIndex));
+        Assert.assertNull(gradeMatrix.getPointsEarnedOrNull(student3, assignmentIndex));
+
+        // Unscored records sort first, then ascending by points
+        int[] sorted = gradeMatrix.getStudentIndexesSortedByScore(assignmentIndex);
+        Assert.assertEquals(3, sorted.length);
+        Assert.assertEquals("matrixStudent3", gradeMatrix.getStudentUid(sorted[0]));
+        Assert.assertEquals("matrixStudent2", gradeMatrix.getStudentUid(sorted[1]));
+        Assert.assertEquals("matrixStudent1", gradeMatrix.getStudentUid(sorted[2]));
+
+        // Transient records match the persistent ones
+        Map studentGradeRecordMap = gradeMatrix.getGradeRecordMap("matrixStudent2");
+        AssignmentGradeRecord gradeRecord = (AssignmentGradeRecord)studentGradeRecordMap.get(asgId);
+        Assert.assertEquals(4.0, gradeRecord.getPointsEarned().doubleValue(), .001);
+        Assert.assertEquals("matrixStudent2", gradeRecord.getStudentId());
+    }
+
+    public void testDroppedGradeRecords() throws Exception {
+        // Drop the lowest and the highest score of each student in the category
+        Long catId = gradebookManager.createCategory(gradebook.getId(), "Drop Test", new Double(0), 1, 1, 0, false);
+        Assignment[] asns = new Assignment[4];
+        for (int i = 0; i < asns.length; i++) {
+            Long asgId = gradebookManager.createAssignmentForCategory(gradebook.getId(), catId, "Drop Test " + i, new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+            asns[i] = gradebookManager.getAssignment(asgId);
+        }
+
+        List gradeRecords = new ArrayList();
+        AssignmentGradeRecord lowest = new AssignmentGradeRecord(asns[0], "dropStudent1", new Double(2));
+        AssignmentGradeRecord highest = new AssignmentGradeRecord(asns[3], "dropStudent1", new Double(9));
+        gradeRecords.add(lowest);
+        gradeRecords.add(new AssignmentGradeRecord(asns[1], "dropStudent1", new Double(5)));
+        gradeRecords.add(new AssignmentGradeRecord(asns[2], "dropStudent1", new Double(8)));
+        gradeRecords.add(highest);
+        // Too few scores to drop any
+        gradeRecords.add(new AssignmentGradeRecord(asns[0], "dropStudent2", new Double(1)));
+        gradeRecords.add(new AssignmentGradeRecord(asns[1], "dropStudent2", new Double(10)));
+        gradeRecords.add(new AssignmentGradeRecord(asns[2], "dropStudent2", null));
+
+        Set dropped = gradebookManager.getDroppedGradeRecords(gradeRecords);
+        Assert.assertEquals(2, dropped.size());
+        Assert.assertTrue(dropped.contains(lowest));
+        Assert.assertTrue(dropped.contains(highest));
+        // The grade records themselves are left alone
+        Assert.assertFalse(Boolean.TRUE.equals(lowest.getDroppedFromGrade()));
+
+        gradebookManager.applyDropScores(gradeRecords);
+        for (Iterator iter = gradeRecords.iterator(); iter.hasNext(); ) {
+            AssignmentGradeRecord gradeRecord = (AssignmentGradeRecord)iter.next();
+            if (gradeRecord.getPointsEarned() != null) {
+                Assert.assertEquals(dropped.contains(gradeRecord), gradeRecord.getDroppedFromGrade().booleanValue());
+            }
+        }
+    }
+
+    public void testGradebookSnapshot() throws Exception {
+        gradebookManager.createAssignment(gradebook.getId(), "Snapshot Test 1", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+
+        GradebookSnapshot snapshot = GradebookSnapshot.open();
+        try {
+            List assignments = gradebookManager.getAssignments(gradebook.getId());
+            int numAssignments = assignments.size();
+            Assert.assertEquals(0, snapshot.getHits());
+            gradebookManager.getAssignments(gradebook.getId());
+            Assert.assertEquals(1, snapshot.getHits());
+
+            // The lists handed out are copies
+            assignments.clear();
+            Assert.assertEquals(numAssignments, gradebookManager.getAssignments(gradebook.getId()).size());
+
+            // Changing the gradebook drops what the snapshot holds
+            gradebookManager.createAssignment(gradebook.getId(), "Snapshot Test 2", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+            Assert.assertEquals(numAssignments + 1, gradebookManager.getAssignments(gradebook.getId()).size());
+        } finally {
+            snapshot.close();
+        }
+        Assert.assertNull(GradebookSnapshot.getCurrent());
+    }
+
+    public void testStoredCourseGrade() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"storedGradeStudent"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Stored Grade Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        Assignment asn = gradebookManager.getAssignment(asnId);
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "storedGradeStudent", new Double(8)));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+
+        // The first read calculates the course grade and stores it
+        CourseGradeRecord cgr = gradebookManager.getStudentCourseGradeRecord(gradebook, "storedGradeStudent");
+        Assert.assertEquals(8.0, cgr.getPointsEarned().doubleValue(), 0.001);
+        HibernateTemplate hibernateTemplate = new HibernateTemplate((SessionFactory)applicationContext.getBean("gradebookSessionFactory"));
+        List storedGrades = hibernateTemplate.find("from CachedCourseGrade as ccg where ccg.studentId=?", "storedGradeStudent");
+        Assert.assertEquals(1, storedGrades.size());
+        CachedCourseGrade storedGrade = (CachedCourseGrade)storedGrades.get(0);
+        Assert.assertFalse(storedGrade.isStale());
+        Assert.assertEquals(80.0, storedGrade.getPercent().doubleValue(), 0.001);
+
+        // The next read is served from the stored grade
+        cgr = gradebookManager.getStudentCourseGradeRecord(gradebook, "storedGradeStudent");
+        Assert.assertEquals(8.0, cgr.getPointsEarned().doubleValue(), 0.001);
+
+        // Saving a score makes the next read recalculate
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(asn, studentUidsList);
+        ((AssignmentGradeRecord)persistentGradeRecords.get(0)).setPointsEarned(new Double(5));
+        gradebookManager.updateAssignmentGradeRecords(asn, persistentGradeRecords);
+        cgr = gradebookManager.getStudentCourseGradeRecord(gradebook, "storedGradeStudent");
+        Assert.assertEquals(5.0, cgr.getPointsEarned().doubleValue(), 0.001);
+        storedGrades = hibernateTemplate.find("from CachedCourseGrade as ccg where ccg.studentId=?", "storedGradeStudent");
+        Assert.assertEquals(1, storedGrades.size());
+        Assert.assertEquals(50.0, ((CachedCourseGrade)storedGrades.get(0)).getPercent().doubleValue(), 0.001);
+    }
+
+    public void testBackgroundRecalculation() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"recalcStudent1", "recalcStudent2"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Recalculation Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        Assignment asn = gradebookManager.getAssignment(asnId);
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "recalcStudent1", new Double(8)));
+        gradeRecords.add(new AssignmentGradeRecord(asn, "recalcStudent2", new Double(4)));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+
+        // Several structural changes are queued and recalculated together
+        gradebookManager.updateGradebook(gradebook);
+        asn = gradebookManager.getAssignment(asnId);
+        asn.setPointsPossible(new Double(20));
+        gradebookManager.updateAssignment(asn);
+        Assert.assertFalse(gradebookManager.isCourseGradeCurrent(gradebook.getId()));
+        Date now = new Date();
+        Assert.assertFalse(gradebookManager.getGradebooksAwaitingRecalculation(new Date(now.getTime() - 60000), new Date(now.getTime() - 60000)).contains(gradebook.getId()));
+        Assert.assertTrue(gradebookManager.getGradebooksAwaitingRecalculation(new Date(now.getTime() + 1000), new Date(0)).contains(gradebook.getId()));
+
+        Assert.assertTrue(gradebookManager.recalculateCourseGrades(gradebook.getId()));
+        Assert.assertTrue(gradebookManager.isCourseGradeCurrent(gradebook.getId()));
+        Assert.assertFalse(gradebookManager.recalculateCourseGrades(gradebook.getId()));
+
+        HibernateTemplate hibernateTemplate = new HibernateTemplate((SessionFactory)applicationContext.getBean("gradebookSessionFactory"));
+        List storedGrades = hibernateTemplate.find("from CachedCourseGrade as ccg where ccg.studentId=?", "recalcStudent1");
+        Assert.assertEquals(1, storedGrades.size());
+        Assert.assertEquals(asn.getPointsPossible().doubleValue(), ((CachedCourseGrade)storedGrades.get(0)).getPointsPossible().doubleValue(), 0.001);
+        storedGrades = hibernateTemplate.find("from CachedCourseGrade as ccg where ccg.studentId=?", "recalcStudent2");
+        Assert.assertEquals(1, storedGrades.size());
+
+        // The student view uses the stored grade
+        CourseGradeRecord cgr = gradebookManager.getStudentCourseGradeRecord(gradebook, "recalcStudent2");
+        Assert.assertEquals(((CachedCourseGrade)storedGrades.get(0)).getPointsEarned().doubleValue(), cgr.getPointsEarned().doubleValue(), 0.001);
+    }
+
+    public void testGradeChangeOutbox() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"outboxStudent1", "outboxStudent2"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Outbox Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        Assignment asn = gradebookManager.getAssignment(asnId);
+        Date future = new Date(System.currentTimeMillis() + 60000);
+        List<GradeChange> changes = gradebookManager.getGradeChanges(gradebook.getId(), null, 100);
+        long cursor = changes.isEmpty() ? 0 : changes.get(changes.size() - 1).getId().longValue();
+
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "outboxStudent1", new Double(8)));
+        gradeRecords.add(new AssignmentGradeRecord(asn, "outboxStudent2", new Double(6)));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+        List comments = new ArrayList();
+        comments.add(new Comment("outboxStudent2", "Late", asn));
+        gradebookManager.updateComments(comments);
+
+        // Read the new changes a page at a time
+        changes = gradebookManager.getGradeChanges(gradebook.getId(), new Long(cursor), 2);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(GradeChange.TYPE_SCORE, changes.get(0).getChangeType());
+        Assert.assertEquals(asnId, changes.get(0).getGradableObjectId());
+        Assert.assertTrue(changes.get(0).getId().longValue() < changes.get(1).getId().longValue());
+        cursor = changes.get(1).getId().longValue();
+        changes = gradebookManager.getGradeChanges(gradebook.getId(), new Long(cursor), 2);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(GradeChange.TYPE_COMMENT, changes.get(0).getChangeType());
+        Assert.assertEquals("outboxStudent2", changes.get(0).getStudentId());
+        Assert.assertNull(changes.get(0).getGrade());
+
+        // Changes are counted in the gradebook version, and old ones can be removed
+        Assert.assertTrue(gradebookManager.getGradebookVersion(gradebook.getId()) > 0);
+        Assert.assertTrue(gradebookManager.removeGradeChanges(future) >= 3);
+        Assert.assertTrue(gradebookManager.getGradeChanges(gradebook.getId(), null, 100).isEmpty());
+    }
+
+    public void testGradebookVersion() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"versionStudent1"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        long version = gradebookManager.getGradebookVersion(gradebook.getId());
+
+        // The first change counts
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Version Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        long afterCreate = gradebookManager.getGradebookVersion(gradebook.getId());
+        Assert.assertEquals(version + 1, afterCreate);
+
+        // Scores, comments and item changes in the same transaction are counted with it
+        Assignment asn = gradebookManager.getAssignment(asnId);
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn, "versionStudent1", new Double(7)));
+        gradebookManager.updateAssignmentGradeRecords(asn, gradeRecords);
+
+        List comments = new ArrayList();
+        comments.add(new Comment("versionStudent1", "Nice", asn));
+        gradebookManager.updateComments(comments);
+
+        asn = gradebookManager.getAssignment(asnId);
+        asn.setName("Version Test Renamed");
+        gradebookManager.updateAssignment(asn);
+        Assert.assertEquals(afterCreate, gradebookManager.getGradebookVersion(gradebook.getId()));
+
+        // Reads leave it alone
+        long current = gradebookManager.getGradebookVersion(gradebook.getId());
+        gradebookManager.getAssignmentsWithStats(gradebook.getId(), Assignment.DEFAULT_SORT, true);
+        Assert.assertEquals(current, gradebookManager.getGradebookVersion(gradebook.getId()));
+    }
+
+    public void testGradebookVersionOfServiceWrites() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"serviceVersionStudent1"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        gradebookExternalAssessmentService.addExternalAssessment(gradebook.getUid(), "versionExt1", null, "Service Version Test", new Double(10), new Date(), "Samigo", Boolean.FALSE);
+        gradebookExternalAssessmentService.updateExternalAssessmentScore(gradebook.getUid(), "versionExt1", "serviceVersionStudent1", "5");
+        long version = gradebookManager.getGradebookVersion(gradebook.getId());
+
+        // Writes by other tools through the gradebook services are counted as their transaction commits
+        TransactionSynchronizationUtils.triggerBeforeCommit(false);
+        Assert.assertEquals(version + 1, gradebookManager.getGradebookVersion(gradebook.getId()));
+    }
+
+    public void testRemovedItems() throws Exception {
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Removal Test", new Double(10), new Date(), Boolean.FALSE, Boolean.FALSE, Boolean.FALSE);
+        gradebookExternalAssessmentService.addExternalAssessment(gradebook.getUid(), "removalExt1", null, "External Removal Test", new Double(10), new Date(), "Samigo", Boolean.FALSE);
+        Long extAsnId = null;
+        for (Iterator iter = gradebookManager.getAssignments(gradebook.getId()).iterator(); iter.hasNext(); ) {
+            Assignment asn = (Assignment)iter.next();
+            if ("External Removal Test".equals(asn.getName())) {
+                extAsnId = asn.getId();
+            }
+        }
+        Assert.assertNotNull(extAsnId);
+
+        // Removals are recorded as they are written, by the tool and by other tools alike
+        gradebookManager.removeAssignment(asnId);
+        gradebookExternalAssessmentService.removeExternalAssessment(gradebook.getUid(), "removalExt1");
+        HibernateTemplate hibernateTemplate = new HibernateTemplate((SessionFactory)applicationContext.getBean("gradebookSessionFactory"));
+        hibernateTemplate.flush();
+        RemovedItem removedItem = (RemovedItem)hibernateTemplate.get(RemovedItem.class, asnId);
+        Assert.assertEquals("Removal Test", removedItem.getItemName());
+        Assert.assertEquals(gradebook.getId(), removedItem.getGradebookId());
+        removedItem = (RemovedItem)hibernateTemplate.get(RemovedItem.class, extAsnId);
+        Assert.assertEquals("External Removal Test", removedItem.getItemName());
+    }
+
+    public void testUserCache() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"cacheStudent1", "cacheStudent2", "cacheStudent3"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        UserCache userCache = new UserCache();
+        userCache.setUserDirectoryService(userDirectoryService);
+        userCache.setMaxEntries(2);
+
+        // The first lookup goes to the directory, the next ones do not
+        String displayName = userDirectoryService.getUserDisplayName("cacheStudent1");
+        Assert.assertEquals(displayName, userCache.getUserDisplayName("cacheStudent1"));
+        Assert.assertEquals(displayName, userCache.getUserDisplayName("cacheStudent1"));
+        Assert.assertEquals(1, userCache.getMisses());
+        Assert.assertEquals(1, userCache.getHits());
+        Assert.assertEquals(0.5, userCache.getHitRate(), 0.001);
+
+        // A bulk lookup only goes to the directory for the users not held
+        Map displayNames = userCache.getUserDisplayNames(Arrays.asList(new String[] {"cacheStudent1", "cacheStudent2"}));
+        Assert.assertEquals(2, displayNames.size());
+        Assert.assertEquals(userDirectoryService.getUserDisplayName("cacheStudent2"), displayNames.get("cacheStudent2"));
+        Assert.assertEquals(2, userCache.getMisses());
+        Assert.assertEquals(2, userCache.getHits());
+
+        // It never holds more than its limit, the oldest names make room for the new one
+        userCache.getUserDisplayName("cacheStudent3");
+        Assert.assertTrue(userCache.getSize() <= 2);
+        userCache.getUserDisplayName("cacheStudent3");
+        Assert.assertEquals(3, userCache.getMisses());
+
+        userCache.evict("cacheStudent3");
+        userCache.getUserDisplayName("cacheStudent3");
+        Assert.assertEquals(4, userCache.getMisses());
+    }
+
+    private Map getCourseGradeRecordMap(CourseGrade courseGrade, List studentUids) {
+        Map courseGradeRecordMap = new HashMap();
+        List courseGradeRecords = gradebookManager.getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
+        for (Iterator iter = courseGradeRecords.iterator(); iter.hasNext(); ) {
+            CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+            courseGradeRecordMap.put(cgr.getStudentId(), cgr);
+        }
+        return courseGradeRecordMap;
+    }
+
     public void testNewExcessiveScores() throws Exception {
 		List studentUidsList = Arrays.asList(new String[] {
 			"normalStudent",
@@ -234,6 +611,135 @@ public class GradeManagerTest extends GradebookTestBase {
         Assert.assertEquals(events.getEvents(studentId).size(), 2);
     }
 
+    public void testGradeRecordsForSomeStudents() throws Exception {
+        gradebookManager.createAssignment(gradebook.getId(), "Subset Test", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Assignment assignment = (Assignment)gradebookManager.getAssignments(gradebook.getId()).get(0);
+
+        List gradeRecords = new ArrayList();
+        for (int i = 0; i < 10; i++) {
+            gradeRecords.add(new AssignmentGradeRecord(assignment, "subsetStudent" + i, new Double(10 - i)));
+        }
+        gradebookManager.updateAssignmentGradeRecords(assignment, gradeRecords);
+
+        // Only the requested students are returned, once each, lowest score first
+        List section = Arrays.asList(new String[] {"subsetStudent1", "subsetStudent3", "subsetStudent1", "notGraded"});
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(assignment, section);
+        Assert.assertEquals(2, persistentGradeRecords.size());
+        Assert.assertEquals("subsetStudent3", ((AssignmentGradeRecord)persistentGradeRecords.get(0)).getStudentId());
+        Assert.assertEquals("subsetStudent1", ((AssignmentGradeRecord)persistentGradeRecords.get(1)).getStudentId());
+
+        Assert.assertEquals(2, gradebookManager.getAllAssignmentGradeRecords(gradebook.getId(), section).size());
+        GradingEvents events = gradebookManager.getGradingEvents(assignment, section);
+        Assert.assertEquals(1, events.getEvents("subsetStudent1").size());
+        Assert.assertEquals(1, events.getEvents("subsetStudent3").size());
+    }
+
+    public void testRescaleScoresForNewPointsPossible() throws Exception {
+        gradebook.setGrade_type(GradebookService.GRADE_TYPE_PERCENTAGE);
+        gradebookManager.updateGradebook(gradebook);
+        Long asnId = gradebookManager.createAssignment(gradebook.getId(), "Rescale Test", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Assignment assignment = gradebookManager.getAssignment(asnId);
+
+        List studentUidsList = Arrays.asList(new String[] {"rescaleStudent1", "rescaleStudent2"});
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(assignment, "rescaleStudent1", new Double(5)));
+        gradeRecords.add(new AssignmentGradeRecord(assignment, "rescaleStudent2", new Double(10)));
+        gradebookManager.updateAssignmentGradeRecords(assignment, gradeRecords);
+
+        gradebookManager.convertGradePointsForUpdatedTotalPoints(gradebook, assignment, new Double(20), studentUidsList);
+
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(assignment, studentUidsList);
+        Assert.assertEquals(2, persistentGradeRecords.size());
+        Assert.assertEquals(new Double(10), ((AssignmentGradeRecord)persistentGradeRecords.get(0)).getPointsEarned());
+        Assert.assertEquals(new Double(20), ((AssignmentGradeRecord)persistentGradeRecords.get(1)).getPointsEarned());
+        GradingEvents events = gradebookManager.getGradingEvents(assignment, studentUidsList);
+        Assert.assertEquals(2, events.getEvents("rescaleStudent1").size());
+    }
+
+    public void testBatchedGradeEvents() throws Exception {
+        // Enough students to need more than one flush, with a partial last batch
+        int numStudents = GradebookManagerHibernateImpl.DEFAULT_WRITE_BATCH_SIZE * 2 + 7;
+        List studentUidsList = new ArrayList();
+        for (int i = 0; i < numStudents; i++) {
+            studentUidsList.add("batchStudent" + i);
+        }
+        gradebookManager.createAssignment(gradebook.getId(), "Batched GradingEvent Test", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Assignment assignment = (Assignment)gradebookManager.getAssignments(gradebook.getId()).get(0);
+
+        List gradeRecords = new ArrayList();
+        for (Iterator iter = studentUidsList.iterator(); iter.hasNext(); ) {
+            gradeRecords.add(new AssignmentGradeRecord(assignment, (String)iter.next(), new Double(9)));
+        }
+        gradebookManager.updateAssignmentGradeRecords(assignment, gradeRecords);
+
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(assignment, new HashSet(studentUidsList));
+        Assert.assertEquals(numStudents, persistentGradeRecords.size());
+        for (Iterator iter = persistentGradeRecords.iterator(); iter.hasNext(); ) {
+            AssignmentGradeRecord gradeRecord = (AssignmentGradeRecord)iter.next();
+            Assert.assertEquals(new Double(9), gradeRecord.getPointsEarned());
+            gradeRecord.setPointsEarned(new Double(10));
+        }
+        gradebookManager.updateAssignmentGradeRecords(assignment, persistentGradeRecords);
+
+        persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(assignment, new HashSet(studentUidsList));
+        for (Iterator iter = persistentGradeRecords.iterator(); iter.hasNext(); ) {
+            Assert.assertEquals(new Double(10), ((AssignmentGradeRecord)iter.next()).getPointsEarned());
+        }
+
+        // Every save is logged, including those of the last, partial batch
+        GradingEvents events = gradebookManager.getGradingEvents(assignment, studentUidsList);
+        for (Iterator iter = studentUidsList.iterator(); iter.hasNext(); ) {
+            Assert.assertEquals(2, events.getEvents((String)iter.next()).size());
+        }
+    }
+
+    public void testFinalizeScores() throws Exception {
+        List studentUidsList = Arrays.asList(new String[] {"finalStudent1", "finalStudent2", "finalStudent3"});
+        addUsersEnrollments(gradebook, studentUidsList);
+        Long asn1Id = gradebookManager.createAssignment(gradebook.getId(), "Finalize Test 1", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Long asn2Id = gradebookManager.createAssignment(gradebook.getId(), "Finalize Test 2", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
+        Long notCountedId = gradebookManager.createAssignment(gradebook.getId(), "Finalize Not Counted", new Double(10), new Date(), Boolean.TRUE,Boolean.FALSE,Boolean.FALSE);
+        Assignment asn1 = gradebookManager.getAssignment(asn1Id);
+
+        // One score, one empty score and one student with no grade record at all
+        List gradeRecords = new ArrayList();
+        gradeRecords.add(new AssignmentGradeRecord(asn1, "finalStudent1", new Double(7)));
+        gradeRecords.add(new AssignmentGradeRecord(asn1, "finalStudent2", null));
+        gradebookManager.updateAssignmentGradeRecords(asn1, gradeRecords);
+        Assert.assertTrue(gradebookManager.checkStuendsNotSubmitted(gradebook));
+
+        List summaries = gradebookManager.fillInZeroForNullGradeRecords(gradebook);
+        Assert.assertEquals(2, summaries.size());
+        for (Iterator iter = summaries.iterator(); iter.hasNext(); ) {
+            FinalizedAssignmentSummary summary = (FinalizedAssignmentSummary)iter.next();
+            if (summary.getAssignmentId().equals(asn1Id)) {
+                Assert.assertEquals(1, summary.getNumRecordsCreated());
+                Assert.assertEquals(1, summary.getNumScoresZeroed());
+            } else {
+                Assert.assertEquals(asn2Id, summary.getAssignmentId());
+                Assert.assertEquals(3, summary.getNumRecordsCreated());
+                Assert.assertEquals(0, summary.getNumScoresZeroed());
+            }
+        }
+        Assert.assertFalse(gradebookManager.checkStuendsNotSubmitted(gradebook));
+
+        List persistentGradeRecords = gradebookManager.getAssignmentGradeRecords(asn1, studentUidsList);
+        Assert.assertEquals(3, persistentGradeRecords.size());
+        Assert.assertEquals(new Double(0), ((AssignmentGradeRecord)persistentGradeRecords.get(0)).getPointsEarned());
+        Assert.assertEquals(new Double(0), ((AssignmentGradeRecord)persistentGradeRecords.get(1)).getPointsEarned());
+        Assert.assertEquals(new Double(7), ((AssignmentGradeRecord)persistentGradeRecords.get(2)).getPointsEarned());
+        Assert.assertEquals(0, gradebookManager.getAssignmentGradeRecords(gradebookManager.getAssignment(notCountedId), studentUidsList).size());
+        GradingEvents events = gradebookManager.getGradingEvents(asn1, studentUidsList);
+        Assert.assertEquals(2, events.getEvents("finalStudent2").size());
+        Assert.assertEquals(1, events.getEvents("finalStudent3").size());
+
+        // Finalizing again changes nothing
+        summaries = gradebookManager.fillInZeroForNullGradeRecords(gradebook);
+        for (Iterator iter = summaries.iterator(); iter.hasNext(); ) {
+            Assert.assertFalse(((FinalizedAssignmentSummary)iter.next()).isChanged());
+        }
+    }
+
     public void testDroppedStudents() throws Exception {
         Gradebook gradebook = gradebookManager.getGradebook(this.getClass().getName());
         Long asgId = gradebookManager.createAssignment(gradebook.getId(), "Dropped Students Test", new Double(10), new Date(), Boolean.FALSE,Boolean.FALSE,Boolean.FALSE);
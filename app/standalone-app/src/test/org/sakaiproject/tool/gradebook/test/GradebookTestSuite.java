@@ -37,6 +37,7 @@ public class GradebookTestSuite extends TestCase {
 		suite.addTestSuite(CalculationsTest.class);
 		suite.addTestSuite(GradeCommentTest.class);
 		suite.addTestSuite(SpreadsheetTest.class);
+		suite.addTestSuite(SpreadsheetRowReaderTest.class);
 		suite.addTestSuite(GradeMappingTest.class);
 		suite.addTestSuite(GradebookServiceTest.class);
 		suite.addTestSuite(GradebookServiceInternalTest.class);
@@ -0,0 +1,122 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.sakaiproject.tool.gradebook.ui.SpreadsheetRowReader;
+import org.sakaiproject.tool.gradebook.ui.SpreadsheetRowReaderCsv;
+import org.sakaiproject.tool.gradebook.ui.SpreadsheetRowReaderXls;
+import org.sakaiproject.tool.gradebook.ui.SpreadsheetRowReaderXlsx;
+
+/**
+ * Reads small CSV, XLS and XLSX imports and checks the rows handed over.
+ */
+public class SpreadsheetRowReaderTest extends TestCase {
+
+	public void testReadCsv() throws Exception {
+		String csv = "\uFEFFStudent ID,Student Name,\"Quiz, 1\",Essay,\r\n" +
+			"student1,\"Smith, Ann\",8,\"said \"\"hi\"\"\",\r\n" +
+			"\r\n" +
+			"student2,\"Two\nLines\",7.5,,\r\n";
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		new SpreadsheetRowReaderCsv(',').read(new StringReader(csv), new SpreadsheetRowReader.RowHandler() {
+			public void handleRow(List<String> row) {
+				rows.add(row);
+			}
+		});
+
+		Assert.assertEquals(4, rows.size());
+		Assert.assertEquals(Arrays.asList(new String[] {"Student ID", "Student Name", "Quiz, 1", "Essay"}), rows.get(0));
+		Assert.assertEquals(Arrays.asList(new String[] {"student1", "Smith, Ann", "8", "said \"hi\""}), rows.get(1));
+		Assert.assertTrue(SpreadsheetRowReader.isBlankRow(rows.get(2)));
+		Assert.assertEquals(Arrays.asList(new String[] {"student2", "Two\nLines", "7.5", ""}), rows.get(3));
+	}
+
+	public void testReadXls() throws Exception {
+		HSSFWorkbook wb = new HSSFWorkbook();
+		HSSFSheet sheet = wb.createSheet();
+		HSSFRow header = sheet.createRow(0);
+		header.createCell(0).setCellValue("Student ID");
+		header.createCell(1).setCellValue("Quiz 1");
+		header.createCell(2).setCellValue("Essay");
+		HSSFRow student = sheet.createRow(1);
+		student.createCell(0).setCellValue("student1");
+		student.createCell(2).setCellValue(7.5);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		wb.write(out);
+
+		List<List<String>> rows = read(new SpreadsheetRowReaderXls(NumberFormat.getInstance(Locale.US)), out.toByteArray());
+
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(Arrays.asList(new String[] {"Student ID", "Quiz 1", "Essay"}), rows.get(0));
+		Assert.assertEquals(Arrays.asList(new String[] {"student1", "", "7.5"}), rows.get(1));
+	}
+
+	public void testReadXlsx() throws Exception {
+		XSSFWorkbook wb = new XSSFWorkbook();
+		XSSFSheet sheet = wb.createSheet();
+		XSSFRow header = sheet.createRow(0);
+		header.createCell(0).setCellValue("Student ID");
+		header.createCell(1).setCellValue("Quiz 1");
+		header.createCell(2).setCellValue("Essay");
+		XSSFRow student = sheet.createRow(1);
+		student.createCell(0).setCellValue("student1");
+		student.createCell(2).setCellValue(8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		wb.write(out);
+
+		List<List<String>> rows = read(new SpreadsheetRowReaderXlsx(NumberFormat.getInstance(Locale.US)), out.toByteArray());
+
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(Arrays.asList(new String[] {"Student ID", "Quiz 1", "Essay"}), rows.get(0));
+		// The missing cell between the two is filled in
+		Assert.assertEquals(Arrays.asList(new String[] {"student1", "", "8"}), rows.get(1));
+	}
+
+	private List<List<String>> read(SpreadsheetRowReader reader, byte[] content) throws Exception {
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		reader.read(new ByteArrayInputStream(content), new SpreadsheetRowReader.RowHandler() {
+			public void handleRow(List<String> row) {
+				rows.add(row);
+			}
+		});
+		return rows;
+	}
+}
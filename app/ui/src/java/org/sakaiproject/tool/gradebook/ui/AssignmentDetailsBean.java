@@ -358,11 +358,9 @@ public class AssignmentDetailsBean extends EnrollmentTableBean {
 						scoreSortedStudentUids.add(agr.getStudentId());
 					}
 
-					// Put enrollments with no scores at the beginning of the final list.
-					studentUids.removeAll(scoreSortedStudentUids);
-
-					// Add all sorted enrollments with scores into the final list
-					studentUids.addAll(scoreSortedStudentUids);
+					// Put enrollments with no scores at the beginning of the final list,
+					// followed by all sorted enrollments with scores.
+					studentUids = moveScoreSortedToEnd(studentUids, scoreSortedStudentUids);
 
 					studentUids = finalizeSortingAndPaging(studentUids);
 				}
@@ -23,6 +23,7 @@
 package org.sakaiproject.tool.gradebook.ui;
 
 import java.math.BigDecimal;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,8 +45,6 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.component.cover.ServerConfigurationService;
-import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterCsv;
-import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterXls;
 import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterPdf;
 import org.sakaiproject.jsf.spreadsheet.SpreadsheetUtil;
 import org.sakaiproject.section.api.coursemanagement.EnrollmentRecord;
@@ -291,11 +290,9 @@ public class CourseGradeDetailsBean extends EnrollmentTableBean {
 				scoreSortedStudentUids.add(cgr.getStudentId());
 			}
 
-			// Put enrollments with no scores at the beginning of the final list.
-			studentUids.removeAll(scoreSortedStudentUids);
-
-			// Add all sorted enrollments with scores into the final list
-			studentUids.addAll(scoreSortedStudentUids);
+			// Put enrollments with no scores at the beginning of the final list,
+			// followed by all sorted enrollments with scores.
+			studentUids = moveScoreSortedToEnd(studentUids, scoreSortedStudentUids);
 
 			studentUids = finalizeSortingAndPaging(studentUids);
 		}
@@ -445,19 +442,22 @@ public class CourseGradeDetailsBean extends EnrollmentTableBean {
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadCourseGrade","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
         if(exportType.equalsIgnoreCase("CSV")){
         	 if(logger.isInfoEnabled()) logger.info("exporting course grade as CSV for gradebook " + getGradebookUid());
-             SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData("csv", fields), 
-             		getDownloadFileName(getLocalizedString("export_course_grade_prefix")), 
-             		new SpreadsheetDataFileWriterCsv());
+             downloadSpreadsheet("csv", fields, new SpreadsheetRowWriterCsv());
         }
         else if(exportType.equalsIgnoreCase("Excel")){
         	if(logger.isInfoEnabled()) logger.info("exporting course grade as Excel for gradebook " + getGradebookUid());
-            SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData("excel", fields), 
-            		getDownloadFileName(getLocalizedString("export_course_grade_prefix")), 
-            		new SpreadsheetDataFileWriterXls());
+            downloadSpreadsheet("excel", fields, new SpreadsheetRowWriterXlsx());
         }
         else if(exportType.equalsIgnoreCase("PDF")){
         	if(logger.isInfoEnabled()) logger.info("exporting course grade as PDF for gradebook " + getGradebookUid());
-            SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData("pdf", fields), 
+        	// the PDF writer lays out the whole table at once
+        	SpreadsheetRowCollector collector = new SpreadsheetRowCollector();
+        	try {
+        		writeSpreadsheetData("pdf", fields, collector);
+        	} catch (IOException e) {
+        		logger.error("Unable to build the course grade export for gradebook " + getGradebookUid(), e);
+        	}
+            SpreadsheetUtil.downloadSpreadsheetData(collector.getSpreadsheetData(), 
             		getDownloadFileName(getLocalizedString("export_course_grade_prefix")), 
             		new SpreadsheetDataFileWriterPdf());
         }
@@ -472,9 +472,18 @@ public class CourseGradeDetailsBean extends EnrollmentTableBean {
 		String stringFields = ServerConfigurationService.getString("gradebook.institutional.export.fields",defaultFields);
 		String[] fields = stringFields.replaceAll("\\s","").toLowerCase().split(",");
 		if (fields.length == 0) fields = defaultFields.split(",");        
-        SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData("customCsv", Arrays.asList(fields)), 
-        		getDownloadFileName(getLocalizedString("export_course_grade_prefix")), 
-        		new SpreadsheetDataFileWriterCsv());
+        downloadSpreadsheet("customCsv", Arrays.asList(fields), new SpreadsheetRowWriterCsv());
+    }
+
+    private void downloadSpreadsheet(String type, List<String> fields, SpreadsheetRowWriter writer) {
+        try {
+        	writer.startDownload(getDownloadFileName(getLocalizedString("export_course_grade_prefix")));
+        	writeSpreadsheetData(type, fields, writer);
+        	writer.finishDownload();
+        } catch (IOException e) {
+        	logger.error("Unable to write the course grade export for gradebook " + getGradebookUid(), e);
+        	writer.abortDownload();
+        }
     }
 	
     //Export custom grade label
@@ -482,19 +491,16 @@ public class CourseGradeDetailsBean extends EnrollmentTableBean {
 		return ServerConfigurationService.getString("gradebook.institutional.export.label",getLocalizedString("course_grade_details_export_course_grades_institution"));
     }
     
-    private List<List<Object>> getSpreadsheetData(String type, List<String> fields) {
-    	// Get the full list of filtered enrollments and scores (not just the current page's worth).
+    /**
+     * Write the course grade export through the given row writer, reading the course grades
+     * and converting them one chunk of students at a time.
+     */
+    private void writeSpreadsheetData(String type, List<String> fields, SpreadsheetRowWriter writer) throws IOException {
+    	// Get the full list of filtered enrollments (not just the current page's worth).
     	List<EnrollmentRecord> filteredEnrollments = new ArrayList(getWorkingEnrollmentsForCourseGrade().keySet());
     	Collections.sort(filteredEnrollments, ENROLLMENT_NAME_COMPARATOR);
-    	Set<String> studentUids = new HashSet<String>();
-    	for (EnrollmentRecord enrollment : filteredEnrollments) {
-    		studentUids.add(enrollment.getUser().getUserUid());
-    	}
 
 		CourseGrade courseGrade = getGradebookManager().getCourseGrade(getGradebookId());
-		List<CourseGradeRecord> courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
-		Map<String, CourseGradeRecord> filteredGradesMap = new HashMap<String, CourseGradeRecord>();
-		getGradebookManager().addToGradeRecordMap(filteredGradesMap, courseGradeRecords);
 		CourseGradesToSpreadsheetConverter converter = null;
 		//For institutional customized export format SAK-22204
 		if (type.startsWith("custom")){
@@ -502,7 +508,33 @@ public class CourseGradeDetailsBean extends EnrollmentTableBean {
 		} else {
 			converter = (CourseGradesToSpreadsheetConverter)getGradebookBean().getConfigurationBean().getPlugin(courseGradesConverterPlugin);
 		}
-		return converter.getSpreadsheetData(filteredEnrollments, courseGrade, filteredGradesMap, fields);
+
+		// The converter puts its header rows before one row per student: they
+		// are written from the first chunk, and only the student rows after it
+		boolean headerWritten = false;
+		for (int i = 0; i < filteredEnrollments.size(); i += EXPORT_STUDENT_CHUNK_SIZE) {
+			List<EnrollmentRecord> enrollmentChunk = filteredEnrollments.subList(i, Math.min(i + EXPORT_STUDENT_CHUNK_SIZE, filteredEnrollments.size()));
+			Set<String> studentUids = new HashSet<String>();
+			for (EnrollmentRecord enrollment : enrollmentChunk) {
+				studentUids.add(enrollment.getUser().getUserUid());
+			}
+
+			List<CourseGradeRecord> courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
+			Map<String, CourseGradeRecord> filteredGradesMap = new HashMap<String, CourseGradeRecord>();
+			getGradebookManager().addToGradeRecordMap(filteredGradesMap, courseGradeRecords);
+
+			List<List<Object>> rows = converter.getSpreadsheetData(enrollmentChunk, courseGrade, filteredGradesMap, fields);
+			for (int r = headerWritten ? rows.size() - enrollmentChunk.size() : 0; r < rows.size(); r++) {
+				writer.writeRow(rows.get(r));
+			}
+			headerWritten = true;
+		}
+		if (!headerWritten) {
+			// No students, just the header
+			for (List<Object> headerRow : converter.getSpreadsheetData(new ArrayList<EnrollmentRecord>(), courseGrade, new HashMap<String, CourseGradeRecord>(), fields)) {
+				writer.writeRow(headerRow);
+			}
+		}
     }
 
 	public List getScoreRows() {
@@ -31,10 +31,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.faces.context.FacesContext;
 import javax.faces.event.ActionEvent;
@@ -47,7 +49,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.section.api.coursemanagement.CourseSection;
 import org.sakaiproject.section.api.coursemanagement.EnrollmentRecord;
-import org.sakaiproject.service.gradebook.shared.UnknownUserException;
 import org.sakaiproject.tool.gradebook.Category;
 import org.sakaiproject.tool.gradebook.GradingEvent;
 import org.sakaiproject.tool.gradebook.jsf.FacesUtil;
@@ -102,6 +103,9 @@ public abstract class EnrollmentTableBean
         }
     };
 
+	// Number of students whose grade records are read at a time when exporting
+	protected static final int EXPORT_STUDENT_CHUNK_SIZE = 200;
+
 	public static final int ALL_SECTIONS_SELECT_VALUE = -1;
 	public static final int ALL_CATEGORIES_SELECT_VALUE = -1;
 
@@ -414,17 +418,48 @@ public abstract class EnrollmentTableBean
 		return enrollmentMap;
 	}
 
+	/**
+	 * Move the score sorted entries to the end of the list, leaving the entries
+	 * without scores at the beginning in their current order.
+	 *
+	 * @param list - enrollments or student uids
+	 * @param scoreSortedList - the entries of the list which have a score, in score order
+	 * @return the reordered list
+	 */
+	protected List moveScoreSortedToEnd(List list, List scoreSortedList) {
+		Set scoreSortedSet = new HashSet(scoreSortedList);
+		List finalList = new ArrayList(list.size());
+		for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+			Object entry = iter.next();
+			if (!scoreSortedSet.contains(entry)) {
+				finalList.add(entry);
+			}
+		}
+		finalList.addAll(scoreSortedList);
+		return finalList;
+	}
+
 	protected List finalizeSortingAndPaging(List list) {
 		List finalList;
-		if (!isSortAscending()) {
-			Collections.reverse(list);
-		}
 		if (maxDisplayedScoreRows == 0) {
+			if (!isSortAscending()) {
+				Collections.reverse(list);
+			}
 			finalList = list;
 		} else {
-			int nextPageRow = Math.min(firstScoreRow + maxDisplayedScoreRows, scoreDataRows);
-			finalList = new ArrayList(list.subList(firstScoreRow, nextPageRow));
-			if (log.isDebugEnabled()) log.debug("finalizeSortingAndPaging subList " + firstScoreRow + ", " + nextPageRow);
+			int nextPageRow = Math.min(firstScoreRow + maxDisplayedScoreRows, Math.min(scoreDataRows, list.size()));
+			int firstRow = Math.min(firstScoreRow, nextPageRow);
+			finalList = new ArrayList(nextPageRow - firstRow);
+			if (isSortAscending()) {
+				finalList.addAll(list.subList(firstRow, nextPageRow));
+			} else {
+				// read the page from the end of the list rather than reversing all of it
+				int lastIndex = list.size() - 1;
+				for (int i = firstRow; i < nextPageRow; i++) {
+					finalList.add(list.get(lastIndex - i));
+				}
+			}
+			if (log.isDebugEnabled()) log.debug("finalizeSortingAndPaging subList " + firstRow + ", " + nextPageRow);
 		}
 		return finalList;
 	}
@@ -584,10 +619,9 @@ public abstract class EnrollmentTableBean
     		graderIdToNameMap = new HashMap();
 		String graderName = (String)graderIdToNameMap.get(graderId);
 		if (graderName == null) {
-			try {
-				graderName = getUserDirectoryService().getUserDisplayName(graderId);
-			} catch (UnknownUserException e) {
-				log.warn("Unable to find grader with uid=" + graderId);
+			// Graders recur across pages and sessions, so their names are shared
+			graderName = getUserCache().getUserDisplayName(graderId);
+			if (graderName == null) {
 				graderName = graderId;
 			}
 			graderIdToNameMap.put(graderId, graderName);
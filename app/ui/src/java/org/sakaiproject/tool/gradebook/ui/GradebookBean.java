@@ -37,6 +37,7 @@ import org.sakaiproject.service.gradebook.shared.GradebookPermissionService;
 import org.sakaiproject.service.gradebook.shared.GradebookExternalAssessmentService;
 import org.sakaiproject.tool.gradebook.Gradebook;
 import org.sakaiproject.tool.gradebook.business.GradebookManager;
+import org.sakaiproject.tool.gradebook.business.impl.UserCache;
 import org.sakaiproject.tool.gradebook.facades.*;
 
 /**
@@ -59,6 +60,7 @@ public class GradebookBean extends InitializableBean {
     private GradebookManager gradebookManager;
     private SectionAwareness sectionAwareness;
     private UserDirectoryService userDirectoryService;
+    private UserCache userCache;
     private Authn authnService;
     private Authz authzService;
     private ContextManagement contextManagementService;
@@ -164,6 +166,13 @@ public class GradebookBean extends InitializableBean {
     public void setUserDirectoryService(UserDirectoryService userDirectoryService) {
         this.userDirectoryService = userDirectoryService;
     }
+
+    public UserCache getUserCache() {
+        return userCache;
+    }
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
     /**
      * @return Returns the authnService.
      */
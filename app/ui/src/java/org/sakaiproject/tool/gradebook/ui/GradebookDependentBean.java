@@ -50,6 +50,7 @@ import org.sakaiproject.tool.gradebook.Category;
 import org.sakaiproject.tool.gradebook.GradeMapping;
 import org.sakaiproject.tool.gradebook.Gradebook;
 import org.sakaiproject.tool.gradebook.business.GradebookManager;
+import org.sakaiproject.tool.gradebook.business.impl.UserCache;
 import org.sakaiproject.tool.gradebook.facades.Authn;
 import org.sakaiproject.tool.gradebook.facades.UserDirectoryService;
 import org.sakaiproject.tool.gradebook.jsf.FacesUtil;
@@ -162,6 +163,10 @@ public abstract class GradebookDependentBean extends InitializableBean {
 		return getGradebookBean().getUserDirectoryService();
 	}
 
+	public UserCache getUserCache() {
+		return getGradebookBean().getUserCache();
+	}
+
 	public Authn getAuthnService() {
 		return getGradebookBean().getAuthnService();
 	}
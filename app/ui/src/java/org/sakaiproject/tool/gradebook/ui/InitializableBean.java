@@ -25,6 +25,7 @@ package org.sakaiproject.tool.gradebook.ui;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.jsf.model.PhaseAware;
+import org.sakaiproject.tool.gradebook.business.GradebookSnapshot;
 
 public abstract class InitializableBean implements PhaseAware {
 	private static final Log logger = LogFactory.getLog(InitializableBean.class);
@@ -66,7 +67,21 @@ public abstract class InitializableBean implements PhaseAware {
 	 */
 	public void startRenderResponse() {
 		if (logger.isDebugEnabled()) logger.debug("startRenderResponse notValidated=" + isNotValidated());
-		init();
+		initInSnapshot();
+	}
+
+	/**
+	 * Beans typically ask the GradebookManager for the same gradebook, enrollments,
+	 * assignments and categories several times while loading, so let them share
+	 * one snapshot of those for the duration of init().
+	 */
+	private void initInSnapshot() {
+		GradebookSnapshot snapshot = GradebookSnapshot.open();
+		try {
+			init();
+		} finally {
+			snapshot.close();
+		}
 	}
 
 	public boolean isNotValidated() {
@@ -82,7 +97,7 @@ public abstract class InitializableBean implements PhaseAware {
 	public void setConfigured(boolean isConfigured) {
 		if (logger.isDebugEnabled()) logger.debug("setConfigured " + isConfigured);
 		if (isConfigured) {
-			init();
+			initInSnapshot();
 		}
 	}
 
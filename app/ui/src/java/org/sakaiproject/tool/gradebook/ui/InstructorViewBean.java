@@ -464,11 +464,9 @@ public class InstructorViewBean extends ViewByStudentBean implements Serializabl
 			}
 		}
 
-		// Put enrollments with no scores at the beginning of the final list.
-		workingEnrollments.removeAll(scoreSortedEnrollments);
-
-		// Add all sorted enrollments with scores into the final list
-		workingEnrollments.addAll(scoreSortedEnrollments);
+		// Put enrollments with no scores at the beginning of the final list,
+		// followed by all sorted enrollments with scores.
+		workingEnrollments = moveScoreSortedToEnd(workingEnrollments, scoreSortedEnrollments);
 		
 		workingEnrollments = finalizeSortingAndPaging(workingEnrollments);
 
@@ -515,11 +513,9 @@ public class InstructorViewBean extends ViewByStudentBean implements Serializabl
 				scoreSortedStudentUids.add(agr.getStudentId());
 			}
 
-			// Put enrollments with no scores at the beginning of the final list.
-			studentUids.removeAll(scoreSortedStudentUids);
-
-			// Add all sorted enrollments with scores into the final list
-			studentUids.addAll(scoreSortedStudentUids);
+			// Put enrollments with no scores at the beginning of the final list,
+			// followed by all sorted enrollments with scores.
+			studentUids = moveScoreSortedToEnd(studentUids, scoreSortedStudentUids);
 
 			studentUids = finalizeSortingAndPaging(studentUids);
 
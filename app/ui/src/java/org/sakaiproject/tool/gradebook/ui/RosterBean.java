@@ -22,6 +22,7 @@
 
 package org.sakaiproject.tool.gradebook.ui;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,7 +30,6 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -52,15 +52,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.myfaces.component.html.ext.HtmlDataTable;
 import org.apache.myfaces.custom.sortheader.HtmlCommandSortHeader;
-import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterCsv;
-import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterXls;
 import org.sakaiproject.jsf.spreadsheet.SpreadsheetDataFileWriterPdf;
 import org.sakaiproject.jsf.spreadsheet.SpreadsheetUtil;
 import org.sakaiproject.section.api.coursemanagement.EnrollmentRecord;
 import org.sakaiproject.section.api.coursemanagement.User;
 import org.sakaiproject.tool.api.ToolSession;
 import org.sakaiproject.tool.cover.SessionManager;
-import org.sakaiproject.tool.gradebook.AbstractGradeRecord;
 import org.sakaiproject.tool.gradebook.Assignment;
 import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
 import org.sakaiproject.tool.gradebook.Category;
@@ -68,6 +65,7 @@ import org.sakaiproject.tool.gradebook.CourseGrade;
 import org.sakaiproject.tool.gradebook.CourseGradeRecord;
 import org.sakaiproject.tool.gradebook.GradableObject;
 import org.sakaiproject.tool.gradebook.Gradebook;
+import org.sakaiproject.tool.gradebook.business.GradeMatrix;
 import org.sakaiproject.tool.gradebook.jsf.AssignmentPointsConverter;
 import org.sakaiproject.tool.gradebook.jsf.CategoryPointsConverter;
 import org.sakaiproject.tool.gradebook.jsf.FacesUtil;
@@ -174,6 +172,9 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 
 	// Controller fields - transient.
 	private transient List studentRows;
+	private transient GradeMatrix gradeMatrix;
+	private transient Map courseGradeRecordMap;
+	private transient Map studentIdItemIdFunctionMap;
 	private transient Map gradeRecordMap;
 	private transient Map categoryResultMap;
 	
@@ -197,7 +198,13 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 		}
 
 		public Map getScores() {
-			return (Map)gradeRecordMap.get(enrollment.getUser().getUserUid());
+			String studentUid = enrollment.getUser().getUserUid();
+			Map scores = (Map)gradeRecordMap.get(studentUid);
+			if (scores == null) {
+				scores = getScoresFromGradeMatrix(studentUid);
+				gradeRecordMap.put(studentUid, scores);
+			}
+			return scores;
 		}
 		
 		public Map getCategoryResults() {
@@ -205,6 +212,48 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 		}
 	}
 
+	/**
+	 * Build the grade records displayed in a student's row. Only the rows of the
+	 * current page are rendered, so only their records are ever created.
+	 */
+	private Map getScoresFromGradeMatrix(String studentUid) {
+		Map scores = gradeMatrix.getGradeRecordMap(studentUid);
+		if (studentIdItemIdFunctionMap != null) {
+			// mark the grade entries that are not viewable so they display differently than null grade records
+			Map itemIdFunctionMap = (Map)studentIdItemIdFunctionMap.get(studentUid);
+			for (int i = 0; i < gradeMatrix.getAssignmentCount(); i++) {
+				Assignment assignment = gradeMatrix.getAssignment(i);
+				if (itemIdFunctionMap == null || itemIdFunctionMap.get(assignment.getId()) == null) {
+					AssignmentGradeRecord agr = new AssignmentGradeRecord(assignment, studentUid, null);
+					agr.setUserAbleToView(false);
+					scores.put(assignment.getId(), agr);
+				}
+			}
+		}
+		CourseGradeRecord courseGradeRecord = (CourseGradeRecord)courseGradeRecordMap.get(studentUid);
+		if (courseGradeRecord != null) {
+			scores.put(courseGradeRecord.getGradableObject().getId(), courseGradeRecord);
+		}
+		return scores;
+	}
+
+	/**
+	 * Remove the scores of the items the grader may not view or grade from the matrix,
+	 * so they are neither displayed nor counted in the category results. The dropped
+	 * and counted flags stay as getGradeMatrix computed them on all of the student's
+	 * scores, so they match what the student actually has dropped.
+	 */
+	private void maskUnviewableScores(GradeMatrix gradeMatrix, Map studentIdItemIdFunctionMap) {
+		for (int s = 0; s < gradeMatrix.getStudentCount(); s++) {
+			Map itemIdFunctionMap = (Map)studentIdItemIdFunctionMap.get(gradeMatrix.getStudentUid(s));
+			for (int i = 0; i < gradeMatrix.getAssignmentCount(); i++) {
+				if (itemIdFunctionMap == null || itemIdFunctionMap.get(gradeMatrix.getAssignment(i).getId()) == null) {
+					gradeMatrix.clearPointsEarned(s, i);
+				}
+			}
+		}
+	}
+
 	protected void init() {
 		// set the roster filter
 		super.setSelectedSectionFilterValue(this.getSelectedSectionFilterValue());
@@ -378,7 +427,6 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
         }
         
         List assignments = viewableAssignmentList;
-		List gradeRecords = getGradebookManager().getAllAssignmentGradeRecordsConverted(getGradebookId(), new ArrayList(studentIdEnrRecMap.keySet()));
         
 		if (!getCategoriesEnabled()) {
 			int unassignedAssignmentCount = assignments.size();
@@ -389,152 +437,150 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 		
 		workingEnrollments = new ArrayList(enrollmentMap.keySet());
 
-        gradeRecordMap = new HashMap();
-        if (!isUserAbleToGradeAll() && isUserHasGraderPermissions()) {
-        	// first, add dummy grade records for all of the missing "unviewable" grade records
-        	// this will allow us to display grade entries that are not viewable differently
-        	// than null grade records
-        	for (Iterator studentIter = studentIdItemIdFunctionMap.keySet().iterator(); studentIter.hasNext();) {
-        		String studentId = (String)studentIter.next();
-        		if (studentId != null) {
-        			Map itemIdFunctionMap = (Map)studentIdItemIdFunctionMap.get(studentId);
-        			for (Iterator itemIter = allAssignments.iterator(); itemIter.hasNext();) {
-        				Object obj = itemIter.next();
-        				if (obj instanceof Assignment){
-        					Assignment assignment = (Assignment) obj;
-        					if (assignment != null) {
-        						Long itemId = assignment.getId();
-        						if (itemIdFunctionMap == null || itemIdFunctionMap.get(itemId) == null){
-        							AssignmentGradeRecord agr = new AssignmentGradeRecord(assignment, studentId, null);
-        							gradeRecords.add(agr);
-        						}
-        					}
-        				}
-        			}
-        		}
+		boolean isGraderLimited = !isUserAbleToGradeAll() && isUserHasGraderPermissions();
+        if (!isEnrollmentSort()) {
+        	// Need to sort and page based on a scores column. Only the sort key is read for
+        	// the whole roster; the grade records are then loaded for the visible page alone.
+        	workingEnrollments = sortAndPageByScore(workingEnrollments, studentIdEnrRecMap,
+        			isGraderLimited ? studentIdItemIdFunctionMap : null, categories, allAssignments, courseGrade);
+        	Map pageStudentIdEnrRecMap = new HashMap();
+        	for (Iterator iter = workingEnrollments.iterator(); iter.hasNext(); ) {
+        		EnrollmentRecord enr = (EnrollmentRecord)iter.next();
+        		pageStudentIdEnrRecMap.put(enr.getUser().getUserUid(), enr);
         	}
-        	
-        	getGradebookManager().addToGradeRecordMap(gradeRecordMap, gradeRecords, studentIdItemIdFunctionMap);
-        	
-        	
+        	studentIdEnrRecMap = pageStudentIdEnrRecMap;
+        }
+
+		gradeMatrix = getGradebookManager().getGradeMatrix(getGradebookId(), studentIdEnrRecMap.keySet());
+        gradeRecordMap = new HashMap();
+        if (isGraderLimited) {
+        	maskUnviewableScores(gradeMatrix, studentIdItemIdFunctionMap);
+        	this.studentIdItemIdFunctionMap = studentIdItemIdFunctionMap;
         } else {
-        	getGradebookManager().addToGradeRecordMap(gradeRecordMap, gradeRecords);
+        	this.studentIdItemIdFunctionMap = null;
         }
-		if (logger.isDebugEnabled()) logger.debug("init - gradeRecordMap.keySet().size() = " + gradeRecordMap.keySet().size());
-		
-		if (!isEnrollmentSort() && !isUserAbleToGradeAll() && isUserHasGraderPermissions()) {
-			// we need to re-sort these records b/c some may actually be null based upon permissions.
-			// retrieve updated grade recs from gradeRecordMap
-			List updatedGradeRecs = new ArrayList();
-			for (Iterator iter = gradeRecordMap.keySet().iterator(); iter.hasNext();) {
-				String studentId = (String)iter.next();
-				Map itemIdGradeRecMap = (Map)gradeRecordMap.get(studentId);
-				if (!itemIdGradeRecMap.isEmpty()) {
-					updatedGradeRecs.addAll(itemIdGradeRecMap.values());
-				}
-			}
-			Collections.sort(updatedGradeRecs, AssignmentGradeRecord.calcComparator);
-			gradeRecords = updatedGradeRecs;
-		}
+		if (logger.isDebugEnabled()) logger.debug("init - gradeMatrix students = " + gradeMatrix.getStudentCount() + ", items = " + gradeMatrix.getAssignmentCount());
 		
 		// only display course grade if user has "grade all" perm
+		courseGradeRecordMap = new HashMap();
 		if (isUserAbleToGradeAll()) {
-			List courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentIdEnrRecMap.keySet(), assignments, gradeRecordMap);
-			Collections.sort(courseGradeRecords, CourseGradeRecord.calcComparator);
-	        getGradebookManager().addToGradeRecordMap(gradeRecordMap, courseGradeRecords);
-	        gradeRecords.addAll(courseGradeRecords);
+			List courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentIdEnrRecMap.keySet());
+			for (Iterator iter = courseGradeRecords.iterator(); iter.hasNext(); ) {
+				CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+				courseGradeRecordMap.put(cgr.getStudentId(), cgr);
+			}
 		}
         
         //do category results
         categoryResultMap = new HashMap();
-        getGradebookManager().addToCategoryResultMap(categoryResultMap, categories, gradeRecordMap, studentIdEnrRecMap);
+        getGradebookManager().addToCategoryResultMap(categoryResultMap, categories, gradeMatrix, studentIdEnrRecMap.keySet());
         if (logger.isDebugEnabled()) logger.debug("init - categoryResultMap.keySet().size() = " + categoryResultMap.keySet().size());
 
-        if (!isEnrollmentSort()) {
-        	// Need to sort and page based on a scores column.
-        	String sortColumn = getSortColumn();
-        	List scoreSortedEnrollments = new ArrayList();
-			for(Iterator iter = gradeRecords.iterator(); iter.hasNext();) {
-				AbstractGradeRecord agr = (AbstractGradeRecord)iter.next();
-				if(getColumnHeader(agr.getGradableObject()).equals(sortColumn)) {
-					scoreSortedEnrollments.add(studentIdEnrRecMap.get(agr.getStudentId()));
-				}
-			}
+		studentRows = new ArrayList(workingEnrollments.size());
+        for (Iterator iter = workingEnrollments.iterator(); iter.hasNext(); ) {
+            EnrollmentRecord enrollment = (EnrollmentRecord)iter.next();
+            studentRows.add(new StudentRow(enrollment));
+        }
 
+        // set breadcrumb page for navigation
+//		SessionManager.getCurrentToolSession().setAttribute("breadcrumbPage", "roster");
+		
+	}
+	
+	/**
+	 * Order the enrollments by the scores of the sort column and return the current page.
+	 * Only the scores of the sort column are loaded for this. Enrollments without a grade
+	 * record come first, then those without a category score, then the scored ones.
+	 */
+	private List sortAndPageByScore(List enrollments, Map studentIdEnrRecMap, Map studentIdItemIdFunctionMap,
+			List<Category> categories, List<Assignment> allAssignments, CourseGrade courseGrade) {
+		String sortColumn = getSortColumn();
+		List scoreSortedEnrollments = new ArrayList();
+		List emptyCatList = new ArrayList();
+
+		if (courseGrade != null && getColumnHeader(courseGrade).equals(sortColumn)) {
+			List courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentIdEnrRecMap.keySet());
+			Collections.sort(courseGradeRecords, CourseGradeRecord.calcComparator);
+			for (Iterator iter = courseGradeRecords.iterator(); iter.hasNext(); ) {
+				CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+				scoreSortedEnrollments.add(studentIdEnrRecMap.get(cgr.getStudentId()));
+			}
+		} else if (sortColumn.startsWith(CATEGORY_COLUMN_PREFIX) && sortColumn.length() > CATEGORY_COLUMN_PREFIX.length()) {
 			//In order to order by category score, first create 2 lists: students who have no score (null)
 			//and a map of student Id's and their category score.
 			//Next, sort the existing score then and put the sorted students in the scoreSortedEnrollments list 
-			if(sortColumn.startsWith(CATEGORY_COLUMN_PREFIX) && sortColumn.length() > CATEGORY_COLUMN_PREFIX.length()){
-				Map<String, Double> studentCatScore = new HashMap<String, Double>();
-				String sortColumnIdStr = sortColumn.substring(CATEGORY_COLUMN_PREFIX.length());
-				Long sortColumnId = null;
-				try{
-					sortColumnId = Long.parseLong(sortColumnIdStr);
-				}catch (NumberFormatException e) {
+			Long sortColumnId = null;
+			try {
+				sortColumnId = Long.parseLong(sortColumn.substring(CATEGORY_COLUMN_PREFIX.length()));
+			} catch (NumberFormatException e) {
+			}
+			Category sortCategory = null;
+			for (Category category : categories) {
+				if (category.getId().equals(sortColumnId)) {
+					sortCategory = category;
 				}
-				
-				List emptyCatList = new ArrayList();
-				if(sortColumnId != null){
-					for(Iterator iterator = categoryResultMap.entrySet().iterator(); iterator.hasNext();){
-						Entry entry = (Entry) iterator.next();
-						Map catMap = (Map) entry.getValue();
-						String studentId = (String) entry.getKey();
-						if(catMap.containsKey(sortColumnId)){
-							Map sortCat = (Map) catMap.get(sortColumnId);
-							//break up the students into two categories: scores and no score
-							if(sortCat.containsKey("studentMean") && sortCat.get("studentMean") != null){
-								studentCatScore.put(studentId, (Double) sortCat.get("studentMean"));
-							}else{
-								emptyCatList.add(studentIdEnrRecMap.get(studentId));
-							}
-						}
+			}
+			if (sortCategory != null && sortCategory.getAssignmentList() != null) {
+				GradeMatrix sortMatrix = getGradebookManager().getGradeMatrix(getGradebookId(), studentIdEnrRecMap.keySet(), sortCategory.getAssignmentList());
+				if (studentIdItemIdFunctionMap != null) {
+					maskUnviewableScores(sortMatrix, studentIdItemIdFunctionMap);
+				}
+				Map sortCategoryResultMap = new HashMap();
+				getGradebookManager().addToCategoryResultMap(sortCategoryResultMap, Collections.singletonList(sortCategory), sortMatrix, studentIdEnrRecMap.keySet());
+
+				Map<String, Double> studentCatScore = new HashMap<String, Double>();
+				for (Iterator iterator = sortCategoryResultMap.entrySet().iterator(); iterator.hasNext(); ) {
+					Entry entry = (Entry) iterator.next();
+					Map sortCat = (Map) ((Map) entry.getValue()).get(sortColumnId);
+					String studentId = (String) entry.getKey();
+					//break up the students into two categories: scores and no score
+					if (sortCat.get("studentMean") != null) {
+						studentCatScore.put(studentId, (Double) sortCat.get("studentMean"));
+					} else {
+						emptyCatList.add(studentIdEnrRecMap.get(studentId));
 					}
 				}
-				
+
 				//sort category scores:
-				List studentCatEntrySet = new LinkedList(studentCatScore.entrySet());
+				List studentCatEntrySet = new ArrayList(studentCatScore.entrySet());
 				Collections.sort(studentCatEntrySet, new Comparator() {
-			          public int compare(Object o1, Object o2) {
-			               return ((Comparable) ((Map.Entry) (o1)).getValue())
-			              .compareTo(((Map.Entry) (o2)).getValue());
-			          }
-			     });
-				
-				
+					public int compare(Object o1, Object o2) {
+						return ((Comparable) ((Map.Entry) (o1)).getValue())
+						.compareTo(((Map.Entry) (o2)).getValue());
+					}
+				});
+
 				//add it to the scoreSortedEnrollments list now that it has been ordered
-				for (Iterator it = studentCatEntrySet.iterator(); it.hasNext();) {
+				for (Iterator it = studentCatEntrySet.iterator(); it.hasNext(); ) {
 					Map.Entry entry = (Map.Entry)it.next();
 					scoreSortedEnrollments.add(studentIdEnrRecMap.get(entry.getKey()));
 				}
-
-				// remove and re-add the empty score users
-	            workingEnrollments.removeAll(emptyCatList);
-
-	            // by adding it back in, they will be in a group together (in order)
-	            workingEnrollments.addAll(emptyCatList);
-				
 			}
-
-            // Put enrollments with no scores at the beginning of the final list.
-            workingEnrollments.removeAll(scoreSortedEnrollments);
-
-            // Add all sorted enrollments with scores into the final list
-            workingEnrollments.addAll(scoreSortedEnrollments);
-
-            workingEnrollments = finalizeSortingAndPaging(workingEnrollments);
+		} else {
+			for (Assignment assignment : allAssignments) {
+				if (getColumnHeader(assignment).equals(sortColumn)) {
+					GradeMatrix sortMatrix = getGradebookManager().getGradeMatrix(getGradebookId(), studentIdEnrRecMap.keySet(), Collections.singletonList(assignment));
+					if (studentIdItemIdFunctionMap != null) {
+						maskUnviewableScores(sortMatrix, studentIdItemIdFunctionMap);
+					}
+					int[] sortedStudentIndexes = sortMatrix.getStudentIndexesSortedByScore(0);
+					for (int i = 0; i < sortedStudentIndexes.length; i++) {
+						scoreSortedEnrollments.add(studentIdEnrRecMap.get(sortMatrix.getStudentUid(sortedStudentIndexes[i])));
+					}
+				}
+			}
 		}
 
-		studentRows = new ArrayList(workingEnrollments.size());
-        for (Iterator iter = workingEnrollments.iterator(); iter.hasNext(); ) {
-            EnrollmentRecord enrollment = (EnrollmentRecord)iter.next();
-            studentRows.add(new StudentRow(enrollment));
-        }
+		// by moving them to the end, the empty category score users will be in a group together (in order)
+		List sortedEnrollments = moveScoreSortedToEnd(enrollments, emptyCatList);
 
-        // set breadcrumb page for navigation
-//		SessionManager.getCurrentToolSession().setAttribute("breadcrumbPage", "roster");
-		
+		// Put enrollments with no scores at the beginning of the final list,
+		// followed by all sorted enrollments with scores.
+		sortedEnrollments = moveScoreSortedToEnd(sortedEnrollments, scoreSortedEnrollments);
+
+		return finalizeSortingAndPaging(sortedEnrollments);
 	}
-	
+
 	private String getColumnHeader(GradableObject gradableObject) {
 		if (gradableObject.isCourseGrade()) {
 			return getLocalizedString("roster_course_grade_column_name");
@@ -825,76 +871,69 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
     public void exportXlsNoCourseGrade(ActionEvent event){
         if(logger.isInfoEnabled()) logger.info("exporting gradebook " + getGradebookUid() + " as Excel");
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadRoster","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
-        SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(false, false), 
-        		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-        		new SpreadsheetDataFileWriterXls());
+        downloadSpreadsheet(false, false, new SpreadsheetRowWriterXlsx());
     }
 
     public void exportCsvNoCourseGrade(ActionEvent event){
         if(logger.isInfoEnabled()) logger.info("exporting gradebook " + getGradebookUid() + " as CSV");
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadRoster","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
-        SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(false, true), 
-        		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-        		new SpreadsheetDataFileWriterCsv());
+        downloadSpreadsheet(false, true, new SpreadsheetRowWriterCsv());
     }
 
     public void exportCsv(ActionEvent event){
         if(logger.isInfoEnabled()) logger.info("exporting roster as CSV for gradebook " + getGradebookUid());
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadRoster","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
-        if (isUserAbleToGradeAll()) {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(true, true), 
-        		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-        		new SpreadsheetDataFileWriterCsv());
-        } else {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(false, true), 
-            		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-            		new SpreadsheetDataFileWriterCsv());
-        }
+        downloadSpreadsheet(isUserAbleToGradeAll(), true, new SpreadsheetRowWriterCsv());
     }
 
     public void exportExcel(ActionEvent event){
         if(logger.isInfoEnabled()) logger.info("exporting roster as Excel for gradebook " + getGradebookUid());
-        String authzLevel = (getGradebookBean().getAuthzService().isUserAbleToGradeAll(getGradebookUid())) ?"instructor" : "TA";
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadRoster","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
-        if (isUserAbleToGradeAll()) {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(true, false), 
-        		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-        		new SpreadsheetDataFileWriterXls());
-        } else {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(false, false), 
-            		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-            		new SpreadsheetDataFileWriterXls());
-        }
+        downloadSpreadsheet(isUserAbleToGradeAll(), false, new SpreadsheetRowWriterXlsx());
     }
     
     public void exportPdf(ActionEvent event){
         if(logger.isInfoEnabled()) logger.info("exporting roster as Pdf for gradebook " + getGradebookUid());
-        String authzLevel = (getGradebookBean().getAuthzService().isUserAbleToGradeAll(getGradebookUid())) ?"instructor" : "TA";
         getGradebookBean().getEventTrackingService().postEvent("gradebook.downloadRoster","/gradebook/"+getGradebookId()+"/"+getAuthzLevel());
-        if (isUserAbleToGradeAll()) {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(true, true), 
+        // the PDF writer lays out the whole table at once
+        SpreadsheetRowCollector collector = new SpreadsheetRowCollector();
+        try {
+        	writeSpreadsheetData(isUserAbleToGradeAll(), true, collector);
+        } catch (IOException e) {
+        	logger.error("Unable to build the roster export for gradebook " + getGradebookUid(), e);
+        }
+        SpreadsheetUtil.downloadSpreadsheetData(collector.getSpreadsheetData(), 
         		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
         		new SpreadsheetDataFileWriterPdf());
-        } else {
-        	SpreadsheetUtil.downloadSpreadsheetData(getSpreadsheetData(false, true), 
-            		getDownloadFileName(getLocalizedString("export_gradebook_prefix")), 
-            		new SpreadsheetDataFileWriterPdf());
+    }
+
+    private void downloadSpreadsheet(boolean includeCourseGrade, boolean localizeScores, SpreadsheetRowWriter writer) {
+        try {
+        	writer.startDownload(getDownloadFileName(getLocalizedString("export_gradebook_prefix")));
+        	writeSpreadsheetData(includeCourseGrade, localizeScores, writer);
+        	writer.finishDownload();
+        } catch (IOException e) {
+        	logger.error("Unable to write the roster export for gradebook " + getGradebookUid(), e);
+        	writer.abortDownload();
         }
     }
     
-    private List<List<Object>> getSpreadsheetData(boolean includeCourseGrade, boolean localizeScores) {
-    	// Get the full list of filtered enrollments and scores (not just the current page's worth).
+    /**
+     * Write the roster export through the given row writer. The grade records are read in
+     * chunks of students and each row is written as soon as it is built, so the memory used
+     * does not grow with the size of the roster.
+     */
+    private void writeSpreadsheetData(boolean includeCourseGrade, boolean localizeScores, SpreadsheetRowWriter writer) throws IOException {
+    	// Get the full list of filtered enrollments (not just the current page's worth).
     	Map enrRecItemIdFunctionMap = getWorkingEnrollmentsForAllItems();
     	List filteredEnrollments = new ArrayList(enrRecItemIdFunctionMap.keySet());  
     	Collections.sort(filteredEnrollments, ENROLLMENT_NAME_COMPARATOR);
-    	Set<String> studentUids = new HashSet<String>();
     	
     	Map studentIdItemIdFunctionMap = new HashMap();
-    	List availableItems = new ArrayList();
+    	Set availableItems = new HashSet();
     	for (Iterator iter = filteredEnrollments.iterator(); iter.hasNext(); ) {
     		EnrollmentRecord enrollment = (EnrollmentRecord)iter.next();
     		String studentUid = enrollment.getUser().getUserUid();
-    		studentUids.add(studentUid);
     		
     		Map itemIdFunctionMap = (Map)enrRecItemIdFunctionMap.get(enrollment);
     		studentIdItemIdFunctionMap.put(studentUid, itemIdFunctionMap);
@@ -904,15 +943,6 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
     		}
     	}
 
-		Map filteredGradesMap = new HashMap();
-		List gradeRecords = getGradebookManager().getAllAssignmentGradeRecordsConverted(getGradebookId(), studentUids);
-		
-		if (!isUserAbleToGradeAll() && isUserHasGraderPermissions()) {
-			getGradebookManager().addToGradeRecordMap(filteredGradesMap, gradeRecords, studentIdItemIdFunctionMap);
-		} else {
-			getGradebookManager().addToGradeRecordMap(filteredGradesMap, gradeRecords);
-		}
-		
 		Category selCategoryView = getSelectedCategory();
         
 		List gradableObjects = new ArrayList();
@@ -997,36 +1027,58 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 			includeCourseGrade = false;
 		}
 		
+		CourseGrade courseGrade = null;
 		if (includeCourseGrade) {
-			CourseGrade courseGrade = getGradebookManager().getCourseGrade(getGradebookId());
-			List courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentUids, gradableObjects, filteredGradesMap);
-	        getGradebookManager().addToGradeRecordMap(filteredGradesMap, courseGradeRecords);
+			courseGrade = getGradebookManager().getCourseGrade(getGradebookId());
 	        gradableObjects.add(courseGrade);
 		}
-    	return getSpreadsheetData(filteredEnrollments, filteredGradesMap, gradableObjects, includeCourseGrade, localizeScores);
+
+		writer.writeRow(getSpreadsheetHeaderRow(gradableObjects, includeCourseGrade));
+
+		NumberFormat nf = NumberFormat.getInstance(new ResourceLoader().getLocale());
+		boolean isGraderLimited = !isUserAbleToGradeAll() && isUserHasGraderPermissions();
+		for (int i = 0; i < filteredEnrollments.size(); i += EXPORT_STUDENT_CHUNK_SIZE) {
+			List enrollmentChunk = filteredEnrollments.subList(i, Math.min(i + EXPORT_STUDENT_CHUNK_SIZE, filteredEnrollments.size()));
+			List<String> studentUids = new ArrayList<String>(enrollmentChunk.size());
+			for (Iterator iter = enrollmentChunk.iterator(); iter.hasNext(); ) {
+				studentUids.add(((EnrollmentRecord)iter.next()).getUser().getUserUid());
+			}
+
+			GradeMatrix exportMatrix = getGradebookManager().getGradeMatrix(getGradebookId(), studentUids);
+			if (isGraderLimited) {
+				maskUnviewableScores(exportMatrix, studentIdItemIdFunctionMap);
+			}
+
+			Map exportCourseGradeRecordMap = new HashMap();
+			if (includeCourseGrade) {
+				List courseGradeRecords = getGradebookManager().getPointsEarnedCourseGradeRecords(courseGrade, studentUids);
+				for (Iterator iter = courseGradeRecords.iterator(); iter.hasNext(); ) {
+					CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+					exportCourseGradeRecordMap.put(cgr.getStudentId(), cgr);
+				}
+			}
+
+			for (Iterator iter = enrollmentChunk.iterator(); iter.hasNext(); ) {
+				writer.writeRow(getSpreadsheetRow((EnrollmentRecord)iter.next(), exportMatrix, exportCourseGradeRecordMap,
+						gradableObjects, includeCourseGrade, localizeScores, nf));
+			}
+		}
     }
  
     /**
-     * Creates the actual 'spreadsheet' List needed from gradebook objects
+     * Creates the header row of the 'spreadsheet' needed from gradebook objects
      * Modified to export without Course Grade column if desired
      * Format:
      * 	Header Row: Student id, Student Name, Assignment(s) (with [points possible] after title)
-     *  Student Rows
      * 
-     * @param enrollments
-     * @param gradesMap
      * @param gradableObjects
      * @param includeCourseGrade
      * @return
      */
-    private List<List<Object>> getSpreadsheetData(List enrollments, Map gradesMap, List gradableObjects,
-    												boolean includeCourseGrade, boolean localizeScores) {
-    	List<List<Object>> spreadsheetData = new ArrayList<List<Object>>();
-
+    private List<Object> getSpreadsheetHeaderRow(List gradableObjects, boolean includeCourseGrade) {
     	NumberFormat nf = NumberFormat.getInstance(new ResourceLoader().getLocale());
     	// Build column headers and points possible rows.
         List<Object> headerRow = new ArrayList<Object>();
-        List<Object> pointsPossibleRow = new ArrayList<Object>();
         
         headerRow.add(getLocalizedString("export_student_id"));
         headerRow.add(getLocalizedString("export_student_name"));
@@ -1050,68 +1102,72 @@ public class RosterBean extends EnrollmentTableBean implements Serializable, Pag
 
          	headerRow.add(colName);
         }
-        spreadsheetData.add(headerRow);
-
-        // Build student score rows.
-        for (Object enrollment : enrollments) {
-        	User student = ((EnrollmentRecord)enrollment).getUser();
-        	String studentUid = student.getUserUid();
-        	Map studentMap = (Map)gradesMap.get(studentUid);
-        	List<Object> row = new ArrayList<Object>();
-        	row.add(student.getDisplayId());
-        	row.add(student.getSortName());
-        	for (Object gradableObject : gradableObjects) {
-        		Object score = null;
-        		String letterScore = null;
-        		boolean droppedScore = false;
-        		if (studentMap != null) {
-        			Long gradableObjectId = ((GradableObject)gradableObject).getId();
-        			
-        			AbstractGradeRecord gradeRecord = (AbstractGradeRecord)studentMap.get(gradableObjectId); 
-
-        			if (gradeRecord != null) {
-        				if (gradeRecord.isCourseGradeRecord()) { 
-        				    if (includeCourseGrade) {
-        				        score = gradeRecord.getGradeAsPercentage();
-        				        if(((CourseGradeRecord)gradeRecord).getEnteredGrade() != null){
-        				        	score = "*" + score;
-        				        }
-        				        if(ServerConfigurationService.getBoolean("gradebook.roster.showCourseGradePoints", false)
-        		    					&& ((CourseGrade) gradableObject).getGradebook().getGrade_type() == GradebookService.GRADE_TYPE_POINTS){
-        		         			//add total points
-        				        	row.add(gradeRecord.getPointsEarned());
-        				        }
-        				    }
-        				} else {
-        					if(gradeRecord instanceof AssignmentGradeRecord){
-        						droppedScore = ((AssignmentGradeRecord)gradeRecord).getDroppedFromGrade();
-        					}
-        					if (getGradeEntryByPoints()) {
-        						score = gradeRecord.getPointsEarned();
-        					} else if (getGradeEntryByPercent()) {
-        						score = ((AssignmentGradeRecord)gradeRecord).getPercentEarned();
-        					}	else if (getGradeEntryByLetter()) {
-        						score = ((AssignmentGradeRecord)gradeRecord).getLetterEarned();
-        					}
-        				}
-        			}
-        		}
-        		if (score != null && score instanceof Double) {
-        			score = new Double(FacesUtil.getRoundDown(((Double)score).doubleValue(), 2));
-        			// SAK-19849: do NOT localize the score if exporting to Excel. Let Excel localize it!
-        			if (localizeScores) {
-        				score = nf.format(score);
-        			}
-        		}
+        return headerRow;
+    }
+
+    /**
+     * Creates one student's row of the 'spreadsheet' from the grade matrix
+     * 
+     * @param enrollment
+     * @param gradeMatrix
+     * @param courseGradeRecordMap map of student uid --> CourseGradeRecord
+     * @param gradableObjects
+     * @param includeCourseGrade
+     * @param localizeScores
+     * @param nf
+     * @return
+     */
+    private List<Object> getSpreadsheetRow(EnrollmentRecord enrollment, GradeMatrix gradeMatrix, Map courseGradeRecordMap,
+    										List gradableObjects, boolean includeCourseGrade, boolean localizeScores, NumberFormat nf) {
+    	User student = enrollment.getUser();
+    	String studentUid = student.getUserUid();
+    	int studentIndex = gradeMatrix.getStudentIndex(studentUid);
+    	List<Object> row = new ArrayList<Object>();
+    	row.add(student.getDisplayId());
+    	row.add(student.getSortName());
+    	for (Object gradableObject : gradableObjects) {
+    		Object score = null;
+    		String letterScore = null;
+    		boolean droppedScore = false;
+    		if (gradableObject instanceof CourseGrade) {
+    			CourseGradeRecord gradeRecord = (CourseGradeRecord)courseGradeRecordMap.get(studentUid);
+    			if (gradeRecord != null && includeCourseGrade) {
+    				score = gradeRecord.getGradeAsPercentage();
+    				if(gradeRecord.getEnteredGrade() != null){
+    					score = "*" + score;
+    				}
+    				if(ServerConfigurationService.getBoolean("gradebook.roster.showCourseGradePoints", false)
+    						&& ((CourseGrade) gradableObject).getGradebook().getGrade_type() == GradebookService.GRADE_TYPE_POINTS){
+    					//add total points
+    					row.add(gradeRecord.getPointsEarned());
+    				}
+    			}
+    		} else if (studentIndex >= 0) {
+    			int assignmentIndex = gradeMatrix.getAssignmentIndex(((GradableObject)gradableObject).getId());
+    			if (assignmentIndex >= 0 && gradeMatrix.isRecorded(studentIndex, assignmentIndex)) {
+    				droppedScore = gradeMatrix.isDropped(studentIndex, assignmentIndex);
+    				if (getGradeEntryByPoints()) {
+    					score = gradeMatrix.getPointsEarnedOrNull(studentIndex, assignmentIndex);
+    				} else if (getGradeEntryByPercent()) {
+    					score = gradeMatrix.getPercentEarned(studentIndex, assignmentIndex);
+    				} else if (getGradeEntryByLetter()) {
+    					score = gradeMatrix.getLetterEarned(studentIndex, assignmentIndex);
+    				}
+    			}
+    		}
+    		if (score != null && score instanceof Double) {
+    			score = new Double(FacesUtil.getRoundDown(((Double)score).doubleValue(), 2));
+    			// SAK-19849: do NOT localize the score if exporting to Excel. Let Excel localize it!
+    			if (localizeScores) {
+    				score = nf.format(score);
+    			}
+    		}
     			if(droppedScore){
     				score = score.toString() + " (" + getLocalizedString("export_dropped") + ")";
     			}
-        		row.add(score);
-        	}
-        	spreadsheetData.add(row);
-        }
-    	
-    	return spreadsheetData;
+    		row.add(score);
+    	}
+    	return row;
     }
     
     public String assignmentDetails(){
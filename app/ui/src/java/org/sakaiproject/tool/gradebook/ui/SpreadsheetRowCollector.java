@@ -0,0 +1,57 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the rows in memory, for the formats whose writers need the whole
+ * List<List<Object>> at once (PDF).
+ */
+public class SpreadsheetRowCollector extends SpreadsheetRowWriter {
+	private List<List<Object>> spreadsheetData = new ArrayList<List<Object>>();
+
+	public List<List<Object>> getSpreadsheetData() {
+		return spreadsheetData;
+	}
+
+	public String getContentType() {
+		return null;
+	}
+
+	public String getFileExtension() {
+		return null;
+	}
+
+	public void open(OutputStream out) {
+	}
+
+	public void writeRow(List<Object> row) {
+		spreadsheetData.add(row);
+	}
+
+	public void close() {
+	}
+}
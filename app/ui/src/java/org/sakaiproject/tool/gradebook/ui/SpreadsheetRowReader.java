@@ -0,0 +1,58 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Reads an uploaded spreadsheet one row at a time and hands each row to a
+ * RowHandler as soon as it has been parsed, so an import never holds the file
+ * or a workbook model in memory. The counterpart of SpreadsheetRowWriter.
+ */
+public abstract class SpreadsheetRowReader {
+
+	/**
+	 * Receives the rows of the first sheet in order, as lists of cell values.
+	 * Empty cells are passed as "". Every row is a new list, which the handler
+	 * may keep and change.
+	 */
+	public interface RowHandler {
+		public void handleRow(List<String> row);
+	}
+
+	public abstract void read(InputStream in, RowHandler handler) throws IOException;
+
+	/**
+	 * @return true if the row has no cell with any content
+	 */
+	public static boolean isBlankRow(List<String> row) {
+		for (String cell : row) {
+			if (cell != null && cell.trim().length() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,138 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming tokenizer for character separated values. Quoted fields may
+ * contain the separator, doubled quotes and line breaks. A single empty field
+ * after a trailing separator is dropped, as the old line based parser did,
+ * so spreadsheets saved with a separator after every cell keep their width.
+ */
+public class SpreadsheetRowReaderCsv extends SpreadsheetRowReader {
+	private static final int NONE = -2;
+
+	private final char separator;
+
+	private Reader reader;
+	private int pushedBack = NONE;
+
+	public SpreadsheetRowReaderCsv(char separator) {
+		this.separator = separator;
+	}
+
+	public void read(InputStream in, RowHandler handler) throws IOException {
+		read(new InputStreamReader(in), handler);
+	}
+
+	public void read(Reader in, RowHandler handler) throws IOException {
+		reader = (in instanceof BufferedReader) ? in : new BufferedReader(in);
+		pushedBack = NONE;
+
+		// Skip a byte order mark left by spreadsheet programs
+		int first = nextChar();
+		if (first != '\uFEFF') {
+			pushedBack = first;
+		}
+
+		List<String> row;
+		while ((row = readRow()) != null) {
+			handler.handleRow(row);
+		}
+	}
+
+	/**
+	 * @return the cells of the next record, or null at the end of the input
+	 */
+	List<String> readRow() throws IOException {
+		int c = nextChar();
+		if (c == -1) {
+			return null;
+		}
+
+		List<String> row = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean inQuotes = false;
+		boolean fieldQuoted = false;
+		while (true) {
+			if (inQuotes) {
+				if (c == -1) {
+					// Unterminated quote, the end of the input ends the field
+					row.add(field.toString());
+					break;
+				} else if (c == '"') {
+					int next = nextChar();
+					if (next == '"') {
+						field.append('"');
+					} else {
+						inQuotes = false;
+						c = next;
+						continue;
+					}
+				} else {
+					field.append((char)c);
+				}
+			} else {
+				if (c == -1 || c == '\n' || c == '\r') {
+					if (c == '\r') {
+						int next = nextChar();
+						if (next != '\n') {
+							pushedBack = next;
+						}
+					}
+					if (field.length() > 0 || fieldQuoted || row.isEmpty()) {
+						row.add(field.toString());
+					}
+					break;
+				} else if (c == separator) {
+					row.add(field.toString());
+					field.setLength(0);
+					fieldQuoted = false;
+				} else if (c == '"' && field.length() == 0 && !fieldQuoted) {
+					inQuotes = true;
+					fieldQuoted = true;
+				} else {
+					field.append((char)c);
+				}
+			}
+			c = nextChar();
+		}
+		return row;
+	}
+
+	private int nextChar() throws IOException {
+		if (pushedBack != NONE) {
+			int c = pushedBack;
+			pushedBack = NONE;
+			return c;
+		}
+		return reader.read();
+	}
+}
@@ -0,0 +1,71 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+
+/**
+ * Reads the first sheet of a binary Excel (.xls) workbook. The format caps a
+ * sheet at 65536 rows, so the workbook is loaded whole, but rows are still
+ * handed over one at a time without building an intermediate CSV copy.
+ */
+public class SpreadsheetRowReaderXls extends SpreadsheetRowReader {
+	private final NumberFormat numberFormat;
+
+	public SpreadsheetRowReaderXls(NumberFormat numberFormat) {
+		this.numberFormat = numberFormat;
+	}
+
+	public void read(InputStream in, RowHandler handler) throws IOException {
+		HSSFWorkbook wb = new HSSFWorkbook(in);
+		HSSFSheet sheet = wb.getSheetAt(0);
+		for (Iterator it = sheet.rowIterator(); it.hasNext(); ) {
+			HSSFRow row = (HSSFRow)it.next();
+			List<String> cells = new ArrayList<String>();
+			int numCells = row.getLastCellNum();
+			for (int i = 0; i < numCells; i++) {
+				HSSFCell cell = row.getCell(i);
+				String cellValue = "";
+				if (cell == null || cell.getCellType() == HSSFCell.CELL_TYPE_BLANK) {
+					cellValue = "";
+				} else if (cell.getCellType() == HSSFCell.CELL_TYPE_STRING) {
+					cellValue = cell.getStringCellValue();
+				} else if (cell.getCellType() == HSSFCell.CELL_TYPE_NUMERIC) {
+					cellValue = numberFormat.format(cell.getNumericCellValue());
+				}
+				cells.add(cellValue);
+			}
+			handler.handleRow(cells);
+		}
+	}
+}
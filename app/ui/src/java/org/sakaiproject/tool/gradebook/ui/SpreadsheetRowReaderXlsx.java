@@ -0,0 +1,212 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the first sheet of an Office Open XML (.xlsx) workbook with a SAX
+ * parser, so only the shared string table and the current row are held in
+ * memory rather than an XSSFWorkbook. The upload is spooled to a temporary
+ * file first because the package has to be opened with random access; opening
+ * it from a stream would inflate every part into memory.
+ *
+ * Numbers are formatted with the given NumberFormat, as the workbook based
+ * conversion did, so the cell values parse the same way as CSV input.
+ */
+public class SpreadsheetRowReaderXlsx extends SpreadsheetRowReader {
+	private static final Log log = LogFactory.getLog(SpreadsheetRowReaderXlsx.class);
+
+	private final NumberFormat numberFormat;
+
+	public SpreadsheetRowReaderXlsx(NumberFormat numberFormat) {
+		this.numberFormat = numberFormat;
+	}
+
+	public void read(InputStream in, RowHandler handler) throws IOException {
+		File file = File.createTempFile("gradebook-import", ".xlsx");
+		OPCPackage pkg = null;
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				byte[] buffer = new byte[8192];
+				int numRead;
+				while ((numRead = in.read(buffer)) != -1) {
+					out.write(buffer, 0, numRead);
+				}
+			} finally {
+				out.close();
+			}
+
+			pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+			ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(pkg);
+			Iterator<InputStream> sheets = new XSSFReader(pkg).getSheetsData();
+			if (!sheets.hasNext()) {
+				return;
+			}
+			InputStream sheet = sheets.next();
+			try {
+				XMLReader xmlReader = newXMLReader();
+				xmlReader.setContentHandler(new SheetHandler(sharedStrings, handler));
+				xmlReader.parse(new InputSource(sheet));
+			} finally {
+				sheet.close();
+			}
+		} catch (OpenXML4JException e) {
+			throw new IOException("Unable to open the workbook", e);
+		} catch (SAXException e) {
+			throw new IOException("Unable to parse the workbook", e);
+		} catch (ParserConfigurationException e) {
+			throw new IOException("Unable to parse the workbook", e);
+		} finally {
+			if (pkg != null) {
+				// Opened read only, so discard rather than save on close
+				pkg.revert();
+			}
+			if (!file.delete()) {
+				log.warn("Unable to delete temporary import file " + file.getPath());
+			}
+		}
+	}
+
+	private XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("XML parser does not support disallowing DOCTYPE declarations");
+		}
+		return factory.newSAXParser().getXMLReader();
+	}
+
+	/**
+	 * @return the zero-based column index of a cell reference such as "AB12"
+	 */
+	static int getColumnIndex(String cellRef) {
+		int column = 0;
+		for (int i = 0; i < cellRef.length(); i++) {
+			char c = cellRef.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				break;
+			}
+			column = column * 26 + (c - 'A' + 1);
+		}
+		return column - 1;
+	}
+
+	private class SheetHandler extends DefaultHandler {
+		private final ReadOnlySharedStringsTable sharedStrings;
+		private final RowHandler handler;
+
+		private List<String> row;
+		private String cellType;
+		private int columnIndex;
+		private boolean inValue;
+		private final StringBuilder value = new StringBuilder();
+
+		SheetHandler(ReadOnlySharedStringsTable sharedStrings, RowHandler handler) {
+			this.sharedStrings = sharedStrings;
+			this.handler = handler;
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if ("row".equals(localName)) {
+				row = new ArrayList<String>();
+			} else if ("c".equals(localName)) {
+				cellType = attributes.getValue("t");
+				String cellRef = attributes.getValue("r");
+				columnIndex = (cellRef != null) ? getColumnIndex(cellRef) : row.size();
+				value.setLength(0);
+			} else if ("v".equals(localName) || "t".equals(localName)) {
+				// <v> holds the value, <is><t> an inline string
+				inValue = true;
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) {
+			if (inValue) {
+				value.append(ch, start, length);
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName) {
+			if ("v".equals(localName) || "t".equals(localName)) {
+				inValue = false;
+			} else if ("c".equals(localName)) {
+				while (row.size() < columnIndex) {
+					row.add("");
+				}
+				row.add(getCellValue());
+			} else if ("row".equals(localName)) {
+				handler.handleRow(row);
+				row = null;
+			}
+		}
+
+		private String getCellValue() {
+			String raw = value.toString();
+			if (raw.length() == 0) {
+				return "";
+			}
+			if ("s".equals(cellType)) {
+				return sharedStrings.getEntryAt(Integer.parseInt(raw));
+			} else if ("inlineStr".equals(cellType) || "str".equals(cellType)) {
+				return raw;
+			} else if ("b".equals(cellType) || "e".equals(cellType)) {
+				// Booleans and errors were never imported
+				return "";
+			}
+			try {
+				return numberFormat.format(Double.parseDouble(raw));
+			} catch (NumberFormatException e) {
+				return raw;
+			}
+		}
+	}
+}
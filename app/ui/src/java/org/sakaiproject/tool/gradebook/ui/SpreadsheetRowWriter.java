@@ -0,0 +1,101 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes spreadsheet rows to the response one at a time, so an export never
+ * holds more than the rows being computed. Unlike the SpreadsheetDataFileWriter
+ * classes, which take the whole List<List<Object>>, the caller pushes each row
+ * as soon as it is built.
+ */
+public abstract class SpreadsheetRowWriter {
+
+	/**
+	 * Set the download headers on the current JSF response and start writing to it.
+	 */
+	public void startDownload(String fileName) throws IOException {
+		FacesContext faces = FacesContext.getCurrentInstance();
+		HttpServletResponse response = (HttpServletResponse)faces.getExternalContext().getResponse();
+		response.reset();
+		response.setContentType(getContentType());
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + encodeFileName(fileName + getFileExtension()) + "\"");
+		// Allow IE to save the download over SSL
+		response.setHeader("Pragma", "public");
+		response.setHeader("Cache-Control", "public, must-revalidate, post-check=0, pre-check=0, max-age=0");
+		open(response.getOutputStream());
+	}
+
+	/**
+	 * Finish the file and mark the JSF response as complete.
+	 */
+	public void finishDownload() throws IOException {
+		close();
+		FacesContext faces = FacesContext.getCurrentInstance();
+		if (faces != null) {
+			faces.responseComplete();
+		}
+	}
+
+	/**
+	 * Give up on a download which failed part way. Once the response is
+	 * committed the page cannot be rendered in its place, so the JSF response
+	 * is marked as complete.
+	 */
+	public void abortDownload() {
+		FacesContext faces = FacesContext.getCurrentInstance();
+		if (faces == null) {
+			return;
+		}
+		HttpServletResponse response = (HttpServletResponse)faces.getExternalContext().getResponse();
+		if (response.isCommitted()) {
+			faces.responseComplete();
+		}
+	}
+
+	private String encodeFileName(String fileName) {
+		try {
+			return URLEncoder.encode(fileName, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			return fileName;
+		}
+	}
+
+	public abstract String getContentType();
+
+	public abstract String getFileExtension();
+
+	public abstract void open(OutputStream out) throws IOException;
+
+	public abstract void writeRow(List<Object> row) throws IOException;
+
+	public abstract void close() throws IOException;
+}
@@ -0,0 +1,84 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+
+import org.sakaiproject.component.cover.ServerConfigurationService;
+
+/**
+ * Streams rows as comma separated values, quoting cells which contain the
+ * separator, quotes or line breaks.
+ */
+public class SpreadsheetRowWriterCsv extends SpreadsheetRowWriter {
+	private Writer writer;
+	private String csvSeparator;
+
+	public String getContentType() {
+		return "text/comma-separated-values";
+	}
+
+	public String getFileExtension() {
+		return ".csv";
+	}
+
+	public void open(OutputStream out) throws IOException {
+		csvSeparator = ServerConfigurationService.getString("csv.separator", ",");
+		writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+	}
+
+	public void writeRow(List<Object> row) throws IOException {
+		for (Iterator<Object> iter = row.iterator(); iter.hasNext(); ) {
+			Object cell = iter.next();
+			if (cell != null) {
+				writeQuoted(cell.toString());
+			}
+			if (iter.hasNext()) {
+				writer.write(csvSeparator);
+			}
+		}
+		writer.write("\n");
+	}
+
+	private void writeQuoted(String value) throws IOException {
+		if (value.indexOf(csvSeparator) >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			writer.write('"');
+			writer.write(value.replaceAll("\"", "\"\""));
+			writer.write('"');
+		} else {
+			writer.write(value);
+		}
+	}
+
+	public void close() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+}
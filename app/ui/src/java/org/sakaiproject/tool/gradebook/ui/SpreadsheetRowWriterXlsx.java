@@ -0,0 +1,176 @@
+/**********************************************************************************
+ *
+ * $Id$
+ *
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.gradebook.ui;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams rows into a single sheet Office Open XML workbook. The worksheet part
+ * is written straight into the zip stream with inline strings, so no shared
+ * string table or in-memory workbook is needed however many rows are written.
+ * Numbers are written as numeric cells, everything else as text. Cells with
+ * no value, including numbers which are not finite, are left blank.
+ */
+public class SpreadsheetRowWriterXlsx extends SpreadsheetRowWriter {
+	private static final String SPREADSHEETML_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+	private ZipOutputStream zip;
+	private Writer writer;
+	private int rowNumber;
+
+	public String getContentType() {
+		return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+	}
+
+	public String getFileExtension() {
+		return ".xlsx";
+	}
+
+	public void open(OutputStream out) throws IOException {
+		zip = new ZipOutputStream(out);
+		writer = new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"));
+		rowNumber = 0;
+
+		writeEntry("[Content_Types].xml", XML_DECLARATION +
+			"<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">" +
+			"<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>" +
+			"<Default Extension=\"xml\" ContentType=\"application/xml\"/>" +
+			"<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>" +
+			"<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>" +
+			"</Types>");
+		writeEntry("_rels/.rels", XML_DECLARATION +
+			"<Relationships xmlns=\"" + RELATIONSHIPS_NS + "\">" +
+			"<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>" +
+			"</Relationships>");
+		writeEntry("xl/workbook.xml", XML_DECLARATION +
+			"<workbook xmlns=\"" + SPREADSHEETML_NS + "\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">" +
+			"<sheets><sheet name=\"Sheet1\" sheetId=\"1\" r:id=\"rId1\"/></sheets>" +
+			"</workbook>");
+		writeEntry("xl/_rels/workbook.xml.rels", XML_DECLARATION +
+			"<Relationships xmlns=\"" + RELATIONSHIPS_NS + "\">" +
+			"<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet1.xml\"/>" +
+			"</Relationships>");
+
+		// The worksheet stays open while the rows are written
+		zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+		writer.write(XML_DECLARATION);
+		writer.write("<worksheet xmlns=\"" + SPREADSHEETML_NS + "\"><sheetData>");
+	}
+
+	private void writeEntry(String name, String content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		writer.write(content);
+		writer.flush();
+		zip.closeEntry();
+	}
+
+	public void writeRow(List<Object> row) throws IOException {
+		rowNumber++;
+		writer.write("<row r=\"" + rowNumber + "\">");
+		for (int i = 0; i < row.size(); i++) {
+			Object cell = row.get(i);
+			if (cell == null || !isFinite(cell)) {
+				continue;
+			}
+			String cellRef = getColumnName(i) + rowNumber;
+			if (cell instanceof Number) {
+				writer.write("<c r=\"" + cellRef + "\"><v>" + cell.toString() + "</v></c>");
+			} else {
+				writer.write("<c r=\"" + cellRef + "\" t=\"inlineStr\"><is><t>");
+				writeEscaped(cell.toString());
+				writer.write("</t></is></c>");
+			}
+		}
+		writer.write("</row>");
+	}
+
+	/**
+	 * @return false for NaN and infinite numbers, which a numeric cell cannot hold
+	 */
+	private static boolean isFinite(Object cell) {
+		if (cell instanceof Double || cell instanceof Float) {
+			double value = ((Number)cell).doubleValue();
+			return !Double.isNaN(value) && !Double.isInfinite(value);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the spreadsheet column name (A, B, ..., Z, AA, ...) of the zero-based column index
+	 */
+	static String getColumnName(int columnIndex) {
+		StringBuilder name = new StringBuilder();
+		int column = columnIndex + 1;
+		while (column > 0) {
+			int remainder = (column - 1) % 26;
+			name.insert(0, (char)('A' + remainder));
+			column = (column - 1) / 26;
+		}
+		return name.toString();
+	}
+
+	private void writeEscaped(String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				writer.write("&amp;");
+				break;
+			case '<':
+				writer.write("&lt;");
+				break;
+			case '>':
+				writer.write("&gt;");
+				break;
+			case '"':
+				writer.write("&quot;");
+				break;
+			default:
+				// XML 1.0 does not allow most control characters
+				if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+					writer.write(c);
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		if (zip == null) {
+			return;
+		}
+		writer.write("</sheetData></worksheet>");
+		writer.flush();
+		zip.closeEntry();
+		zip.finish();
+		zip.flush();
+	}
+}
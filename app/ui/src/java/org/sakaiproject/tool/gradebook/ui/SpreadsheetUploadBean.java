@@ -17,11 +17,10 @@
 package org.sakaiproject.tool.gradebook.ui;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.io.StringReader;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
@@ -46,14 +45,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.myfaces.custom.fileupload.UploadedFile;
 import org.apache.poi.hssf.OldExcelFormatException;
-import org.apache.poi.hssf.usermodel.HSSFCell;
-import org.apache.poi.hssf.usermodel.HSSFRow;
-import org.apache.poi.hssf.usermodel.HSSFSheet;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.content.api.ContentResource;
@@ -131,6 +122,11 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     private static final String IMPORT_ASSIGNMENT_NOTSUPPORTED= "import_assignment_entire_notsupported";
     private static final String IMPORT_ASSIGNMENT_NEG_VALUE = "import_assignment_entire_negative_score";
     private static final int MAX_FILE_PICKER_UPLOADS = 1;
+
+    /**
+     * Separator of the CSV content of spreadsheets saved to the database
+     */
+    private static final char SAVED_SPREADSHEET_SEPARATOR = ',';
     static final String PICKED_FILE_REFERENCE = "pickedFileReference";
     static final String PICKED_FILE_DESC = "pickedFileDesc";
     static final String IMPORT_TITLE = "gradebookImportTitle";
@@ -547,15 +543,14 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         if(logger.isDebugEnabled())logger.debug("loading viewItem()");
 
         org.sakaiproject.tool.gradebook.Spreadsheet sp = getGradebookManager().getSpreadsheet(spreadsheetId);
-        StringBuilder sb = new StringBuilder();
-        sb.append(sp.getContent());
-
-        List contents = new ArrayList();
 
-        String lineitems[] = sb.toString().split("\n");
-        for(int i = 0;i<lineitems.length;i++){
-            if(logger.isDebugEnabled())logger.debug("line item contents \n" + lineitems[i]);
-            contents.add(lineitems[i]);
+        ImportRowHandler rowHandler = new ImportRowHandler(Integer.MAX_VALUE, false);
+        try {
+            new SpreadsheetRowReaderCsv(SAVED_SPREADSHEET_SEPARATOR).read(new StringReader(sp.getContent()), rowHandler);
+        } catch (IOException ioe) {
+            if(logger.isDebugEnabled())logger.debug(ioe + " there is a problem with the saved spreadsheet");
+            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filecontent_error"));
+            return null;
         }
 
         if(logger.isDebugEnabled())logger.debug(sp.toString());
@@ -564,35 +559,21 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         spreadsheet.setTitle(sp.getName());
         spreadsheet.setDate(sp.getDateCreated());
         spreadsheet.setUserId(sp.getCreator());
-        spreadsheet.setLineitems(contents);
+        spreadsheet.setHeaderRow(rowHandler.getHeaderRow());
 
         assignmentList = new ArrayList();
-        studentRows = new ArrayList();
         assignmentColumnSelectItems = new ArrayList();
-        //
-        // assignmentHeaders = new ArrayList();
 
-        SpreadsheetHeader header = new SpreadsheetHeader((String) spreadsheet.getLineitems().get(0));
+        SpreadsheetHeader header = rowHandler.getHeader();
+        if (header == null) {
+            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filecontent_error"));
+            return null;
+        }
         assignmentHeaders = header.getHeaderWithoutUser();
 
-
-        //generate spreadsheet rows
-        Iterator it = spreadsheet.getLineitems().iterator();
-        int rowcount = 0;
-        int unknownusers = 0;
-        while(it.hasNext()){
-            String line = (String) it.next();
-            if(rowcount > 0){
-                SpreadsheetRow  row = new SpreadsheetRow(line);
-                studentRows.add(row);
-                //check the number of unkonw users in spreadsheet
-                if(!row.isKnown())unknownusers = unknownusers + 1;
-                if(logger.isDebugEnabled()) logger.debug("row added" + rowcount);
-            }
-            rowcount++;
-        }
-        rowCount = String.valueOf(rowcount - 1);
-        if(unknownusers > 0){
+        studentRows = rowHandler.getRows();
+        rowCount = String.valueOf(studentRows.size());
+        if(rowHandler.getNumUnknownUsers() > 0){
             this.hasUnknownUser = true;
         }
 
@@ -676,7 +657,6 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     public String processFileEntire() throws Exception {
     	InputStream inputStream = null;
     	String fileName = null;
-	    List contents = null;
 
 	    int maxFileSizeInMB;
 	    try {
@@ -762,12 +742,17 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
             return null;
 		}
 
+        // reset error lists
+        unknownUsers = new ArrayList();
+        unknownAssignments = new ArrayList();
+
+        // the rows are checked against the roster as they are read, and reading
+        // stops keeping them once there are more than the class could need
+        int numStudentsInSite = getNumStudentsInSite();
+        int maxRows = numStudentsInSite + MAX_NUM_ROWS_OVER_CLASS_SIZE;
+        ImportRowHandler rowHandler = new ImportRowHandler(maxRows, true);
 		try {
-		    if (isXlsImport) {
-		        contents = excelToArray(inputStream);
-		    } else {
-		        contents = csvtoArray(inputStream);
-		    }
+		    getSpreadsheetRowReader(isXlsImport, false).read(inputStream, rowHandler);
 		}
 		catch(IOException ioe) {
             FacesUtil.addErrorMessage(getLocalizedString("upload_view_config_error"));
@@ -780,29 +765,25 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
 		}
 
 		// double check that the number of rows in this spreadsheet is reasonable
-        int numStudentsInSite = getNumStudentsInSite();
-        if (contents.size() > (numStudentsInSite + MAX_NUM_ROWS_OVER_CLASS_SIZE)) {
-            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filerows_error", new String[] {contents.size() + "", numStudentsInSite + ""}));
+        if (rowHandler.getNumRows() > maxRows) {
+            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filerows_error", new String[] {rowHandler.getNumRows() + "", numStudentsInSite + ""}));
             return null;
         }
 
-        // reset error lists
-        unknownUsers = new ArrayList();
-        unknownAssignments = new ArrayList();
-
         spreadsheet = new Spreadsheet();
         spreadsheet.setDate(new Date());
         spreadsheet.setTitle(this.getTitle());
         spreadsheet.setFilename(fileName);
-        spreadsheet.setLineitems(contents);
+        spreadsheet.setHeaderRow(rowHandler.getHeaderRow());
 
         assignmentList = new ArrayList();
-        studentRows = new ArrayList();
         assignmentColumnSelectItems = new ArrayList();
 
-        SpreadsheetHeader header;
+        SpreadsheetHeader header = rowHandler.getHeader();
         try{
-            header = new SpreadsheetHeader((String) spreadsheet.getLineitems().get(0));
+            if (header == null) {
+                throw new IndexOutOfBoundsException("no header row");
+            }
             assignmentHeaders = header.getHeaderWithoutUserAndCumulativeGrade();
         }
         catch(IndexOutOfBoundsException ioe) {
@@ -823,41 +804,9 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         	}
         }
 
-        //generate spreadsheet rows
-        Iterator it = spreadsheet.getLineitems().iterator();
-        int rowcount = 0;
-        int unknownusers = 0;
-        int headerCount = assignmentHeaders.size();
-        while(it.hasNext()){
-            String line = (String) it.next();
-            if(rowcount > 0){
-                SpreadsheetRow  row = new SpreadsheetRow(line);
-
-                List rowData = row.getRowcontent();
-
-                // if Cumulative column was in spreadsheet, need to filter it out
-                // here
-                if (header.isHasCumulative()) rowData.remove(rowData.size()-1);
-
-                // if the number of cols in the student row is less than the # headers,
-                // we need to append blank placeholders
-                if (rowData.size() < headerCount) {
-                	while (rowData.size() < (headerCount)) {
-                		rowData.add("");
-                	}
-                }
-                studentRows.add(row);
-                //check the number of unknown users in spreadsheet
-                if(!row.isKnown()) {
-                	unknownusers = unknownusers + 1;
-                	unknownUsers.add(row.getUserId());
-                }
-                if(logger.isDebugEnabled()) logger.debug("row added" + rowcount);
-            }
-            rowcount++;
-        }
-        rowCount = String.valueOf(rowcount - 1); // subtract header
-        if(unknownusers > 0){
+        studentRows = rowHandler.getRows();
+        rowCount = String.valueOf(studentRows.size());
+        if(rowHandler.getNumUnknownUsers() > 0){
             this.hasUnknownUser = true;
             return null;
         }
@@ -891,7 +840,6 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     public String processFile() throws Exception {
     	InputStream inputStream = null;
     	String fileName = null;
-	    List contents = null;
 
 	    int maxFileSizeInMB;
         try {
@@ -981,14 +929,13 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
             return null;
 		}
 
+        // the rows are checked against the roster as they are read, and reading
+        // stops keeping them once there are more than the class could need
+        int numStudentsInSite = getNumStudentsInSite();
+        int maxRows = numStudentsInSite + MAX_NUM_ROWS_OVER_CLASS_SIZE;
+        ImportRowHandler rowHandler = new ImportRowHandler(maxRows, false);
 		try {
-		    if (isXlsImport) {
-                contents = excelToArray(inputStream);
-		    } else if (isOOXMLimport) {
-                contents = excelOOXMLToArray(inputStream);
-		    } else {
-                contents = csvtoArray(inputStream);
-            }
+		    getSpreadsheetRowReader(isXlsImport, isOOXMLimport).read(inputStream, rowHandler);
 		}
 		catch(IOException ioe) {
             FacesUtil.addErrorMessage(getLocalizedString("upload_view_config_error"));
@@ -1006,9 +953,8 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         }
 
 	    // double check that the number of rows in this spreadsheet is reasonable
-		int numStudentsInSite = getNumStudentsInSite();
-        if (contents.size() > (numStudentsInSite + MAX_NUM_ROWS_OVER_CLASS_SIZE)) {
-            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filerows_error",new String[] {contents.size() + "", numStudentsInSite + ""}));
+        if (rowHandler.getNumRows() > maxRows) {
+            FacesUtil.addErrorMessage(getLocalizedString("upload_view_filerows_error",new String[] {rowHandler.getNumRows() + "", numStudentsInSite + ""}));
             return null;
         }
 
@@ -1019,40 +965,21 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         spreadsheet.setTitle(this.getTitle());
         clearImportTitle();
         spreadsheet.setFilename(fileName);
-        spreadsheet.setLineitems(contents);
+        spreadsheet.setHeaderRow(rowHandler.getHeaderRow());
         assignmentList = new ArrayList();
-        studentRows = new ArrayList();
         assignmentColumnSelectItems = new ArrayList();
-        //
-        // assignmentHeaders = new ArrayList();
 
-        SpreadsheetHeader header;
-        try{
-            header = new SpreadsheetHeader((String) spreadsheet.getLineitems().get(0));
-            assignmentHeaders = header.getHeaderWithoutUser();
-        }catch(IndexOutOfBoundsException ioe){
-            if(logger.isDebugEnabled())logger.debug(ioe + " there is a problem with the uploaded spreadsheet");
+        SpreadsheetHeader header = rowHandler.getHeader();
+        if (header == null) {
+            if(logger.isDebugEnabled())logger.debug("there is no header row in the uploaded spreadsheet");
             FacesUtil.addErrorMessage(getLocalizedString("upload_view_filecontent_error"));
             return null;
         }
+        assignmentHeaders = header.getHeaderWithoutUser();
 
-        //generate spreadsheet rows
-        Iterator it = spreadsheet.getLineitems().iterator();
-        int rowcount = 0;
-        int unknownusers = 0;
-        while(it.hasNext()){
-            String line = (String) it.next();
-            if(rowcount > 0){
-                SpreadsheetRow  row = new SpreadsheetRow(line);
-                studentRows.add(row);
-                //check the number of unkonw users in spreadsheet
-                if(!row.isKnown())unknownusers = unknownusers + 1;
-                if(logger.isDebugEnabled()) logger.debug("row added" + rowcount);
-            }
-            rowcount++;
-        }
-        rowCount = String.valueOf(rowcount - 1);
-        if(unknownusers > 0){
+        studentRows = rowHandler.getRows();
+        rowCount = String.valueOf(studentRows.size());
+        if(rowHandler.getNumUnknownUsers() > 0){
             this.hasUnknownUser = true;
         }
 
@@ -1084,32 +1011,114 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     }
 
     /**
-     * method converts an input stream to an List consist of strings
-     * representing a line
-     *
-     * @param inputStream
-     * @return contents
+     * @return the reader for the uploaded file's format
      */
-    private List csvtoArray(InputStream inputStream) throws IOException{
+    private SpreadsheetRowReader getSpreadsheetRowReader(boolean isXlsImport, boolean isOOXMLImport) {
+        if (isXlsImport) {
+            return new SpreadsheetRowReaderXls(getNumberFormat());
+        } else if (isOOXMLImport) {
+            return new SpreadsheetRowReaderXlsx(getNumberFormat());
+        }
+        return new SpreadsheetRowReaderCsv(getCsvDelimiter().charAt(0));
+    }
+
+    /**
+     * Builds the header and student rows as a SpreadsheetRowReader streams them,
+     * resolving each student against the roster as the row arrives. Blank rows are
+     * skipped. Rows past maxRows are only counted, so the memory used is bounded by
+     * the size of the class rather than the size of the file.
+     */
+    private class ImportRowHandler implements SpreadsheetRowReader.RowHandler {
+        private final int maxRows;
+        private final boolean isEntireGradebookImport;
+
+        private SpreadsheetHeader header;
+        private List headerRow;
+        private int headerCount;
+        private List rows = new ArrayList();
+        private int numRows = 0;
+        private int numUnknownUsers = 0;
+
+        ImportRowHandler(int maxRows, boolean isEntireGradebookImport) {
+            this.maxRows = maxRows;
+            this.isEntireGradebookImport = isEntireGradebookImport;
+        }
+
+        public void handleRow(List<String> cells) {
+            if (SpreadsheetRowReader.isBlankRow(cells)) {
+                return;
+            }
+            numRows++;
+            if (numRows > maxRows) {
+                return;
+            }
+
+            if (header == null) {
+                header = new SpreadsheetHeader(cells);
+                headerRow = cells;
+                // the assignment columns, without the user and any Cumulative column
+                headerCount = header.getColumnCount() - 1;
+                if (header.isHasCumulative()) headerCount--;
+                return;
+            }
+
+            SpreadsheetRow row = new SpreadsheetRow(cells);
+            if (isEntireGradebookImport) {
+                List rowData = row.getRowcontent();
+
+                // if Cumulative column was in spreadsheet, need to filter it out
+                // here
+                if (header.isHasCumulative()) rowData.remove(rowData.size()-1);
+
+                // if the number of cols in the student row is less than the # headers,
+                // we need to append blank placeholders
+                while (rowData.size() < headerCount) {
+                    rowData.add("");
+                }
+            }
+            rows.add(row);
+
+            //check the number of unknown users in spreadsheet
+            if (!row.isKnown()) {
+                numUnknownUsers++;
+                if (isEntireGradebookImport) {
+                    unknownUsers.add(row.getUserId());
+                }
+            }
+            if(logger.isDebugEnabled()) logger.debug("row added" + rows.size());
+        }
 
         /**
-         * TODO this well probably be removed
+         * @return the header row, or null if the spreadsheet had no content
          */
+        public SpreadsheetHeader getHeader() {
+            return header;
+        }
 
-        if(logger.isDebugEnabled()) logger.debug("csvtoArray()");
-        List contents = new ArrayList();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        while((line = reader.readLine())!=null){
-            //logger.debug("contents of line: "+line);
-            if (line.replaceAll(",", "").replaceAll("\"", "").equals("")) {
-                continue;
-            }
+        /**
+         * @return the header row as read, including the user column
+         */
+        public List getHeaderRow() {
+            return headerRow;
+        }
 
-            contents.add(line);
+        /**
+         * @return the SpreadsheetRows for the students
+         */
+        public List getRows() {
+            return rows;
         }
-        return contents;
 
+        /**
+         * @return the number of non-blank rows, including the header and any rows past maxRows
+         */
+        public int getNumRows() {
+            return numRows;
+        }
+
+        public int getNumUnknownUsers() {
+            return numUnknownUsers;
+        }
     }
 
     /**
@@ -1120,11 +1129,11 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     public String saveFile(){
 
         StringBuilder sb = new StringBuilder();
-        List contents =  spreadsheet.getLineitems();
-        Iterator it = contents.iterator();
+        appendCsvLine(sb, spreadsheet.getHeaderRow());
+        Iterator it = studentRows.iterator();
         while(it.hasNext()){
-            String line = (String) it.next();
-            sb.append(line + '\n');
+            SpreadsheetRow row = (SpreadsheetRow) it.next();
+            appendCsvLine(sb, row.getRowcontent());
         }
 
         String filename = spreadsheet.getFilename();
@@ -1146,6 +1155,25 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         return "spreadsheetListing";
     }
 
+    /**
+     * Append the cells as one line of the saved spreadsheet content, quoting cells
+     * which would otherwise not read back the same.
+     */
+    private void appendCsvLine(StringBuilder sb, List cells) {
+        for (Iterator iter = cells.iterator(); iter.hasNext(); ) {
+            String cell = (String) iter.next();
+            if (cell.indexOf(SAVED_SPREADSHEET_SEPARATOR) >= 0 || cell.indexOf('"') >= 0 || cell.indexOf('\n') >= 0 || cell.indexOf('\r') >= 0) {
+                sb.append('"').append(cell.replaceAll("\"", "\"\"")).append('"');
+            } else {
+                sb.append(cell);
+            }
+            if (iter.hasNext()) {
+                sb.append(SAVED_SPREADSHEET_SEPARATOR);
+            }
+        }
+        sb.append('\n');
+    }
+
     /**
      * If user has selected column to import, grab the values and
      */
@@ -1371,7 +1399,7 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         			}
         		}
 
-        		gradeRecords = gradeChanges(assignment, studentRows, index+1, lgpm);
+        		gradeRecords = gradeChanges(assignment, studentRows, index, lgpm);
 
         		if (gradeRecords.size() == 0)
         			continue; // no changes to current grade record so go to next one
@@ -1528,51 +1556,36 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
     private List gradeChanges(Assignment assignment, List fromSpreadsheet, int index, LetterGradePercentMapping lgpm) {
     	List updatedGradeRecords = new ArrayList();
      	List studentUids = new ArrayList();
-    	List studentRowsWithUids = new ArrayList();
 
+   		// create list of uids to get current grades from gradebook
    		Iterator it = fromSpreadsheet.iterator();
-
    		while(it.hasNext()) {
-   			final SpreadsheetRow row = (SpreadsheetRow) it.next();
-   			List line = row.getRowcontent();
-
-   			String userid = "";
-   			final String user = ((String)line.get(0)).toLowerCase();
-   			try {
-   				userid = ((User)rosterMap.get(user)).getUserUid();
-
-   				// create list of uids to get current grades from gradebook
-   				studentUids.add(userid);
-
-   				// add uid to each row so can check spreadsheet value against currently stored
-   				List linePlus = new ArrayList();
-   				linePlus.add(userid);
-   				linePlus.addAll(line);
-   				studentRowsWithUids.add(linePlus);
-
-   			}
-   			catch(Exception e) {
-   				// Weirdness. Should be caught when importing, not here
+   			SpreadsheetRow row = (SpreadsheetRow) it.next();
+   			if (row.isKnown()) {
+   				studentUids.add(row.getUserUid());
    			}
   		}
 
   		List gbGrades = getGradebookManager().getAssignmentGradeRecordsConverted(assignment, studentUids);
 
-		// now do the actual comparison
-		it = studentRowsWithUids.iterator();
+		// now do the actual comparison, reading the rows as they were parsed
+		it = fromSpreadsheet.iterator();
 
 		boolean updatingExternalGrade = false;
 		while(it.hasNext()) {
-			final List aRow = (List) it.next();
-
-			final String userid = (String) aRow.get(0);
-			final String user = (String) aRow.get(1);
+			final SpreadsheetRow row = (SpreadsheetRow) it.next();
+			if (!row.isKnown()) {
+				// Weirdness. Should be caught when importing, not here
+				continue;
+			}
+			final List line = row.getRowcontent();
+			final String userid = row.getUserUid();
 
 			AssignmentGradeRecord gr = findGradeRecord(gbGrades, userid);
 
 			String score = null;
-			if (index < aRow.size()) {
-				score = ((String) aRow.get(index)).trim();
+			if (index < line.size()) {
+				score = ((String) line.get(index)).trim();
 			}
 
 			if (getGradeEntryByPercent() || getGradeEntryByPoints()) {
@@ -1908,7 +1921,7 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         private String displayName;
         private Long gradebookId;
         private String filename;
-        private List lineitems;
+        private List headerRow;
         private Map selectedAssignment;
 
 
@@ -1984,12 +1997,12 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         }
 
 
-        public List getLineitems() {
-            return lineitems;
+        public List getHeaderRow() {
+            return headerRow;
         }
 
-        public void setLineitems(List lineitems) {
-            this.lineitems = lineitems;
+        public void setHeaderRow(List headerRow) {
+            this.headerRow = headerRow;
         }
 
 
@@ -2012,7 +2025,7 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
                     ", displayName='" + displayName + '\'' +
                     ", gradebookId=" + gradebookId +
                     ", filename='" + filename + '\'' +
-                    ", lineitems=" + lineitems +
+                    ", headerRow=" + headerRow +
                     ", selectedAssignment=" + selectedAssignment +
                     '}';
         }
@@ -2073,13 +2086,12 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         	return head;
         }
 
-        public SpreadsheetHeader(String source) {
+        public SpreadsheetHeader(List source) {
 
 
             if(logger.isDebugEnabled()) logger.debug("creating header from "+source);
-            header = new ArrayList();
-            CSV csv = new CSV();
-            header = csv.parse(source);
+            // copy, since the getHeaderWithout... methods remove columns
+            header = new ArrayList(source);
             columnCount = header.size();
             hasCumulative = header.get(columnCount-1).equals("Cumulative");
         }
@@ -2098,7 +2110,7 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         private String userUid;
         private boolean isKnown;
 
-        public SpreadsheetRow(String source) {
+        public SpreadsheetRow(List source) {
 
             // this may be instantiated before SpreadsheetUploadBean is initialized, so make sure
             // the rosterMap is populated
@@ -2106,10 +2118,9 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
                 initializeRosterMap();
             }
 
-            if(logger.isDebugEnabled()) logger.debug("creating row from string " + source);
-            rowcontent = new ArrayList();
-            CSV csv = new CSV();
-            rowcontent = csv.parse(source);
+            if(logger.isDebugEnabled()) logger.debug("creating row from " + source);
+            // kept as it is, the readers start a new list for every row
+            rowcontent = source;
 
             // derive the user information
             String userContent = (String) rowcontent.get(0);
@@ -2193,223 +2204,6 @@ public class SpreadsheetUploadBean extends GradebookDependentBean implements Ser
         }
     }
 
-    //csv class to handle
-
-    /** Parse comma-separated values (CSV), a common Windows file format.
-     * Sample input: "LU",86.25,"11/4/1998","2:19PM",+4.0625
-     * <p>
-     * Inner logic adapted from a C++ original that was
-     * Copyright (C) 1999 Lucent Technologies
-     * Excerpted from 'The Practice of Programming'
-     * by Brian W. Kernighan and Rob Pike.
-     * <p>
-     * Included by permission of the http://tpop.awl.com/ web site,
-     * which says:
-     * "You may use this code for any purpose, as long as you leave
-     * the copyright notice and book citation attached." I have done so.
-     * @author Brian W. Kernighan and Rob Pike (C++ original)
-     * @author Ian F. Darwin (translation into Java and removal of I/O)
-     * @author Ben Ballard (rewrote advQuoted to handle '""' and for readability)
-     */
-    class CSV {
-
-        public static final char DEFAULT_SEP = ',';
-
-        /** Construct a CSV parser, with the default separator (`,'). */
-        public CSV() {
-            this(DEFAULT_SEP);
-        }
-
-        /** Construct a CSV parser with a given separator.
-         * @param sep The single char for the separator (not a list of
-         * separator characters)
-         */
-        public CSV(char sep) {
-            fieldSep = sep;
-        }
-
-        /** The fields in the current String */
-        protected List list = new ArrayList();
-
-        /** the separator char for this parser */
-        protected char fieldSep;
-
-        /** parse: break the input String into fields
-         * @return java.util.Iterator containing each field
-         * from the original as a String, in order.
-         */
-        public List parse(String line)
-        {
-            StringBuilder sb = new StringBuilder();
-            list.clear();      // recycle to initial state
-            int i = 0;
-
-            if (line.length() == 0) {
-                list.add(line);
-                return list;
-            }
-
-            do {
-                sb.setLength(0);
-                if (i < line.length() && line.charAt(i) == '"')
-                    i = advQuoted(line, sb, ++i);  // skip quote
-                else
-                    i = advPlain(line, sb, i);
-                list.add(sb.toString());
-                i++;
-            } while (i < line.length());
-            if(logger.isDebugEnabled()) {
-                StringBuilder logBuffer = new StringBuilder("Parsed " + line + " as: ");
-                for(Iterator iter = list.iterator(); iter.hasNext();) {
-                	logBuffer.append(iter.next());
-                	if(iter.hasNext()) {
-                		logBuffer.append(", ");
-                	}
-                }
-                logger.debug("Parsed source string " + line + " as " + logBuffer.toString() + ", length=" + list.size());
-            }
-            return list;
-
-        }
-
-        /** advQuoted: quoted field; return index of next separator */
-        protected int advQuoted(String s, StringBuilder sb, int i)
-        {
-            int j;
-            int len= s.length();
-            for (j=i; j<len; j++) {
-                if (s.charAt(j) == '"' && j+1 < len) {
-                    if (s.charAt(j+1) == '"') {
-                        j++; // skip escape char
-                    } else if (s.charAt(j+1) == fieldSep) { //next delimeter
-                        j++; // skip end quotes
-                        break;
-                    }
-                } else if (s.charAt(j) == '"' && j+1 == len) { // end quotes at end of line
-                    break; //done
-                }
-                sb.append(s.charAt(j));  // regular character.
-            }
-            return j;
-        }
-
-        /** advPlain: unquoted field; return index of next separator */
-        protected int advPlain(String s, StringBuilder sb, int i)
-        {
-            int j;
-
-            j = s.indexOf(fieldSep, i); // look for separator
-            if (j == -1) {                 // none found
-                sb.append(s.substring(i));
-                return s.length();
-            } else {
-                sb.append(s.substring(i, j));
-                return j;
-            }
-        }
-    }
-
-    //************************ EXCEL file parsing *****************************
-    /**
-     * method converts an input stream to an List consisting of strings
-     * representing a line.  The input stream must be for an xls file.
-     *
-     * @param inputStream
-     * @return contents
-     */
-    private List excelToArray(InputStream inputStreams) throws IOException {
-        HSSFWorkbook wb  = new HSSFWorkbook(inputStreams);
-
-        //Convert an Excel file to csv
-        HSSFSheet sheet = wb.getSheetAt(0);
-        List array = new ArrayList();
-        Iterator it = sheet.rowIterator();
-        while (it.hasNext()){
-            HSSFRow row = (HSSFRow) it.next();
-            String rowAsString = fromHSSFRowtoCSV(row);
-            if (rowAsString.replaceAll(",", "").replaceAll("\"", "").equals("")) {
-                continue;
-            }
-            array.add(fromHSSFRowtoCSV(row));
-        }
-        return array;
-    }
-
-    private String fromHSSFRowtoCSV(HSSFRow row){
-        StringBuffer csvRow = new StringBuffer();
-        int l = row.getLastCellNum();
-        for (int i=0;i<l;i++){
-            HSSFCell cell = row.getCell((short)i);
-            String cellValue = "";
-            if (cell == null || cell.getCellType() == HSSFCell.CELL_TYPE_BLANK) {
-                cellValue = "";
-            } else if (cell.getCellType()== HSSFCell.CELL_TYPE_STRING){
-                cellValue = "\"" + cell.getStringCellValue() + "\"";
-            } else if (cell.getCellType() == HSSFCell.CELL_TYPE_NUMERIC){
-                double value = cell.getNumericCellValue();
-                cellValue = getNumberFormat().format(value);
-                cellValue = "\"" + cellValue + "\"";
-            }
-
-            csvRow.append(cellValue);
-
-            if (i<l){
-                csvRow.append(getCsvDelimiter().toCharArray()[0]);
-            }
-        }
-        return csvRow.toString();
-
-    }
-
-    /**
-     * Parse newer OOXML Excel Spreadsheets
-     * @param inputStreams
-     * @return
-     * @throws IOException
-     */
-    private List<String> excelOOXMLToArray(InputStream inputStreams) throws IOException {
-    	XSSFWorkbook wb  = new XSSFWorkbook(inputStreams);
-
-        //Convert an Excel OOXML (.xslx) file to csv
-    	XSSFSheet sheet = wb.getSheetAt(0);
-        List<String> array = new ArrayList<String>();
-        Iterator it = sheet.rowIterator();
-        while (it.hasNext()){
-        	XSSFRow row = (XSSFRow) it.next();
-            String rowAsString = fromXSSFRowtoCSV(row);
-            if (rowAsString.replaceAll(",", "").replaceAll("\"", "").equals("")) {
-                continue;
-            }
-            array.add(fromXSSFRowtoCSV(row));
-        }
-        return array;
-    }
-
-    private String fromXSSFRowtoCSV(XSSFRow row){
-        StringBuffer csvRow = new StringBuffer();
-        int l = row.getLastCellNum();
-        for (int i=0;i<l;i++){
-            XSSFCell cell = row.getCell((short)i);
-            String cellValue = "";
-            if (cell == null || cell.getCellType() == HSSFCell.CELL_TYPE_BLANK) {
-                cellValue = "";
-            } else if (cell.getCellType()== HSSFCell.CELL_TYPE_STRING){
-                cellValue = "\"" + cell.getStringCellValue() + "\"";
-            } else if (cell.getCellType() == HSSFCell.CELL_TYPE_NUMERIC){
-                double value = cell.getNumericCellValue();
-                cellValue = getNumberFormat().format(value);
-                cellValue = "\"" + cellValue + "\"";
-            }
-
-            csvRow.append(cellValue);
-
-            if (i<l){
-                csvRow.append(getCsvDelimiter().toCharArray()[0]);
-            }
-        }
-        return csvRow.toString();
-    }
-
     /**
      * Process an upload ActionEvent from spreadsheetUpload.jsp or spreadsheetEntireGBImport.jsp
      * Source of this action is the Upload button on either page
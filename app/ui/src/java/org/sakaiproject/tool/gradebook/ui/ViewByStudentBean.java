@@ -34,7 +34,6 @@ import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.service.gradebook.shared.GradebookService;
 import org.sakaiproject.service.gradebook.shared.GradebookExternalAssessmentService;
 import org.sakaiproject.service.gradebook.shared.StaleObjectModificationException;
-import org.sakaiproject.service.gradebook.shared.UnknownUserException;
 import org.sakaiproject.tool.gradebook.Assignment;
 import org.sakaiproject.tool.gradebook.AssignmentGradeRecord;
 import org.sakaiproject.tool.gradebook.Category;
@@ -213,9 +212,8 @@ public class ViewByStudentBean extends EnrollmentTableBean implements Serializab
     	isAllItemsViewOnly = true;
 
     	// Set the display name
-    	try {
-    		userDisplayName = getUserDirectoryService().getUserDisplayName(studentUid);
-    	} catch (UnknownUserException e) {
+    	userDisplayName = getUserCache().getUserDisplayName(studentUid);
+    	if (userDisplayName == null) {
     		if(logger.isErrorEnabled())logger.error("User " + studentUid + " is unknown but referenced in gradebook " + gradebook.getUid());
     		userDisplayName = "";
     	}
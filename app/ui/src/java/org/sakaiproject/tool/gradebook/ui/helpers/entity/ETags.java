@@ -0,0 +1,44 @@
+package org.sakaiproject.tool.gradebook.ui.helpers.entity;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Builds and checks the ETags of the gradebook REST responses.
+ */
+class ETags {
+
+	private ETags() {
+	}
+
+	/**
+	 * @return a weak ETag for the tag of the data, which also varies with the
+	 *         path (so the format) and the query parameters of the request, as
+	 *         those change the response built from the same data
+	 */
+	static String forRequest(String tag, HttpServletRequest request) {
+		String variant = request.getRequestURI() + "?"
+				+ StringUtils.defaultString(request.getQueryString());
+		return "W/\"" + tag + "-" + Integer.toHexString(variant.hashCode())
+				+ "\"";
+	}
+
+	/**
+	 * @return true if the If-None-Match header lists the ETag (weak or not) or
+	 *         is *
+	 */
+	static boolean isMatched(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		String opaqueTag = StringUtils.removeStart(etag, "W/");
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = StringUtils.removeStart(tag.trim(), "W/");
+			if (opaqueTag.equals(tag) || "*".equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
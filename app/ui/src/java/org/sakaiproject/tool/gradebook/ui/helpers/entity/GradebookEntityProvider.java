@@ -5,6 +5,18 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
@@ -19,8 +31,11 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutab
 import org.sakaiproject.entitybroker.entityprovider.capabilities.AutoRegisterEntityProvider;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestAware;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Sampleable;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetter;
+import org.sakaiproject.entitybroker.exception.EntityException;
 import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.service.gradebook.shared.Assignment;
@@ -28,12 +43,17 @@ import org.sakaiproject.service.gradebook.shared.CommentDefinition;
 import org.sakaiproject.service.gradebook.shared.GradebookService;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.tool.gradebook.business.GradeMatrix;
+import org.sakaiproject.tool.gradebook.business.GradebookManager;
+import org.sakaiproject.tool.gradebook.business.impl.UserCache;
 import org.sakaiproject.tool.gradebook.ui.helpers.params.GradebookItemViewParams;
 import org.sakaiproject.tool.gradebook.ui.helpers.producers.AuthorizationFailedProducer;
 import org.sakaiproject.tool.gradebook.ui.helpers.producers.GradebookItemProducer;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.api.UserDirectoryService;
-import org.sakaiproject.user.api.UserNotDefinedException;
 
 import uk.ac.cam.caret.sakai.rsf.entitybroker.EntityViewParamsInferrer;
 import uk.org.ponder.rsf.viewstate.SimpleViewParameters;
@@ -47,7 +67,7 @@ import uk.org.ponder.rsf.viewstate.ViewParameters;
 public class GradebookEntityProvider extends AbstractEntityProvider implements
 		AutoRegisterEntityProvider, CoreEntityProvider,
 		EntityViewParamsInferrer, Describeable, Sampleable, ActionsExecutable,
-		Outputable {
+		Outputable, RequestAware {
 
 	public final static String ENTITY_PREFIX = "gradebook";
 
@@ -63,6 +83,51 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 	@Setter
 	private SecurityService securityService;
 
+	@Setter
+	private GradebookManager gradebookManager;
+
+	@Setter
+	private UserCache userCache;
+
+	@Setter
+	private SessionManager sessionManager;
+
+	@Setter
+	private ThreadLocalManager threadLocalManager;
+
+	/**
+	 * The most sites whose gradebooks are read at the same time for /gradebook/my,
+	 * across all the requests
+	 */
+	@Setter
+	private int maxSiteThreads = 4;
+
+	/**
+	 * How many site reads wait for a thread before a request reads its next
+	 * sites itself
+	 */
+	@Setter
+	private int maxSitesQueued = 100;
+
+	private ThreadPoolExecutor siteReaders;
+
+	public void init() {
+		if (maxSiteThreads > 1) {
+			siteReaders = new ThreadPoolExecutor(maxSiteThreads, maxSiteThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(maxSitesQueued, 1)),
+					new SiteReaderThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+
+	public void destroy() {
+		if (siteReaders != null) {
+			siteReaders.shutdownNow();
+		}
+	}
+
+	@Setter
+	private RequestGetter requestGetter;
+
 	public String getEntityPrefix() {
 		return ENTITY_PREFIX;
 	}
@@ -132,23 +197,27 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 			throw new IllegalArgumentException("No gradebook found for site: "
 					+ siteId);
 		}
+		checkNotModified(siteId, userId);
 
 		if (securityService.isSuperUser() || siteService.allowUpdateSite(siteId)) {
 			// admin or instructor
 			log.info("Admin or instructor accesssing gradebook of site "
 					+ siteId);
 			GradeCourse course = new GradeCourse(site);
-			Collection<String> students = getStudentList(siteId);
+			Map<String, String> students = getStudentList(siteId);
 			@SuppressWarnings("unchecked")
 			List<Assignment> gbitems = gradebookService.getAssignments(siteId);
+			// one query for the scores of every student on every item
+			GradeMatrix gradeMatrix = getGradeMatrix(siteId, students.keySet());
 			for (Assignment assignment : gbitems) {
-				for (String studentId : students) {
+				for (Map.Entry<String, String> student : students.entrySet()) {
+					String studentId = student.getKey();
 					GradeAssignmentItem item = new GradeAssignmentItem(
 							assignment);
 					item.setUserId(studentId);
-					item.setUserName(getUserDisplayName(studentId));
-					item.setGrade(gradebookService.getAssignmentScoreString(
-							siteId, assignment.getName(), studentId));
+					item.setUserName(student.getValue());
+					item.setGrade(getScoreString(siteId, gradeMatrix,
+							assignment, studentId));
 
 					course.assignments.add(item);
 				}
@@ -157,24 +226,94 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 
 		} else {
 			// students or the rest
-			GradeCourse course = new GradeCourse(site);
+			return getGradeCourseForCurrentUser(site, userId,
+					getUserDisplayName(userId));
+		}
+	}
 
-			List<Assignment> gbitems = gradebookService
-					.getViewableAssignmentsForCurrentUser(siteId);
-			for (Assignment assignment : gbitems) {
-				GradeAssignmentItem item = new GradeAssignmentItem(assignment);
-				item.setUserId(userId);
-				item.setUserName(getUserDisplayName(userId));
-				item.setGrade(gradebookService.getAssignmentScoreString(siteId,
-						assignment.getName(), userId));
+	/**
+	 * Send the ETag of the user's view of the gradebook with the response, and
+	 * answer 304 (Not Modified) without reading any grades if the client
+	 * already has it
+	 */
+	private void checkNotModified(String siteId, String userId) {
+		if (requestGetter == null) {
+			return;
+		}
+		HttpServletRequest request = requestGetter.getRequest();
+		HttpServletResponse response = requestGetter.getResponse();
+		if (request == null || response == null) {
+			return;
+		}
+		Long gradebookId = gradebookManager.getGradebook(siteId).getId();
+		String etag = ETags.forRequest(
+				gradebookManager.getGradebookVersion(gradebookId) + "-"
+						+ Integer.toHexString(userId.hashCode()), request);
+		response.setHeader("ETag", etag);
+		if (ETags.isMatched(request.getHeader("If-None-Match"), etag)) {
+			throw new EntityException("Gradebook not modified",
+					ENTITY_PREFIX + "/site/" + siteId,
+					HttpServletResponse.SC_NOT_MODIFIED);
+		}
+	}
 
-				course.assignments.add(item);
-			}
+	/**
+	 * @return the gradebook items of the site which the current user can
+	 *         view, with their own scores
+	 */
+	private GradeCourse getGradeCourseForCurrentUser(Site site, String userId,
+			String userName) {
+		String siteId = site.getId();
+		GradeCourse course = new GradeCourse(site);
+
+		List<Assignment> gbitems = gradebookService
+				.getViewableAssignmentsForCurrentUser(siteId);
+		if (gbitems.isEmpty()) {
 			return course;
 		}
+		GradeMatrix gradeMatrix = getGradeMatrix(siteId,
+				Collections.singletonList(userId));
+		for (Assignment assignment : gbitems) {
+			GradeAssignmentItem item = new GradeAssignmentItem(assignment);
+			item.setUserId(userId);
+			item.setUserName(userName);
+			item.setGrade(getScoreString(siteId, gradeMatrix, assignment,
+					userId));
+
+			course.assignments.add(item);
+		}
+		return course;
 	}
 
-	private Collection<String> getStudentList(String siteId) {
+	private GradeMatrix getGradeMatrix(String siteId,
+			Collection<String> studentIds) {
+		Long gradebookId = gradebookManager.getGradebook(siteId).getId();
+		return gradebookManager.getGradeMatrix(gradebookId, studentIds);
+	}
+
+	/**
+	 * @return the score as getAssignmentScoreString would give it, read from
+	 *         the matrix where possible
+	 */
+	private String getScoreString(String siteId, GradeMatrix gradeMatrix,
+			Assignment assignment, String studentId) {
+		int assignmentIndex = gradeMatrix.getAssignmentIndex(assignment.getId());
+		int studentIndex = gradeMatrix.getStudentIndex(studentId);
+		if (assignmentIndex < 0 || studentIndex < 0
+				|| gradeMatrix.getAssignment(assignmentIndex).getUngraded()) {
+			// ungraded items are not held as points, so ask the service
+			return gradebookService.getAssignmentScoreString(siteId,
+					assignment.getName(), studentId);
+		}
+		Double points = gradeMatrix.getPointsEarnedOrNull(studentIndex,
+				assignmentIndex);
+		return points == null ? null : points.toString();
+	}
+
+	/**
+	 * @return map of student user id --> display name, in user id order
+	 */
+	private Map<String, String> getStudentList(String siteId) {
 		// this only works in the post-2.5 gradebook -AZ
 		// Let the gradebook tell use how it defines the students The
 		// gradebookUID is the siteId
@@ -186,42 +325,35 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 							+ "), gradebook must be installed in each course to use with this");
 		}
 
-		ArrayList<String> result = new ArrayList<String>();
+		Map<String, String> result = new TreeMap<String, String>();
 
 		@SuppressWarnings("unchecked")
 		Map<String, String> studentToPoints = gradebookService
 				.getFixedPoint(gbID);
 		ArrayList<String> eids = new ArrayList<String>(studentToPoints.keySet());
-				
+
+		// the users are looked up together here, so their names need no further lookups
 		List<User> users = userDirectoryService.getUsersByEids(eids);
 		for(User u: users) {
-			result.add(u.getId());
+			result.put(u.getId(), u.getDisplayName());
+			userCache.putUserDisplayName(u.getId(), u.getDisplayName());
 		}
-		
-		Collections.sort(result);
 
 		return result;
 	}
 
 	private String getUserDisplayName(String uid) {
-		try {
-			User user = userDirectoryService.getUser(uid);
-			return user.getDisplayName();
-		} catch (UserNotDefinedException e) {
-			log.warn("Undefined user id (" + uid + ")");
-			return null;
-		}
+		return userCache.getUserDisplayName(uid);
 	}
 
 	@EntityCustomAction(action = "my", viewKey = EntityView.VIEW_LIST)
 	public List<GradeCourse> getMyGradebook(EntityView view) {
-		String userId = developerHelperService.getCurrentUserId();
+		final String userId = developerHelperService.getCurrentUserId();
 		if (userId == null) {
 			throw new SecurityException(
 					"Only logged in users can access my gradebook listings");
 		}
-
-		List<GradeCourse> r = new ArrayList<GradeCourse>();
+		final String userName = getUserDisplayName(userId);
 
 		// get list of all sites
 		List<Site> sites = siteService.getSites(
@@ -230,32 +362,75 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 		// no need to check user can access this site, as the get sites only
 		// returned accessible sites
 
-		// get all assignments from each site
-		for (Site site : sites) {
-			String siteId = site.getId();
-			if (!gradebookService.isGradebookDefined(siteId)) {
-				continue;
+		List<GradeCourse> r = new ArrayList<GradeCourse>();
+		if (siteReaders == null || sites.size() <= 1) {
+			for (Site site : sites) {
+				GradeCourse course = getMyGradeCourse(site, userId, userName);
+				if (course != null) {
+					r.add(course);
+				}
 			}
+			return r;
+		}
 
-			GradeCourse course = new GradeCourse(site);
-
-			List<Assignment> gbitems = gradebookService
-					.getViewableAssignmentsForCurrentUser(siteId);
-			for (Assignment assignment : gbitems) {
-				GradeAssignmentItem item = new GradeAssignmentItem(assignment);
-				item.setUserId(userId);
-				item.setUserName(getUserDisplayName(userId));
-				item.setGrade(gradebookService.getAssignmentScoreString(siteId,
-						assignment.getName(), userId));
-
-				course.assignments.add(item);
+		// read the gradebooks of several sites at once, keeping the site order
+		final Session session = sessionManager.getCurrentSession();
+		final Thread requestThread = Thread.currentThread();
+		List<Future<GradeCourse>> futures = new ArrayList<Future<GradeCourse>>(sites.size());
+		try {
+			for (final Site site : sites) {
+				futures.add(siteReaders.submit(new Callable<GradeCourse>() {
+					public GradeCourse call() {
+						if (Thread.currentThread() == requestThread) {
+							// the readers are busy, so the request reads the site itself
+							return getMyGradeCourse(site, userId, userName);
+						}
+						// the gradebook service finds the current user through the session
+						sessionManager.setCurrentSession(session);
+						try {
+							return getMyGradeCourse(site, userId, userName);
+						} finally {
+							threadLocalManager.clear();
+						}
+					}
+				}));
+			}
+			for (Future<GradeCourse> future : futures) {
+				GradeCourse course = future.get();
+				if (course != null) {
+					r.add(course);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted reading the gradebooks of user " + userId, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failure reading the gradebooks of user " + userId, e.getCause());
+		} finally {
+			// stop reading the rest of the sites if one failed
+			for (Future<GradeCourse> future : futures) {
+				future.cancel(true);
 			}
-			r.add(course);
 		}
 
 		return r;
 	}
 
+	/**
+	 * @return the user's gradebook items and scores in the site, or null if
+	 *         the site has no gradebook
+	 */
+	private GradeCourse getMyGradeCourse(Site site, String userId,
+			String userName) {
+		if (!gradebookService.isGradebookDefined(site.getId())) {
+			return null;
+		}
+		return getGradeCourseForCurrentUser(site, userId, userName);
+	}
+
 	@EntityCustomAction(action = "item", viewKey = EntityView.VIEW_LIST)
 	public GradeAssignmentItemDetail getGradeItemDetails(EntityView view) {
 		String userId = developerHelperService.getCurrentUserId();
@@ -310,4 +485,13 @@ public class GradebookEntityProvider extends AbstractEntityProvider implements
 				"No assignment %s for site %s", assignmentName, siteId));
 	}
 
+	private static class SiteReaderThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "gradebook-my-sites-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.entity;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Builds and checks the ETags of the grades responses
+ */
+class ETags {
+
+    private ETags() {
+    }
+
+    /**
+     * @return a weak ETag for the tag of the data, which also varies with the path (so the format)
+     * and the query parameters (paging, since, stream) of the request, as those change the response
+     * built from the same data
+     */
+    static String forRequest(String tag, HttpServletRequest request) {
+        String variant = request.getRequestURI() + "?" + StringUtils.defaultString(request.getQueryString());
+        return "W/\"" + tag + "-" + Integer.toHexString(variant.hashCode()) + "\"";
+    }
+
+    /**
+     * @return true if the If-None-Match header lists the ETag (weak or not) or is *
+     */
+    static boolean isMatched(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = StringUtils.removeStart(etag, "W/");
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = StringUtils.removeStart(tag.trim(), "W/");
+            if (opaqueTag.equals(tag) || "*".equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
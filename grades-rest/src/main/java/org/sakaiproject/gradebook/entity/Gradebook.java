@@ -14,6 +14,7 @@
  */
 package org.sakaiproject.gradebook.entity;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Vector;
 
@@ -28,6 +29,27 @@ public class Gradebook {
     public String id;
     public String courseId;
     public String averageCourseGrade;
+    /**
+     * when set only the scores and comments changed since then are included (a delta),
+     * along with the students they belong to and the items removed since then
+     */
+    public Date since;
+    /**
+     * the value to pass as "since" to get the changes after this listing, full or not
+     */
+    public String cursor;
+    /**
+     * when the students are paged: the page included (starting at 1), the page size and the total number of students
+     */
+    public Integer page;
+    public Integer pageSize;
+    public Integer totalStudents;
+    /**
+     * when the items are paged: the page included (starting at 1), the page size and the total number of items
+     */
+    public Integer itemPage;
+    public Integer itemPageSize;
+    public Integer totalItems;
 
     public List<Student> students = new Vector<Student>();
     public List<GradebookItem> items = new Vector<GradebookItem>();
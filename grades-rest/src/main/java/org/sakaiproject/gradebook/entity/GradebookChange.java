@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.entity;
+
+import java.util.Date;
+
+/**
+ * This represents one saved score, course grade or comment in a gradebook,
+ * read from the gradebook's change outbox
+ * 
+ * The id only ever grows, it is the cursor a client passes back to get the changes after this one
+ */
+public class GradebookChange {
+    public static final String TYPE_SCORE = "SCORE";
+    public static final String TYPE_COURSE_GRADE = "COURSE_GRADE";
+    public static final String TYPE_COMMENT = "COMMENT";
+
+    public long id;
+    /**
+     * SCORE, COURSE_GRADE or COMMENT
+     */
+    public String type;
+    public Long itemId;
+    public String itemName;
+    public String userId;
+    /**
+     * the grade as it was entered (null for comments, which are read with the scores)
+     */
+    public String grade;
+    public String graderUserId;
+    public Date recorded;
+
+    protected GradebookChange() {}
+    public GradebookChange(long id, String type, Long itemId, String itemName, String userId,
+            String grade, String graderUserId, Date recorded) {
+        this.id = id;
+        this.type = type;
+        this.itemId = itemId;
+        this.itemName = itemName;
+        this.userId = userId;
+        this.grade = grade;
+        this.graderUserId = graderUserId;
+        this.recorded = recorded;
+    }
+
+    @Override
+    public String toString() {
+        return id+":"+type+":("+itemId+":"+userId+":"+grade+":"+recorded+")";
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.entity;
+
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * One page of the changes saved in a gradebook after a cursor
+ * 
+ * A client keeps the next cursor and passes it as "after" on its next call, until more is false
+ */
+public class GradebookChanges {
+    public String courseId;
+    /**
+     * the cursor these changes were read after
+     */
+    public long after;
+    /**
+     * the cursor to read the following changes after (same as after if there were none)
+     */
+    public long next;
+    /**
+     * true if there may be more changes after next (the page was full)
+     */
+    public boolean more = false;
+
+    public List<GradebookChange> changes = new Vector<GradebookChange>();
+
+    public GradebookChanges(String courseId, long after) {
+        this.courseId = courseId;
+        this.after = after;
+        this.next = after;
+    }
+
+    @Override
+    public String toString() {
+        return courseId+":"+after+"-"+next+":"+changes;
+    }
+
+}
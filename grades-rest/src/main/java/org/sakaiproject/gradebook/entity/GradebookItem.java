@@ -52,6 +52,12 @@ public class GradebookItem {
      * (errors also recorded in the scores themselves)
      */
     public Map<String, String> scoreErrors;
+    /**
+     * map of score id -> error_key for the scores which were saved without their comment,
+     * these are recorded when this item is saved
+     * (errors also recorded in the scores themselves)
+     */
+    public Map<String, String> commentErrors;
     /**
      * General failure message if one occurs during save
      */
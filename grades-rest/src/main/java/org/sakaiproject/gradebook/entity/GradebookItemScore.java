@@ -31,11 +31,21 @@ public class GradebookItemScore {
     public Date recorded;
     public String grade;
     public String comment;
+    /**
+     * true if the student has no score for the item any more (only in change listings),
+     * the comment may still be set
+     */
+    public boolean deleted = false;
 
     /**
      * Used to indicate the failure that occurred when saving this score (null if no error)
      */
     public String error;
+    /**
+     * Used to indicate the failure that occurred when saving the comment of this score,
+     * whose grade was saved (null if no error)
+     */
+    public String commentError;
 
     protected GradebookItemScore() {}
     public GradebookItemScore(String itemId, String userId, String grade) {
@@ -65,6 +75,18 @@ public class GradebookItemScore {
         this.comment = comment;
     }
 
+    /**
+     * Make a score which has been removed, so a client can clear its copy of it
+     */
+    public static GradebookItemScore makeRemovedScore(String itemId, String userId, String username, String comment) {
+        GradebookItemScore score = new GradebookItemScore();
+        score.assignId(itemId, userId);
+        score.username = username;
+        score.comment = comment;
+        score.deleted = true;
+        return score;
+    }
+
     public void assignId(Long itemId, String userId) {
         assignId( (itemId != null ? itemId.toString() : "00"), userId); // avoid NPE
     }
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.entity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.azeckoski.reflectutils.transcoders.Transcoder;
+import org.azeckoski.reflectutils.transcoders.XMLTranscoder;
+
+import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
+import org.sakaiproject.gradebook.logic.GradebookVisitor;
+
+/**
+ * Writes a gradebook out as JSON or XML as its parts are read,
+ * each item is written (and flushed) as soon as it arrives so the whole gradebook is never held in memory
+ * 
+ * The output has the same shape as the gradebook entity: the gradebook fields, then the students, then the items
+ */
+public class GradebookStreamWriter implements GradebookVisitor {
+
+    private final Writer writer;
+    private final boolean json;
+    private final Transcoder transcoder;
+    private int students = 0;
+    private int items = -1;
+
+    /**
+     * @param writer where to write the gradebook
+     * @param format {@link Formats#JSON} or {@link Formats#XML}
+     */
+    public GradebookStreamWriter(Writer writer, String format) {
+        this.writer = writer;
+        this.json = Formats.JSON.equals(format);
+        if (json) {
+            transcoder = new JSONTranscoder();
+        } else if (Formats.XML.equals(format)) {
+            transcoder = new XMLTranscoder();
+        } else {
+            throw new IllegalArgumentException("Cannot stream the gradebook as " + format + ", only as json or xml");
+        }
+    }
+
+    public void gradebook(Gradebook gradebook) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("id", gradebook.id);
+        fields.put("courseId", gradebook.courseId);
+        fields.put("averageCourseGrade", gradebook.averageCourseGrade);
+        fields.put("since", gradebook.since);
+        fields.put("cursor", gradebook.cursor);
+        fields.put("page", gradebook.page);
+        fields.put("pageSize", gradebook.pageSize);
+        fields.put("totalStudents", gradebook.totalStudents);
+        fields.put("itemPage", gradebook.itemPage);
+        fields.put("itemPageSize", gradebook.itemPageSize);
+        fields.put("totalItems", gradebook.totalItems);
+        write(json ? "{" : "<gradebook>");
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() == null) {
+                continue;
+            }
+            if (json) {
+                write("\"" + field.getKey() + "\":" + transcoder.encode(field.getValue(), null, null) + ",");
+            } else {
+                write(transcoder.encode(field.getValue(), field.getKey(), null));
+            }
+        }
+        write(json ? "\"students\":[" : "<students>");
+    }
+
+    public void student(Student student) {
+        if (json && students > 0) {
+            write(",");
+        }
+        write(transcoder.encode(student, "student", null));
+        students++;
+    }
+
+    public void item(GradebookItem item) {
+        startItems();
+        if (json && items > 0) {
+            write(",");
+        }
+        write(transcoder.encode(item, "item", null));
+        items++;
+        flush();
+    }
+
+    /**
+     * Closes off the gradebook once all the items have been written
+     */
+    public void finish() {
+        startItems();
+        write(json ? "]}" : "</items></gradebook>");
+        flush();
+    }
+
+    private void startItems() {
+        if (items < 0) {
+            write(json ? "],\"items\":[" : "</students><items>");
+            items = 0;
+        }
+    }
+
+    private void write(String data) {
+        try {
+            writer.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the gradebook: " + e.getMessage(), e);
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the gradebook: " + e.getMessage(), e);
+        }
+    }
+
+}
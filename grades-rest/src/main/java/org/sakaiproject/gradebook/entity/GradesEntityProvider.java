@@ -16,11 +16,16 @@ package org.sakaiproject.gradebook.entity;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.azeckoski.reflectutils.ConversionUtils;
@@ -39,6 +44,7 @@ import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Redirectable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestAware;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Resolvable;
+import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetter;
 import org.sakaiproject.entitybroker.exception.EntityException;
@@ -112,7 +118,7 @@ Resolvable, Outputable, Inputable, Describeable, ActionsExecutable, Redirectable
     }
 
     @EntityCustomAction(action = "gradebook", viewKey = EntityView.VIEW_LIST)
-    public Gradebook getCourseGradebook(EntityView view) {
+    public Object getCourseGradebook(EntityView view, Map<String, Object> params, OutputStream out) {
         String courseId = view.getPathSegment(2);
         if (courseId == null) {
             throw new IllegalArgumentException(
@@ -126,12 +132,113 @@ Resolvable, Outputable, Inputable, Describeable, ActionsExecutable, Redirectable
         if (!externalLogic.isUserAdmin(userId) && !externalLogic.isUserInstructor(userId)) {
             throw new SecurityException("Only instructors can access course gradebook");
         }
-        Gradebook gradebook = externalLogic.getCourseGradebook(courseId, null);
+        checkNotModified(courseId, "grades/gradebook/" + courseId);
+        Date since = getSince(params);
+        int page = getPagingParam(params, "page");
+        int pageSize = getPagingParam(params, "pageSize");
+        int itemPage = getPagingParam(params, "itemPage");
+        int itemPageSize = getPagingParam(params, "itemPageSize");
+        if (ConversionUtils.getInstance().convert(params.get("stream"), Boolean.class) == Boolean.TRUE) {
+            // write each item as it is read instead of building the whole gradebook first
+            String format = Formats.XML.equals(view.getFormat()) ? Formats.XML : Formats.JSON;
+            Writer writer = new OutputStreamWriter(out, Charset.forName(Formats.UTF_8));
+            GradebookStreamWriter gbWriter = new GradebookStreamWriter(writer, format);
+            externalLogic.visitCourseGradebook(courseId, null, since, page, pageSize, itemPage, itemPageSize, gbWriter);
+            gbWriter.finish();
+            return new ActionReturn(Formats.UTF_8,
+                    Formats.XML.equals(format) ? Formats.XML_MIME_TYPE : Formats.JSON_MIME_TYPE, out);
+        }
+        Gradebook gradebook = externalLogic.getCourseGradebook(courseId, null, since, page, pageSize, itemPage, itemPageSize);
         return gradebook;
     }
 
+    /**
+     * Sends the ETag of the gradebook with the response, and answers 304 (Not Modified)
+     * without reading the gradebook if the client already has this version of it
+     */
+    private void checkNotModified(String courseId, String reference) {
+        HttpServletRequest request = requestGetter.getRequest();
+        HttpServletResponse response = requestGetter.getResponse();
+        if (request == null || response == null) {
+            return;
+        }
+        String etag = ETags.forRequest(externalLogic.getGradebookTag(courseId), request);
+        response.setHeader("ETag", etag);
+        if (ETags.isMatched(request.getHeader("If-None-Match"), etag)) {
+            throw new EntityException("Gradebook not modified", reference, HttpServletResponse.SC_NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * @return the value of a paging param, 0 if it is not set
+     */
+    private int getPagingParam(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value == null || "".equals(value)) {
+            return 0;
+        }
+        Integer number = null;
+        try {
+            number = ConversionUtils.getInstance().convert(value, Integer.class);
+        } catch (RuntimeException e) {
+            // reported below
+        }
+        if (number == null || number < 0) {
+            throw new IllegalArgumentException("Invalid "+name+" ("+value+"), must be a number of 0 or more");
+        }
+        return number;
+    }
+
+    /**
+     * @return the time from the since param, either a cursor from an earlier listing (millis)
+     * or a date, OR null if there is none
+     */
+    private Date getSince(Map<String, Object> params) {
+        Object since = params.get("since");
+        if (since == null || "".equals(since)) {
+            return null;
+        }
+        String value = since.toString().trim();
+        Date sinceDate = null;
+        if (value.matches("\\d+")) {
+            sinceDate = new Date(Long.parseLong(value));
+        } else {
+            try {
+                sinceDate = ConversionUtils.getInstance().convert(value, Date.class);
+            } catch (RuntimeException e) {
+                // reported below
+            }
+        }
+        if (sinceDate == null) {
+            throw new IllegalArgumentException("Invalid since ("+value+"), must be a cursor or a date");
+        }
+        return sinceDate;
+    }
+
+    @EntityCustomAction(action = "changes", viewKey = EntityView.VIEW_LIST)
+    public GradebookChanges getGradebookChanges(EntityView view, Map<String, Object> params) {
+        String courseId = view.getPathSegment(2);
+        if (courseId == null) {
+            throw new IllegalArgumentException(
+                    "valid courseId must be included in the URL /grades/changes/{courseId}");
+        }
+        String userId = externalLogic.getCurrentUserId();
+        if (userId == null) {
+            throw new SecurityException(
+                    "Only logged in users can access gradebook changes");
+        }
+        if (!externalLogic.isUserAdmin(userId) && !externalLogic.isUserInstructor(userId)) {
+            throw new SecurityException("Only instructors can access gradebook changes");
+        }
+        ConversionUtils cvu = ConversionUtils.getInstance();
+        Long after = cvu.convert(params.get("after"), Long.class);
+        Integer limit = cvu.convert(params.get("limit"), Integer.class);
+        return externalLogic.getGradebookChanges(courseId, (after != null ? after.longValue() : 0),
+                (limit != null ? limit.intValue() : ExternalLogic.MAX_CHANGES_PAGE_SIZE));
+    }
+
     @EntityCustomAction(action = "gradeitem", viewKey = "")
-    public GradebookItem handleGradeItem(EntityView view) {
+    public GradebookItem handleGradeItem(EntityView view, Map<String, Object> params) {
         String courseId = view.getPathSegment(2);
         if (courseId == null) {
             throw new IllegalArgumentException(
@@ -152,7 +259,8 @@ Resolvable, Outputable, Inputable, Describeable, ActionsExecutable, Redirectable
                 throw new IllegalArgumentException(
                         "valid gbItemName must be included in the URL /grades/gradeitem/{courseId}/{gradeItemName}");
             }
-            Gradebook gb = externalLogic.getCourseGradebook(courseId, gradeItemName);
+            checkNotModified(courseId, "grades/gradeitem/" + courseId);
+            Gradebook gb = externalLogic.getCourseGradebook(courseId, gradeItemName, getSince(params));
             gbItemOut = gb.items.get(0);
         } else if (Method.POST.toString().equalsIgnoreCase(view.getMethod())
                 || Method.PUT.toString().equalsIgnoreCase(view.getMethod())) {
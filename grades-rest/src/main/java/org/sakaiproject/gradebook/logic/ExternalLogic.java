@@ -14,11 +14,22 @@
  */
 package org.sakaiproject.gradebook.logic;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -26,18 +37,22 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.authz.api.AuthzGroupService;
-import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlReader;
+import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.gradebook.entity.Course;
 import org.sakaiproject.gradebook.entity.Gradebook;
+import org.sakaiproject.gradebook.entity.GradebookChange;
+import org.sakaiproject.gradebook.entity.GradebookChanges;
 import org.sakaiproject.gradebook.entity.GradebookItem;
 import org.sakaiproject.gradebook.entity.GradebookItemScore;
 import org.sakaiproject.gradebook.entity.Student;
 import org.sakaiproject.javax.PagingPosition;
 import org.sakaiproject.service.gradebook.shared.Assignment;
 import org.sakaiproject.service.gradebook.shared.CommentDefinition;
+import org.sakaiproject.service.gradebook.shared.GradeDefinition;
 import org.sakaiproject.service.gradebook.shared.GradebookExternalAssessmentService;
 import org.sakaiproject.service.gradebook.shared.GradebookService;
 import org.sakaiproject.site.api.Site;
@@ -49,7 +64,6 @@ import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.tool.api.ToolManager;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.api.UserDirectoryService;
-import org.sakaiproject.user.api.UserNotDefinedException;
 import org.sakaiproject.util.ResourceLoader;
 
 /**
@@ -114,6 +128,21 @@ public class ExternalLogic {
         this.userDirectoryService = userDirectoryService;
     }
 
+    private SqlService sqlService;
+    public void setSqlService(SqlService sqlService) {
+        this.sqlService = sqlService;
+    }
+
+    private InstructorSiteIndex instructorSiteIndex;
+    public void setInstructorSiteIndex(InstructorSiteIndex instructorSiteIndex) {
+        this.instructorSiteIndex = instructorSiteIndex;
+    }
+
+    private UserCache userCache;
+    public void setUserCache(UserCache userCache) {
+        this.userCache = userCache;
+    }
+
     public void init() {
         log.info("INIT");
     }
@@ -161,14 +190,8 @@ public class ExternalLogic {
      * @return the id IF the user exists OR null if they do not
      */
     public String getUserIdFromLoginName(String loginname) {
-        String userId;
-        try {
-            User u = userDirectoryService.getUserByEid(loginname);
-            userId = u.getId();
-        } catch (UserNotDefinedException e) {
-            userId = null;
-        }
-        return userId;
+        User u = userCache.getUserByEid(loginname);
+        return (u == null) ? null : u.getId();
     }
 
     /**
@@ -231,9 +254,10 @@ public class ExternalLogic {
      */
     public String getUserDisplayName(String userId) {
         String name = null;
-        try {
-            name = userDirectoryService.getUser(userId).getDisplayName();
-        } catch (UserNotDefinedException e) {
+        User u = userCache.getUser(userId);
+        if (u != null) {
+            name = u.getDisplayName();
+        } else {
             log.warn("Cannot get user displayname for id: " + userId);
             name = "--------";
         }
@@ -247,17 +271,10 @@ public class ExternalLogic {
      */
     public org.sakaiproject.gradebook.entity.User getUser(String userId) {
         org.sakaiproject.gradebook.entity.User user = null;
-        User u = null;
-        try {
-            u = userDirectoryService.getUser(userId);
-        } catch (UserNotDefinedException e) {
-            try {
-                u = userDirectoryService.getUserByEid(userId);
-            } catch (UserNotDefinedException e1) {
-                log.warn("Cannot get user for id: " + userId);
-            }
-        }
-        if (u != null) {
+        User u = userCache.getUser(userId);
+        if (u == null) {
+            log.warn("Cannot get user for id: " + userId);
+        } else {
             user = new org.sakaiproject.gradebook.entity.User(u.getId(),
                     u.getEid(), u.getDisplayName(), u.getSortName(), u.getEmail());
             user.fname = u.getFirstName();
@@ -363,11 +380,7 @@ public class ExternalLogic {
                 SortType.TITLE_ASC, new PagingPosition(1, 100));
         for (Site site : sites) {
             // filter out admin sites
-            String sid = site.getId();
-            if (sid.startsWith("!") || sid.endsWith("Admin") || sid.equals("mercury")) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Skipping site (" + sid + ") for current user in instructor courses");
-                }
+            if (isAdminSite(site.getId())) {
                 continue;
             }
             instSites.add(site);
@@ -375,6 +388,16 @@ public class ExternalLogic {
         return instSites;
     }
 
+    private boolean isAdminSite(String sid) {
+        if (sid.startsWith("!") || sid.endsWith("Admin") || sid.equals("mercury")) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping site (" + sid + ") for current user in instructor courses");
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Get the listing of students from the site gradebook, uses GB security so safe to call
      * 
@@ -396,6 +419,8 @@ public class ExternalLogic {
         String siteRef = site.getReference();
         // use the method gradebook uses internally
         List<User> studentUsers = securityService.unlockUsers("section.role.student", siteRef);
+        // later lookups of these students by id or username can then skip the user directory
+        userCache.putUsers(studentUsers);
         for (User user : studentUsers) {
             Student s = new Student(user.getId(), user.getEid(), user.getDisplayName(), user.getSortName(), user.getEmail());
             s.fname = user.getFirstName();
@@ -436,8 +461,7 @@ public class ExternalLogic {
         boolean inst = false;
         // admin never counts as in instructor
         if (!isUserAdmin(userId)) {
-            int count = siteService.countSites(SelectionType.UPDATE, null, null, null);
-            inst = (count > 0);
+            inst = ! instructorSiteIndex.getInstructorSiteIds(userId).isEmpty();
         }
         return inst;
     }
@@ -445,7 +469,7 @@ public class ExternalLogic {
     /**
      * Check if the current user in an instructor for the given user id,
      * this will return the first course found in alpha order,
-     * will only check the first 100 courses
+     * the instructor's courses and their members come from the {@link InstructorSiteIndex}
      * 
      * @param studentUserId the Sakai user id for the student
      * @return the course ID of the course they are an instructor for the student OR null if they are not
@@ -455,19 +479,14 @@ public class ExternalLogic {
             throw new IllegalArgumentException("studentUserId must be set");
         }
         String courseId = null;
-        List<Site> sites = getInstructorSites();
-        if (sites != null && ! sites.isEmpty()) {
-            if (sites.size() >= 99) {
-                // if instructor of 99 or more sites then auto-approved 
-                courseId = sites.get(0).getId();
-            } else {
-                for (Site site : sites) {
-                    Member member = site.getMember(studentUserId);
-                    if (member != null) {
-                        courseId = site.getId();
-                        break;
-                    }
-                }
+        String userId = getCurrentUserId();
+        if (userId == null) {
+            return null;
+        }
+        for (String siteId : instructorSiteIndex.getInstructorSiteIds(userId)) {
+            if (!isAdminSite(siteId) && instructorSiteIndex.getMemberIds(siteId).contains(studentUserId)) {
+                courseId = siteId;
+                break;
             }
         }
         return courseId;
@@ -482,8 +501,67 @@ public class ExternalLogic {
      * if null then all items are returned
      * @throws IllegalArgumentException if no gradebook can be found
      */
-    @SuppressWarnings("unchecked")
     public Gradebook getCourseGradebook(String siteId, String gbItemName) {
+        return getCourseGradebook(siteId, gbItemName, null);
+    }
+
+    /**
+     * Gets the gradebook data for a given site, or only what changed in it since a given time,
+     * this uses the gradebook security so it is secure
+     * 
+     * @param siteId a sakai siteId (cannot be group Id)
+     * @param gbItemName [OPTIONAL] an item name to fetch from this gradebook (limit to this item only),
+     * if null then all items are returned
+     * @param since [OPTIONAL] only include the scores and comments recorded after this time
+     * (and the students they belong to), scores and items removed since then are included marked as deleted,
+     * if null then everything is returned
+     * @throws IllegalArgumentException if no gradebook can be found
+     */
+    public Gradebook getCourseGradebook(String siteId, String gbItemName, Date since) {
+        return getCourseGradebook(siteId, gbItemName, since, 0, 0, 0, 0);
+    }
+
+    /**
+     * Gets a page of the gradebook data for a given site,
+     * see {@link #visitCourseGradebook(String, String, Date, int, int, int, int, GradebookVisitor)}
+     */
+    public Gradebook getCourseGradebook(String siteId, String gbItemName, Date since,
+            int page, int pageSize, int itemPage, int itemPageSize) {
+        final Gradebook[] collected = new Gradebook[1];
+        visitCourseGradebook(siteId, gbItemName, since, page, pageSize, itemPage, itemPageSize, new GradebookVisitor() {
+            public void gradebook(Gradebook gradebook) {
+                collected[0] = gradebook;
+            }
+            public void student(Student student) {
+                collected[0].students.add(student);
+            }
+            public void item(GradebookItem item) {
+                collected[0].items.add(item);
+            }
+        });
+        return collected[0];
+    }
+
+    /**
+     * Reads the gradebook data for a given site and passes it to the visitor one part at a time,
+     * the scores are read one item at a time so only a single item is in memory at once,
+     * this uses the gradebook security so it is secure
+     * 
+     * @param siteId a sakai siteId (cannot be group Id)
+     * @param gbItemName [OPTIONAL] an item name to fetch from this gradebook (limit to this item only),
+     * if null then all items are returned
+     * @param since [OPTIONAL] only include the changes recorded after this time,
+     * see {@link #getCourseGradebook(String, String, Date)}
+     * @param page the page of students to include (starting at 1), ignored if pageSize is 0
+     * @param pageSize the number of students in a page, 0 for all the students
+     * @param itemPage the page of items to include (starting at 1), ignored if itemPageSize is 0
+     * @param itemPageSize the number of items in a page, 0 for all the items
+     * @param visitor receives the gradebook, then its students, then its items with their scores
+     * @throws IllegalArgumentException if no gradebook can be found (before anything is passed to the visitor)
+     */
+    @SuppressWarnings("unchecked")
+    public void visitCourseGradebook(String siteId, String gbItemName, Date since,
+            int page, int pageSize, int itemPage, int itemPageSize, GradebookVisitor visitor) {
         // The gradebookUID is the siteId, the gradebookID is a long
         String gbID = siteId;
         if (!gradebookService.isGradebookDefined(gbID)) {
@@ -497,42 +575,401 @@ public class ExternalLogic {
             throw new SecurityException("User ("+userId+") cannot access gradebook in site ("+siteId+")");
         }
         Gradebook gb = new Gradebook(gbID);
-        gb.averageCourseGrade = gradebookService.getAverageCourseGrade(gbID);
-        gb.students = getStudentsForCourse(siteId);
+        // a save still being committed has an earlier time than the reads below,
+        // so the next listing overlaps this one by the settle time
+        int settleSeconds = getConfigurationSetting(SETTING_CHANGES_SETTLE_SECONDS, DEFAULT_CHANGES_SETTLE_SECONDS);
+        gb.cursor = Long.toString(System.currentTimeMillis() - settleSeconds * 1000L);
+        Map<Long, Set<String>> changedScores = null;
+        if (since == null) {
+            gb.averageCourseGrade = gradebookService.getAverageCourseGrade(gbID);
+        } else {
+            gb.since = since;
+            changedScores = getChangedScores(gbID, since);
+        }
+        Set<String> changedStudentIds = new HashSet<String>();
+        if (changedScores != null) {
+            for (Set<String> studentIds : changedScores.values()) {
+                changedStudentIds.addAll(studentIds);
+            }
+        }
+        List<Student> students = new ArrayList<Student>();
+        for (Student student : getStudentsForCourse(siteId)) {
+            if (changedScores == null || changedStudentIds.contains(student.userId)) {
+                students.add(student);
+            }
+        }
+        if (pageSize > 0) {
+            // pages need a stable order
+            Collections.sort(students, new Comparator<Student>() {
+                public int compare(Student s1, Student s2) {
+                    return String.valueOf(s1.username).compareTo(String.valueOf(s2.username));
+                }
+            });
+            gb.page = page;
+            gb.pageSize = pageSize;
+            gb.totalStudents = students.size();
+            students = getPage(students, page, pageSize);
+        }
         Map<String, String> studentUserIds = new ConcurrentHashMap<String, String>();
-        for (Student student : gb.students) {
+        for (Student student : students) {
             studentUserIds.put(student.userId, student.username);
         }
         ArrayList<String> studentIds = new ArrayList<String>(studentUserIds.keySet());
+
+        List<Assignment> assignments = new ArrayList<Assignment>();
         if (gbItemName == null) {
-            List<Assignment> gbitems = gradebookService.getAssignments(gbID);
-            for (Assignment assignment : gbitems) {
-                GradebookItem gbItem = makeGradebookItemFromAssignment(gbID, assignment, studentUserIds, studentIds);
-                gb.items.add(gbItem);
+            for (Assignment assignment : (List<Assignment>) gradebookService.getAssignments(gbID)) {
+                if (changedScores == null || changedScores.containsKey(assignment.getId())) {
+                    assignments.add(assignment);
+                }
+            }
+            if (itemPageSize > 0) {
+                gb.itemPage = itemPage;
+                gb.itemPageSize = itemPageSize;
+                gb.totalItems = assignments.size();
+                assignments = getPage(assignments, itemPage, itemPageSize);
             }
         } else {
             Assignment assignment = gradebookService.getAssignment(gbID, gbItemName);
             if (assignment != null) {
-                GradebookItem gbItem = makeGradebookItemFromAssignment(gbID, assignment, studentUserIds, studentIds);
-                gb.items.add(gbItem);
+                assignments.add(assignment);
             } else {
                 throw new IllegalArgumentException("Invalid gradebook item name ("+gbItemName+"), no item with this name found in cource ("+siteId+")");
             }
         }
-        return gb;
+
+        visitor.gradebook(gb);
+        for (Student student : students) {
+            visitor.student(student);
+        }
+        for (Assignment assignment : assignments) {
+            List<String> itemStudentIds = getChangedStudentIds(assignment, changedScores, studentIds);
+            visitor.item(makeGradebookItemFromAssignment(gbID, assignment, studentUserIds, itemStudentIds, changedScores != null));
+        }
+        if (changedScores != null && gbItemName == null && (itemPageSize <= 0 || itemPage <= 1)) {
+            // removed items are not paged, they come with the first page
+            for (GradebookItem removedItem : getRemovedGradebookItems(gbID, since)) {
+                visitor.item(removedItem);
+            }
+        }
+    }
+
+    /**
+     * @return the given page (starting at 1) of the list, empty if the page is past the end
+     */
+    private static <T> List<T> getPage(List<T> list, int page, int pageSize) {
+        int start = (Math.max(page, 1) - 1) * pageSize;
+        if (start >= list.size()) {
+            return new ArrayList<T>();
+        }
+        return new ArrayList<T>(list.subList(start, Math.min(start + pageSize, list.size())));
+    }
+
+    /**
+     * @return the enrolled students whose score or comment for the item changed,
+     * OR all of them if changedScores is null
+     */
+    private List<String> getChangedStudentIds(Assignment assignment, Map<Long, Set<String>> changedScores, List<String> studentIds) {
+        if (changedScores == null) {
+            return studentIds;
+        }
+        Set<String> changed = changedScores.get(assignment.getId());
+        List<String> itemStudentIds = new ArrayList<String>();
+        if (changed != null) {
+            for (String studentId : studentIds) {
+                if (changed.contains(studentId)) {
+                    itemStudentIds.add(studentId);
+                }
+            }
+        }
+        return itemStudentIds;
+    }
+
+    private static final String CHANGED_SCORES_SQL = "select e.GRADABLE_OBJECT_ID, e.STUDENT_ID from GB_GRADING_EVENT_T e"
+            + " join GB_GRADABLE_OBJECT_T go on go.ID = e.GRADABLE_OBJECT_ID"
+            + " join GB_GRADEBOOK_T gb on gb.ID = go.GRADEBOOK_ID"
+            + " where gb.GRADEBOOK_UID = ? and e.DATE_GRADED > ?"
+            + " union"
+            + " select c.GRADABLE_OBJECT_ID, c.STUDENT_ID from GB_COMMENT_T c"
+            + " join GB_GRADABLE_OBJECT_T go on go.ID = c.GRADABLE_OBJECT_ID"
+            + " join GB_GRADEBOOK_T gb on gb.ID = go.GRADEBOOK_ID"
+            + " where gb.GRADEBOOK_UID = ? and c.DATE_RECORDED > ?";
+
+    private static final String REMOVED_ITEMS_SQL = "select r.GRADABLE_OBJECT_ID, r.ITEM_NAME from GB_REMOVED_ITEM_T r"
+            + " join GB_GRADEBOOK_T gb on gb.ID = r.GRADEBOOK_ID"
+            + " where gb.GRADEBOOK_UID = ? and r.DATE_REMOVED > ?";
+    /**
+     * Records the removal of an item made through the gradebook services, which run outside
+     * the gradebook tool and so do not record it themselves
+     */
+    private static final String RECORD_REMOVED_ITEM_SQL = "insert into GB_REMOVED_ITEM_T (GRADABLE_OBJECT_ID, GRADEBOOK_ID, ITEM_NAME, DATE_REMOVED)"
+            + " select ?, gb.ID, ?, ? from GB_GRADEBOOK_T gb where gb.GRADEBOOK_UID = ?"
+            + " and not exists (select r.GRADABLE_OBJECT_ID from GB_REMOVED_ITEM_T r where r.GRADABLE_OBJECT_ID = ?)";
+
+    /**
+     * Find the scores and comments of a gradebook changed since the given time, using the
+     * grading event and comment dates (indexed by GB_GRADING_EVENT_DATE_IDX and GB_COMMENT_DATE_IDX)
+     * 
+     * @return map of item id -> ids of the students whose score or comment changed
+     */
+    private Map<Long, Set<String>> getChangedScores(String gbID, Date since) {
+        final Map<Long, Set<String>> changedScores = new HashMap<Long, Set<String>>();
+        Timestamp sinceTime = new Timestamp(since.getTime());
+        sqlService.dbRead(CHANGED_SCORES_SQL, new Object[] {gbID, sinceTime, gbID, sinceTime}, new SqlReader() {
+            public Object readSqlResultRecord(ResultSet result) {
+                try {
+                    Long itemId = result.getLong(1);
+                    Set<String> studentIds = changedScores.get(itemId);
+                    if (studentIds == null) {
+                        studentIds = new HashSet<String>();
+                        changedScores.put(itemId, studentIds);
+                    }
+                    studentIds.add(result.getString(2));
+                } catch (SQLException e) {
+                    log.warn("Could not read a changed score: " + e);
+                }
+                return null;
+            }
+        });
+        return changedScores;
+    }
+
+    /**
+     * @return the items removed from the gradebook after the given time (GB_REMOVED_ITEM_T), marked as deleted
+     */
+    private List<GradebookItem> getRemovedGradebookItems(final String gbID, Date since) {
+        final List<GradebookItem> removedItems = new ArrayList<GradebookItem>();
+        sqlService.dbRead(REMOVED_ITEMS_SQL, new Object[] {gbID, new Timestamp(since.getTime())}, new SqlReader() {
+            public Object readSqlResultRecord(ResultSet result) {
+                try {
+                    GradebookItem gbItem = new GradebookItem(gbID, result.getString(2));
+                    gbItem.id = result.getLong(1);
+                    gbItem.deleted = true;
+                    removedItems.add(gbItem);
+                } catch (SQLException e) {
+                    log.warn("Could not read a removed item: " + e);
+                }
+                return null;
+            }
+        });
+        return removedItems;
+    }
+
+    /**
+     * Record the removal of an item as of now (GB_REMOVED_ITEM_T), so that the listings since an
+     * earlier time report it as deleted
+     */
+    private void recordRemovedGradebookItem(String gbID, Long itemId, String itemName) {
+        if (! sqlService.dbWrite(RECORD_REMOVED_ITEM_SQL, new Object[] {itemId, itemName, new Timestamp(System.currentTimeMillis()), gbID, itemId})) {
+            log.warn("Could not record the removal of item " + itemId + " from gradebook " + gbID);
+        }
+    }
+
+    private static final String GRADEBOOK_VERSION_SQL = "select v.VERSION_NUMBER from GB_GRADEBOOK_VERSION_T v"
+            + " join GB_GRADEBOOK_T gb on gb.ID = v.GRADEBOOK_ID where gb.GRADEBOOK_UID = ?";
+    private static final String INCREMENT_GRADEBOOK_VERSION_SQL = "update GB_GRADEBOOK_VERSION_T set VERSION_NUMBER = VERSION_NUMBER + 1"
+            + " where GRADEBOOK_ID = (select ID from GB_GRADEBOOK_T where GRADEBOOK_UID = ?)";
+    private static final String START_GRADEBOOK_VERSION_SQL = "insert into GB_GRADEBOOK_VERSION_T (GRADEBOOK_ID, VERSION_NUMBER)"
+            + " select gb.ID, 1 from GB_GRADEBOOK_T gb where gb.GRADEBOOK_UID = ?"
+            + " and not exists (select v.GRADEBOOK_ID from GB_GRADEBOOK_VERSION_T v where v.GRADEBOOK_ID = gb.ID)";
+
+    /**
+     * Gets a tag which changes whenever the gradebook data for a given site (as seen by the current user) changes;
+     * it is read from the gradebook version (GB_GRADEBOOK_VERSION_T) alone, without reading the grades themselves
+     * 
+     * @param siteId a sakai siteId (cannot be group Id)
+     * @return the tag (without quotes, the caller makes the ETag of a response from it)
+     * @throws IllegalArgumentException if no gradebook can be found
+     */
+    public String getGradebookTag(String siteId) {
+        if (!gradebookService.isGradebookDefined(siteId)) {
+            throw new IllegalArgumentException("No gradebook found for site: " + siteId);
+        }
+        // verify permissions
+        String userId = getCurrentUserId();
+        if (userId == null 
+                || ! siteService.allowUpdateSite(siteId) 
+                || ! siteService.allowViewRoster(siteId) ) {
+            throw new SecurityException("User ("+userId+") cannot access gradebook in site ("+siteId+")");
+        }
+        List versions = sqlService.dbRead(GRADEBOOK_VERSION_SQL, new Object[] {siteId}, null);
+        String version = (versions.isEmpty() || versions.get(0) == null) ? "0" : (String) versions.get(0);
+        return version + "-" + Integer.toHexString(userId.hashCode());
+    }
+
+    /**
+     * Count a change saved in the gradebook of a site through the gradebook services, which run on the
+     * kernel's session factory, where the gradebook tool does not count their changes
+     */
+    private void incrementGradebookVersion(String siteId) {
+        sqlService.dbWrite(INCREMENT_GRADEBOOK_VERSION_SQL, new Object[] {siteId});
+        // starts the count if the gradebook has none yet, does nothing otherwise
+        sqlService.dbWrite(START_GRADEBOOK_VERSION_SQL, new Object[] {siteId});
+    }
+
+    /**
+     * Integer type: the cursor of a gradebook listing ({@link #visitCourseGradebook(String, String, Date, int, int, int, int, GradebookVisitor)})
+     * is this many seconds before the listing, so that a save still being committed (whose dates were set earlier)
+     * is not skipped by the next listing
+     */
+    public static String SETTING_CHANGES_SETTLE_SECONDS = "gradebook.changes.settleSeconds";
+    public static int DEFAULT_CHANGES_SETTLE_SECONDS = 60;
+    public static int MAX_CHANGES_PAGE_SIZE = 1000;
+
+    private static final String GRADE_CHANGES_SQL = "select c.ID, c.CHANGE_TYPE, c.GRADABLE_OBJECT_ID, go.NAME, c.STUDENT_ID, c.GRADE, c.GRADER_ID, c.DATE_RECORDED"
+            + " from GB_GRADE_CHANGE_T c"
+            + " join GB_GRADEBOOK_T gb on gb.ID = c.GRADEBOOK_ID"
+            + " join GB_GRADABLE_OBJECT_T go on go.ID = c.GRADABLE_OBJECT_ID"
+            + " where gb.GRADEBOOK_UID = ? and c.ID > ?"
+            + " order by c.ID";
+
+    /**
+     * Get the scores, course grades and comments saved in a course gradebook after a cursor,
+     * read in order from the gradebook's change outbox (GB_GRADE_CHANGE_T); the gradebook tool
+     * commits the changes of a gradebook in id order, so a client never moves past one still being saved
+     * 
+     * @param siteId a sakai siteId (cannot be group Id)
+     * @param after the id of the last change the client has, 0 to start from the oldest change kept
+     * @param limit the most changes to return (at most {@link #MAX_CHANGES_PAGE_SIZE})
+     * @return the page of changes, with the cursor to pass on the next call
+     * @throws IllegalArgumentException if no gradebook can be found
+     */
+    public GradebookChanges getGradebookChanges(String siteId, long after, int limit) {
+        if (!gradebookService.isGradebookDefined(siteId)) {
+            throw new IllegalArgumentException("No gradebook found for site: " + siteId);
+        }
+        // verify permissions
+        String userId = getCurrentUserId();
+        if (userId == null 
+                || ! siteService.allowUpdateSite(siteId) 
+                || ! siteService.allowViewRoster(siteId) ) {
+            throw new SecurityException("User ("+userId+") cannot access gradebook in site ("+siteId+")");
+        }
+        if (limit <= 0 || limit > MAX_CHANGES_PAGE_SIZE) {
+            limit = MAX_CHANGES_PAGE_SIZE;
+        }
+        GradebookChanges gbChanges = new GradebookChanges(siteId, after);
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = sqlService.borrowConnection();
+            stmt = conn.prepareStatement(GRADE_CHANGES_SQL);
+            stmt.setMaxRows(limit);
+            stmt.setFetchSize(Math.min(limit, 200));
+            stmt.setString(1, siteId);
+            stmt.setLong(2, after);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                GradebookChange change = new GradebookChange(rs.getLong(1), rs.getString(2), rs.getLong(3),
+                        rs.getString(4), rs.getString(5), rs.getString(6), rs.getString(7), rs.getTimestamp(8));
+                gbChanges.changes.add(change);
+                gbChanges.next = change.id;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to read the gradebook changes for site ("+siteId+"): " + e.getMessage(), e);
+        } finally {
+            if (rs != null) {
+                try { rs.close(); } catch (SQLException e) { /* ignore */ }
+            }
+            if (stmt != null) {
+                try { stmt.close(); } catch (SQLException e) { /* ignore */ }
+            }
+            if (conn != null) {
+                sqlService.returnConnection(conn);
+            }
+        }
+        gbChanges.more = (gbChanges.changes.size() >= limit);
+        return gbChanges;
     }
 
     private GradebookItem makeGradebookItemFromAssignment(String gbID, Assignment assignment,
-            Map<String, String> studentUserIds, ArrayList<String> studentIds) {
+            Map<String, String> studentUserIds, List<String> studentIds, boolean includeRemovedScores) {
         // build up the items listing
         GradebookItem gbItem = new GradebookItem(gbID, assignment.getName(), assignment
                 .getPoints(), assignment.getDueDate(), assignment.getExternalAppName(),
                 assignment.isReleased());
         gbItem.id = assignment.getId();
-        /*
-         *  We have to iterate through each student and get the grades out... 
-         *  2.6 gradebook service has some issues
-         */
+        if (studentIds.isEmpty()) {
+            return gbItem;
+        }
+        // fetch the grades and comments of the item for all the students at once
+        List<GradeDefinition> grades = getGradesForStudentsForItem(gbID, assignment.getId(), studentIds);
+        if (grades == null) {
+            addScoresForEachStudent(gbID, assignment, gbItem, studentUserIds, studentIds);
+        } else {
+            for (GradeDefinition gd : grades) {
+                if (gd.getGrade() == null || "".equals(gd.getGrade())) {
+                    // grade record left behind after a score was removed
+                    continue;
+                }
+                String studId = gd.getStudentUid();
+                GradebookItemScore score = new GradebookItemScore(assignment.getId().toString(),
+                        studId, gd.getGrade(), studentUserIds.get(studId), gd.getGraderUid(),
+                        gd.getDateRecorded(), gd.getGradeComment());
+                gbItem.scores.add(score);
+            }
+        }
+        if (includeRemovedScores) {
+            addRemovedScores(gbID, assignment, gbItem, studentUserIds, studentIds);
+        }
+        return gbItem;
+    }
+
+    /**
+     * Mark the scores of the given students which the item does not have (any more) as deleted,
+     * so that a client working from changes clears its copy of them
+     */
+    private void addRemovedScores(String gbID, Assignment assignment, GradebookItem gbItem,
+            Map<String, String> studentUserIds, List<String> studentIds) {
+        Set<String> scoredStudentIds = new HashSet<String>();
+        for (GradebookItemScore score : gbItem.scores) {
+            scoredStudentIds.add(score.userId);
+        }
+        for (String studentId : studentIds) {
+            if (!scoredStudentIds.contains(studentId)) {
+                // the comment may have been what changed
+                CommentDefinition cd = gradebookService.getAssignmentScoreComment(gbID, assignment.getName(), studentId);
+                gbItem.scores.add(GradebookItemScore.makeRemovedScore(assignment.getId().toString(), studentId,
+                        studentUserIds.get(studentId), (cd != null) ? cd.getCommentText() : null));
+            }
+        }
+    }
+
+    /**
+     * Get the grades of the item for the given students in one call
+     * 
+     * @return the grade definitions OR null if they cannot be used as scores,
+     * because the gradebook enters grades as letters or percentages rather than points
+     */
+    private List<GradeDefinition> getGradesForStudentsForItem(String gbID, Long assignmentId, List<String> studentIds) {
+        List<GradeDefinition> grades;
+        try {
+            grades = gradebookService.getGradesForStudentsForItem(gbID, assignmentId, studentIds);
+        } catch (SecurityException e) {
+            // the roster includes students the current user cannot grade in the gradebook, so only ask for the ones they can
+            Map<String, String> viewableStudents = gradebookService.getViewableStudentsForItemForCurrentUser(gbID, assignmentId);
+            List<String> viewableStudentIds = new ArrayList<String>(studentIds.size());
+            for (String studentId : studentIds) {
+                if (viewableStudents.containsKey(studentId)) {
+                    viewableStudentIds.add(studentId);
+                }
+            }
+            grades = gradebookService.getGradesForStudentsForItem(gbID, assignmentId, viewableStudentIds);
+        }
+        for (GradeDefinition gd : grades) {
+            if (gd.getGradeEntryType() != GradebookService.GRADE_TYPE_POINTS) {
+                return null;
+            }
+        }
+        return grades;
+    }
+
+    /**
+     * Get the scores one student at a time, the scores are always in points this way
+     */
+    private void addScoresForEachStudent(String gbID, Assignment assignment, GradebookItem gbItem,
+            Map<String, String> studentUserIds, List<String> studentIds) {
         for (String studentId : studentIds) {
             // too expensive: if (gradebookService.getGradeViewFunctionForUserForStudentForItem(gbID, assignment.getId(), studentId) == null) {
             String grade = gradebookService.getAssignmentScoreString(gbID, assignment.getName(), studentId);
@@ -550,24 +987,12 @@ public class ExternalLogic {
                 gbItem.scores.add(score);
             }
         }
-        /* This is another post 2.5 way
-        List<GradeDefinition> grades = gradebookService.getGradesForStudentsForItem(siteId,
-                assignment.getId(), studentIds);
-        for (GradeDefinition gd : grades) {
-            String studId = gd.getStudentUid();
-            String studEID = studentUserIds.get(studId);
-            GradebookItemScore score = new GradebookItemScore(assignment.getId().toString(),
-                    studId, gd.getGrade(), studEID, gd.getGraderUid(), gd.getDateRecorded(),
-                    gd.getGradeComment());
-            gbItem.scores.add(score);
-        }
-        **/
-        return gbItem;
     }
 
     /**
      * Save a gradebook item and optionally the scores within <br/>
-     * Scores must have at least the studentId or username AND the grade set
+     * Scores must have at least the studentId or username AND the grade set,
+     * the valid scores are saved together and each invalid one gets an error instead
      * 
      * @param gbItem
      *            the gradebook item to save, must have at least the gradebookId and name set
@@ -607,6 +1032,7 @@ public class ExternalLogic {
                     // try to find by name
                     if (gradebookService.isAssignmentDefined(gradebookId, gbItem.name)) {
                         assignment = gradebookService.getAssignment(gradebookId, gbItem.name);
+                        gbItem.id = assignment.getId();
                         if (log.isDebugEnabled()) log.debug("found internal assign by name ("+gbItem.name+"): "+assignment);
                     }
                 } else  {
@@ -657,6 +1083,12 @@ public class ExternalLogic {
                     assignment.setReleased(gbItem.released);
                     gradebookService.addAssignment(gradebookId, assignment);
                     // SecurityException, AssignmentHasIllegalPointsException, RuntimeException
+                    // the definition passed in does not get the new id, so fetch the newly created assignment
+                    assignment = gradebookService.getAssignment(gradebookId, gbItem.name);
+                    if (assignment == null) {
+                        log.warn("FATAL error finding new internal assignment from item: "+gbItem);
+                        throw new IllegalArgumentException("Unable to find the newly saved item: "+gbItem);
+                    }
                     if (log.isDebugEnabled()) log.debug("created internal assignment ("+assignment+") from item: "+gbItem);
                 }
                 gbItem.id = assignment.getId();
@@ -698,118 +1130,183 @@ public class ExternalLogic {
             log.warn(msg, e);
             throw new IllegalArgumentException(msg, e);
         }
-        int errorsCount = 0;
         if (gbItem.scores != null && !gbItem.scores.isEmpty()) {
             // now update scores if there are any to update, 
             // this will not remove scores and will only add new ones
-            for (GradebookItemScore score : gbItem.scores) {
-                if (isBlank(score.username) && isBlank(score.userId)) {
-                    score.error = "USER_INVALID: User ID and Name are both blank";
-                    continue;
-                }
-                // find out if the student id is internal or external, and set the score vals and then studentId to the internal id
-                String studentId = score.userId;
-                if (isBlank(score.userId)) {
-                    studentId = score.username;
-                }
+            Map<String, GradebookItemScore> validScores = validateScores(gbItem, assignment);
+            if (!validScores.isEmpty()) {
                 try {
-                    // try assuming it is the internal id first
-                    score.username = userDirectoryService.getUserEid(studentId);
-                    score.userId = studentId;
-                } catch (UserNotDefinedException e) {
-                    try {
-                        // now try it as the external id
-                        score.userId = userDirectoryService.getUserId(studentId);
-                        score.username = studentId;
-                        studentId = score.userId;
-                    } catch (UserNotDefinedException ex) {
-                        score.error = "USER_NOT_EXISTS: User (id="+score.userId+", name="+score.username+") could not be found";
-                        errorsCount++;
-                        continue;
+                    saveScores(gradebookId, assignment.getId(), gbItem, isExternal, validScores);
+                } catch (Exception e) {
+                    // nothing was saved, so save them one at a time to find out which scores failed
+                    log.warn("Failure saving "+validScores.size()+" scores for item ("+gbItem.id+") together, saving them one at a time: "+e);
+                    for (Map.Entry<String, GradebookItemScore> entry : validScores.entrySet()) {
+                        saveScore(gradebookId, gbItem, isExternal, entry.getKey(), entry.getValue());
                     }
                 }
-                score.assignId(gbItem.id, studentId);
-                // null/blank scores are not allowed
-                if (isBlank(score.grade)) {
-                    score.error = "NO_SCORE_ERROR: score is blank";
-                    errorsCount++;
-                    continue;
-                }
-
-                Double dScore;
-                try {
-                    dScore = Double.valueOf(score.grade);
-                } catch (NumberFormatException e) {
-                    score.error = "SCORE_INVALID: Score ("+score.grade+") is invalid";
-                    errorsCount++;
-                    continue;
-                }
-                // Student Score should not be greater than the total points possible
-                if (dScore > assignment.getPoints()) {
-                    score.error = "POINTS: Score ("+dScore+") > PointsPossible ("+assignment.getPoints()+")";
-                    errorsCount++;
-                    continue;
-                }
-                try {
-                    /** check against existing score ** NOT NEEDED
-                    String currentScore = gradebookService.getAssignmentScoreString(gradebookUid, gbItem.name, studentId);
-                    if (currentScore != null) {
-                        try {
-                            Double dCurrentScore = Double.valueOf(currentScore);
-                            if (dScore < dCurrentScore) {
-                                score.error = SCORE_UPDATE_ERRORS;
-                                errorsCount++;
-                                continue;
-                            }
-                        } catch (NumberFormatException e) {
-                            // no comparison since this is not a numerical score
-                        }
-                    }
-                    **/
-                    // null grade deletes the score
-                    if (isExternal) {
-                        gradebookExternalAssessmentService.updateExternalAssessmentScore(gradebookId, gbItem.eid, studentId, dScore.toString());
-                    } else {
-                        gradebookService.setAssignmentScoreString(gradebookId, gbItem.name, studentId, dScore.toString(), EXTERNAL_DATASOURCE);
+            }
+            // put the errors in the item if there are errors and they are set
+            for (GradebookItemScore score : gbItem.scores) {
+                if (score.error != null) {
+                    if (gbItem.scoreErrors == null) {
+                        gbItem.scoreErrors = new HashMap<String, String>();
                     }
-                    if (score.comment != null && ! "".equals(score.comment)) {
-                        gradebookService.setAssignmentScoreComment(gradebookId, gbItem.name, studentId, score.comment);
+                    gbItem.scoreErrors.put(score.id, score.error);
+                }
+                if (score.commentError != null) {
+                    if (gbItem.commentErrors == null) {
+                        gbItem.commentErrors = new HashMap<String, String>();
                     }
-                } catch (Exception e) {
-                    // General errors, caused while performing updates (Tag: generalerrors)
-                    String msg = "Failure saving score ("+score+"): "+e;
-                    log.warn(msg, e);
-                    score.error = "GENERAL: "+msg;
-                    errorsCount++;
+                    gbItem.commentErrors.put(score.id, score.commentError);
                 }
-                /* post-2.5 gradebook method
-                try {
-                    gradebookService.saveGradeAndCommentForStudent(gradebookUid, gbItemId,
-                            studentId, score.grade, score.comment);
-                } catch (InvalidGradeException e) {
-                    scoreErrors.put(score, "SCORE_INVALID");
-                    continue;
+            }
+        }
+        incrementGradebookVersion(gradebookId);
+        return gbItem;
+    }
+
+    /**
+     * Resolve the users of all the scores and check the grades before anything is saved,
+     * recording the error in each score which cannot be saved
+     * 
+     * @return map of student id -> score to save, in the order they were given (the last one wins for the same student)
+     */
+    private Map<String, GradebookItemScore> validateScores(GradebookItem gbItem, Assignment assignment) {
+        // find out if the student ids are internal or external with one lookup for each
+        Set<String> userIds = new HashSet<String>();
+        for (GradebookItemScore score : gbItem.scores) {
+            if (isBlank(score.username) && isBlank(score.userId)) {
+                score.error = "USER_INVALID: User ID and Name are both blank";
+                continue;
+            }
+            userIds.add(isBlank(score.userId) ? score.username : score.userId);
+        }
+        Map<String, User> users = userCache.getUsers(userIds);
+
+        Map<String, GradebookItemScore> validScores = new LinkedHashMap<String, GradebookItemScore>();
+        for (GradebookItemScore score : gbItem.scores) {
+            if (score.error != null) {
+                continue;
+            }
+            // set the score vals and then studentId to the internal id
+            String studentId = isBlank(score.userId) ? score.username : score.userId;
+            User user = users.get(studentId);
+            if (user != null && studentId.equals(user.getId())) {
+                // it is the internal id
+                score.username = user.getEid();
+                score.userId = studentId;
+            } else if (user != null) {
+                // it is the external id
+                score.userId = user.getId();
+                score.username = studentId;
+                studentId = score.userId;
+            } else {
+                score.error = "USER_NOT_EXISTS: User (id="+score.userId+", name="+score.username+") could not be found";
+                continue;
+            }
+            score.assignId(gbItem.id, studentId);
+            // null/blank scores are not allowed
+            if (isBlank(score.grade)) {
+                score.error = "NO_SCORE_ERROR: score is blank";
+                continue;
+            }
+            Double dScore;
+            try {
+                dScore = Double.valueOf(score.grade);
+            } catch (NumberFormatException e) {
+                score.error = "SCORE_INVALID: Score ("+score.grade+") is invalid";
+                continue;
+            }
+            // Student Score should not be greater than the total points possible
+            if (dScore > assignment.getPoints()) {
+                score.error = "POINTS: Score ("+dScore+") > PointsPossible ("+assignment.getPoints()+")";
+                continue;
+            }
+            validScores.put(studentId, score);
+        }
+        return validScores;
+    }
+
+    /**
+     * Save all the validated scores together, so either all of them are saved or none are.
+     * Internal items save the comments with the scores. The external assessment service cannot
+     * save comments, so the comments of an external item are saved one at a time once its scores
+     * are saved, and a comment which fails is recorded in the score's commentError
+     */
+    private void saveScores(String gradebookId, Long assignmentId, GradebookItem gbItem, boolean isExternal,
+            Map<String, GradebookItemScore> validScores) {
+        if (isExternal) {
+            Map<String, String> studentScores = new HashMap<String, String>();
+            for (Map.Entry<String, GradebookItemScore> entry : validScores.entrySet()) {
+                studentScores.put(entry.getKey(), Double.valueOf(entry.getValue().grade).toString());
+            }
+            gradebookExternalAssessmentService.updateExternalAssessmentScoresString(gradebookId, gbItem.eid, studentScores);
+            // the external service has no way to save comments
+            for (Map.Entry<String, GradebookItemScore> entry : validScores.entrySet()) {
+                GradebookItemScore score = entry.getValue();
+                if (score.comment != null && ! "".equals(score.comment)) {
+                    saveComment(gradebookId, gbItem, entry.getKey(), score);
                 }
-                GradeDefinition gd = gradebookService.getGradeDefinitionForStudentForItem(
-                        gradebookUid, gbItemId, studentId);
-                score.assignId(gbItem.id, gd.getStudentUid());
-                score.comment = gd.getGradeComment();
-                score.grade = gd.getGrade();
-                score.graderUserId = gd.getGraderUid();
-                score.recorded = gd.getDateRecorded();
-                */
             }
-            // put the errors in the item if there are errors and they are set
-            if (errorsCount > 0) {
-                gbItem.scoreErrors = new HashMap<String, String>();
-                for (GradebookItemScore score : gbItem.scores) {
-                    if (score.error != null) {
-                        gbItem.scoreErrors.put(score.id, score.error);
-                    }
+        } else {
+            // a blank comment keeps the existing one, so fetch those first
+            Map<String, String> comments = new HashMap<String, String>();
+            for (GradeDefinition gd : gradebookService.getGradesForStudentsForItem(gradebookId, assignmentId,
+                    new ArrayList<String>(validScores.keySet()))) {
+                comments.put(gd.getStudentUid(), gd.getGradeComment());
+            }
+            List<GradeDefinition> gradeDefs = new ArrayList<GradeDefinition>(validScores.size());
+            for (Map.Entry<String, GradebookItemScore> entry : validScores.entrySet()) {
+                GradebookItemScore score = entry.getValue();
+                GradeDefinition gd = new GradeDefinition();
+                gd.setStudentUid(entry.getKey());
+                gd.setGrade(Double.valueOf(score.grade).toString());
+                if (score.comment != null && ! "".equals(score.comment)) {
+                    gd.setGradeComment(score.comment);
+                } else {
+                    gd.setGradeComment(comments.get(entry.getKey()));
                 }
+                gradeDefs.add(gd);
             }
+            gradebookService.saveGradesAndComments(gradebookId, assignmentId, gradeDefs);
+        }
+    }
+
+    /**
+     * Save one validated score and its comment, recording the error in the score if it fails
+     */
+    private void saveScore(String gradebookId, GradebookItem gbItem, boolean isExternal,
+            String studentId, GradebookItemScore score) {
+        try {
+            String grade = Double.valueOf(score.grade).toString();
+            if (isExternal) {
+                gradebookExternalAssessmentService.updateExternalAssessmentScore(gradebookId, gbItem.eid, studentId, grade);
+            } else {
+                gradebookService.setAssignmentScoreString(gradebookId, gbItem.name, studentId, grade, EXTERNAL_DATASOURCE);
+            }
+        } catch (Exception e) {
+            // General errors, caused while performing updates (Tag: generalerrors)
+            String msg = "Failure saving score ("+score+"): "+e;
+            log.warn(msg, e);
+            score.error = "GENERAL: "+msg;
+            return;
+        }
+        if (score.comment != null && ! "".equals(score.comment)) {
+            saveComment(gradebookId, gbItem, studentId, score);
+        }
+    }
+
+    /**
+     * Save the comment of a score whose grade is already saved, recording the error in the score's commentError if it fails
+     */
+    private void saveComment(String gradebookId, GradebookItem gbItem, String studentId, GradebookItemScore score) {
+        try {
+            gradebookService.setAssignmentScoreComment(gradebookId, gbItem.name, studentId, score.comment);
+        } catch (Exception e) {
+            String msg = "Failure saving comment of score ("+score+"): "+e;
+            log.warn(msg, e);
+            score.commentError = "GENERAL: "+msg;
         }
-        return gbItem;
     }
 
     /**
@@ -875,6 +1372,8 @@ public class ExternalLogic {
              *      gradebookExternalAssessmentService.removeExternalAssessment(gradebookId, externalId);
              */
             gradebookExternalAssessmentService.removeExternalAssessment(gradebookId, externalId);
+            recordRemovedGradebookItem(gradebookId, a.getId(), a.getName());
+            incrementGradebookVersion(gradebookId);
             removed = new GradebookItem(gradebookId, a.getName(), a.getPoints(), a.getDueDate(), a.getCategoryName(), a.isReleased());
             removed.id = a.getId();
             removed.deleted = true;
@@ -887,6 +1386,8 @@ public class ExternalLogic {
         if (gradebookService.isAssignmentDefined(gradebookId, itemName)) {
             Assignment a = gradebookService.getAssignment(gradebookId, itemName);
             gradebookService.removeAssignment(a.getId());
+            recordRemovedGradebookItem(gradebookId, a.getId(), a.getName());
+            incrementGradebookVersion(gradebookId);
         }
         return removed;
     }
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.logic;
+
+import org.sakaiproject.gradebook.entity.Gradebook;
+import org.sakaiproject.gradebook.entity.GradebookItem;
+import org.sakaiproject.gradebook.entity.Student;
+
+/**
+ * Receives the parts of a gradebook one at a time as they are read,
+ * so the whole gradebook does not have to be held in memory (see {@link ExternalLogic#visitCourseGradebook})
+ */
+public interface GradebookVisitor {
+
+    /**
+     * Called first, with the gradebook fields set but no students or items
+     */
+    public void gradebook(Gradebook gradebook);
+
+    /**
+     * Called for each student, after the gradebook and before any items
+     */
+    public void student(Student student);
+
+    /**
+     * Called for each item with its scores for the students, after all the students
+     */
+    public void item(GradebookItem item);
+
+}
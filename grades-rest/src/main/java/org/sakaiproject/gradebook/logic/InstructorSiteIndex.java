@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.logic;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.site.api.SiteService.SelectionType;
+import org.sakaiproject.site.api.SiteService.SortType;
+
+/**
+ * Holds which sites each instructor can update and who the members of each site are,
+ * so the authorization checks of every request do not have to load them again
+ * 
+ * Entries expire after ttlSeconds, and the entries for a site are dropped as soon as
+ * a site or realm event for it is seen (from any server in the cluster), so a removed instructor
+ * or member loses access right away. A newly added instructor may have to wait for the expiry.
+ */
+public class InstructorSiteIndex implements Observer {
+
+    private final static Log log = LogFactory.getLog(InstructorSiteIndex.class);
+
+    /**
+     * site and realm events which can change who updates a site or who is in it
+     */
+    private static final Set<String> SITE_EVENTS = new HashSet<String>(Arrays.asList(new String[] {
+            "site.add", "site.upd", "site.del", "site.upd.site.mbrshp", "site.upd.grp.mbrshp",
+            "realm.add", "realm.upd", "realm.del"}));
+
+    private SiteService siteService;
+    public void setSiteService(SiteService siteService) {
+        this.siteService = siteService;
+    }
+
+    private EventTrackingService eventTrackingService;
+    public void setEventTrackingService(EventTrackingService eventTrackingService) {
+        this.eventTrackingService = eventTrackingService;
+    }
+
+    private int ttlSeconds = 300;
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    private int maxEntries = 10000;
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    private TimedCache<String, Set<String>> instructorSites;
+    private TimedCache<String, Set<String>> siteMembers;
+
+    public void init() {
+        instructorSites = new TimedCache<String, Set<String>>(ttlSeconds * 1000L, maxEntries);
+        siteMembers = new TimedCache<String, Set<String>>(ttlSeconds * 1000L, maxEntries);
+        if (eventTrackingService != null) {
+            eventTrackingService.addObserver(this);
+        }
+        log.info("INIT: ttlSeconds=" + ttlSeconds + ", maxEntries=" + maxEntries);
+    }
+
+    public void destroy() {
+        if (eventTrackingService != null) {
+            eventTrackingService.deleteObserver(this);
+        }
+    }
+
+    /**
+     * @param userId the current user id, the sites are looked up as the current user
+     * @return the ids of all the sites the user can update, in title order
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getInstructorSiteIds(String userId) {
+        Set<String> siteIds = instructorSites.get(userId);
+        if (siteIds == null) {
+            List<Site> sites = siteService.getSites(SelectionType.UPDATE, null, null, null, SortType.TITLE_ASC, null);
+            siteIds = new LinkedHashSet<String>();
+            for (Site site : sites) {
+                siteIds.add(site.getId());
+            }
+            siteIds = Collections.unmodifiableSet(siteIds);
+            instructorSites.put(userId, siteIds);
+        }
+        return siteIds;
+    }
+
+    /**
+     * @return the user ids of all the members of the site, empty if there is no such site
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getMemberIds(String siteId) {
+        Set<String> memberIds = siteMembers.get(siteId);
+        if (memberIds == null) {
+            try {
+                memberIds = Collections.unmodifiableSet(new HashSet<String>(siteService.getSite(siteId).getUsers()));
+            } catch (IdUnusedException e) {
+                memberIds = Collections.emptySet();
+            }
+            siteMembers.put(siteId, memberIds);
+        }
+        return memberIds;
+    }
+
+    /**
+     * Drop everything held about the site
+     */
+    public void invalidateSite(String siteId) {
+        siteMembers.remove(siteId);
+        for (String userId : instructorSites.keySet()) {
+            Set<String> siteIds = instructorSites.get(userId);
+            if (siteIds != null && siteIds.contains(siteId)) {
+                instructorSites.remove(userId);
+            }
+        }
+    }
+
+    public void update(Observable o, Object arg) {
+        if (!(arg instanceof Event)) {
+            return;
+        }
+        Event event = (Event) arg;
+        if (!SITE_EVENTS.contains(event.getEvent())) {
+            return;
+        }
+        // the user who made the change (e.g. added a site) may update different sites now
+        if (event.getUserId() != null) {
+            instructorSites.remove(event.getUserId());
+        }
+        // resources look like /site/{siteId} or /realm//site/{siteId}
+        String resource = event.getResource();
+        int start = (resource != null) ? resource.indexOf("/site/") : -1;
+        if (start >= 0) {
+            String siteId = resource.substring(start + "/site/".length());
+            int end = siteId.indexOf('/');
+            if (end >= 0) {
+                siteId = siteId.substring(0, end);
+            }
+            if (log.isDebugEnabled()) log.debug("Event " + event.getEvent() + " for site " + siteId + ", dropping it from the index");
+            invalidateSite(siteId);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A small thread safe map whose entries expire after a fixed time, and which holds a bounded number of entries
+ * (when full, the expired entries are dropped and if that is not enough the oldest ones, down to nine tenths of the limit)
+ */
+class TimedCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    TimedCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the value OR null if there is none or it has expired
+     */
+    V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    void put(K key, V value) {
+        if (entries.size() >= maxEntries) {
+            evict();
+        }
+        entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    void remove(K key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the keys currently held (including expired ones not dropped yet)
+     */
+    Set<K> keySet() {
+        return entries.keySet();
+    }
+
+    /**
+     * Drop the expired entries, and if that is not enough the oldest ones (the first to expire),
+     * down to nine tenths of the limit so the next puts fit without doing it again
+     */
+    private synchronized void evict() {
+        if (entries.size() < maxEntries) {
+            // another thread made room already
+            return;
+        }
+        for (Iterator<Entry<V>> iter = entries.values().iterator(); iter.hasNext(); ) {
+            if (iter.next().isExpired()) {
+                iter.remove();
+            }
+        }
+        int excess = entries.size() - (maxEntries - Math.max(maxEntries / 10, 1));
+        if (excess <= 0) {
+            return;
+        }
+        List<Long> expiries = new ArrayList<Long>(entries.size());
+        for (Entry<V> entry : entries.values()) {
+            expiries.add(entry.expires);
+        }
+        Collections.sort(expiries);
+        long cutoff = expiries.get(Math.min(excess, expiries.size()) - 1);
+        for (Iterator<Entry<V>> iter = entries.values().iterator(); iter.hasNext(); ) {
+            if (iter.next().expires <= cutoff) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 Apereo Foundation Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.gradebook.logic;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+import org.sakaiproject.user.api.UserNotDefinedException;
+
+/**
+ * Holds the users looked up by the REST calls for a while, by id and by eid (username),
+ * so translating the students of a gradebook or a batch of scores does not go to the
+ * user directory once per student
+ *
+ * The users missing from the cache are looked up together (by id, then the rest by eid),
+ * users expire after ttlSeconds and at most maxEntries are held.
+ * The hit rate is logged every STATS_LOG_INTERVAL lookups.
+ */
+public class UserCache {
+
+    private final static Log log = LogFactory.getLog(UserCache.class);
+
+    public static final int STATS_LOG_INTERVAL = 10000;
+
+    private UserDirectoryService userDirectoryService;
+    public void setUserDirectoryService(UserDirectoryService userDirectoryService) {
+        this.userDirectoryService = userDirectoryService;
+    }
+
+    private int ttlSeconds = 300;
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    private int maxEntries = 10000;
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    private TimedCache<String, User> usersById;
+    private TimedCache<String, String> idsByEid;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    public void init() {
+        usersById = new TimedCache<String, User>(ttlSeconds * 1000L, maxEntries);
+        idsByEid = new TimedCache<String, String>(ttlSeconds * 1000L, maxEntries);
+    }
+
+    /**
+     * @param userId the user id, or the eid (username) if there is no user with that id
+     * @return the user OR null if there is none
+     */
+    public User getUser(String userId) {
+        User user = getHeld(userId);
+        if (user == null) {
+            try {
+                user = userDirectoryService.getUser(userId);
+            } catch (UserNotDefinedException e) {
+                try {
+                    user = userDirectoryService.getUserByEid(userId);
+                } catch (UserNotDefinedException e1) {
+                    return null;
+                }
+            }
+            put(user);
+        }
+        return user;
+    }
+
+    /**
+     * @param eid the eid (username) of the user
+     * @return the user OR null if there is none
+     */
+    public User getUserByEid(String eid) {
+        String userId = idsByEid.get(eid);
+        User user = (userId == null) ? null : usersById.get(userId);
+        countLookup(user != null);
+        if (user == null) {
+            try {
+                user = userDirectoryService.getUserByEid(eid);
+            } catch (UserNotDefinedException e) {
+                return null;
+            }
+            put(user);
+        }
+        return user;
+    }
+
+    /**
+     * Looks up the users not already held with one call by id and one call by eid
+     *
+     * @param userIds user ids, or eids (usernames) where there is no user with that id
+     * @return map of each id or eid given --> the user, without the ones which match no user
+     */
+    public Map<String, User> getUsers(Collection<String> userIds) {
+        Map<String, User> users = new LinkedHashMap<String, User>();
+        Set<String> missing = new LinkedHashSet<String>();
+        for (String userId : userIds) {
+            if (userId == null || users.containsKey(userId) || missing.contains(userId)) {
+                continue;
+            }
+            User user = getHeld(userId);
+            if (user == null) {
+                missing.add(userId);
+            } else {
+                users.put(userId, user);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (User user : userDirectoryService.getUsers(missing)) {
+                put(user);
+                users.put(user.getId(), user);
+                missing.remove(user.getId());
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (User user : userDirectoryService.getUsersByEids(missing)) {
+                put(user);
+                users.put(user.getEid(), user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Holds users the caller already read from the directory (e.g. the members of a site)
+     */
+    public void putUsers(Collection<User> users) {
+        for (User user : users) {
+            put(user);
+        }
+    }
+
+    public void clear() {
+        usersById.clear();
+        idsByEid.clear();
+    }
+
+    public int getSize() {
+        return usersById.size();
+    }
+
+    /**
+     * @return the share of lookups answered without the user directory, between 0 and 1
+     */
+    public double getHitRate() {
+        long numHits = hits.get();
+        long numLookups = numHits + misses.get();
+        return (numLookups == 0) ? 0 : (double) numHits / numLookups;
+    }
+
+    /**
+     * @return the user held for the id, or for the eid if none is held for the id, OR null
+     */
+    private User getHeld(String userId) {
+        User user = usersById.get(userId);
+        if (user == null) {
+            String eidUserId = idsByEid.get(userId);
+            if (eidUserId != null) {
+                user = usersById.get(eidUserId);
+            }
+        }
+        countLookup(user != null);
+        return user;
+    }
+
+    private void countLookup(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (lookups.incrementAndGet() % STATS_LOG_INTERVAL == 0 && log.isInfoEnabled()) {
+            log.info("User cache holds " + usersById.size() + " users; hit rate " + getHitRate() + " over " + lookups.get() + " lookups");
+        }
+    }
+
+    private void put(User user) {
+        if (user == null || user.getId() == null) {
+            return;
+        }
+        if (usersById.size() >= maxEntries && log.isInfoEnabled()) {
+            log.info("User cache full at " + usersById.size() + " users, dropping the oldest; hit rate " + getHitRate());
+        }
+        usersById.put(user.getId(), user);
+        if (user.getEid() != null) {
+            idsByEid.put(user.getEid(), user.getId());
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.gradebooksample;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlReader;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Records which sites of a term have had their grades finalized, and which
+ * failed, in the GB_FINALIZE_CHECKPOINT_T table. A rerun for the same term
+ * leaves out the completed sites and tries the failed ones again.
+ *
+ * The table is created from the vendor scripts named sakai_gradebook_finalizer.sql
+ * when auto.ddl is set in sakai.properties.
+ */
+public class FinalizationCheckpoints {
+	private static final Log log = LogFactory.getLog(FinalizationCheckpoints.class);
+
+	public static final String STATUS_COMPLETED = "COMPLETED";
+	public static final String STATUS_FAILED = "FAILED";
+
+	private static final int MAX_MESSAGE_LENGTH = 255;
+
+	private SqlService sqlService;
+	private ServerConfigurationService serverConfigurationService;
+
+	public void init() {
+		if (serverConfigurationService.getBoolean("auto.ddl", true)) {
+			sqlService.ddl(getClass().getClassLoader(), "sakai_gradebook_finalizer");
+		}
+	}
+
+	/**
+	 * @return the ids of the term's sites whose grades were finalized by an earlier run
+	 */
+	public Set<String> getCompletedSiteIds(String termEid) {
+		List siteIds = sqlService.dbRead("select SITE_ID from GB_FINALIZE_CHECKPOINT_T where TERM_EID=? and STATUS=?",
+			new Object[] {termEid, STATUS_COMPLETED}, null);
+		return new HashSet<String>(siteIds);
+	}
+
+	/**
+	 * @return the number of the term's sites with each status
+	 */
+	public Map<String, Integer> getStatusCounts(String termEid) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		sqlService.dbRead("select STATUS, count(*) from GB_FINALIZE_CHECKPOINT_T where TERM_EID=? group by STATUS",
+			new Object[] {termEid}, new SqlReader() {
+				public Object readSqlResultRecord(ResultSet result) {
+					try {
+						counts.put(result.getString(1), Integer.valueOf(result.getInt(2)));
+					} catch (SQLException e) {
+						log.warn("Could not read finalization status counts", e);
+					}
+					return null;
+				}
+			});
+		return counts;
+	}
+
+	public void markCompleted(String termEid, String siteId) {
+		write(termEid, siteId, STATUS_COMPLETED, null);
+	}
+
+	public void markFailed(String termEid, String siteId, String message) {
+		if (message != null && message.length() > MAX_MESSAGE_LENGTH) {
+			message = message.substring(0, MAX_MESSAGE_LENGTH);
+		}
+		write(termEid, siteId, STATUS_FAILED, message);
+	}
+
+	/**
+	 * Forget every site of the term, so that the next run finalizes them all again.
+	 */
+	public void clear(String termEid) {
+		sqlService.dbWrite("delete from GB_FINALIZE_CHECKPOINT_T where TERM_EID=?", new Object[] {termEid});
+	}
+
+	private void write(String termEid, String siteId, String status, String message) {
+		sqlService.dbWrite("delete from GB_FINALIZE_CHECKPOINT_T where TERM_EID=? and SITE_ID=?", new Object[] {termEid, siteId});
+		if (!sqlService.dbWrite("insert into GB_FINALIZE_CHECKPOINT_T (TERM_EID, SITE_ID, STATUS, MESSAGE, DATE_RECORDED) values (?, ?, ?, ?, ?)",
+				new Object[] {termEid, siteId, status, message, new Timestamp(System.currentTimeMillis())})) {
+			log.warn("Could not record " + status + " for site " + siteId + " of academicSessionEid=" + termEid);
+		}
+	}
+
+	public void setSqlService(SqlService sqlService) {
+		this.sqlService = sqlService;
+	}
+
+	public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+		this.serverConfigurationService = serverConfigurationService;
+	}
+}
@@ -0,0 +1,126 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.gradebooksample;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the sites finalized by one run over a term. The counters are updated
+ * by the worker threads and may be read at any time, e.g. by a status query
+ * while the run is still going.
+ */
+public class FinalizationProgress {
+	private final String termEid;
+	private final int numSites;
+	private final int numSkipped;
+	private final long startTime;
+	private final AtomicInteger numCompleted = new AtomicInteger();
+	private final AtomicInteger numFailed = new AtomicInteger();
+	private volatile long endTime;
+
+	/**
+	 * @param numSites the number of sites this run will finalize
+	 * @param numSkipped the number of sites left out because an earlier run completed them
+	 */
+	public FinalizationProgress(String termEid, int numSites, int numSkipped) {
+		this.termEid = termEid;
+		this.numSites = numSites;
+		this.numSkipped = numSkipped;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	void siteCompleted() {
+		numCompleted.incrementAndGet();
+	}
+
+	void siteFailed() {
+		numFailed.incrementAndGet();
+	}
+
+	void finished() {
+		endTime = System.currentTimeMillis();
+	}
+
+	public String getTermEid() {
+		return termEid;
+	}
+
+	public int getNumSites() {
+		return numSites;
+	}
+
+	public int getNumSkipped() {
+		return numSkipped;
+	}
+
+	public int getNumCompleted() {
+		return numCompleted.get();
+	}
+
+	public int getNumFailed() {
+		return numFailed.get();
+	}
+
+	public int getNumRemaining() {
+		return numSites - getNumCompleted() - getNumFailed();
+	}
+
+	public boolean isFinished() {
+		return endTime != 0;
+	}
+
+	public long getElapsedMillis() {
+		return ((endTime != 0) ? endTime : System.currentTimeMillis()) - startTime;
+	}
+
+	public double getSitesPerSecond() {
+		long elapsed = getElapsedMillis();
+		return (elapsed > 0) ? (getNumCompleted() + getNumFailed()) * 1000.0 / elapsed : 0;
+	}
+
+	/**
+	 * @return the estimated time to finish the remaining sites at the rate so far,
+	 * or -1 if nothing has been done yet to estimate from
+	 */
+	public long getEtaMillis() {
+		double rate = getSitesPerSecond();
+		if (rate <= 0) {
+			return -1;
+		}
+		return (long)(getNumRemaining() * 1000 / rate);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("academicSessionEid=").append(termEid).append(": ")
+			.append(getNumCompleted()).append(" of ").append(numSites).append(" sites finalized, ")
+			.append(getNumFailed()).append(" failed, ")
+			.append(numSkipped).append(" skipped as already done, ")
+			.append(String.format("%.2f", getSitesPerSecond())).append(" sites/sec");
+		if (isFinished()) {
+			sb.append(", finished in ").append(getElapsedMillis() / 1000).append(" sec");
+		} else {
+			long eta = getEtaMillis();
+			sb.append(", ETA ").append((eta < 0) ? "unknown" : (eta / 1000) + " sec");
+		}
+		return sb.toString();
+	}
+}
@@ -21,15 +21,25 @@
 
 package org.sakaiproject.gradebooksample;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.service.gradebook.shared.GradebookService;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.user.api.User;
@@ -37,18 +47,33 @@ import org.sakaiproject.user.api.UserDirectoryService;
 import org.sakaiproject.user.api.UserNotDefinedException;
 
 /**
+ * Finalizes the course grades of one site, or of every site of a term.
  *
+ * The sites of a term are finalized on a pool of "parallelism" worker threads,
+ * "batchSize" sites at a time, each site in its own transaction. A site which
+ * fails is logged and recorded without stopping the others. When checkpoints
+ * are configured, each site's outcome is recorded there as soon as it is
+ * known, and a rerun for the term skips the sites already completed.
  */
 public class GradesFinalizer {
     private static final Log log = LogFactory.getLog(GradesFinalizer.class);
     
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
 	private GradebookService gradebookService;
 	private SessionManager sessionManager;
 	private UserDirectoryService userDirectoryService;
 	private SiteService siteService;
+	private ThreadLocalManager threadLocalManager;
 	private String siteUid;
 	private String academicSessionEid;
 	private String actAsUserEid;
+	private String actAsUserId;
+	private FinalizationCheckpoints checkpoints;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile FinalizationProgress progress;
 	
 	public void execute() {
 		if ((siteUid == null) && (academicSessionEid == null)) {
@@ -73,15 +98,103 @@ public class GradesFinalizer {
 		}		
 	}
 
-	public void finalizeGradesForTermEid(String termEid) {
+	/**
+	 * @return the counts of the sites finalized, failed and skipped by this run
+	 */
+	public FinalizationProgress finalizeGradesForTermEid(final String termEid) {
 		Map<String, String> sitePropertyCriteria = new HashMap<String, String>();
 		sitePropertyCriteria.put("term_eid", termEid);
 		List<Site> sites = siteService.getSites(SiteService.SelectionType.NON_USER, null, null, sitePropertyCriteria, SiteService.SortType.NONE, null);
 		if (log.isInfoEnabled()) log.info(sites.size() + " sites found for academicSessionEid=" + termEid);
+
+		Set<String> completedSiteIds = (checkpoints != null) ? checkpoints.getCompletedSiteIds(termEid) : null;
+		List<String> siteIds = new ArrayList<String>();
 		for (Site site : sites) {
-			finalizeGradesForSiteUid(site.getId());
+			if (completedSiteIds == null || !completedSiteIds.contains(site.getId())) {
+				siteIds.add(site.getId());
+			}
+		}
+		final FinalizationProgress runProgress = new FinalizationProgress(termEid, siteIds.size(), sites.size() - siteIds.size());
+		progress = runProgress;
+		if (log.isInfoEnabled() && runProgress.getNumSkipped() > 0) log.info(runProgress.getNumSkipped() + " sites skipped as finalized by an earlier run");
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1), new WorkerThreadFactory());
+		try {
+			int size = Math.max(batchSize, 1);
+			for (int i = 0; i < siteIds.size(); i += size) {
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (final String siteId : siteIds.subList(i, Math.min(i + size, siteIds.size()))) {
+					futures.add(executor.submit(new Callable<Object>() {
+						public Object call() {
+							finalizeSiteOfTerm(termEid, siteId, runProgress);
+							return null;
+						}
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+				if (log.isInfoEnabled()) log.info(runProgress);
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while finalizing grades for academicSessionEid=" + termEid + "; a rerun will resume after the completed sites");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.error("Unexpected failure while finalizing grades for academicSessionEid=" + termEid, e.getCause());
+		} finally {
+			executor.shutdownNow();
+			runProgress.finished();
+		}
+		if (log.isInfoEnabled()) {
+			log.info(runProgress);
+			if (checkpoints != null) log.info("Sites of academicSessionEid=" + termEid + " recorded over all runs: " + checkpoints.getStatusCounts(termEid));
+		}
+		return runProgress;
+	}
+
+	/**
+	 * @return the progress of the term run going on now, or of the last one to
+	 * finish, or null if no term has been run since startup
+	 */
+	public FinalizationProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return the number of sites of the term recorded as completed and as failed
+	 * over all runs, keyed by checkpoint status, or an empty map if checkpoints
+	 * are not configured
+	 */
+	public Map<String, Integer> getCheckpointStatusCounts(String termEid) {
+		if (checkpoints == null) {
+			return new HashMap<String, Integer>();
+		}
+		return checkpoints.getStatusCounts(termEid);
+	}
+
+	/**
+	 * Finalize one site on a worker thread, recording the outcome rather than
+	 * letting a failure stop the rest of the term.
+	 */
+	private void finalizeSiteOfTerm(String termEid, String siteId, FinalizationProgress runProgress) {
+		try {
+			setSessionUser();
+			finalizeGradesForSiteUid(siteId);
+			if (checkpoints != null) {
+				checkpoints.markCompleted(termEid, siteId);
+			}
+			runProgress.siteCompleted();
+		} catch (RuntimeException e) {
+			log.error("Could not finalize grades for site " + siteId, e);
+			if (checkpoints != null) {
+				checkpoints.markFailed(termEid, siteId, e.toString());
+			}
+			runProgress.siteFailed();
+		} finally {
+			threadLocalManager.clear();
 		}
 	}
+
 	
 	/**
 	 * TODO This piece of logic is repeated in enough places that we might want to add it
@@ -90,15 +203,36 @@ public class GradesFinalizer {
 	protected void actAsUser(String userEid) {
 		try {
 			User user = userDirectoryService.getUserByEid(userEid);
-			Session sakaiSession = sessionManager.getCurrentSession();
-			sakaiSession.setUserEid(userEid);
-			sakaiSession.setUserId(user.getId());
+			actAsUserId = user.getId();
+			setSessionUser();
 		} catch (UserNotDefinedException e) {
 			log.error("Could not act as user EID=" + userEid, e);
 		}
 		
 	}
 
+	/**
+	 * Sakai sessions are bound to the thread, so each worker has to act as the
+	 * user again.
+	 */
+	private void setSessionUser() {
+		if (actAsUserId != null) {
+			Session sakaiSession = sessionManager.getCurrentSession();
+			sakaiSession.setUserEid(actAsUserEid);
+			sakaiSession.setUserId(actAsUserId);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "GradesFinalizer-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	public void setGradebookService(GradebookService gradebookService) {
 		this.gradebookService = gradebookService;
 	}
@@ -127,4 +261,27 @@ public class GradesFinalizer {
 		this.siteService = siteService;
 	}
 
+	public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+		this.threadLocalManager = threadLocalManager;
+	}
+
+	public void setCheckpoints(FinalizationCheckpoints checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * @param parallelism the number of sites of a term finalized at once
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param batchSize the number of sites handed to the workers at a time;
+	 * progress is logged after each batch
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
 }
@@ -51,6 +51,8 @@ public class GradesFinalizerExec {
 			if ((academicSessionEid != null) && (academicSessionEid.trim().length() > 0)) {
 				gradesFinalizer.setAcademicSessionEid(academicSessionEid);
 			}
+			gradesFinalizer.setParallelism(Integer.getInteger("parallelism", GradesFinalizer.DEFAULT_PARALLELISM).intValue());
+			gradesFinalizer.setBatchSize(Integer.getInteger("batchSize", GradesFinalizer.DEFAULT_BATCH_SIZE).intValue());
 		}
 		gradesFinalizer.execute();
 		ComponentContainerEmulator.stopComponentManager();
@@ -21,31 +21,58 @@
 
 package org.sakaiproject.gradebooksample;
 
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
 /**
- *
+ * Runs the GradesFinalizer with the settings given in the job name, e.g.
+ * "academicSessionEid=2008-B parallelism=8 batchSize=100". The parallelism
+ * and batchSize settings are optional.
  */
 public class GradesFinalizerQuartzJob implements Job {
+    private static final Log log = LogFactory.getLog(GradesFinalizerQuartzJob.class);
+
     private static Pattern siteUidPattern = Pattern.compile("(?i)siteUid=");
 	private static Pattern academicSessionEidPattern = Pattern.compile("(?i)academicSessionEid=");
+	private static Pattern parallelismPattern = Pattern.compile("(?i)\\s*[;,]?\\s*parallelism=(\\d{1,6})[;,]?");
+	private static Pattern batchSizePattern = Pattern.compile("(?i)\\s*[;,]?\\s*batchSize=(\\d{1,6})[;,]?");
 	
 	GradesFinalizer gradesFinalizer;
 
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		String jobName = context.getJobDetail().getName();
 		if (jobName != null) {
+			// Take the numeric settings out first, so the rest of the name is the site or term.
+			// The finalizer is shared by every job, so settings left out go back to the defaults.
+			int parallelism = GradesFinalizer.DEFAULT_PARALLELISM;
+			Matcher matcher = parallelismPattern.matcher(jobName);
+			if (matcher.find()) {
+				parallelism = Integer.parseInt(matcher.group(1));
+				jobName = matcher.replaceFirst("");
+			}
+			int batchSize = GradesFinalizer.DEFAULT_BATCH_SIZE;
+			matcher = batchSizePattern.matcher(jobName);
+			if (matcher.find()) {
+				batchSize = Integer.parseInt(matcher.group(1));
+				jobName = matcher.replaceFirst("");
+			}
+			gradesFinalizer.setParallelism(parallelism);
+			gradesFinalizer.setBatchSize(batchSize);
+			if (log.isDebugEnabled()) log.debug("Finalizing grades for " + jobName.trim());
+
 			String[] splitJobName = siteUidPattern.split(jobName);
 			if (splitJobName.length == 2) {
-				gradesFinalizer.setSiteUid(splitJobName[1]);
+				gradesFinalizer.setSiteUid(splitJobName[1].trim());
 			} else {
 				splitJobName = academicSessionEidPattern.split(jobName);
 				if (splitJobName.length == 2) {
-					gradesFinalizer.setAcademicSessionEid(splitJobName[1]);
+					gradesFinalizer.setAcademicSessionEid(splitJobName[1].trim());
 				}
 			}
 		}
@@ -0,0 +1,9 @@
+-- Sites whose grades were finalized, or failed to be, by a run over a term
+CREATE TABLE GB_FINALIZE_CHECKPOINT_T (
+	TERM_EID VARCHAR(99) NOT NULL,
+	SITE_ID VARCHAR(99) NOT NULL,
+	STATUS VARCHAR(16) NOT NULL,
+	MESSAGE VARCHAR(255),
+	DATE_RECORDED DATETIME NOT NULL,
+	PRIMARY KEY (TERM_EID, SITE_ID)
+);
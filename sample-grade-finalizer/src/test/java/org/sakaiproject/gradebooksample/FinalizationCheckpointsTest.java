@@ -0,0 +1,87 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+
+package org.sakaiproject.gradebooksample;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Checks the statements FinalizationCheckpoints sends to the database.
+ */
+public class FinalizationCheckpointsTest extends TestCase {
+	private FinalizationCheckpoints checkpoints;
+	private final List<String> calls = new ArrayList<String>();
+	private boolean autoDdl;
+
+	protected void setUp() throws Exception {
+		checkpoints = new FinalizationCheckpoints();
+		checkpoints.setSqlService(GradesFinalizerTest.stub(SqlService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				calls.add(method.getName() + ((args.length > 1 && args[0] instanceof String) ? " " + args[0] : ""));
+				if (method.getReturnType() == Boolean.TYPE) {
+					return Boolean.TRUE;
+				} else if (method.getReturnType() == List.class) {
+					return new ArrayList<Object>();
+				}
+				return null;
+			}
+		}));
+		checkpoints.setServerConfigurationService(GradesFinalizerTest.stub(ServerConfigurationService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getBoolean".equals(method.getName()) && "auto.ddl".equals(args[0])) {
+					return Boolean.valueOf(autoDdl);
+				}
+				return args[args.length - 1];
+			}
+		}));
+	}
+
+	public void testTableCreatedOnlyWithAutoDdl() throws Exception {
+		autoDdl = false;
+		checkpoints.init();
+		Assert.assertTrue(calls.isEmpty());
+
+		autoDdl = true;
+		checkpoints.init();
+		Assert.assertEquals(1, calls.size());
+		Assert.assertEquals("ddl", calls.get(0));
+	}
+
+	public void testSiteRecordedOnce() throws Exception {
+		checkpoints.markFailed("2014-FALL", "site1", "failed");
+		checkpoints.markCompleted("2014-FALL", "site1");
+		Assert.assertEquals(4, calls.size());
+		for (int i = 0; i < calls.size(); i += 2) {
+			Assert.assertTrue(calls.get(i).startsWith("dbWrite delete from GB_FINALIZE_CHECKPOINT_T"));
+			Assert.assertTrue(calls.get(i + 1).startsWith("dbWrite insert into GB_FINALIZE_CHECKPOINT_T"));
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+
+package org.sakaiproject.gradebooksample;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+
+/**
+ * Runs a term through the finalizer with the Sakai services stubbed out.
+ */
+public class GradesFinalizerTest extends TestCase {
+	private static final String TERM_EID = "2014-FALL";
+
+	private GradesFinalizer gradesFinalizer;
+	private RecordingCheckpoints checkpoints;
+	private final Set<String> finalizedSiteIds = Collections.synchronizedSet(new HashSet<String>());
+
+	protected void setUp() throws Exception {
+		checkpoints = new RecordingCheckpoints();
+		gradesFinalizer = new GradesFinalizer();
+		gradesFinalizer.setSiteService(stub(SiteService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				List<Site> sites = new ArrayList<Site>();
+				for (int i = 1; i <= 5; i++) {
+					sites.add(site("site" + i));
+				}
+				return sites;
+			}
+		}));
+		gradesFinalizer.setGradebookService(stub(GradebookService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("isGradebookDefined".equals(method.getName())) {
+					return Boolean.TRUE;
+				}
+				String gradebookUid = (String)args[0];
+				if ("site4".equals(gradebookUid)) {
+					throw new IllegalStateException("Could not finalize " + gradebookUid);
+				}
+				finalizedSiteIds.add(gradebookUid);
+				return null;
+			}
+		}));
+		gradesFinalizer.setThreadLocalManager(stub(ThreadLocalManager.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return null;
+			}
+		}));
+		gradesFinalizer.setCheckpoints(checkpoints);
+		gradesFinalizer.setParallelism(2);
+		gradesFinalizer.setBatchSize(2);
+	}
+
+	public void testFailedSiteDoesNotStopTheTerm() throws Exception {
+		gradesFinalizer.setCheckpoints(null);
+		FinalizationProgress progress = gradesFinalizer.finalizeGradesForTermEid(TERM_EID);
+
+		Assert.assertEquals(new HashSet<String>(Arrays.asList(new String[] {"site1", "site2", "site3", "site5"})), finalizedSiteIds);
+		Assert.assertEquals(5, progress.getNumSites());
+		Assert.assertEquals(4, progress.getNumCompleted());
+		Assert.assertEquals(1, progress.getNumFailed());
+		Assert.assertEquals(0, progress.getNumSkipped());
+		Assert.assertEquals(0, progress.getNumRemaining());
+		Assert.assertTrue(progress.isFinished());
+		Assert.assertSame(progress, gradesFinalizer.getProgress());
+		Assert.assertTrue(gradesFinalizer.getCheckpointStatusCounts(TERM_EID).isEmpty());
+	}
+
+	public void testRerunSkipsCompletedSites() throws Exception {
+		checkpoints.completedSiteIds.add("site1");
+		checkpoints.completedSiteIds.add("site2");
+		FinalizationProgress progress = gradesFinalizer.finalizeGradesForTermEid(TERM_EID);
+
+		Assert.assertEquals(new HashSet<String>(Arrays.asList(new String[] {"site3", "site5"})), finalizedSiteIds);
+		Assert.assertEquals(3, progress.getNumSites());
+		Assert.assertEquals(2, progress.getNumSkipped());
+		Assert.assertEquals(2, progress.getNumCompleted());
+		Assert.assertEquals(1, progress.getNumFailed());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList(new String[] {"site1", "site2", "site3", "site5"})), checkpoints.completedSiteIds);
+		Assert.assertEquals(Collections.singleton("site4"), checkpoints.failedSiteIds);
+		Map<String, Integer> counts = gradesFinalizer.getCheckpointStatusCounts(TERM_EID);
+		Assert.assertEquals(Integer.valueOf(4), counts.get(FinalizationCheckpoints.STATUS_COMPLETED));
+		Assert.assertEquals(Integer.valueOf(1), counts.get(FinalizationCheckpoints.STATUS_FAILED));
+	}
+
+	private static class RecordingCheckpoints extends FinalizationCheckpoints {
+		final Set<String> completedSiteIds = Collections.synchronizedSet(new HashSet<String>());
+		final Set<String> failedSiteIds = Collections.synchronizedSet(new HashSet<String>());
+
+		public Set<String> getCompletedSiteIds(String termEid) {
+			return new HashSet<String>(completedSiteIds);
+		}
+
+		public Map<String, Integer> getStatusCounts(String termEid) {
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			counts.put(STATUS_COMPLETED, Integer.valueOf(completedSiteIds.size()));
+			counts.put(STATUS_FAILED, Integer.valueOf(failedSiteIds.size()));
+			return counts;
+		}
+
+		public void markCompleted(String termEid, String siteId) {
+			completedSiteIds.add(siteId);
+		}
+
+		public void markFailed(String termEid, String siteId, String message) {
+			failedSiteIds.add(siteId);
+		}
+	}
+
+	private static Site site(final String siteId) {
+		return stub(Site.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return siteId;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return (T)Proxy.newProxyInstance(GradesFinalizerTest.class.getClassLoader(), new Class[] {type}, handler);
+	}
+}